@@ -48,9 +48,17 @@ public class COAPProxyMain {
 		log.info("read configuration: done");
 		
 		log.info("start controller");
-		Controller controller = new Controller(config);
+		final Controller controller = new Controller(config);
 		controller.start();
 		log.info("start controller: done");
+		
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+		    @Override
+		    public void run() {
+		        log.info("shutdown controller");
+		        controller.shutdown();
+		    }
+		});
 	}
 	
 	private static void configureLogging() throws MalformedURLException, FactoryConfigurationError {
@@ -0,0 +1,424 @@
+package de.uniluebeck.itm.priviot.cpp.cluster;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.uniluebeck.itm.ncoap.application.client.CoapClientApplication;
+import de.uniluebeck.itm.ncoap.message.CoapMessage;
+import de.uniluebeck.itm.ncoap.message.CoapRequest;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.ncoap.message.MessageType;
+import de.uniluebeck.itm.priviot.cpp.communication.CoapClient;
+
+/**
+ * Several CoAP Privacy Proxies, that share the registrations of the CoAP-Webservers.
+ *
+ * Every node of the cluster is identified by host and port of it's interface for the CoAP-Webservers.
+ * The nodes are configured statically. A consistent hash ring over host and port of the CoAP-Webservers
+ * decides, which node owns the registration of a CoAP-Webserver.
+ *
+ * Every node probes the resource /cluster of the other nodes periodically. A node joins the ring, when
+ * it answers, and leaves it, when it misses several probes or answers that it's leaving. Every change
+ * of the ring is reported to the {@link ClusterListener}, that hands off the registrations of CoAP-Webservers,
+ * that are now owned by another node.
+ *
+ * The nodes can run on the same host with different ports. Requests between the nodes are authenticated
+ * with a secret shared by all nodes, because the address of a node doesn't identify it on a shared host.
+ * A signed request carries it's time and is accepted only once within {@link #MAX_REQUEST_AGE}.
+ * The answer to a probe signs the state of the node together with a nonce of the probe,
+ * so neither a forged nor a replayed answer removes a node from the ring.
+ */
+public class Cluster {
+    /** Path of the resource, that answers the probes */
+    public static final String PATH = "/cluster";
+
+    /** State of an active node */
+    public static final String STATE_ACTIVE = "active";
+
+    /** State of a node, that leaves the cluster */
+    public static final String STATE_LEAVING = "leaving";
+
+    /** Query of a probe, followed by the nonce, that the answer signs */
+    public static final String QUERY_NONCE = "nonce=";
+
+    /** Maximum age in milliseconds of a signed request between the nodes */
+    public static final long MAX_REQUEST_AGE = 30000;
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    /** Host and port of this node */
+    private String self;
+
+    /** Host and port of the other nodes */
+    private List<String> nodes;
+
+    /** Addresses of all nodes, to recognize requests of other nodes */
+    private Set<InetAddress> nodeAddresses = new HashSet<InetAddress>();
+
+    /** Key of the signatures of requests between the nodes */
+    private SecretKeySpec secretKey;
+
+    /** Signatures of the accepted requests with their time, to reject replays. Access is synchronized on the map. */
+    private Map<String, Long> acceptedSignatures = new HashMap<String, Long>();
+
+    private SecureRandom random = new SecureRandom();
+
+    /** The nodes, that are actually active */
+    private HashRing ring;
+
+    /** Interval of the probes in seconds */
+    private int probeInterval;
+
+    /** Number of missed probes, after that a node leaves the ring */
+    private int maxMissedProbes;
+
+    /** The probe of the last interval and the number of missed probes of every other node. Accessed by the probe thread only. */
+    private Map<String, CoapClient> probes = new HashMap<String, CoapClient>();
+    private Map<String, String> probeNonces = new HashMap<String, String>();
+    private Map<String, Integer> missedProbes = new HashMap<String, Integer>();
+
+    private volatile boolean leaving = false;
+
+    private CoapClientApplication coapClientApplication;
+
+    private ScheduledExecutorService probeExecutor;
+
+    private ClusterListener listener;
+
+    /**
+     * Constructor
+     * @param coapClientApplication  Sends the probes
+     * @param self                   Host and port of this node
+     * @param nodes                  Host and port of all nodes. This node may be contained.
+     * @param secret                 Secret shared by all nodes, that authenticates their requests
+     * @param virtualNodes           Number of places of every node on the hash ring
+     * @param probeInterval          Interval of the probes in seconds
+     * @param maxMissedProbes        Number of missed probes, after that a node leaves the ring
+     * @throws UnknownHostException  if the host of a node is unknown
+     */
+    public Cluster(CoapClientApplication coapClientApplication, String self, List<String> nodes, String secret,
+                   int virtualNodes, int probeInterval, int maxMissedProbes) throws UnknownHostException {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("The nodes of a cluster need a shared secret");
+        }
+        this.coapClientApplication = coapClientApplication;
+        this.secretKey = new SecretKeySpec(secret.getBytes(CoapMessage.CHARSET), "HmacSHA256");
+        this.self = self;
+        this.nodes = new ArrayList<String>();
+        this.ring = new HashRing(virtualNodes);
+        this.probeInterval = Math.max(probeInterval, 1);
+        this.maxMissedProbes = Math.max(maxMissedProbes, 1);
+
+        for (String node : nodes) {
+            nodeAddresses.add(getSocketAddress(node).getAddress());
+            if (!node.equals(self)) {
+                this.nodes.add(node);
+            }
+        }
+
+        // the other nodes join, when they answer the first probe
+        ring.addNode(self);
+    }
+
+    public void setListener(ClusterListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the probes of the other nodes.
+     */
+    public void start() {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CPP Cluster Thread#%d").build();
+        probeExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        probeExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probe();
+                }
+                catch (Exception e) {
+                    log.error("Exception while probing the nodes of the cluster", e);
+                }
+            }
+        }, 0, probeInterval, TimeUnit.SECONDS);
+
+        log.info("Node " + self + " of a cluster with " + (nodes.size() + 1) + " nodes");
+    }
+
+    /**
+     * Leaves the cluster. This node owns no CoAP-Webservers anymore, the listener hands them off.
+     * Waits for the next probes, so the other nodes know, that this node left.
+     */
+    public void leave() {
+        leaving = true;
+        if (ring.removeNode(self)) {
+            log.info("Node " + self + " leaves the cluster");
+            ownershipChanged();
+        }
+
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(probeInterval));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (probeExecutor != null) {
+            probeExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Returns true, if this node leaves the cluster.
+     */
+    public boolean isLeaving() {
+        return leaving;
+    }
+
+    /**
+     * Returns host and port of the node, that owns a CoAP-Webserver.
+     * @param addressWebserver  Host and port of the CoAP-Webserver
+     * @return The owner, null if there is no active node
+     */
+    public String getOwner(String addressWebserver) {
+        return ring.getNode(addressWebserver);
+    }
+
+    /**
+     * Returns true, if this node owns the CoAP-Webserver.
+     * @param addressWebserver  Host and port of the CoAP-Webserver
+     */
+    public boolean isOwner(String addressWebserver) {
+        return self.equals(getOwner(addressWebserver));
+    }
+
+    /**
+     * Returns true, if the address is the address of a node of the cluster.
+     */
+    public boolean isNode(InetAddress address) {
+        return nodeAddresses.contains(address);
+    }
+
+    /**
+     * Returns the signature of a request to another node.
+     * @param message  The content of the request, that is authenticated
+     * @return The signature as hex string, null if the signature couldn't be computed
+     */
+    public String sign(String message) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secretKey);
+            return BaseEncoding.base16().lowerCase().encode(mac.doFinal(message.getBytes(CoapMessage.CHARSET)));
+        }
+        catch (GeneralSecurityException e) {
+            log.error("Signature of a request to another node failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns true, if the request was signed by a node of the cluster.
+     * @param message    The content of the request, that is authenticated
+     * @param signature  The signature of the request as hex string
+     */
+    public boolean verify(String message, String signature) {
+        String expected = sign(message);
+        if (expected == null || signature == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(expected.getBytes(CoapMessage.CHARSET), signature.getBytes(CoapMessage.CHARSET));
+    }
+
+    /**
+     * Returns true, if the request was signed by a node of the cluster within the last {@link #MAX_REQUEST_AGE}
+     * milliseconds and wasn't accepted before.
+     * @param message    The content of the request, that is authenticated, without the time
+     * @param time       Time in milliseconds, when the request was signed
+     * @param signature  The signature of the message followed by the time as hex string
+     */
+    public boolean verify(String message, long time, String signature) {
+        long now = System.currentTimeMillis();
+        if (Math.abs(now - time) > MAX_REQUEST_AGE || !verify(message + " " + time, signature)) {
+            return false;
+        }
+
+        synchronized (acceptedSignatures) {
+            // older signatures are rejected because of their age
+            Iterator<Long> iterator = acceptedSignatures.values().iterator();
+            while (iterator.hasNext()) {
+                if (Math.abs(now - iterator.next()) > MAX_REQUEST_AGE) {
+                    iterator.remove();
+                }
+            }
+            return acceptedSignatures.put(signature, time) == null;
+        }
+    }
+
+    /**
+     * Returns the answer to a probe: the state of this node followed by the signature of the state,
+     * this node and the nonce of the probe.
+     * @param nonce  The nonce of the probe, null if the probe has none
+     */
+    public String getSignedState(String nonce) {
+        String state = leaving ? STATE_LEAVING : STATE_ACTIVE;
+        return state + " " + sign(state + " " + self + " " + nonce);
+    }
+
+    /**
+     * Returns host and port of this node.
+     */
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * Returns the active nodes.
+     */
+    public Set<String> getActiveNodes() {
+        return ring.getNodes();
+    }
+
+    /**
+     * Returns the socket address of a node given as host and port.
+     */
+    public static InetSocketAddress getSocketAddress(String node) throws UnknownHostException {
+        int separator = node.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Node '" + node + "' is not given as host:port");
+        }
+        return new InetSocketAddress(InetAddress.getByName(node.substring(0, separator)),
+                                     Integer.parseInt(node.substring(separator + 1)));
+    }
+
+    /**
+     * Evaluates the probes of the last interval and sends the next probes.
+     */
+    private void probe() throws Exception {
+        boolean changed = false;
+
+        for (String node : nodes) {
+            CoapClient lastProbe = probes.get(node);
+            if (lastProbe != null) {
+                changed |= evaluateProbe(node, lastProbe);
+            }
+
+            if (leaving) {
+                continue;
+            }
+
+            byte[] nonce = new byte[16];
+            random.nextBytes(nonce);
+            probeNonces.put(node, BaseEncoding.base16().lowerCase().encode(nonce));
+
+            InetSocketAddress recipient = getSocketAddress(node);
+            URI uriNode = new URI("coap", null, recipient.getHostName(), recipient.getPort(), PATH,
+                                  QUERY_NONCE + probeNonces.get(node), null);
+            CoapRequest coapRequest = new CoapRequest(MessageType.Name.CON, MessageCode.Name.GET, uriNode, false);
+
+            CoapClient coapClient = new CoapClient(uriNode);
+            coapClientApplication.sendCoapRequest(coapRequest, coapClient, recipient);
+            probes.put(node, coapClient);
+        }
+
+        if (changed) {
+            ownershipChanged();
+        }
+    }
+
+    /**
+     * Adds the node to the ring or removes it, depending on the answer to the probe.
+     * An answer without valid signature counts as missed probe.
+     * @return true, if the ring changed
+     */
+    private boolean evaluateProbe(String node, CoapClient probe) {
+        String state = null;
+        if (probe.getResponseCount() > 0) {
+            CoapResponse response = probe.getResponseFuture().isDone() ? getResponse(probe) : null;
+            if (response != null && response.getMessageCodeName().equals(MessageCode.Name.CONTENT_205)) {
+                state = verifyState(node, response);
+            }
+        }
+
+        if (state == null) {
+            int missed = missedProbes.containsKey(node) ? missedProbes.get(node) + 1 : 1;
+            missedProbes.put(node, missed);
+            if (missed >= maxMissedProbes && ring.removeNode(node)) {
+                log.info("Node " + node + " missed " + missed + " probes and left the cluster");
+                return true;
+            }
+            return false;
+        }
+
+        missedProbes.remove(node);
+
+        if (STATE_LEAVING.equals(state)) {
+            if (ring.removeNode(node)) {
+                log.info("Node " + node + " left the cluster");
+                return true;
+            }
+        }
+        else if (!leaving && ring.addNode(node)) {
+            log.info("Node " + node + " joined the cluster");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the state of the node, if the answer to the probe carries a valid signature of it.
+     * @return The state, null if the signature is missing or invalid
+     */
+    private String verifyState(String node, CoapResponse response) {
+        ChannelBuffer content = response.getContent();
+        String[] answer = content.toString(content.readerIndex(), content.readableBytes(), CoapMessage.CHARSET).split(" ");
+
+        if (answer.length != 2 || !verify(answer[0] + " " + node + " " + probeNonces.get(node), answer[1])) {
+            log.warn("Answer of node " + node + " to the probe without valid signature");
+            return null;
+        }
+        return answer[0];
+    }
+
+    private CoapResponse getResponse(CoapClient probe) {
+        try {
+            return probe.getResponseFuture().get();
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void ownershipChanged() {
+        log.info("Active nodes of the cluster: " + ring.getNodes());
+        if (listener != null) {
+            listener.ownershipChanged();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package de.uniluebeck.itm.priviot.cpp.cluster;
+
+/**
+ * A ClusterListener receives events from the {@link Cluster}
+ */
+public interface ClusterListener {
+    /**
+     * Is called, when a node joined or left the cluster. Webservers owned by another node
+     * have to be handed off to their new owner.
+     */
+    public void ownershipChanged();
+}
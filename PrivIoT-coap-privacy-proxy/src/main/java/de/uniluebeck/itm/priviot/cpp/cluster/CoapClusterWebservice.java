@@ -0,0 +1,74 @@
+package de.uniluebeck.itm.priviot.cpp.cluster;
+
+import java.net.InetSocketAddress;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.uniluebeck.itm.ncoap.application.server.webservice.NotObservableWebservice;
+import de.uniluebeck.itm.ncoap.message.CoapMessage;
+import de.uniluebeck.itm.ncoap.message.CoapRequest;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
+import de.uniluebeck.itm.ncoap.message.options.OptionValue;
+
+/**
+ * A CoAP-Webservice, that answers the probes of the other nodes of the cluster
+ * with the state of this node: {@link Cluster#STATE_ACTIVE} or {@link Cluster#STATE_LEAVING}.
+ * The state is followed by it's signature over the nonce of the probe (see {@link Cluster#getSignedState(String)}).
+ */
+public class CoapClusterWebservice extends NotObservableWebservice<Void> {
+
+    private Cluster cluster;
+
+    public CoapClusterWebservice(Cluster cluster) {
+        super(Cluster.PATH, null, OptionValue.MAX_AGE_DEFAULT);
+
+        this.cluster = cluster;
+    }
+
+    @Override
+    public void processCoapRequest(SettableFuture<CoapResponse> responseFuture, CoapRequest coapRequest,
+                                   InetSocketAddress remoteAddress) {
+        try {
+            //Only GET messages are allowed
+            if (coapRequest.getMessageCodeName() != MessageCode.Name.GET) {
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.METHOD_NOT_ALLOWED_405, "Only GET messages are allowed!"));
+                return;
+            }
+
+            String query = coapRequest.getUriQuery();
+            String nonce = query != null && query.startsWith(Cluster.QUERY_NONCE)
+                           ? query.substring(Cluster.QUERY_NONCE.length()) : null;
+
+            CoapResponse coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.CONTENT_205);
+            coapResponse.setContent(cluster.getSignedState(nonce).getBytes(CoapMessage.CHARSET), ContentFormat.TEXT_PLAIN_UTF8);
+            responseFuture.set(coapResponse);
+        }
+        catch (Exception ex) {
+            responseFuture.setException(ex);
+        }
+    }
+
+    @Override
+    public byte[] getSerializedResourceStatus(long contentFormat) {
+        String state = cluster.isLeaving() ? Cluster.STATE_LEAVING : Cluster.STATE_ACTIVE;
+        return state.getBytes(CoapMessage.CHARSET);
+    }
+
+    @Override
+    public byte[] getEtag(long contentFormat) {
+        return new byte[0];
+    }
+
+    @Override
+    public void updateEtag(Void resourceStatus) {
+
+    }
+
+    @Override
+    public void shutdown() {
+
+    }
+}
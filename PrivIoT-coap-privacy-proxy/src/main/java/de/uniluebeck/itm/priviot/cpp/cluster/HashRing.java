@@ -0,0 +1,115 @@
+package de.uniluebeck.itm.priviot.cpp.cluster;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Consistent hash ring, that assigns keys to nodes.
+ *
+ * Every node is placed on the ring several times (virtual nodes), so the keys are spread evenly.
+ * A key belongs to the first node on the ring at or after the hash of the key.
+ * If a node joins or leaves, only the keys between it and it's predecessors change their node.
+ *
+ * Lookups are not blocked by changes of the nodes.
+ */
+public class HashRing {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    /** Number of places of every node on the ring */
+    private int virtualNodes;
+
+    /** The ring. Is replaced on every change of the nodes. */
+    private volatile NavigableMap<Long, String> ring = new TreeMap<Long, String>();
+
+    /** The nodes on the ring */
+    private volatile Set<String> nodes = Collections.emptySet();
+
+    /**
+     * Constructor
+     * @param virtualNodes  Number of places of every node on the ring
+     */
+    public HashRing(int virtualNodes) {
+        this.virtualNodes = Math.max(virtualNodes, 1);
+    }
+
+    /**
+     * Adds a node to the ring.
+     * @return true, if the node wasn't on the ring before
+     */
+    public synchronized boolean addNode(String node) {
+        if (nodes.contains(node)) {
+            return false;
+        }
+
+        NavigableMap<Long, String> newRing = new TreeMap<Long, String>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            newRing.put(hash(node + "#" + i), node);
+        }
+
+        Set<String> newNodes = new HashSet<String>(nodes);
+        newNodes.add(node);
+
+        ring = newRing;
+        nodes = Collections.unmodifiableSet(newNodes);
+        return true;
+    }
+
+    /**
+     * Removes a node from the ring.
+     * @return true, if the node was on the ring
+     */
+    public synchronized boolean removeNode(String node) {
+        if (!nodes.contains(node)) {
+            return false;
+        }
+
+        NavigableMap<Long, String> newRing = new TreeMap<Long, String>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            newRing.remove(hash(node + "#" + i));
+        }
+
+        Set<String> newNodes = new HashSet<String>(nodes);
+        newNodes.remove(node);
+
+        ring = newRing;
+        nodes = Collections.unmodifiableSet(newNodes);
+        return true;
+    }
+
+    /**
+     * Returns the node of a key. null, if there are no nodes.
+     */
+    public String getNode(String key) {
+        NavigableMap<Long, String> actualRing = ring;
+        if (actualRing.isEmpty()) {
+            return null;
+        }
+
+        Map.Entry<Long, String> entry = actualRing.ceilingEntry(hash(key));
+        if (entry == null) {
+            // wrap around
+            entry = actualRing.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * Returns the nodes on the ring.
+     */
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    private static long hash(String value) {
+        return HASH_FUNCTION.hashString(value, Charsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,199 @@
+package de.uniluebeck.itm.priviot.cpp.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.uniluebeck.itm.ncoap.application.client.CoapClientApplication;
+import de.uniluebeck.itm.ncoap.application.client.CoapResponseProcessor;
+import de.uniluebeck.itm.ncoap.application.client.Token;
+import de.uniluebeck.itm.ncoap.communication.reliability.outgoing.RetransmissionTimeoutProcessor;
+import de.uniluebeck.itm.ncoap.message.CoapRequest;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.ncoap.message.MessageType;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
+
+/**
+ * Client side of block-wise transfers (RFC 7959) with the option Block2.
+ *
+ * Fetches a large resource status block by block with GET requests and reassembles it.
+ * If the ETag changes during the transfer, the resource status was updated in between
+ * and the transfer starts again with the first block.
+ */
+public class BlockwiseClient {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    /** Maximum number of restarts of a transfer because of a changed resource status */
+    private static final int MAX_RESTARTS = 3;
+
+    private CoapClientApplication coapClientApplication;
+
+    /** Size exponent of the requested blocks. The server may choose smaller blocks. */
+    private int sizeExponent;
+
+    /**
+     * Constructor
+     * @param coapClientApplication  The CoapClientApplication object
+     * @param maxBlockSize           Size of the requested blocks in bytes (16 to 1024)
+     */
+    public BlockwiseClient(CoapClientApplication coapClientApplication, int maxBlockSize) {
+        this.coapClientApplication = coapClientApplication;
+        this.sizeExponent = Math.max(BlockOption.getSizeExponent(maxBlockSize), 0);
+    }
+
+    /**
+     * Fetches the resource status block-wise.
+     *
+     * @param uriWebservice  URI of the webservice
+     * @param contentFormat  Accepted content format
+     * @param firstResponse  Already received response with the first block, for example the response to an observation.
+     *                       null to start with the first block.
+     * @return Future of a response with the whole resource status
+     */
+    public ListenableFuture<CoapResponse> fetch(URI uriWebservice, long contentFormat, CoapResponse firstResponse) {
+        Transfer transfer = new Transfer(uriWebservice, contentFormat);
+
+        try {
+            if (firstResponse != null && BlockwiseTransfer.getBlock2(firstResponse) != null) {
+                transfer.receivedBlock(firstResponse);
+            }
+            else {
+                transfer.requestBlock(0, sizeExponent);
+            }
+        }
+        catch (Exception e) {
+            transfer.future.setException(e);
+        }
+
+        return transfer.future;
+    }
+
+    /**
+     * A running block-wise transfer.
+     */
+    private class Transfer {
+        private URI uriWebservice;
+        private long contentFormat;
+
+        private SettableFuture<CoapResponse> future = SettableFuture.create();
+
+        /** The received blocks */
+        private ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        /** ETag of the first block, null if the server doesn't send ETags */
+        private byte[] etag;
+
+        private int restarts = 0;
+
+        private Transfer(URI uriWebservice, long contentFormat) {
+            this.uriWebservice = uriWebservice;
+            this.contentFormat = contentFormat;
+        }
+
+        private void requestBlock(long number, int blockSizeExponent) throws UnknownHostException {
+            CoapRequest coapRequest = new CoapRequest(MessageType.Name.CON, MessageCode.Name.GET, uriWebservice, false);
+            coapRequest.setAccept(contentFormat);
+            BlockwiseTransfer.setBlock2(coapRequest, new BlockOption(number, false, blockSizeExponent));
+
+            InetSocketAddress recipient = new InetSocketAddress(InetAddress.getByName(uriWebservice.getHost()),
+                                                                uriWebservice.getPort());
+
+            coapClientApplication.sendCoapRequest(coapRequest, new BlockProcessor(this), recipient);
+        }
+
+        private void receivedBlock(CoapResponse coapResponse) throws UnknownHostException {
+            if (coapResponse.getMessageCodeName() != MessageCode.Name.CONTENT_205) {
+                future.setException(new Exception("Block-wise transfer of " + uriWebservice + " failed with code "
+                                                  + coapResponse.getMessageCodeName()));
+                return;
+            }
+
+            ChannelBuffer buffer = coapResponse.getContent();
+            byte[] blockContent = new byte[buffer.readableBytes()];
+            buffer.getBytes(buffer.readerIndex(), blockContent);
+
+            BlockOption block = BlockwiseTransfer.getBlock2(coapResponse);
+            if (block == null) {
+                // the server sent the whole status at once
+                future.set(coapResponse);
+                return;
+            }
+
+            if (etag != null && coapResponse.getEtag() != null && !Arrays.equals(etag, coapResponse.getEtag())) {
+                if (++restarts > MAX_RESTARTS) {
+                    future.setException(new Exception("Status of " + uriWebservice + " changed during every block-wise transfer"));
+                    return;
+                }
+                log.debug("Status of {} changed during block-wise transfer. Restart.", uriWebservice);
+                content.reset();
+                etag = null;
+                requestBlock(0, sizeExponent);
+                return;
+            }
+
+            if (block.getOffset() != content.size()) {
+                future.setException(new Exception("Received block " + block + " of " + uriWebservice
+                                                  + " doesn't follow the received " + content.size() + " bytes"));
+                return;
+            }
+
+            if (block.getNumber() == 0) {
+                etag = coapResponse.getEtag();
+            }
+            content.write(blockContent, 0, blockContent.length);
+
+            if (block.isMore()) {
+                requestBlock(block.getNumber() + 1, block.getSizeExponent());
+                return;
+            }
+
+            log.debug("Received status of {} with {} bytes block-wise", uriWebservice, content.size());
+
+            CoapResponse completeResponse = new CoapResponse(coapResponse.getMessageTypeName(), MessageCode.Name.CONTENT_205);
+            completeResponse.setContent(content.toByteArray(), coapResponse.getContentFormat());
+            if (etag != null) {
+                completeResponse.setEtag(etag);
+            }
+            completeResponse.setMaxAge(coapResponse.getMaxAge());
+            future.set(completeResponse);
+        }
+    }
+
+    /**
+     * Processes the response to the request of a single block.
+     */
+    private class BlockProcessor implements CoapResponseProcessor, RetransmissionTimeoutProcessor {
+        private Transfer transfer;
+
+        private BlockProcessor(Transfer transfer) {
+            this.transfer = transfer;
+        }
+
+        @Override
+        public void processCoapResponse(CoapResponse coapResponse) {
+            try {
+                transfer.receivedBlock(coapResponse);
+            }
+            catch (Exception e) {
+                transfer.future.setException(e);
+            }
+        }
+
+        @Override
+        public void processRetransmissionTimeout(InetSocketAddress remoteEndpoint, int messageID, Token token) {
+            transfer.future.setException(new Exception("Timeout of block-wise transfer of " + transfer.uriWebservice));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package de.uniluebeck.itm.priviot.cpp.communication;
+
+import java.util.Set;
+
+import de.uniluebeck.itm.ncoap.message.CoapMessage;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.options.OptionValue;
+import de.uniluebeck.itm.ncoap.message.options.UintOptionValue;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
+
+/**
+ * Options Block1 and Block2 of block-wise transfers (RFC 7959).
+ *
+ * nCoAP doesn't support block-wise transfers, so the forwarding webservices set the blocks of
+ * a large resource status themselves. The blocks received from the CoAP-Webservers are
+ * reassembled by the {@link BlockwiseClient}. Large batches are posted to the Smart Service Proxies
+ * block-wise with the option Block1.
+ */
+public abstract class BlockwiseTransfer {
+
+    /**
+     * Returns the option Block2 of the message or null, if the option is not set or malformed.
+     */
+    public static BlockOption getBlock2(CoapMessage coapMessage) {
+        return getBlock(coapMessage, BlockOption.BLOCK_2);
+    }
+
+    /**
+     * Returns the option Block1 of the message or null, if the option is not set or malformed.
+     */
+    public static BlockOption getBlock1(CoapMessage coapMessage) {
+        return getBlock(coapMessage, BlockOption.BLOCK_1);
+    }
+
+    private static BlockOption getBlock(CoapMessage coapMessage, int optionNumber) {
+        Set<OptionValue> options = coapMessage.getOptions(optionNumber);
+        if (options == null || options.isEmpty()) {
+            return null;
+        }
+
+        Object value = options.iterator().next().getDecodedValue();
+        if (!(value instanceof Long)) {
+            return null;
+        }
+        return BlockOption.decode((Long)value);
+    }
+
+    /**
+     * Sets the option Block2 of the message.
+     */
+    public static void setBlock2(CoapMessage coapMessage, BlockOption block) {
+        coapMessage.removeOptions(BlockOption.BLOCK_2);
+        coapMessage.addOption(BlockOption.BLOCK_2, new UintOptionValue(BlockOption.BLOCK_2, block.encode()));
+    }
+
+    /**
+     * Sets the option Block1 of the message.
+     */
+    public static void setBlock1(CoapMessage coapMessage, BlockOption block) {
+        coapMessage.removeOptions(BlockOption.BLOCK_1);
+        coapMessage.addOption(BlockOption.BLOCK_1, new UintOptionValue(BlockOption.BLOCK_1, block.encode()));
+    }
+
+    /**
+     * Sets the content of the response.
+     * If the client requested a block or the content is larger than the maximum block size,
+     * only the requested (or the first) block is set together with the option Block2.
+     * The first block carries the size of the whole content in the option Size2.
+     *
+     * @param requestedBlock   Option Block2 of the request, null if it wasn't set
+     * @param maxSizeExponent  Size exponent of the largest block. -1 to send the content in one message
+     * @return false, if the requested block is behind the end of the content
+     */
+    public static boolean setContent(CoapResponse coapResponse, byte[] content, long contentFormat,
+                                     BlockOption requestedBlock, int maxSizeExponent) {
+        if (requestedBlock == null && (maxSizeExponent < 0 || content.length <= BlockOption.getSize(maxSizeExponent))) {
+            coapResponse.setContent(content, contentFormat);
+            return true;
+        }
+
+        // the server may choose smaller blocks than requested
+        int sizeExponent = requestedBlock != null ? requestedBlock.getSizeExponent() : maxSizeExponent;
+        if (maxSizeExponent >= 0) {
+            sizeExponent = Math.min(sizeExponent, maxSizeExponent);
+        }
+        long offset = requestedBlock != null ? requestedBlock.getOffset() : 0;
+
+        BlockOption block = BlockOption.forOffset(offset, sizeExponent, content.length);
+        byte[] blockContent = block.getBlock(content);
+        if (blockContent == null) {
+            return false;
+        }
+
+        coapResponse.setContent(blockContent, contentFormat);
+        setBlock2(coapResponse, block);
+        if (block.getNumber() == 0) {
+            coapResponse.addOption(BlockOption.SIZE_2, new UintOptionValue(BlockOption.SIZE_2, content.length));
+        }
+        return true;
+    }
+}
@@ -2,8 +2,10 @@ package de.uniluebeck.itm.priviot.cpp.communication;
 
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,7 +30,7 @@ import de.uniluebeck.itm.ncoap.message.CoapResponse;
  * - Add a SettableFuture<CoapResponse>
  * - Add a CoapClientListener
  * The first is thread save and can handle multiple listeners. The callback method can be called only once,
- * although the recipient answers multiple times (e.g. observation).
+ * although the recipient answers multiple times (e.g. observation). The future fails, if the transmission times out.
  * The second can save the recipient of the message to get it as parameter in the event 
  * receivedCoapResponse(URI, CoapResonse). The event is called for every response.
  */
@@ -47,6 +49,10 @@ public class CoapClient implements CoapResponseProcessor, TransmissionInformatio
     private URI recipient; 
     
     private CoapClientListener listener;
+    
+    /** Number of retransmissions and timeouts of all clients */
+    private static final AtomicLong retransmissions = new AtomicLong();
+    private static final AtomicLong timeouts = new AtomicLong();
 
     /**
      * Constructor.
@@ -83,6 +89,7 @@ public class CoapClient implements CoapResponseProcessor, TransmissionInformatio
         int value = transmissionCounter.incrementAndGet();
     
         if(retransmission){
+            retransmissions.incrementAndGet();
             log.debug("Transmission #{} for message with ID {} to {} (Token: {})",
                       new Object[]{value, messageID, remoteEndpint, token});
         }
@@ -99,9 +106,22 @@ public class CoapClient implements CoapResponseProcessor, TransmissionInformatio
                   new Object[]{messageID, remoteEndpoint, token});
     
         timedOut.set(true);
+        timeouts.incrementAndGet();
+        responseFuture.setException(new TimeoutException("Transmission of message with ID " + messageID + 
+                                                         " to " + remoteEndpoint + " timed out"));
     }
     
     
+    /** Returns the number of retransmissions of all clients */
+    public static long getRetransmissions() {
+        return retransmissions.get();
+    }
+    
+    /** Returns the number of messages of all clients, that timed out */
+    public static long getTimeouts() {
+        return timeouts.get();
+    }
+    
     public boolean isTimedOut(){
         return timedOut.get();
     }
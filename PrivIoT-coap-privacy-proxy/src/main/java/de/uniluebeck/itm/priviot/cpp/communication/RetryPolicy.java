@@ -0,0 +1,53 @@
+package de.uniluebeck.itm.priviot.cpp.communication;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides, if a failed request is retried, and how long to wait before.
+ *
+ * The delay grows exponentially with every attempt up to a maximum. A random jitter of up to half
+ * the delay is subtracted, so the retries of many requests, that failed at the same time
+ * (e.g. after a gateway outage), are spread.
+ */
+public class RetryPolicy {
+
+    /** Number of retries after the first attempt */
+    private int maxRetries;
+
+    /** Delay before the first retry in milliseconds */
+    private long baseDelay;
+
+    /** Maximum delay before a retry in milliseconds */
+    private long maxDelay;
+
+    /**
+     * Constructor
+     * @param maxRetries  Number of retries after the first attempt, 0 disables retries
+     * @param baseDelay   Delay before the first retry in milliseconds
+     * @param maxDelay    Maximum delay before a retry in milliseconds
+     */
+    public RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        this.maxRetries = Math.max(maxRetries, 0);
+        this.baseDelay = Math.max(baseDelay, 1);
+        this.maxDelay = Math.max(maxDelay, this.baseDelay);
+    }
+
+    /**
+     * Returns true, if a request is retried after the given number of failed attempts.
+     */
+    public boolean isRetried(int failedAttempts) {
+        return failedAttempts <= maxRetries;
+    }
+
+    /**
+     * Returns the delay in milliseconds before the next attempt after the given number of failed attempts.
+     */
+    public long getDelay(int failedAttempts) {
+        long delay = baseDelay;
+        for (int i = 1; i < failedAttempts && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        return delay - ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
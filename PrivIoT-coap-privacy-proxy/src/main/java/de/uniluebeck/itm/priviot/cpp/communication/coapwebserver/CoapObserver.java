@@ -5,18 +5,31 @@ import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 import de.uniluebeck.itm.ncoap.application.client.CoapClientApplication;
 import de.uniluebeck.itm.ncoap.message.CoapRequest;
 import de.uniluebeck.itm.ncoap.message.CoapResponse;
 import de.uniluebeck.itm.ncoap.message.MessageCode;
 import de.uniluebeck.itm.ncoap.message.MessageType;
 import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
+import de.uniluebeck.itm.priviot.cpp.communication.BlockwiseClient;
+import de.uniluebeck.itm.priviot.cpp.communication.BlockwiseTransfer;
 import de.uniluebeck.itm.priviot.cpp.communication.CoapClient;
 import de.uniluebeck.itm.priviot.cpp.communication.CoapClientListener;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
+import de.uniluebeck.itm.priviot.utils.communication.PackageBatch;
 
 /**
  * The CoapObserver registeres the Coap Privacy Proxy at observable sensor webservices 
@@ -24,6 +37,13 @@ import de.uniluebeck.itm.priviot.cpp.communication.CoapClientListener;
  * 
  * After the observer registration it receives periodically the actual data of the sensors and
  * sends them to the registered CoapObserverListener.
+ * 
+ * A status, that is too large for a single message, is fetched block-wise.
+ * The CoAP-Webserver sends an empty update notification for such a status.
+ * 
+ * Instead of every webservice the aggregate resource of a CoAP-Webserver can be observed,
+ * which carries the status of all webservices of the CoAP-Webserver. An aggregate, that is too large for a single
+ * message, is fetched block-wise like a large status, so the CoAP-Webserver holds one observation in any case.
  */
 public class CoapObserver {    
     private Logger log = LoggerFactory.getLogger(this.getClass().getName());
@@ -34,29 +54,49 @@ public class CoapObserver {
     /** The listener receives events */
     private CoapObserverListener listener;
     
+    /** Fetches large status block-wise */
+    private BlockwiseClient blockwiseClient;
+    
+    /** 
+     * Generation of the observations of every webserver by host and port. An observation continues only
+     * as long as the generation of it's webserver doesn't change.
+     */
+    private ConcurrentMap<String, AtomicInteger> generations = new ConcurrentHashMap<String, AtomicInteger>();
+    
     /**
      * Constructor.
      * 
      * @param coapClientApplication  The CoapClientApplication object
-     * @param urlSSP   The host url of the Smart Service Proxy
+     * @param maxBlockSize           Size of the blocks in bytes, that are requested for a large status
      */
-    public CoapObserver(CoapClientApplication coapClientApplication) {
+    public CoapObserver(CoapClientApplication coapClientApplication, int maxBlockSize) {
         this.coapClientApplication = coapClientApplication;
+        this.blockwiseClient = new BlockwiseClient(coapClientApplication, maxBlockSize);
     }
     
     public void setListener(CoapObserverListener listener) {
         this.listener = listener;
     }
     
+    /**
+     * Stops all observations of the webservices of a webserver. The next update notification of
+     * every observation is rejected.
+     * @param uriWebserver  URI of the CoAP-Webserver
+     */
+    public void stopObservations(URI uriWebserver) {
+        getGeneration(uriWebserver.getHost() + ":" + uriWebserver.getPort()).incrementAndGet();
+    }
+    
     /**
      * Registers the CoAP Privacy Proxy as observer at a given webservice of a given
      * CoAP-Webserver.
      * @param urlCoapWebserver   Base url of the CoAP-Webserver
      * @param portCoapWebserver  Port of the CoAP-Webserver
      * @param urlPath            Path of the webservice, relative to urlCoapWebserver
+     * @return Future of the first response of the webservice. It fails, if the webservice doesn't answer.
      * @throws UnknownHostException 
      */
-    public void registerAsObserver(final URI uriWebservice) throws UnknownHostException {
+    public ListenableFuture<CoapResponse> registerAsObserver(final URI uriWebservice) throws UnknownHostException {
         MessageType.Name messageType = MessageType.Name.CON;
         
         CoapRequest coapRequest = new CoapRequest(messageType, MessageCode.Name.GET, uriWebservice, false);
@@ -69,27 +109,198 @@ public class CoapObserver {
         InetSocketAddress recipient = new InetSocketAddress(InetAddress.getByName(uriWebservice.getHost()), 
                                                             uriWebservice.getPort());
         
-        CoapClient coapClient = new CoapClient(uriWebservice);
+        CoapClient coapClient = createObservingClient(uriWebservice);
+        
+        coapClient.addListener(new CoapClientListener() {
+            @Override
+            public void receivedResponse(URI endpoint, CoapResponse response) {
+                if (!response.getMessageCodeName().equals(MessageCode.Name.CONTENT_205)) {
+                    log.error("Wrong behavior of webservice. Received message with code " + response.getMessageCodeName());
+                    return;
+                }
+                
+                BlockOption block2 = BlockwiseTransfer.getBlock2(response);
+                if ((block2 != null && block2.isMore()) || response.getContent().readableBytes() == 0) {
+                    // the first block of a large status or the empty notification of a large status
+                    fetchBlockwise(endpoint, response);
+                    return;
+                }
+                if (listener != null) {
+                    listener.receivedActualStatus(endpoint, response.getContentFormat(), response.getContent(), response.getMaxAge());
+                }
+            }
+        });
         
         // Send the CoAP request
         coapClientApplication.sendCoapRequest(coapRequest, coapClient, recipient);
         
+        return coapClient.getResponseFuture();
+    }
+    
+    /**
+     * Registers the CoAP Privacy Proxy as observer at the aggregate resource of a CoAP-Webserver.
+     * The update notifications of the aggregate resource carry the new status of all webservices of the
+     * CoAP-Webserver as {@link PackageBatch}. Every status is sent to the listener like the status of an
+     * observed webservice. An empty notification or the first block of the aggregate is followed by the
+     * block-wise fetch of the whole aggregate.
+     * 
+     * If the CoAP-Webserver has no aggregate resource, the listener is informed to observe the webservices.
+     * @param uriWebserver  URI of the CoAP-Webserver
+     * @throws UnknownHostException 
+     * @throws URISyntaxException 
+     */
+    public void registerAsMultiplexedObserver(final URI uriWebserver) throws UnknownHostException, URISyntaxException {
+        final URI uriAggregate = new URI("coap", null, uriWebserver.getHost(), uriWebserver.getPort(),
+                                         PackageBatch.AGGREGATE_PATH, null, null);
+        
+        CoapRequest coapRequest = new CoapRequest(MessageType.Name.CON, MessageCode.Name.GET, uriAggregate, false);
+        coapRequest.setAccept(PackageBatch.CONTENT_FORMAT);
+        coapRequest.setObserve();
+        
+        InetSocketAddress recipient = new InetSocketAddress(InetAddress.getByName(uriAggregate.getHost()), 
+                                                            uriAggregate.getPort());
+        
+        CoapClient coapClient = createObservingClient(uriAggregate);
+        
+        coapClientApplication.sendCoapRequest(coapRequest, coapClient, recipient);
+        
         coapClient.addListener(new CoapClientListener() {
             @Override
             public void receivedResponse(URI endpoint, CoapResponse response) {
                 if (!response.getMessageCodeName().equals(MessageCode.Name.CONTENT_205)) {
-                    log.error("Wrong behavior of webservice. Received message with code " + response.getMessageCodeName());
+                    log.info("Webserver " + uriWebserver.getHost() + " has no aggregate resource. Received message with code "
+                             + response.getMessageCodeName());
+                    if (listener != null) {
+                        listener.multiplexedObservationFailed(uriWebserver);
+                    }
                     return;
                 }
                 
-                if (response.getContent().readableBytes() == 0) {
+                BlockOption block2 = BlockwiseTransfer.getBlock2(response);
+                if ((block2 != null && block2.isMore()) || response.getContent().readableBytes() == 0) {
+                    // the first block of a large aggregate or the empty notification of a large aggregate
+                    fetchAggregateBlockwise(uriWebserver, uriAggregate, response);
+                    return;
+                }
+                processAggregate(uriWebserver, response.getContent());
+            }
+        });
+    }
+    
+    /**
+     * Sends the status of the webservices in the aggregate to the listener.
+     * A status without content is fetched block-wise from the webservice.
+     */
+    private void processAggregate(URI uriWebserver, ChannelBuffer content) {
+        byte[] payload = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), payload);
+        
+        PackageBatch batch = PackageBatch.decode(payload);
+        if (batch == null) {
+            log.error("Malformed status of the aggregate resource of " + uriWebserver.getHost());
+            return;
+        }
+        
+        for (PackageBatch.Entry entry : batch.getEntries()) {
+            URI uriWebservice;
+            try {
+                uriWebservice = new URI("coap", null, uriWebserver.getHost(), uriWebserver.getPort(),
+                                        entry.getPath(), null, null);
+            } catch (URISyntaxException e) {
+                log.error("Invalid path in the status of the aggregate resource of " + uriWebserver.getHost(), e);
+                continue;
+            }
+            
+            if (entry.getContent().length == 0) {
+                // a large status without content is fetched from the webservice
+                fetchBlockwise(uriWebservice, null);
+            }
+            else if (listener != null) {
+                listener.receivedActualStatus(uriWebservice, ContentFormat.APP_XML,
+                                              ChannelBuffers.wrappedBuffer(entry.getContent()), entry.getMaxAge());
+            }
+        }
+    }
+    
+    /**
+     * Fetches the aggregate block-wise and processes it. The CoAP-Webserver holds the next aggregate back,
+     * until the last block was fetched.
+     * @param response  The received notification. If it contains the first block, the transfer continues with the second.
+     */
+    private void fetchAggregateBlockwise(final URI uriWebserver, final URI uriAggregate, CoapResponse response) {
+        log.debug("Fetch aggregate of " + uriWebserver.getHost() + " block-wise");
+        
+        Futures.addCallback(blockwiseClient.fetch(uriAggregate, PackageBatch.CONTENT_FORMAT, response), new FutureCallback<CoapResponse>() {
+            @Override
+            public void onSuccess(CoapResponse completeResponse) {
+                if (completeResponse.getContent().readableBytes() == 0) {
+                    // empty aggregate
+                    return;
+                }
+                processAggregate(uriWebserver, completeResponse.getContent());
+            }
+            
+            @Override
+            public void onFailure(Throwable t) {
+                log.error("Block-wise transfer of the aggregate of " + uriWebserver.getHost() + " failed", t);
+            }
+        });
+    }
+    
+    /**
+     * Creates the client of an observation, that stops with the observations of it's webserver.
+     */
+    private CoapClient createObservingClient(URI uri) {
+        final AtomicInteger generation = getGeneration(uri.getHost() + ":" + uri.getPort());
+        final int observationGeneration = generation.get();
+        
+        return new CoapClient(uri) {
+            @Override
+            public boolean continueObservation() {
+                return generation.get() == observationGeneration;
+            }
+        };
+    }
+    
+    private AtomicInteger getGeneration(String addressWebserver) {
+        AtomicInteger generation = generations.get(addressWebserver);
+        if (generation == null) {
+            AtomicInteger newGeneration = new AtomicInteger();
+            generation = generations.putIfAbsent(addressWebserver, newGeneration);
+            if (generation == null) {
+                generation = newGeneration;
+            }
+        }
+        return generation;
+    }
+    
+    /**
+     * Fetches the status of the webservice block-wise and sends it to the listener.
+     * The status is reassembled before it's forwarded, because the forwarding webservice holds the whole package
+     * as it's resource status. It serves the blocks to the SSP from it and derives the ETag from the whole package.
+     * @param response  The received response. If it contains the first block, the transfer continues with the second.
+     *                  null to request the first block.
+     */
+    private void fetchBlockwise(final URI uriWebservice, CoapResponse response) {
+        log.debug("Fetch status of " + uriWebservice + " block-wise");
+        
+        Futures.addCallback(blockwiseClient.fetch(uriWebservice, ContentFormat.APP_XML, response), new FutureCallback<CoapResponse>() {
+            @Override
+            public void onSuccess(CoapResponse completeResponse) {
+                if (completeResponse.getContent().readableBytes() == 0) {
                     // empty status
                     return;
                 }
                 if (listener != null) {
-                    listener.receivedActualStatus(endpoint, response.getContentFormat(), response.getContent(), response.getMaxAge());
+                    listener.receivedActualStatus(uriWebservice, completeResponse.getContentFormat(),
+                                                  completeResponse.getContent(), completeResponse.getMaxAge());
                 }
             }
+            
+            @Override
+            public void onFailure(Throwable t) {
+                log.error("Block-wise transfer of the status of " + uriWebservice + " failed", t);
+            }
         });
     }
     
@@ -20,4 +20,12 @@ public interface CoapObserverListener {
 	 * @param contentLifetimeSeconds  The lifetime of the new status in seconds
 	 */
     public void receivedActualStatus(final URI uriWebservice, long contentFormat, final ChannelBuffer content, long contentLifetimeSeconds);
+    
+    /**
+     * Is called, if the {@link CoapObserver} couldn't observe the aggregate resource of a CoAP-Webserver.
+     * The webservices of the CoAP-Webserver have to be observed one by one.
+     * @param uriWebserver  URI of the CoAP-Webserver
+     */
+    public void multiplexedObservationFailed(URI uriWebserver);
+
 }
@@ -4,9 +4,16 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.slf4j.Logger;
@@ -17,6 +24,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import de.uniluebeck.itm.ncoap.application.client.CoapClientApplication;
 import de.uniluebeck.itm.ncoap.application.server.webservice.NotObservableWebservice;
@@ -26,12 +34,25 @@ import de.uniluebeck.itm.ncoap.message.CoapResponse;
 import de.uniluebeck.itm.ncoap.message.MessageCode;
 import de.uniluebeck.itm.ncoap.message.MessageType;
 import de.uniluebeck.itm.ncoap.message.options.OptionValue;
+import de.uniluebeck.itm.priviot.cpp.cluster.Cluster;
+import de.uniluebeck.itm.priviot.cpp.communication.CoapClient;
+import de.uniluebeck.itm.priviot.cpp.communication.RetryPolicy;
+import de.uniluebeck.itm.priviot.utils.communication.CoapDiscovery;
 
 /**
  * A CoAP-Webservice, that accepts registrations from CoAP-Webservers.
  * 
- * Uppon receiving a registration, it requests the ressource /.well-known/core of the registered
- * CoAP-Webserver to get information about the servers observable webservices.
+ * Uppon receiving a registration, it requests the ressource /discovery of the registered
+ * CoAP-Webserver page by page to get information about the servers observable webservices.
+ * The webservices of every page are registered as soon as the page arrives.
+ * A webserver, that registers again, is only asked for the webservices added since the last discovery.
+ * If the webserver has no resource /discovery, the resource /.well-known/core is requested.
+ * 
+ * Only a limited number of webservers are discovered at the same time, the others are queued.
+ * A failed discovery is retried with a growing delay and jitter. The counters show the progress of the discoveries.
+ * 
+ * In a cluster of CoAP Privacy Proxies the registration of a webserver, that is owned by another node,
+ * is forwarded to that node.
  * 
  * The CoapRegistryWebservice uses a {@link WellKnownCoreProcessor} to process responses.
  */
@@ -42,6 +63,12 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
     private int portSSP;
     private static String PATH_CORE_RESSOURCE = "/.well-known/core";
     private static String PATH_REGISTRY_RESSOURCE = "/registry";
+    /** Query of a registration forwarded by another node of the cluster, followed by the host of the webserver */
+    private static String QUERY_WEBSERVER = "webserver=";
+    /** Query of a forwarded registration, followed by the signature of the node, that forwarded it */
+    private static String QUERY_AUTH = "auth=";
+    /** Query of a forwarded registration, followed by the time in milliseconds, when it was signed */
+    private static String QUERY_TIME = "time=";
     
     private Logger log = LoggerFactory.getLogger(this.getClass().getName());
     
@@ -54,6 +81,37 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
     /** The listener receives events */
     CoapRegistryWebserviceListener listener;
     
+    /** The cluster of CoAP Privacy Proxies, null if this proxy isn't part of a cluster */
+    private Cluster cluster;
+    
+    /** Version of the last complete discovery of every webserver */
+    private Map<InetAddress, DiscoveryVersion> discoveryVersions = new ConcurrentHashMap<>();
+    
+    /** Maximum number of webservers discovered at the same time */
+    private int maxDiscoveries = 16;
+    
+    private RetryPolicy retryPolicy = new RetryPolicy(3, 1000, 30000);
+    
+    /** Schedules the retries of failed discoveries */
+    private ScheduledExecutorService retryExecutor;
+    
+    /** Queued discoveries. Access is synchronized on the queue. */
+    private Deque<Discovery> queuedDiscoveries = new ArrayDeque<Discovery>();
+    
+    /** Webservers, that are queued or discovered at the moment. Access is synchronized on queuedDiscoveries. */
+    private Set<InetAddress> discoveredWebservers = new HashSet<InetAddress>();
+    
+    /** Number of running discoveries. Access is synchronized on queuedDiscoveries. */
+    private int runningDiscoveries = 0;
+    
+    private AtomicLong completedDiscoveries = new AtomicLong();
+    
+    private AtomicLong retriedDiscoveries = new AtomicLong();
+    
+    private AtomicLong failedDiscoveries = new AtomicLong();
+    
+    private AtomicLong discoveredWebservices = new AtomicLong();
+    
     
     public CoapRegistryWebservice(CoapClientApplication clientApplication, int portSSP, int portWebserver) {
         super(PATH_REGISTRY_RESSOURCE, null, OptionValue.MAX_AGE_DEFAULT);
@@ -61,12 +119,33 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
         this.clientApplication = clientApplication;
         this.portSSP = portSSP;
         this.portWebserver = portWebserver;
+        
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("CPP Discovery Retry Thread#%d").build());
+    }
+    
+    /**
+     * Sets the limits of the discoveries.
+     * @param maxDiscoveries  Maximum number of webservers discovered at the same time
+     * @param retryPolicy     Retries failed discoveries
+     */
+    public void setDiscoveryLimits(int maxDiscoveries, RetryPolicy retryPolicy) {
+        this.maxDiscoveries = Math.max(maxDiscoveries, 1);
+        this.retryPolicy = retryPolicy;
     }
     
     public void setListener(CoapRegistryWebserviceListener listener) {
         this.listener = listener;
     }
     
+    /**
+     * Sets the cluster. Registrations of webservers owned by another node are forwarded to that node.
+     * @param cluster The cluster, null if this proxy isn't part of a cluster
+     */
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+    
     @Override
     public void processCoapRequest(final SettableFuture<CoapResponse> registrationResponseFuture,
                                    final CoapRequest coapRequest, InetSocketAddress remoteAddress) {
@@ -92,7 +171,62 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
             
             log.debug("content urlSSP is: '" + urlSSP + "'");
             
-            final URI uriWebserver = createWebserverURI(remoteAddress.getHostName());
+            InetAddress webserverAddress = remoteAddress.getAddress();
+            String webserverHostName = remoteAddress.getHostName();
+            
+            String query = coapRequest.getUriQuery();
+            if (cluster != null && query != null && query.startsWith(QUERY_WEBSERVER)) {
+                // registration forwarded by another node of the cluster
+                String hostWebserver = null;
+                String signature = null;
+                long time = 0;
+                for (String parameter : query.split("&")) {
+                    if (parameter.startsWith(QUERY_WEBSERVER)) {
+                        hostWebserver = parameter.substring(QUERY_WEBSERVER.length());
+                    }
+                    else if (parameter.startsWith(QUERY_AUTH)) {
+                        signature = parameter.substring(QUERY_AUTH.length());
+                    }
+                    else if (parameter.startsWith(QUERY_TIME)) {
+                        try {
+                            time = Long.parseLong(parameter.substring(QUERY_TIME.length()));
+                        } catch (NumberFormatException e) {
+                            log.debug("Malformed time of a forwarded registration: " + parameter);
+                        }
+                    }
+                }
+                
+                // the address doesn't identify a node, other processes can run on the same host.
+                // The time and the signature reject a captured registration, that is sent again.
+                if (!cluster.isNode(webserverAddress) || !cluster.verify(hostWebserver + " " + urlSSP, time, signature)) {
+                    log.warn("Rejected forwarded registration of webserver " + hostWebserver + " from " + webserverAddress);
+                    registrationResponseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                            MessageCode.Name.FORBIDDEN_403, "Forwarded registration without valid or recent signature"));
+                    return;
+                }
+                webserverHostName = hostWebserver;
+                webserverAddress = InetAddress.getByName(webserverHostName);
+            }
+            else if (cluster != null) {
+                String owner = cluster.getOwner(webserverHostName + ":" + portWebserver);
+                if (owner != null && !owner.equals(cluster.getSelf())) {
+                    log.info("Forward registration of webserver " + webserverHostName + " to node " + owner);
+                    Futures.addCallback(forwardRegistration(owner, webserverHostName, urlSSP), new FutureCallback<CoapResponse>() {
+                        @Override
+                        public void onSuccess(CoapResponse response) {
+                            registrationResponseFuture.set(response);
+                        }
+                        
+                        @Override
+                        public void onFailure(Throwable t) {
+                            registrationResponseFuture.setException(t);
+                        }
+                    });
+                    return;
+                }
+            }
+            
+            final URI uriWebserver = createWebserverURI(webserverHostName);
             URI uriSSP;
             try {
                 uriSSP = createSSPURI(urlSSP);
@@ -103,37 +237,67 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
                 return;
             }
             
+            DiscoveryVersion discoveryVersion = discoveryVersions.get(webserverAddress);
+            if (discoveryVersion != null && !discoveryVersion.ssp.equals(uriSSP)) {
+                // the webservices are forwarded anew for the new SSP, so all of them are discovered again
+                discoveryVersions.remove(webserverAddress);
+            }
+            
             // notify listener
             if (listener != null) {
                 listener.registeredNewWebserver(uriWebserver, uriSSP);
             }
 
-            //Get the set of available Services on the newly registered Server
-            ListenableFuture<Set<URI>> servicesFuture = getAvailableWebservices(remoteAddress.getAddress());
-
-            Futures.addCallback(servicesFuture, new FutureCallback<Set<URI>>() {
-                @Override
-                public void onSuccess(Set<URI> result) {                        
-                    // add available webservices to registry
-                    for (URI uriWebservice : result){                        
-                        // notify listener
-                        if (listener != null) {
-                            listener.registeredNewWebservice(uriWebservice);
-                        }
-                    }
-                }
-
-                @Override
-                public void onFailure(Throwable t) {
-                    registrationResponseFuture.setException(t);
-                }
-            });
+            //Register the available services of the newly registered server page by page
+            queueDiscovery(new Discovery(webserverAddress, uriSSP));
         }
         catch(Exception ex){
             registrationResponseFuture.setException(ex);
         }
     }
     
+    /**
+     * Hands off the registration of a webserver to another node of the cluster.
+     * The webserver is discovered completely, when it's registered at this node again.
+     * @param node          Host and port of the node
+     * @param uriWebserver  URI of the webserver
+     * @param uriSSP        URI of the Smart Service Proxy of the webserver
+     */
+    public void handOff(String node, URI uriWebserver, URI uriSSP) throws Exception {
+        discoveryVersions.remove(InetAddress.getByName(uriWebserver.getHost()));
+        forwardRegistration(node, uriWebserver.getHost(), uriSSP.getHost());
+    }
+    
+    /**
+     * Forwards the registration of a webserver to another node of the cluster.
+     * The registration is signed with the secret of the cluster together with the actual time,
+     * so the node trusts the given host of the webserver, but not a replay of the registration.
+     * @param node            Host and port of the node
+     * @param hostWebserver   Host of the webserver
+     * @param urlSSP          Content of the registration, the host of the Smart Service Proxy
+     * @return Future of the response of the node
+     */
+    private ListenableFuture<CoapResponse> forwardRegistration(String node, String hostWebserver, String urlSSP)
+            throws Exception {
+        long time = System.currentTimeMillis();
+        String signature = cluster.sign(hostWebserver + " " + urlSSP + " " + time);
+        if (signature == null) {
+            throw new IllegalStateException("Forwarded registration of webserver " + hostWebserver + " couldn't be signed");
+        }
+        
+        InetSocketAddress recipient = Cluster.getSocketAddress(node);
+        URI uriRegistry = new URI("coap", null, recipient.getHostName(), recipient.getPort(), PATH_REGISTRY_RESSOURCE,
+                                  QUERY_WEBSERVER + hostWebserver + "&" + QUERY_TIME + time + "&" + QUERY_AUTH + signature,
+                                  null);
+        
+        CoapRequest coapRequest = new CoapRequest(MessageType.Name.CON, MessageCode.Name.POST, uriRegistry, false);
+        coapRequest.setContent(urlSSP.getBytes());
+        
+        CoapClient coapClient = new CoapClient(uriRegistry);
+        clientApplication.sendCoapRequest(coapRequest, coapClient, recipient);
+        return coapClient.getResponseFuture();
+    }
+    
     /**
      * Returns an empty byte array as there is only POST allowed and no content provided. However, this method is only
      * implemented for the sake of completeness and is not used at all by the framework.
@@ -159,15 +323,122 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
 
     @Override
     public void shutdown() {
-
+        retryExecutor.shutdown();
     }
     
-    private URI createWebserverURI(String hostName) throws URISyntaxException {
-        return new URI("coap", null, hostName, portWebserver, "/", null, null);
+    /** Returns the number of queued discoveries */
+    public int getQueuedDiscoveries() {
+        synchronized (queuedDiscoveries) {
+            return queuedDiscoveries.size();
+        }
     }
     
-    private URI createWebserverCoreURI(String hostName) throws URISyntaxException {
-        return new URI("coap", null, hostName, portWebserver, PATH_CORE_RESSOURCE, null, null);
+    /** Returns the number of running discoveries */
+    public int getRunningDiscoveries() {
+        synchronized (queuedDiscoveries) {
+            return runningDiscoveries;
+        }
+    }
+    
+    /** Returns the number of completed discoveries */
+    public long getCompletedDiscoveries() {
+        return completedDiscoveries.get();
+    }
+    
+    /** Returns the number of retried discoveries */
+    public long getRetriedDiscoveries() {
+        return retriedDiscoveries.get();
+    }
+    
+    /** Returns the number of discoveries, that failed after all retries */
+    public long getFailedDiscoveries() {
+        return failedDiscoveries.get();
+    }
+    
+    /** Returns the number of discovered webservices */
+    public long getDiscoveredWebservices() {
+        return discoveredWebservices.get();
+    }
+    
+    /**
+     * Queues the discovery of a webserver. A webserver, that is already queued or discovered at the moment,
+     * isn't queued again. The webservices added in the meantime are discovered at it's next registration.
+     */
+    private void queueDiscovery(Discovery discovery) {
+        synchronized (queuedDiscoveries) {
+            if (discovery.attempts == 0 && !discoveredWebservers.add(discovery.webserverAddress)) {
+                log.debug("Discovery of " + discovery.webserverAddress + " is already queued");
+                return;
+            }
+            queuedDiscoveries.add(discovery);
+        }
+        startDiscoveries();
+    }
+    
+    /**
+     * Starts queued discoveries up to the maximum number of running discoveries.
+     */
+    private void startDiscoveries() {
+        while (true) {
+            Discovery discovery;
+            synchronized (queuedDiscoveries) {
+                if (runningDiscoveries >= maxDiscoveries || queuedDiscoveries.isEmpty()) {
+                    return;
+                }
+                discovery = queuedDiscoveries.poll();
+                runningDiscoveries++;
+            }
+            
+            discovery.attempts++;
+            DiscoveryVersion discoveryVersion = discoveryVersions.get(discovery.webserverAddress);
+            long since = discoveryVersion != null ? discoveryVersion.version : 0;
+            try {
+                discoverWebservices(discovery, CoapDiscovery.PATH, CoapDiscovery.QUERY_SINCE + "=" + since);
+            }
+            catch (Exception e) {
+                log.error("Discovery of the webservices of " + discovery.webserverAddress + " failed", e);
+                discoveryFinished(discovery, false);
+            }
+        }
+    }
+    
+    /**
+     * Frees the slot of a finished discovery and retries a failed discovery.
+     * A retried discovery starts again at the last complete version of the webserver.
+     */
+    private void discoveryFinished(final Discovery discovery, boolean success) {
+        boolean retried = !success && retryPolicy.isRetried(discovery.attempts);
+        synchronized (queuedDiscoveries) {
+            runningDiscoveries--;
+            if (!retried) {
+                discoveredWebservers.remove(discovery.webserverAddress);
+            }
+        }
+        
+        if (success) {
+            completedDiscoveries.incrementAndGet();
+        }
+        else if (retried) {
+            long delay = retryPolicy.getDelay(discovery.attempts);
+            log.info("Discovery of " + discovery.webserverAddress + " failed. Retry in " + delay + " milliseconds");
+            retriedDiscoveries.incrementAndGet();
+            retryExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    queueDiscovery(discovery);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        else {
+            log.error("Discovery of " + discovery.webserverAddress + " failed after " + discovery.attempts + " attempts");
+            failedDiscoveries.incrementAndGet();
+        }
+        
+        startDiscoveries();
+    }
+    
+    private URI createWebserverURI(String hostName) throws URISyntaxException {
+        return new URI("coap", null, hostName, portWebserver, "/", null, null);
     }
     
     private URI createWebserviceURI(String hostName, String servicePath) throws URISyntaxException {
@@ -179,21 +450,22 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
     }
 
     /**
-     * Sends a request to the ressource /.well-known/core of a webserver.
-     * Retreives a list of the URIs of the available webservices.
-     * Every webservice is registered in the registry.
-     * @param remoteAddress
-     * @return
-     * @throws Exception
+     * Sends a request for one page of the ressource /discovery (or /.well-known/core) of a webserver.
+     * Every webservice of the page is registered in the registry. After that the next page is requested.
+     * The discovery is finished after the last page or if a page fails.
+     * @param discovery      The discovery of the webserver
+     * @param path           Path of the requested resource
+     * @param query          Query of the requested page, null for none
      */
-    private ListenableFuture<Set<URI>> getAvailableWebservices(final InetAddress remoteAddress) throws Exception {
+    private void discoverWebservices(final Discovery discovery, final String path, final String query)
+            throws Exception {
 
-        final SettableFuture<Set<URI>> servicesFuture = SettableFuture.create();
+        final InetAddress remoteAddress = discovery.webserverAddress;
         final String remoteHostName = remoteAddress.getHostName();
-        final URI uri = createWebserverCoreURI(remoteHostName);
+        final URI uri = new URI("coap", null, remoteHostName, portWebserver, path, query, null);
         
         CoapRequest coapRequest = new CoapRequest(MessageType.Name.CON, MessageCode.Name.GET, uri);
-        WellKnownCoreProcessor responseProcessor = new WellKnownCoreProcessor(internalTasksExecutor);
+        final WellKnownCoreProcessor responseProcessor = new WellKnownCoreProcessor(internalTasksExecutor);
 
         this.clientApplication.sendCoapRequest(coapRequest, responseProcessor, new InetSocketAddress(remoteAddress, portWebserver));
 
@@ -203,33 +475,94 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
                     @Override
                     public void onSuccess(Multimap<String, LinkAttribute> result) {
                         try{
-                            if(result == null){
-                                servicesFuture.set(new HashSet<URI>());
+                            if(!responseProcessor.isResourceFound() && path.equals(CoapDiscovery.PATH)){
+                                log.info("Webserver " + remoteHostName + " has no paged discovery. Request " + PATH_CORE_RESSOURCE);
+                                discoverWebservices(discovery, PATH_CORE_RESSOURCE, null);
                                 return;
                             }
-
-                            Set<URI> serviceUris = new HashSet<>(result.keySet().size());
-                            for(String servicePath : result.keySet()){
-                                URI serviceUri = createWebserviceURI(remoteHostName, servicePath);
-
-                                serviceUris.add(serviceUri);
+                            
+                            DiscoveryVersion lastVersion = discoveryVersions.get(remoteAddress);
+                            if(lastVersion != null && responseProcessor.getEpoch() != lastVersion.epoch
+                                    && path.equals(CoapDiscovery.PATH)){
+                                // the webserver was restarted, the old version is meaningless
+                                log.info("Webserver " + remoteHostName + " was restarted. Discover all webservices.");
+                                discoveryVersions.remove(remoteAddress);
+                                discoverWebservices(discovery, CoapDiscovery.PATH, CoapDiscovery.QUERY_SINCE + "=0");
+                                return;
                             }
 
-                            servicesFuture.set(serviceUris);
+                            if(result != null){
+                                for(String servicePath : result.keySet()){
+                                    URI serviceUri = createWebserviceURI(remoteHostName, servicePath);
+                                    discoveredWebservices.incrementAndGet();
+                                    
+                                    // notify listener
+                                    if (listener != null) {
+                                        listener.registeredNewWebservice(serviceUri);
+                                    }
+                                }
+                            }
+                            
+                            String nextPage = responseProcessor.getNextPage();
+                            if(nextPage != null){
+                                int queryStart = nextPage.indexOf('?');
+                                if(queryStart < 0){
+                                    discoverWebservices(discovery, nextPage, null);
+                                }
+                                else {
+                                    discoverWebservices(discovery, nextPage.substring(0, queryStart), nextPage.substring(queryStart + 1));
+                                }
+                                return;
+                            }
+                            
+                            if(responseProcessor.getVersion() >= 0){
+                                discoveryVersions.put(remoteAddress, new DiscoveryVersion(discovery.ssp,
+                                        responseProcessor.getEpoch(), responseProcessor.getVersion()));
+                            }
+                            discoveryFinished(discovery, true);
                         }
                         catch(Exception ex){
-                            log.error("This should never happen!", ex);
-                            servicesFuture.setException(ex);
+                            log.error("Error during discovery of the webservices of " + remoteHostName, ex);
+                            discoveryFinished(discovery, false);
                         }
                     }
 
                     @Override
                     public void onFailure(Throwable t) {
-                        log.error("This should never happen!", t);
-                        servicesFuture.setException(t);
+                        log.error("Discovery of the webservices of " + remoteHostName + " failed", t);
+                        discoveryFinished(discovery, false);
                     }
                 });
-
-        return servicesFuture;
+    }
+    
+    /**
+     * The discovery of a webserver with the number of attempts.
+     */
+    private static class Discovery {
+        private InetAddress webserverAddress;
+        /** The SSP the webserver registered for */
+        private URI ssp;
+        private int attempts = 0;
+        
+        private Discovery(InetAddress webserverAddress, URI ssp) {
+            this.webserverAddress = webserverAddress;
+            this.ssp = ssp;
+        }
+    }
+    
+    /**
+     * The version of the discovery resource of a webserver within the epoch of the webserver.
+     * It's only valid for the SSP the webserver was discovered for.
+     */
+    private static class DiscoveryVersion {
+        private URI ssp;
+        private long epoch;
+        private long version;
+        
+        private DiscoveryVersion(URI ssp, long epoch, long version) {
+            this.ssp = ssp;
+            this.epoch = epoch;
+            this.version = version;
+        }
     }
 }
@@ -0,0 +1,311 @@
+package de.uniluebeck.itm.priviot.cpp.communication.coapwebserver;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.priviot.cpp.communication.RetryPolicy;
+
+/**
+ * Sends the observe requests of the {@link CoapObserver} at a limited rate.
+ *
+ * After a gateway outage many CoAP-Webservers register at once. Instead of sending the observe requests
+ * of all their webservices at the same time, the requests are queued per webserver and sent
+ * - at most at the global rate,
+ * - with a limited number of unanswered requests per webserver, so a constrained webserver isn't flooded,
+ * - round robin over the webservers, so every webserver makes progress.
+ * An observation, that fails (error response or timeout), is retried with a growing delay and jitter.
+ *
+ * The counters show the progress of the observations.
+ */
+public class ObservationScheduler {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private CoapObserver coapObserver;
+
+    /** Limits the global rate of observe requests. null for unlimited. */
+    private RateLimiter rateLimiter;
+
+    /** Maximum number of unanswered observe requests per webserver */
+    private int maxPerWebserver;
+
+    private RetryPolicy retryPolicy;
+
+    /** Schedules the retries */
+    private ScheduledExecutorService retryExecutor;
+
+    /** The webservers with their queued and unanswered observations by host and port. Access is synchronized on the map. */
+    private Map<String, WebserverState> webservers = new HashMap<String, WebserverState>();
+
+    /** Webservers, that have queued observations and may send another request. Access is synchronized on webservers. */
+    private Set<String> ready = new LinkedHashSet<String>();
+
+    private Thread sender;
+
+    private AtomicLong sentObservations = new AtomicLong();
+
+    private AtomicLong establishedObservations = new AtomicLong();
+
+    private AtomicLong retriedObservations = new AtomicLong();
+
+    private AtomicLong failedObservations = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param coapObserver     Sends the observe requests
+     * @param rate             Maximum number of observe requests per second, 0 for unlimited
+     * @param maxPerWebserver  Maximum number of unanswered observe requests per webserver
+     * @param retryPolicy      Retries failed observations
+     */
+    public ObservationScheduler(CoapObserver coapObserver, double rate, int maxPerWebserver, RetryPolicy retryPolicy) {
+        this.coapObserver = coapObserver;
+        this.rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+        this.maxPerWebserver = Math.max(maxPerWebserver, 1);
+        this.retryPolicy = retryPolicy;
+
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CPP Observation Retry Thread#%d").build();
+        retryExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendObservations();
+            }
+        }, "CPP Observation Thread");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queues the observation of a webservice.
+     */
+    public void observe(URI uriWebservice) {
+        queue(new Observation(uriWebservice));
+    }
+
+    /**
+     * Removes the queued observations of a webserver. Observe requests already sent are not affected.
+     * @param uriWebserver  URI of the CoAP-Webserver
+     */
+    public void cancel(URI uriWebserver) {
+        String address = getAddress(uriWebserver);
+        synchronized (webservers) {
+            WebserverState state = webservers.get(address);
+            if (state != null) {
+                state.queue.clear();
+                ready.remove(address);
+            }
+        }
+    }
+
+    /** Returns the number of queued observations */
+    public int getQueuedObservations() {
+        int queued = 0;
+        synchronized (webservers) {
+            for (WebserverState state : webservers.values()) {
+                queued += state.queue.size();
+            }
+        }
+        return queued;
+    }
+
+    /** Returns the number of unanswered observe requests */
+    public int getPendingObservations() {
+        int pending = 0;
+        synchronized (webservers) {
+            for (WebserverState state : webservers.values()) {
+                pending += state.pending;
+            }
+        }
+        return pending;
+    }
+
+    /** Returns the number of sent observe requests, including retries */
+    public long getSentObservations() {
+        return sentObservations.get();
+    }
+
+    /** Returns the number of observations, that were answered with a status */
+    public long getEstablishedObservations() {
+        return establishedObservations.get();
+    }
+
+    /** Returns the number of retried observe requests */
+    public long getRetriedObservations() {
+        return retriedObservations.get();
+    }
+
+    /** Returns the number of observations, that failed after all retries */
+    public long getFailedObservations() {
+        return failedObservations.get();
+    }
+
+    public void shutdown() {
+        sender.interrupt();
+        retryExecutor.shutdown();
+    }
+
+    private void queue(Observation observation) {
+        String address = getAddress(observation.uriWebservice);
+        synchronized (webservers) {
+            WebserverState state = webservers.get(address);
+            if (state == null) {
+                state = new WebserverState();
+                webservers.put(address, state);
+            }
+            state.queue.add(observation);
+            if (state.pending < maxPerWebserver) {
+                ready.add(address);
+            }
+            webservers.notifyAll();
+        }
+    }
+
+    /**
+     * Takes the observations round robin over the ready webservers and sends them at the limited rate.
+     */
+    private void sendObservations() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Observation observation;
+            synchronized (webservers) {
+                try {
+                    while (ready.isEmpty()) {
+                        webservers.wait();
+                    }
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+
+                Iterator<String> iterator = ready.iterator();
+                String address = iterator.next();
+                iterator.remove();
+
+                WebserverState state = webservers.get(address);
+                observation = state.queue.poll();
+                state.pending++;
+                if (!state.queue.isEmpty() && state.pending < maxPerWebserver) {
+                    // to the end of the round
+                    ready.add(address);
+                }
+            }
+
+            if (rateLimiter != null) {
+                rateLimiter.acquire();
+            }
+            send(observation);
+        }
+
+        log.debug("Observation thread stopped");
+    }
+
+    private void send(final Observation observation) {
+        observation.attempts++;
+        sentObservations.incrementAndGet();
+
+        try {
+            Futures.addCallback(coapObserver.registerAsObserver(observation.uriWebservice), new FutureCallback<CoapResponse>() {
+                @Override
+                public void onSuccess(CoapResponse response) {
+                    if (response.getMessageCodeName().equals(MessageCode.Name.CONTENT_205)) {
+                        completed(observation, true);
+                    }
+                    else {
+                        completed(observation, false);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    completed(observation, false);
+                }
+            });
+        }
+        catch (Exception e) {
+            log.error("Observation of " + observation.uriWebservice + " failed", e);
+            completed(observation, false);
+        }
+    }
+
+    /**
+     * Frees the slot of the observation at it's webserver and retries a failed observation.
+     */
+    private void completed(final Observation observation, boolean success) {
+        String address = getAddress(observation.uriWebservice);
+        synchronized (webservers) {
+            WebserverState state = webservers.get(address);
+            state.pending--;
+            if (!state.queue.isEmpty()) {
+                ready.add(address);
+                webservers.notifyAll();
+            }
+            else if (state.pending == 0) {
+                webservers.remove(address);
+            }
+        }
+
+        if (success) {
+            establishedObservations.incrementAndGet();
+        }
+        else if (retryPolicy.isRetried(observation.attempts)) {
+            long delay = retryPolicy.getDelay(observation.attempts);
+            log.info("Observation of " + observation.uriWebservice + " failed. Retry in " + delay + " milliseconds");
+            retriedObservations.incrementAndGet();
+            retryExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    queue(observation);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        else {
+            log.error("Observation of " + observation.uriWebservice + " failed after " + observation.attempts + " attempts");
+            failedObservations.incrementAndGet();
+        }
+    }
+
+    private static String getAddress(URI uri) {
+        return uri.getHost() + ":" + uri.getPort();
+    }
+
+    /**
+     * An observation of a webservice with the number of attempts.
+     */
+    private static class Observation {
+        private URI uriWebservice;
+        private int attempts = 0;
+
+        private Observation(URI uriWebservice) {
+            this.uriWebservice = uriWebservice;
+        }
+    }
+
+    /**
+     * The queued observations and the number of unanswered observe requests of a webserver.
+     */
+    private static class WebserverState {
+        private Deque<Observation> queue = new ArrayDeque<Observation>();
+        private int pending = 0;
+    }
+}
@@ -0,0 +1,524 @@
+package de.uniluebeck.itm.priviot.cpp.communication.smartserviceproxy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import de.uniluebeck.itm.ncoap.application.client.CoapClientApplication;
+import de.uniluebeck.itm.ncoap.application.client.CoapResponseProcessor;
+import de.uniluebeck.itm.ncoap.application.client.Token;
+import de.uniluebeck.itm.ncoap.communication.reliability.outgoing.RetransmissionTimeoutProcessor;
+import de.uniluebeck.itm.ncoap.message.CoapRequest;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.ncoap.message.MessageType;
+import de.uniluebeck.itm.ncoap.message.options.UintOptionValue;
+import de.uniluebeck.itm.priviot.cpp.communication.BlockwiseTransfer;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
+import de.uniluebeck.itm.priviot.utils.communication.PackageBatch;
+
+/**
+ * Collects the new status of the {@link CoapForwardingWebservice}s for the same Smart Service Proxy
+ * and posts them at once to the batch resource of the Smart Service Proxy (see {@link PackageBatch}).
+ *
+ * Every Smart Service Proxy has a bounded queue. A batch is sent after the configured window, or earlier
+ * if the queue contains the maximum number of packages of a batch. Only one batch per Smart Service Proxy
+ * is in flight, the next one is sent when the previous one was answered or timed out. So a slow or
+ * unreachable Smart Service Proxy fills it's queue. A full queue drops the oldest package or the package,
+ * that expires first, depending on the {@link DropPolicy}. Expired packages are never sent.
+ * The {@link BatchForwarderListener} is informed, when a saturated queue has space again.
+ *
+ * A newer status of a webservice replaces it's older status in the queue.
+ * If a Smart Service Proxy rejects a batch, the observers of it's webservices are notified as usual.
+ * A batch larger than one block is posted block-wise with the option Block1 (RFC 7959). A single status,
+ * that is larger than the maximum batch size, is sent alone in a batch, so every status passes the queue.
+ *
+ * The batches are built while holding the lock of the forwarder, but sent outside of it,
+ * so the forwarding to one Smart Service Proxy doesn't wait for the name resolution of another.
+ */
+public class BatchForwarder {
+
+    /**
+     * Decides, which package is dropped from a full queue.
+     */
+    public enum DropPolicy {
+        /** Drops the oldest package */
+        OLDEST,
+        /** Drops the expired packages, or the package that expires first, if none is expired */
+        EXPIRED
+    }
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private CoapClientApplication coapClientApplication;
+
+    private int portSSP;
+
+    /** Time in milliseconds a batch collects packages */
+    private long window;
+
+    /** Maximum number of packages in a batch */
+    private int maxCount;
+
+    /** Maximum size of an encoded batch in bytes */
+    private int maxSize;
+
+    /** Size exponent of the blocks of a batch. -1 if batches are sent in one message. */
+    private int blockSizeExponent;
+
+    /** Maximum number of packages in the queue of a Smart Service Proxy */
+    private int queueSize;
+
+    private DropPolicy dropPolicy;
+
+    private BatchForwarderListener listener;
+
+    /** The queue of every Smart Service Proxy by it's host */
+    private Map<String, Queue> queues = new HashMap<String, Queue>();
+
+    private ScheduledExecutorService executor;
+
+    /** Number of packages dropped from a full queue */
+    private AtomicLong droppedPackages = new AtomicLong();
+
+    /** Number of packages, that expired in a queue */
+    private AtomicLong expiredPackages = new AtomicLong();
+
+    /** Number of packages sent in batches */
+    private AtomicLong forwardedPackages = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param coapClientApplication  The CoapClientApplication object
+     * @param portSSP     Port of the Smart Service Proxies
+     * @param window      Time in milliseconds a batch collects packages
+     * @param maxCount    Maximum number of packages in a batch
+     * @param maxSize     Maximum size of a batch in bytes
+     * @param maxBlockSize  Size of the blocks of a larger batch in bytes (16 to 1024), 0 to send every batch in one message
+     * @param queueSize   Maximum number of packages in the queue of a Smart Service Proxy
+     * @param dropPolicy  Decides, which package is dropped from a full queue
+     */
+    public BatchForwarder(CoapClientApplication coapClientApplication, int portSSP, long window, int maxCount, int maxSize,
+                          int maxBlockSize, int queueSize, DropPolicy dropPolicy) {
+        this.coapClientApplication = coapClientApplication;
+        this.portSSP = portSSP;
+        this.window = window;
+        this.maxCount = Math.max(maxCount, 1);
+        this.maxSize = maxSize;
+        this.blockSizeExponent = BlockOption.getSizeExponent(maxBlockSize);
+        this.queueSize = Math.max(queueSize, this.maxCount);
+        this.dropPolicy = dropPolicy;
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("CPP Batch Forwarder Thread#%d").setDaemon(true).build());
+    }
+
+    public void setListener(BatchForwarderListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Forwards the new status of the webservice with the next batch to the Smart Service Proxy.
+     * @param hostSSP     Host of the Smart Service Proxy
+     * @param webservice  The forwarding webservice with the new status
+     * @param content     The new status
+     * @param maxAge      Max age of the status in seconds
+     */
+    public void forward(String hostSSP, CoapForwardingWebservice webservice, byte[] content, long maxAge) {
+        Queue queue;
+        boolean available;
+        BatchTransfer transfer = null;
+        synchronized (this) {
+            queue = queues.get(hostSSP);
+            if (queue == null) {
+                queue = new Queue(hostSSP);
+                queues.put(hostSSP, queue);
+            }
+
+            queue.add(new Item(webservice, content, maxAge));
+            updateSaturation(queue);
+
+            if (!queue.inFlight) {
+                if (queue.items.size() >= maxCount || queue.getSize() >= maxSize) {
+                    transfer = nextBatch(queue);
+                }
+                else if (!queue.scheduled) {
+                    scheduleSend(queue, window);
+                }
+            }
+            available = updateSaturation(queue);
+        }
+        start(transfer);
+        notifyAvailable(queue, available);
+    }
+
+    /**
+     * Returns true, if the queue of the Smart Service Proxy is full.
+     */
+    public synchronized boolean isSaturated(String hostSSP) {
+        Queue queue = queues.get(hostSSP);
+        return queue != null && queue.saturated;
+    }
+
+    /**
+     * Returns the number of packages in all queues.
+     */
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (Queue queue : queues.values()) {
+            depth += queue.items.size();
+        }
+        return depth;
+    }
+
+    /** Returns the number of packages dropped from a full queue */
+    public long getDroppedPackages() {
+        return droppedPackages.get();
+    }
+
+    /** Returns the number of packages, that expired in a queue */
+    public long getExpiredPackages() {
+        return expiredPackages.get();
+    }
+
+    /** Returns the number of packages sent in batches */
+    public long getForwardedPackages() {
+        return forwardedPackages.get();
+    }
+
+    /**
+     * Stops the forwarder. Waiting packages are discarded.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void scheduleSend(final Queue queue, long delay) {
+        queue.scheduled = true;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                boolean available;
+                BatchTransfer transfer = null;
+                synchronized (BatchForwarder.this) {
+                    queue.scheduled = false;
+                    // the batch may have been sent already, because it was full
+                    if (!queue.inFlight) {
+                        transfer = nextBatch(queue);
+                    }
+                    available = updateSaturation(queue);
+                }
+                start(transfer);
+                notifyAvailable(queue, available);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the next batch from the queue and marks the queue as in flight. Has to be called with the lock held.
+     * The first package is always taken, even if it's larger than the maximum batch size.
+     * @return The batch to start outside of the lock, null if the queue has no packages
+     */
+    private BatchTransfer nextBatch(Queue queue) {
+        queue.removeExpired();
+
+        PackageBatch packageBatch = new PackageBatch();
+        List<Item> batchItems = new ArrayList<Item>();
+        Iterator<Item> iterator = queue.items.values().iterator();
+        while (iterator.hasNext() && batchItems.size() < maxCount) {
+            Item item = iterator.next();
+            if (!batchItems.isEmpty() && packageBatch.getSize() + item.getSize() > maxSize) {
+                break;
+            }
+            packageBatch.add(item.webservice.getPath(), item.maxAge, item.content);
+            batchItems.add(item);
+            iterator.remove();
+        }
+
+        if (batchItems.isEmpty()) {
+            return null;
+        }
+
+        queue.inFlight = true;
+        return new BatchTransfer(queue, batchItems, packageBatch.encode());
+    }
+
+    /**
+     * Sends the first block of the batch. Has to be called without the lock held.
+     */
+    private void start(BatchTransfer transfer) {
+        if (transfer == null) {
+            return;
+        }
+
+        try {
+            transfer.start();
+            forwardedPackages.addAndGet(transfer.batchItems.size());
+
+            log.debug("Sent batch of {} packages with {} bytes to {}",
+                      new Object[]{transfer.batchItems.size(), transfer.content.length, transfer.queue.hostSSP});
+        }
+        catch (Exception e) {
+            log.error("Could not send batch to " + transfer.queue.hostSSP, e);
+            notifyObservers(transfer.batchItems);
+            batchCompleted(transfer.queue);
+        }
+    }
+
+    /**
+     * Is called, when the batch in flight was answered or timed out. Sends the next batch.
+     */
+    private void batchCompleted(Queue queue) {
+        boolean available;
+        BatchTransfer transfer = null;
+        synchronized (this) {
+            queue.inFlight = false;
+
+            if (queue.items.size() >= maxCount || queue.getSize() >= maxSize) {
+                transfer = nextBatch(queue);
+            }
+            else if (!queue.items.isEmpty() && !queue.scheduled) {
+                scheduleSend(queue, window);
+            }
+            available = updateSaturation(queue);
+        }
+        start(transfer);
+        notifyAvailable(queue, available);
+    }
+
+    /**
+     * Re-evaluates, if the queue is saturated. Has to be called with the lock held after packages were added
+     * or removed, because the queue may lose packages by expiry, dropping or a batch.
+     * @return true, if the saturated queue has space again
+     */
+    private boolean updateSaturation(Queue queue) {
+        if (queue.items.size() >= queueSize) {
+            if (!queue.saturated) {
+                log.info("Forwarding queue of " + queue.hostSSP + " is saturated");
+                queue.saturated = true;
+            }
+            return false;
+        }
+        if (queue.saturated) {
+            log.info("Forwarding queue of " + queue.hostSSP + " is available again");
+            queue.saturated = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Informs the listener, that the queue has space again. Has to be called without the lock held,
+     * because the listener may forward new status.
+     */
+    private void notifyAvailable(Queue queue, boolean available) {
+        if (available && listener != null) {
+            listener.queueAvailable(queue.hostSSP);
+        }
+    }
+
+    /**
+     * Notifies the observers of every webservice of the batch.
+     */
+    private static void notifyObservers(List<Item> batchItems) {
+        for (Item item : batchItems) {
+            item.webservice.sendUpdateNotification();
+        }
+    }
+
+    /**
+     * The packages, that wait for the next batch to a Smart Service Proxy.
+     */
+    private class Queue {
+        private String hostSSP;
+
+        /** The items by the path of their webservice in the order they were added */
+        private LinkedHashMap<String, Item> items = new LinkedHashMap<String, Item>();
+
+        /** True, if a batch was sent and is not answered yet */
+        private boolean inFlight = false;
+
+        /** True, if the next batch is scheduled */
+        private boolean scheduled = false;
+
+        /** True, if the queue was full and didn't have space again yet */
+        private boolean saturated = false;
+
+        private Queue(String hostSSP) {
+            this.hostSSP = hostSSP;
+        }
+
+        /** Returns the encoded size of all packages in the queue */
+        private int getSize() {
+            int size = 0;
+            for (Item item : items.values()) {
+                size += item.getSize();
+            }
+            return size;
+        }
+
+        private void add(Item item) {
+            // the newer status replaces the older one and takes it's place at the end
+            if (items.remove(item.webservice.getPath()) == null && items.size() >= queueSize) {
+                drop();
+            }
+            items.put(item.webservice.getPath(), item);
+        }
+
+        /**
+         * Drops a package according to the drop policy.
+         */
+        private void drop() {
+            if (dropPolicy == DropPolicy.EXPIRED) {
+                removeExpired();
+                if (items.size() < queueSize) {
+                    return;
+                }
+
+                Item firstExpiring = null;
+                for (Item item : items.values()) {
+                    if (firstExpiring == null || item.expiry < firstExpiring.expiry) {
+                        firstExpiring = item;
+                    }
+                }
+                items.remove(firstExpiring.webservice.getPath());
+            }
+            else {
+                Iterator<Item> iterator = items.values().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+            droppedPackages.incrementAndGet();
+        }
+
+        private void removeExpired() {
+            long now = System.currentTimeMillis();
+            Iterator<Item> iterator = items.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().expiry <= now) {
+                    iterator.remove();
+                    expiredPackages.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * The status of a webservice in a queue.
+     */
+    private static class Item {
+        private CoapForwardingWebservice webservice;
+        private byte[] content;
+        private long maxAge;
+
+        /** Time in milliseconds, when the status expires */
+        private long expiry;
+
+        private Item(CoapForwardingWebservice webservice, byte[] content, long maxAge) {
+            this.webservice = webservice;
+            this.content = content;
+            this.maxAge = maxAge;
+            this.expiry = System.currentTimeMillis() + maxAge * 1000;
+        }
+
+        private int getSize() {
+            return PackageBatch.getEncodedSize(webservice.getPath(), content);
+        }
+    }
+
+    /**
+     * A batch in flight. A batch larger than one block is posted block-wise with the option Block1,
+     * the next block is sent when the Smart Service Proxy answered the previous one.
+     * nCoAP knows no 2.31 Continue, so the Smart Service Proxy answers every block with 2.04 Changed.
+     */
+    private class BatchTransfer implements CoapResponseProcessor, RetransmissionTimeoutProcessor {
+        private Queue queue;
+        private List<Item> batchItems;
+        private byte[] content;
+        private URI uriBatch;
+        private InetSocketAddress recipient;
+
+        /** The block in flight. null if the batch is sent in one message. */
+        private BlockOption block;
+
+        private BatchTransfer(Queue queue, List<Item> batchItems, byte[] content) {
+            this.queue = queue;
+            this.batchItems = batchItems;
+            this.content = content;
+        }
+
+        private void start() throws Exception {
+            uriBatch = new URI("coap", null, queue.hostSSP, portSSP, PackageBatch.PATH, null, null);
+            recipient = new InetSocketAddress(InetAddress.getByName(queue.hostSSP), portSSP);
+
+            if (blockSizeExponent >= 0 && content.length > BlockOption.getSize(blockSizeExponent)) {
+                block = BlockOption.forOffset(0, blockSizeExponent, content.length);
+            }
+            sendRequest();
+        }
+
+        private void sendRequest() {
+            CoapRequest coapRequest = new CoapRequest(MessageType.Name.CON, MessageCode.Name.POST, uriBatch, false);
+            if (block == null) {
+                coapRequest.setContent(content, PackageBatch.CONTENT_FORMAT);
+            }
+            else {
+                coapRequest.setContent(block.getBlock(content), PackageBatch.CONTENT_FORMAT);
+                BlockwiseTransfer.setBlock1(coapRequest, block);
+                if (block.getNumber() == 0) {
+                    coapRequest.addOption(BlockOption.SIZE_1, new UintOptionValue(BlockOption.SIZE_1, content.length));
+                }
+            }
+            coapClientApplication.sendCoapRequest(coapRequest, this, recipient);
+        }
+
+        @Override
+        public void processCoapResponse(CoapResponse coapResponse) {
+            if (coapResponse.getMessageCodeName() != MessageCode.Name.CHANGED_204) {
+                log.error("Smart Service Proxy " + queue.hostSSP + " rejected batch with " + coapResponse.getMessageCodeName()
+                          + ". Send update notifications.");
+                notifyObservers(batchItems);
+                batchCompleted(queue);
+                return;
+            }
+
+            if (block != null && block.isMore()) {
+                BlockOption acknowledged = BlockwiseTransfer.getBlock1(coapResponse);
+                if (acknowledged == null || acknowledged.getNumber() != block.getNumber()) {
+                    log.error("Smart Service Proxy " + queue.hostSSP + " didn't acknowledge block " + block
+                              + " of a batch. Send update notifications.");
+                    notifyObservers(batchItems);
+                    batchCompleted(queue);
+                    return;
+                }
+                block = BlockOption.forOffset(block.getOffset() + block.getSize(), blockSizeExponent, content.length);
+                sendRequest();
+                return;
+            }
+            batchCompleted(queue);
+        }
+
+        @Override
+        public void processRetransmissionTimeout(InetSocketAddress remoteEndpoint, int messageID, Token token) {
+            // the Smart Service Proxy is unreachable, update notifications would time out as well
+            log.error("Timeout of batch with " + batchItems.size() + " packages to " + queue.hostSSP);
+            droppedPackages.addAndGet(batchItems.size());
+            batchCompleted(queue);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package de.uniluebeck.itm.priviot.cpp.communication.smartserviceproxy;
+
+/**
+ * A BatchForwarderListener receives events from the {@link BatchForwarder}
+ */
+public interface BatchForwarderListener {
+    /**
+     * Is called, when the queue of a Smart Service Proxy is no longer saturated.
+     * @param hostSSP  Host of the Smart Service Proxy
+     */
+    public void queueAvailable(String hostSSP);
+}
@@ -1,18 +1,14 @@
 package de.uniluebeck.itm.priviot.cpp.communication.smartserviceproxy;
 
-import java.io.ByteArrayOutputStream;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 
-import javax.xml.bind.JAXBException;
-import javax.xml.stream.XMLStreamException;
-
 import org.apache.log4j.Logger;
 
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.SettableFuture;
 
@@ -27,48 +23,119 @@ import de.uniluebeck.itm.ncoap.message.CoapResponse;
 import de.uniluebeck.itm.ncoap.message.MessageCode;
 import de.uniluebeck.itm.ncoap.message.MessageType;
 import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
-import de.uniluebeck.itm.priviot.utils.data.PrivacyDataPackageMarshaller;
+import de.uniluebeck.itm.priviot.cpp.communication.BlockwiseTransfer;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
+import de.uniluebeck.itm.priviot.utils.communication.NotificationTypePolicy;
 import de.uniluebeck.itm.priviot.utils.data.generated.PrivacyDataPackage;
+import de.uniluebeck.itm.priviot.utils.metrics.Meter;
+import de.uniluebeck.itm.priviot.utils.metrics.Metrics;
 
 /**
  * One CoAP-Webservice for every Original CoAP-Webservice that sends the data.
  * 
  * The CoapForwardingWebservice forwards the received {@link PrivacyDataPackage} of the CoAP-Webservice to the SSP.
+ * The CoAP Privacy Proxy can't decrypt the package, so the resource status are the received payload bytes,
+ * that are forwarded unchanged.
  * 
  * When a SSP asks for the resource /.well-known/core, 
  * he finds the CoapForwardingWebservice as observable webservice.
  */
-public class CoapForwardingWebservice  extends ObservableWebservice<PrivacyDataPackage> {
+public class CoapForwardingWebservice  extends ObservableWebservice<byte[]> {
 	private Logger log = Logger.getLogger(CoapForwardingWebservice.class.getName());
 
-    private Map<Long, String> templates;
-    
     private boolean isRegisteredAtSSP = false;
     
+    /** Hash of the actual resource status, the ETag is derived from it. Only valid, if there is a status. */
+    private volatile long statusHash;
+    
+    /** Time in milliseconds, the actual resource status expires */
+    private volatile long statusExpiry;
+    
+    /** Decides, if a notification is sent CON or NON. null sends every notification CON. */
+    private NotificationTypePolicy notificationTypePolicy;
+    
+    /** Size exponent of the largest block of a response. -1 if larger responses are not sent block-wise. */
+    private int maxBlockSizeExponent = -1;
+    
+    /** True, if new status are forwarded by the {@link BatchForwarder} instead of update notifications */
+    private volatile boolean batched = false;
+    
+    /** Counts the update notifications. null if metrics are disabled. */
+    private Meter notificationMeter;
+    
     /**
      * Constructor
      * @param path Path where the Webservice is registered
-     * @param updateInterval Interval of resource update in seconds
+     * @param notificationTypePolicy Policy for the message type of update notifications, null to send every notification CON
      */
-    public CoapForwardingWebservice(String path) {
+    public CoapForwardingWebservice(String path, NotificationTypePolicy notificationTypePolicy) {
     	super(path, null);
+    	
+    	this.notificationTypePolicy = notificationTypePolicy;
 
-        this.templates = new HashMap<>();
-
-        //add support for xml content
-        addContentFormat(ContentFormat.APP_XML, "%s");
+        //the received packages are XML and forwarded unchanged
+        this.setLinkAttribute(new LongLinkAttribute(LinkAttribute.CONTENT_TYPE, ContentFormat.APP_XML));
     }
     
-    public void updateRdfSensorData(PrivacyDataPackage dataPackage, long contentLifetimeSeconds) {
+    /**
+     * Sets the maximum size of a response. Larger resource status are sent block-wise.
+     * @param maxBlockSize Maximum block size in bytes (16 to 1024), 0 to disable block-wise transfers
+     */
+    public void setMaxBlockSize(int maxBlockSize) {
+        this.maxBlockSizeExponent = BlockOption.getSizeExponent(maxBlockSize);
+    }
+    
+    /**
+     * Sets the metrics, that count the update notifications.
+     * @param metrics The metrics, null to disable them
+     */
+    public void setMetrics(Metrics metrics) {
+        this.notificationMeter = metrics != null ? metrics.meter("notifications.out") : null;
+    }
+    
+    /**
+     * Sets the received PrivacyDataPackage as new resource status.
+     * @param content                 The serialized PrivacyDataPackage as received from the CoAP-Webservice.
+     *                                It is forwarded unchanged and must not be modified afterwards.
+     * @param contentLifetimeSeconds  Lifetime of the resource status
+     */
+    public void updateRdfSensorData(byte[] content, long contentLifetimeSeconds) {
     	log.debug("New sensor data available to forward");
-    	setResourceStatus(dataPackage, contentLifetimeSeconds);
+    	
+    	// the ETag is derived from the received bytes
+    	statusHash = Hashing.sha256().hashBytes(content).asLong();
+    	statusExpiry = System.currentTimeMillis() + contentLifetimeSeconds * 1000;
+        
+    	setResourceStatus(content, contentLifetimeSeconds);
     }
     
-    private void addContentFormat(long contentFormat, String template){
-        this.templates.put(contentFormat, template);
-        this.setLinkAttribute(new LongLinkAttribute(LinkAttribute.CONTENT_TYPE, contentFormat));
+    /**
+     * Sets, if new status are forwarded by the {@link BatchForwarder}. 
+     * In this case the observers are not notified by setting a new status, but by sendUpdateNotification only.
+     */
+    public void setBatched(boolean batched) {
+        this.batched = batched;
     }
-
+    
+    /**
+     * Notifies the observers about the actual status, also if the status is forwarded in batches.
+     * Used for status, that can't be forwarded in a batch.
+     */
+    public void sendUpdateNotification() {
+        setChanged();
+        super.notifyObservers(null);
+    }
+    
+    @Override
+    public void notifyObservers(Object arg) {
+        if (batched) {
+            // the status is forwarded in a batch
+            clearChanged();
+            return;
+        }
+        super.notifyObservers(arg);
+    }
+    
     @Override
     public void setScheduledExecutorService(ScheduledExecutorService executorService){
         super.setScheduledExecutorService(executorService);
@@ -76,7 +143,13 @@ public class CoapForwardingWebservice  extends ObservableWebservice<PrivacyDataP
 
     @Override
     public MessageType.Name getMessageTypeForUpdateNotification(InetSocketAddress remoteEndpoint, Token token) {
-        return MessageType.Name.CON;
+        if (notificationMeter != null) {
+            notificationMeter.mark();
+        }
+        if (notificationTypePolicy == null || notificationTypePolicy.isConfirmable(getPath(), remoteEndpoint)) {
+            return MessageType.Name.CON;
+        }
+        return MessageType.Name.NON;
     }
 
 
@@ -86,12 +159,13 @@ public class CoapForwardingWebservice  extends ObservableWebservice<PrivacyDataP
             return Longs.toByteArray(contentFormat << 56);
         }
         
-        return Longs.toByteArray(getResourceStatus().toString().hashCode() | (contentFormat << 56));
+        // the highest byte distinguishes the content formats
+        return Longs.toByteArray((statusHash & 0x00FFFFFFFFFFFFFFL) | (contentFormat << 56));
     }
 
 
     @Override
-    public void updateEtag(PrivacyDataPackage resourceStatus) {
+    public void updateEtag(byte[] resourceStatus) {
         //nothing to do here...
     }
 
@@ -101,6 +175,10 @@ public class CoapForwardingWebservice  extends ObservableWebservice<PrivacyDataP
                                    InetSocketAddress remoteAddress) {
         try{
             if(coapRequest.getMessageCodeName() == MessageCode.Name.GET){
+                if (notificationTypePolicy != null && isRepeatedRequest(coapRequest)) {
+                    // an observer, that asks again, missed notifications
+                    notificationTypePolicy.requestReceived(getPath(), remoteAddress);
+                }
                 processGet(responseFuture, coapRequest);
             }
 
@@ -118,11 +196,39 @@ public class CoapForwardingWebservice  extends ObservableWebservice<PrivacyDataP
     }
 
 
+    /**
+     * Returns true, if the request may be the repeated request of an observer, that missed notifications.
+     * The requests of the blocks of an empty notification and revalidations of a known status are no sign of loss.
+     */
+    private boolean isRepeatedRequest(CoapRequest coapRequest) {
+        Set<byte[]> etags = coapRequest.getEtags();
+        return BlockwiseTransfer.getBlock2(coapRequest) == null && (etags == null || etags.isEmpty());
+    }
+
+
     private void processGet(SettableFuture<CoapResponse> responseFuture, CoapRequest coapRequest)
             throws Exception {
 
         //Retrieve the accepted content formats from the request
         Set<Long> contentFormats = coapRequest.getAcceptedContentFormats();
+        
+        //If accept option is not set in the request, use the only supported content format
+        if(contentFormats.isEmpty()) {
+            contentFormats.add(ContentFormat.APP_XML);
+        }
+        
+        //If the client already has the actual status, answer with VALID and no payload
+        if (contentFormats.contains(ContentFormat.APP_XML) && isEtagValid(coapRequest, ContentFormat.APP_XML)) {
+            CoapResponse coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.VALID_203);
+            coapResponse.setEtag(getEtag(ContentFormat.APP_XML));
+            coapResponse.setMaxAge(Math.max(0, (statusExpiry - System.currentTimeMillis()) / 1000));
+
+            if(coapRequest.isObserveSet())
+                coapResponse.setObserveOption(0);
+
+            responseFuture.set(coapResponse);
+            return;
+        }
 
         //Generate the payload of the response (depends on the accepted content formats, resp. the default
         WrappedResourceStatus resourceStatus = null;
@@ -144,7 +250,15 @@ public class CoapForwardingWebservice  extends ObservableWebservice<PrivacyDataP
         //accordingly
         if(resourceStatus != null){
             coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.CONTENT_205);
-            coapResponse.setContent(resourceStatus.getContent(), contentFormat);
+            
+            // the wrapped status of a large resource status is empty, see getSerializedResourceStatus
+            byte[] content = resourceStatus.getContent().length > 0 ? resourceStatus.getContent() : serialize(contentFormat);
+            if (!BlockwiseTransfer.setContent(coapResponse, content, contentFormat,
+                                              BlockwiseTransfer.getBlock2(coapRequest), maxBlockSizeExponent)) {
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.BAD_OPTION_402, "Requested block is out of range."));
+                return;
+            }
 
             coapResponse.setEtag(resourceStatus.getEtag());
             coapResponse.setMaxAge(resourceStatus.getMaxAge());
@@ -174,6 +288,25 @@ public class CoapForwardingWebservice  extends ObservableWebservice<PrivacyDataP
     }
 
 
+    /**
+     * Returns true, if one of the ETags of the request matches the ETag of the actual resource status
+     */
+    private boolean isEtagValid(CoapRequest coapRequest, long contentFormat) {
+        Set<byte[]> etags = coapRequest.getEtags();
+        if (etags == null || getResourceStatus() == null) {
+            return false;
+        }
+        
+        byte[] actualEtag = getEtag(contentFormat);
+        for (byte[] etag : etags) {
+            if (Arrays.equals(etag, actualEtag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
     @Override
     public void shutdown() {
         log.info("Shutdown service " + getPath() + ".");
@@ -182,6 +315,22 @@ public class CoapForwardingWebservice  extends ObservableWebservice<PrivacyDataP
 
     @Override
     public byte[] getSerializedResourceStatus(long contentFormat) {
+        byte[] content = serialize(contentFormat);
+        
+        // nCoAP can't send notifications block-wise. An empty notification tells the SSP
+        // to fetch the status block-wise with GET requests.
+        if (content != null && maxBlockSizeExponent >= 0 && content.length > BlockOption.getSize(maxBlockSizeExponent)) {
+            log.debug("Status of " + getPath() + " has " + content.length + " bytes, send empty notification");
+            return new byte[0];
+        }
+        return content;
+    }
+    
+    /**
+     * Returns the resource status in the content format. The received bytes are returned without a copy.
+     * @return The serialized status or null, if the content format isn't supported
+     */
+    private byte[] serialize(long contentFormat) {
         log.debug("Try to create payload for " + getPath() + " (content format: " + contentFormat + ")");
 
         if (getResourceStatus() == null) {
@@ -189,36 +338,18 @@ public class CoapForwardingWebservice  extends ObservableWebservice<PrivacyDataP
             return null;
         }
         
-        String ressourceStatusString = "";
-        if (contentFormat == ContentFormat.APP_XML) {
-            
-        	// serialize privacyDataPackage
-            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-            try {
-               PrivacyDataPackageMarshaller.marshal(getResourceStatus(), outStream);
-            }
-            catch (JAXBException | XMLStreamException e) {
-                log.error("Failure during serialization of PrivacyDataPackage", e);
-                return null;
-            }
-            
-            ressourceStatusString = outStream.toString();
-        }
-        else {
+        if (contentFormat != ContentFormat.APP_XML) {
             // contentFormat not supported
         	log.debug("Content format " + contentFormat +  " for " + getPath() + " not supported. return null");
             return null;
         }
         
-        log.debug("Ressource Status: " + ressourceStatusString);
-
-        String template = templates.get(contentFormat);
-
-        if(template == null)
-            return null;
-
-        else
-            return String.format(template, ressourceStatusString).getBytes(CoapMessage.CHARSET);
+        if (log.isDebugEnabled()) {
+            log.debug("Ressource Status: " + new String(getResourceStatus(), CoapMessage.CHARSET));
+        }
+        
+        // the received package is forwarded unchanged
+        return getResourceStatus();
     }
 
 	public boolean isRegisteredAtSSP() {
@@ -1,13 +1,21 @@
 package de.uniluebeck.itm.priviot.cpp.controller;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.bind.JAXBException;
 import javax.xml.stream.XMLStreamException;
@@ -17,24 +25,40 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import de.uniluebeck.itm.ncoap.application.client.CoapClientApplication;
 import de.uniluebeck.itm.ncoap.application.server.CoapServerApplication;
 import de.uniluebeck.itm.ncoap.message.CoapRequest;
 import de.uniluebeck.itm.ncoap.message.CoapResponse;
 import de.uniluebeck.itm.ncoap.message.MessageCode;
 import de.uniluebeck.itm.ncoap.message.MessageType;
+import de.uniluebeck.itm.priviot.cpp.cluster.Cluster;
+import de.uniluebeck.itm.priviot.cpp.cluster.ClusterListener;
+import de.uniluebeck.itm.priviot.cpp.cluster.CoapClusterWebservice;
 import de.uniluebeck.itm.priviot.cpp.communication.CoapClient;
+import de.uniluebeck.itm.priviot.cpp.communication.CoapMetricsWebservice;
+import de.uniluebeck.itm.priviot.cpp.communication.RetryPolicy;
 import de.uniluebeck.itm.priviot.cpp.communication.coapwebserver.CoapObserver;
 import de.uniluebeck.itm.priviot.cpp.communication.coapwebserver.CoapObserverListener;
 import de.uniluebeck.itm.priviot.cpp.communication.coapwebserver.CoapRegistryWebservice;
 import de.uniluebeck.itm.priviot.cpp.communication.coapwebserver.CoapRegistryWebserviceListener;
+import de.uniluebeck.itm.priviot.cpp.communication.coapwebserver.ObservationScheduler;
+import de.uniluebeck.itm.priviot.cpp.communication.smartserviceproxy.BatchForwarder;
+import de.uniluebeck.itm.priviot.cpp.communication.smartserviceproxy.BatchForwarderListener;
 import de.uniluebeck.itm.priviot.cpp.communication.smartserviceproxy.CoapForwardingWebservice;
 import de.uniluebeck.itm.priviot.cpp.communication.smartserviceproxy.CoapRegisterClient;
 import de.uniluebeck.itm.priviot.cpp.data.Registry;
 import de.uniluebeck.itm.priviot.cpp.data.RegistryEntry;
+import de.uniluebeck.itm.priviot.cpp.data.RegistryJournal;
+import de.uniluebeck.itm.priviot.cpp.data.RegistryJournalListener;
 import de.uniluebeck.itm.priviot.cpp.data.WebserviceEntry;
+import de.uniluebeck.itm.priviot.utils.communication.NotificationTypePolicy;
+import de.uniluebeck.itm.priviot.utils.communication.PackageBatch;
 import de.uniluebeck.itm.priviot.utils.data.PrivacyDataPackageUnmarshaller;
-import de.uniluebeck.itm.priviot.utils.data.generated.PrivacyDataPackage;
+import de.uniluebeck.itm.priviot.utils.metrics.LatencyHistogram;
+import de.uniluebeck.itm.priviot.utils.metrics.Meter;
+import de.uniluebeck.itm.priviot.utils.metrics.Metrics;
 
 /**
  * The Controller connects the data origin with the smart service proxy.
@@ -44,7 +68,7 @@ import de.uniluebeck.itm.priviot.utils.data.generated.PrivacyDataPackage;
  * All data that arrives from the data origin is forwarded to the smart service proxy.
  */
 public class Controller implements CoapRegistryWebserviceListener,
-        CoapObserverListener {
+        CoapObserverListener, BatchForwarderListener, ClusterListener, RegistryJournalListener {
     
     /** Root path of forwarding webservices. The concrete webservices are <basePathForwarding>/1, <basePathForwarding>/2 */
     private  String basePathForwarding;
@@ -57,14 +81,20 @@ public class Controller implements CoapRegistryWebserviceListener,
     /** Sends observe requests to webservices */
     private CoapObserver coapObserver;
     
+    /** Limits the rate of the observe requests to the webservices */
+    private ObservationScheduler observationScheduler;
+    
     /** Receives registry requests from webservers */
     private CoapRegistryWebservice coapRegistryWebservice;
     
     /** Sends registration to Smart Service Proxy */
     private CoapRegisterClient coapRegisterClient;
     
-    /** One webservice for every knwon Smart Service Proxy, that forwards all sensor data to the SSP */
-    private List<CoapForwardingWebservice> coapForwardingWebservices;
+    /** 
+     * Id of the next forwarding webservice. The ids are never reused, so a path identifies
+     * the same webservice for the SSPs, even after other webservices were handed off.
+     */
+    private AtomicLong nextForwardingId = new AtomicLong(1);
     
     private CoapClientApplication coapClientApplication;
     
@@ -89,6 +119,64 @@ public class Controller implements CoapRegistryWebserviceListener,
     /** The path of the SSP's url, where new webservers are registered */
     private String urlPathSSPRegistry;
     
+    /** Decides for every update notification to a SSP, if it is sent CON or NON */
+    private NotificationTypePolicy notificationTypePolicy;
+    
+    /** Maximum size of a block in bytes, 0 disables block-wise transfers to the SSPs */
+    private int maxBlockSize;
+    
+    /** 
+     * Validation of received PrivacyDataPackages before they are forwarded unchanged:
+     * "full" unmarshals the package, "header" checks the root element only, "none" forwards everything.
+     */
+    private String forwardingValidation;
+    
+    /** Forwards new status in batches to the Smart Service Proxies. null if batches are disabled. */
+    private BatchForwarder batchForwarder;
+    
+    /** If true, only the aggregate resource of every webserver is observed instead of every webservice */
+    private boolean observeMultiplexed;
+    
+    /** The cluster of CoAP Privacy Proxies, that share the webservers. null if this proxy isn't part of a cluster. */
+    private Cluster cluster;
+    
+    /** Webservices, whose observation is paused because the forwarding queue of their SSP is saturated. Key is the host of the SSP. */
+    private Map<String, List<URI>> pausedObservations = new HashMap<String, List<URI>>();
+    
+    /** Maximum number of webservers discovered at the same time */
+    private int discoveryConcurrency;
+    
+    /** Retries failed discoveries and observations */
+    private RetryPolicy retryPolicy;
+    
+    /** Maximum number of observe requests per second, 0 for unlimited */
+    private double observeRate;
+    
+    /** Maximum number of unanswered observe requests per webserver */
+    private int observePerWebserver;
+    
+    /** Interval in seconds, in which the progress of discoveries and observations is logged. 0 disables it. */
+    private int metricsInterval;
+    
+    private ScheduledExecutorService metricsExecutor;
+    
+    /** Journal of the registry, that is replayed after a restart. null if the journal is disabled. */
+    private RegistryJournal registryJournal;
+    
+    /** Interval in seconds, in which the journal is compacted */
+    private int journalCompactionInterval;
+    
+    private ScheduledExecutorService journalExecutor;
+    
+    /** Operational metrics, reported by the resource /metrics. null if metrics are disabled. */
+    private Metrics metrics;
+    
+    /** Counts the received status. null if metrics are disabled. */
+    private Meter receivedStatusMeter;
+    
+    /** Measures the time from the receipt of a status until it's handed to the forwarding webservice. null if metrics are disabled. */
+    private LatencyHistogram forwardingHistogram;
+    
     
     public Controller(Configuration config) {
         this.basePathForwarding = config.getString("forwadingpath");
@@ -97,6 +185,30 @@ public class Controller implements CoapRegistryWebserviceListener,
         this.portSSP = config.getInt("port.ssp");
         this.portWebserver = config.getInt("port.coapwebserver");
         this.urlPathSSPRegistry = config.getString("ssp.registry");
+        this.notificationTypePolicy = new NotificationTypePolicy(config.getInt("notification.con.interval", 10),
+                                                                 config.getInt("notification.con.maxage", 60),
+                                                                 config.getInt("notification.con.fallback", 5));
+        this.maxBlockSize = config.getInt("blockwise.size", 1024);
+        this.forwardingValidation = config.getString("forwarding.validation", "header");
+        long batchWindow = config.getLong("forwarding.batch.window", 0);
+        this.observeMultiplexed = config.getBoolean("observe.multiplexed", false);
+        this.discoveryConcurrency = config.getInt("discovery.concurrency", 16);
+        this.retryPolicy = new RetryPolicy(config.getInt("discovery.retries", 3),
+                                           config.getLong("discovery.retry.delay", 1000),
+                                           config.getLong("discovery.retry.maxdelay", 30000));
+        this.observeRate = config.getDouble("observe.rate", 100);
+        this.observePerWebserver = config.getInt("observe.perwebserver", 4);
+        this.metricsInterval = config.getInt("discovery.metrics.interval", 60);
+        String journalFile = config.getString("journal.file", "cpp-registry.journal");
+        if (!journalFile.isEmpty()) {
+            this.registryJournal = new RegistryJournal(journalFile);
+        }
+        this.journalCompactionInterval = Math.max(config.getInt("journal.compaction.interval", 300), 1);
+        if (config.getBoolean("metrics.enabled", false)) {
+            this.metrics = new Metrics();
+            this.receivedStatusMeter = metrics.meter("notifications.in");
+            this.forwardingHistogram = metrics.histogram("forwarding");
+        }
         
         log.info("Open CoAP interface for webservers on port " + ownPortWebservers);
         log.info("Open CoAP interface for Smart Service Proxies on port " + ownPortSSPs);
@@ -107,34 +219,422 @@ public class Controller implements CoapRegistryWebserviceListener,
     	coapServerApplicationSSPs = new CoapServerApplication(ownPortSSPs);
     	
     	registry = new Registry();
+    	
+    	if (batchWindow > 0) {
+    	    batchForwarder = new BatchForwarder(coapClientApplication, portSSP, batchWindow,
+    	                                        config.getInt("forwarding.batch.count", 32),
+    	                                        config.getInt("forwarding.batch.size", 8192), maxBlockSize,
+    	                                        config.getInt("forwarding.queue.size", 256),
+    	                                        BatchForwarder.DropPolicy.valueOf(
+    	                                                config.getString("forwarding.queue.policy", "expired").toUpperCase()));
+    	    batchForwarder.setListener(this);
+    	    log.info("Forward status in batches every " + batchWindow + " milliseconds");
+    	}
+    	
+    	String[] clusterNodes = config.getStringArray("cluster.nodes");
+    	if (clusterNodes.length > 0 && !clusterNodes[0].isEmpty()) {
+    	    try {
+    	        cluster = new Cluster(coapClientApplication, config.getString("cluster.self", "localhost:" + ownPortWebservers),
+    	                              Arrays.asList(clusterNodes), config.getString("cluster.secret", ""),
+    	                              config.getInt("cluster.virtualnodes", 64),
+    	                              config.getInt("cluster.probe.interval", 5),
+    	                              config.getInt("cluster.probe.maxmissed", 3));
+    	    } catch (UnknownHostException e) {
+    	        log.error("Unknown node of the cluster. Start without cluster.", e);
+    	    } catch (IllegalArgumentException e) {
+    	        log.error("Invalid configuration of the cluster. Start without cluster.", e);
+    	    }
+    	}
     }
     
     public void start() {        
-        coapObserver = new CoapObserver(coapClientApplication);
+        coapObserver = new CoapObserver(coapClientApplication, maxBlockSize);
         coapObserver.setListener(this);
+        observationScheduler = new ObservationScheduler(coapObserver, observeRate, observePerWebserver, retryPolicy);
         
         coapRegistryWebservice = new CoapRegistryWebservice(coapClientApplication, portSSP, portWebserver);
         coapRegistryWebservice.setListener(this);
+        coapRegistryWebservice.setDiscoveryLimits(discoveryConcurrency, retryPolicy);
         coapServerApplicationWebservers.registerService(coapRegistryWebservice);
         
+        if (cluster != null) {
+            cluster.setListener(this);
+            coapRegistryWebservice.setCluster(cluster);
+            coapServerApplicationWebservers.registerService(new CoapClusterWebservice(cluster));
+            cluster.start();
+        }
+        
         log.info("CoapRegistryWebservice started");
         
+        if (metrics != null) {
+            addGauges();
+            coapServerApplicationWebservers.registerService(new CoapMetricsWebservice(metrics));
+        }
+        
         coapRegisterClient = new CoapRegisterClient(coapClientApplication, portSSP, urlPathSSPRegistry);
         
-        coapForwardingWebservices = new ArrayList<CoapForwardingWebservice>();
+        if (registryJournal != null) {
+            replayJournal();
+            
+            journalExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("CPP Journal Thread#%d").build());
+            journalExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    compactJournal();
+                }
+            }, journalCompactionInterval, journalCompactionInterval, TimeUnit.SECONDS);
+        }
+        
+        if (metricsInterval > 0) {
+            metricsExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("CPP Metrics Thread#%d").build());
+            metricsExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    logProgress();
+                }
+            }, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * Leaves the cluster, the webservers are handed off to the other nodes.
+     */
+    public void shutdown() {
+        if (cluster != null) {
+            cluster.leave();
+        }
+        if (metricsExecutor != null) {
+            metricsExecutor.shutdown();
+        }
+        observationScheduler.shutdown();
+        coapRegistryWebservice.shutdown();
+        if (registryJournal != null) {
+            journalExecutor.shutdown();
+            compactJournal();
+            registryJournal.close();
+        }
+    }
+    
+    /**
+     * Restores the registry from the journal and observes the webservices again,
+     * so forwarding resumes without new registrations of the webservers.
+     * The forwarding webservices get their former paths. They are registered at their SSP again,
+     * when the first status arrives.
+     */
+    private synchronized void replayJournal() {
+        try {
+            registryJournal.replay(this);
+        } catch (IOException e) {
+            log.error("Replay of the registry journal " + registryJournal.getPath() + " failed", e);
+            return;
+        }
+        
+        if (registry.size() == 0) {
+            return;
+        }
+        log.info("Restored " + registry.size() + " webservers from the registry journal " + registryJournal.getPath());
+        compactJournal();
+        
+        for (RegistryEntry registryEntry : registry.getEntries()) {
+            if (registryEntry.isMultiplexed()) {
+                try {
+                    coapObserver.registerAsMultiplexedObserver(registryEntry.getWebserver());
+                    continue;
+                } catch (UnknownHostException | URISyntaxException e) {
+                    log.error("Observation of the aggregate resource of " + registryEntry.getWebserver().getHost() + " failed", e);
+                    registryEntry.setMultiplexed(false);
+                }
+            }
+            for (WebserviceEntry webserviceEntry : registryEntry.getWebservices()) {
+                observe(registryEntry, webserviceEntry.getWebserviceUri());
+            }
+        }
     }
     
     @Override
-    public void registeredNewWebserver(URI uriWebserver, URI uriSSP) {
+    public void replayedWebserver(URI uriWebserver, URI uriSSP) {
+        RegistryEntry registryEntry = new RegistryEntry(uriWebserver, uriSSP);
+        registryEntry.setMultiplexed(observeMultiplexed);
+        registry.addEntry(registryEntry);
+    }
+    
+    @Override
+    public void replayedWebservice(URI uriWebservice, String forwardingPath) {
+        RegistryEntry registryEntry = registry.getEntryByWebservice(uriWebservice);
+        if (registryEntry == null) {
+            return;
+        }
+        
+        // new forwarding webservices never reuse a replayed path
+        if (forwardingPath.startsWith(basePathForwarding)) {
+            try {
+                long id = Long.parseLong(forwardingPath.substring(basePathForwarding.length()));
+                if (id >= nextForwardingId.get()) {
+                    nextForwardingId.set(id + 1);
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Replayed forwarding webservice " + forwardingPath + " has no numeric id");
+            }
+        }
+        
+        registryEntry.addWebservice(new WebserviceEntry(uriWebservice, createForwardingWebservice(forwardingPath)));
+    }
+    
+    /**
+     * Replaces the journal by the actual registry, if it changed since the last compaction.
+     */
+    private synchronized void compactJournal() {
+        if (!registryJournal.isCompactable()) {
+            return;
+        }
+        try {
+            registryJournal.compact(registry.getEntries());
+        } catch (IOException e) {
+            log.error("Compaction of the registry journal " + registryJournal.getPath() + " failed", e);
+        }
+    }
+    
+    /**
+     * Logs the progress of the discoveries and observations, e.g. while the webservers register after an outage.
+     */
+    private void logProgress() {
+        log.info("Webservers: " + registry.size() +
+                 ", discoveries queued: " + coapRegistryWebservice.getQueuedDiscoveries() +
+                 ", running: " + coapRegistryWebservice.getRunningDiscoveries() +
+                 ", completed: " + coapRegistryWebservice.getCompletedDiscoveries() +
+                 ", retried: " + coapRegistryWebservice.getRetriedDiscoveries() +
+                 ", failed: " + coapRegistryWebservice.getFailedDiscoveries() +
+                 ", webservices: " + coapRegistryWebservice.getDiscoveredWebservices());
+        log.info("Observations queued: " + observationScheduler.getQueuedObservations() +
+                 ", pending: " + observationScheduler.getPendingObservations() +
+                 ", sent: " + observationScheduler.getSentObservations() +
+                 ", established: " + observationScheduler.getEstablishedObservations() +
+                 ", retried: " + observationScheduler.getRetriedObservations() +
+                 ", failed: " + observationScheduler.getFailedObservations());
+    }
+    
+    /**
+     * Adds the gauges of the registry, observations, discoveries, messages and queues to the metrics.
+     */
+    private void addGauges() {
+        metrics.gauge("webservers", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return registry.size();
+            }
+        });
+        metrics.gauge("webservices", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                long webservices = 0;
+                for (RegistryEntry registryEntry : registry.getEntries()) {
+                    webservices += registryEntry.getWebservices().size();
+                }
+                return webservices;
+            }
+        });
+        metrics.gauge("observers", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return notificationTypePolicy.getObservers();
+            }
+        });
+        metrics.gauge("notifications.con", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return notificationTypePolicy.getConfirmableNotifications();
+            }
+        });
+        metrics.gauge("notifications.non", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return notificationTypePolicy.getNonConfirmableNotifications();
+            }
+        });
+        metrics.gauge("notifications.losses", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return notificationTypePolicy.getLosses();
+            }
+        });
+        metrics.gauge("requests.retransmissions", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return CoapClient.getRetransmissions();
+            }
+        });
+        metrics.gauge("requests.timeouts", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return CoapClient.getTimeouts();
+            }
+        });
+        metrics.gauge("observations.queue", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return observationScheduler.getQueuedObservations();
+            }
+        });
+        metrics.gauge("observations.pending", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return observationScheduler.getPendingObservations();
+            }
+        });
+        metrics.gauge("observations.established", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return observationScheduler.getEstablishedObservations();
+            }
+        });
+        metrics.gauge("observations.failed", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return observationScheduler.getFailedObservations();
+            }
+        });
+        metrics.gauge("discoveries.queue", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return coapRegistryWebservice.getQueuedDiscoveries();
+            }
+        });
+        metrics.gauge("discoveries.running", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return coapRegistryWebservice.getRunningDiscoveries();
+            }
+        });
+        metrics.gauge("discoveries.failed", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return coapRegistryWebservice.getFailedDiscoveries();
+            }
+        });
+        
+        if (batchForwarder != null) {
+            metrics.gauge("forwarding.queue", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return batchForwarder.getQueueDepth();
+                }
+            });
+            metrics.gauge("forwarding.batched", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return batchForwarder.getForwardedPackages();
+                }
+            });
+            metrics.gauge("forwarding.dropped", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return batchForwarder.getDroppedPackages();
+                }
+            });
+            metrics.gauge("forwarding.expired", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return batchForwarder.getExpiredPackages();
+                }
+            });
+        }
+        
+        if (cluster != null) {
+            metrics.gauge("cluster.nodes", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return cluster.getActiveNodes().size();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Returns the operational metrics. null if metrics are disabled.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Returns the registry webservice together with the counters of it's discoveries.
+     */
+    public CoapRegistryWebservice getCoapRegistryWebservice() {
+        return coapRegistryWebservice;
+    }
+    
+    /**
+     * Returns the scheduler of the observations together with it's counters.
+     */
+    public ObservationScheduler getObservationScheduler() {
+        return observationScheduler;
+    }
+    
+    /**
+     * Returns the policy for the message type of update notifications together with it's counters.
+     */
+    public NotificationTypePolicy getNotificationTypePolicy() {
+        return notificationTypePolicy;
+    }
+    
+    @Override
+    public synchronized void registeredNewWebserver(URI uriWebserver, URI uriSSP) {
         log.info("Registered new webserver: " + uriWebserver.getHost() + " with SSP " + uriSSP.getHost());
         
-        registry.addEntry(new RegistryEntry(uriWebserver, uriSSP));
+        RegistryEntry registryEntry = new RegistryEntry(uriWebserver, uriSSP);
+        registryEntry.setMultiplexed(observeMultiplexed);
+        
+        RegistryEntry previousEntry = registry.getEntry(uriWebserver);
+        if (previousEntry != null && previousEntry.getSSP().equals(uriSSP)) {
+            // a webserver, that registers again, keeps it's forwarding webservices and their paths
+            for (WebserviceEntry webserviceEntry : previousEntry.getWebservices()) {
+                registryEntry.addWebservice(webserviceEntry);
+            }
+        }
+        else if (previousEntry != null) {
+            // the forwarding webservices of the former SSP are discovered anew for the new SSP
+            log.info("Webserver " + uriWebserver.getHost() + " changed it's SSP from " + previousEntry.getSSP().getHost());
+            removeWebserver(previousEntry);
+        }
+        registry.addEntry(registryEntry);
+        if (registryJournal != null) {
+            registryJournal.appendWebserver(uriWebserver, uriSSP);
+        }
+        
+        if (observeMultiplexed) {
+            // the webservices registered from now on are observed via the aggregate resource
+            try {
+                coapObserver.registerAsMultiplexedObserver(uriWebserver);
+            } catch (UnknownHostException | URISyntaxException e) {
+                log.error("Observation of the aggregate resource of " + uriWebserver.getHost() + " failed", e);
+                multiplexedObservationFailed(uriWebserver);
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void multiplexedObservationFailed(URI uriWebserver) {
+        RegistryEntry registryEntry = registry.getEntry(uriWebserver);
+        if (registryEntry == null || !registryEntry.isMultiplexed()) {
+            return;
+        }
+        
+        log.info("Observe the webservices of " + uriWebserver.getHost() + " one by one");
+        registryEntry.setMultiplexed(false);
+        for (WebserviceEntry webserviceEntry : registryEntry.getWebservices()) {
+            observe(registryEntry, webserviceEntry.getWebserviceUri());
+        }
     }
     
     @Override
     public synchronized void registeredNewWebservice(URI uriWebservice) {
-    	// synchronized is needed because of the coapForwardingWebservices counter that is part of String path.
-    	
+        if (PackageBatch.AGGREGATE_PATH.equals(uriWebservice.getPath())) {
+            // the aggregate resource of the webserver is no sensor webservice
+            return;
+        }
+        
         log.info("Registered new webservice " + uriWebservice.getHost() + uriWebservice.getPath() + ". send observe request.");
         
         RegistryEntry registryEntry = registry.getEntryByWebservice(uriWebservice);
@@ -143,32 +643,162 @@ public class Controller implements CoapRegistryWebserviceListener,
         	return;
         }
         
+        if (registryEntry.getWebservice(uriWebservice) != null) {
+            // known from an earlier registration of the webserver, the forwarding webservice is reused
+            if (!registryEntry.isMultiplexed()) {
+                observe(registryEntry, uriWebservice);
+            }
+            return;
+        }
+        
         // create and start a CoapForwardingWebservice for this web service
-        String path = basePathForwarding + (coapForwardingWebservices.size() + 1);
-        CoapForwardingWebservice coapForwardingWebservice = new CoapForwardingWebservice(path);
-        coapForwardingWebservices.add(coapForwardingWebservice);
-        coapServerApplicationSSPs.registerService(coapForwardingWebservice);
-        log.info("Registered new forwarding webservice: " + coapForwardingWebservice.getPath());
+        String path = basePathForwarding + nextForwardingId.getAndIncrement();
+        CoapForwardingWebservice coapForwardingWebservice = createForwardingWebservice(path);
         
         registryEntry.addWebservice(new WebserviceEntry(uriWebservice, coapForwardingWebservice));
+        if (registryJournal != null) {
+            registryJournal.appendWebservice(uriWebservice, path);
+        }
         
-        // register as observer
-        try {
-            coapObserver.registerAsObserver(uriWebservice);
-        } catch (UnknownHostException e) {
-            log.error("Registered Webservice is unknown host", e);
+        if (registryEntry.isMultiplexed()) {
+            // the status is received via the aggregate resource of the webserver
             return;
         }
         
+        observe(registryEntry, uriWebservice);
+        
         // registration of forwarding web service to SSP is done when the first data is received
     }
     
+    /**
+     * Creates a CoapForwardingWebservice and starts it at the interface for the SSPs.
+     */
+    private CoapForwardingWebservice createForwardingWebservice(String path) {
+        CoapForwardingWebservice coapForwardingWebservice = new CoapForwardingWebservice(path, notificationTypePolicy);
+        coapForwardingWebservice.setMaxBlockSize(maxBlockSize);
+        coapForwardingWebservice.setBatched(batchForwarder != null);
+        coapForwardingWebservice.setMetrics(metrics);
+        coapServerApplicationSSPs.registerService(coapForwardingWebservice);
+        log.info("Registered new forwarding webservice: " + coapForwardingWebservice.getPath());
+        return coapForwardingWebservice;
+    }
+    
+    /**
+     * Registers as observer at the webservice. If the forwarding queue of the SSP is saturated,
+     * the observation is paused until the queue is available again.
+     */
+    private void observe(RegistryEntry registryEntry, URI uriWebservice) {
+        // new observations would add to a saturated forwarding queue
+        String hostSSP = registryEntry.getSSP().getHost();
+        if (batchForwarder != null && batchForwarder.isSaturated(hostSSP)) {
+            log.info("Forwarding queue of " + hostSSP + " is saturated. Pause observation of " + uriWebservice);
+            List<URI> paused = pausedObservations.get(hostSSP);
+            if (paused == null) {
+                paused = new ArrayList<URI>();
+                pausedObservations.put(hostSSP, paused);
+            }
+            paused.add(uriWebservice);
+            return;
+        }
+        
+        // register as observer at the limited rate
+        observationScheduler.observe(uriWebservice);
+    }
+    
+    @Override
+    public synchronized void queueAvailable(String hostSSP) {
+        List<URI> paused = pausedObservations.remove(hostSSP);
+        if (paused == null) {
+            return;
+        }
+        
+        log.info("Resume " + paused.size() + " paused observations for SSP " + hostSSP);
+        for (URI uriWebservice : paused) {
+            RegistryEntry registryEntry = registry.getEntryByWebservice(uriWebservice);
+            if (registryEntry == null || registryEntry.getWebservice(uriWebservice) == null) {
+                // handed off to another node of the cluster or removed with it's webserver
+                continue;
+            }
+            observationScheduler.observe(uriWebservice);
+        }
+    }
+    
+    @Override
+    public synchronized void ownershipChanged() {
+        for (RegistryEntry registryEntry : registry.getEntries()) {
+            URI uriWebserver = registryEntry.getWebserver();
+            String owner = cluster.getOwner(uriWebserver.getHost() + ":" + uriWebserver.getPort());
+            if (owner == null || owner.equals(cluster.getSelf())) {
+                continue;
+            }
+            
+            log.info("Hand off webserver " + uriWebserver.getHost() + " to node " + owner);
+            // the new owner registers it's own forwarding webservices at the SSP
+            removeWebserver(registryEntry);
+            
+            try {
+                coapRegistryWebservice.handOff(owner, uriWebserver, registryEntry.getSSP());
+            } catch (Exception e) {
+                log.error("Hand off of webserver " + uriWebserver.getHost() + " failed", e);
+            }
+        }
+    }
+    
+    /**
+     * Removes a webserver from the registry. It's observations are stopped and it's forwarding webservices
+     * are unregistered at the SSP and shut down.
+     */
+    private void removeWebserver(RegistryEntry registryEntry) {
+        URI uriWebserver = registryEntry.getWebserver();
+        registry.removeEntry(uriWebserver);
+        if (registryJournal != null) {
+            registryJournal.appendRemoval(uriWebserver);
+        }
+        observationScheduler.cancel(uriWebserver);
+        coapObserver.stopObservations(uriWebserver);
+        
+        String hostSSP = registryEntry.getSSP().getHost();
+        for (WebserviceEntry webserviceEntry : registryEntry.getWebservices()) {
+            CoapForwardingWebservice coapForwardingWebservice = webserviceEntry.getCoapForwardingWebservice();
+            if (coapForwardingWebservice.isRegisteredAtSSP()) {
+                try {
+                    coapRegisterClient.unregisterWebservice(hostSSP, coapForwardingWebservice.getPath());
+                } catch (UnknownHostException | URISyntaxException e) {
+                    log.error("Unregistration at Smart Service Proxy failed", e);
+                }
+                coapForwardingWebservice.setRegisteredAtSSP(false);
+            }
+            coapServerApplicationSSPs.shutdownService(coapForwardingWebservice.getPath());
+        }
+    }
+    
+    /**
+     * Returns the cluster of CoAP Privacy Proxies. null if this proxy isn't part of a cluster.
+     */
+    public Cluster getCluster() {
+        return cluster;
+    }
+    
+    /**
+     * Returns the forwarder of the batches to the Smart Service Proxies together with the metrics of it's queues.
+     * null if batches are disabled.
+     */
+    public BatchForwarder getBatchForwarder() {
+        return batchForwarder;
+    }
+    
     @Override
     public void receivedActualStatus(final URI uriWebservice, long contentFormat,
             final ChannelBuffer content, long contentLifetime) {        
+        long receiveTime = System.nanoTime();
+        if (receivedStatusMeter != null) {
+            receivedStatusMeter.mark();
+        }
+        
         RegistryEntry registryEntry = registry.getEntryByWebservice(uriWebservice);
         if (registryEntry == null) {
             log.error("received actual status of not registered werbservice: '" + uriWebservice.getHost() + uriWebservice.getPath() + "'");
+            return;
         }
         
         // get URI of Smart Service Proxy to forward the status message
@@ -177,31 +807,27 @@ public class Controller implements CoapRegistryWebserviceListener,
         log.info("Forward received status from '" + uriWebservice.getHost() + uriWebservice.getPath() + 
                   "' to SSP '" + uriSSP.getHost() + ":" + uriSSP.getPort() + "'");
         
-        // convert content from ChannelBuffer to InputStream
-        final byte[] coapPayload = new byte[content.readableBytes()];
-        content.toByteBuffer().get(coapPayload, content.readerIndex(), content.readableBytes());
-        final ByteArrayInputStream inStream = new ByteArrayInputStream(coapPayload);
+        // the CoAP Privacy Proxy can't decrypt the package. It is forwarded unchanged.
+        final byte[] coapPayload = getBytes(content);
         
-        log.debug("content (" + coapPayload.length + "):\n" + new String(coapPayload));
+        if (log.isDebugEnabled()) {
+            log.debug("content (" + coapPayload.length + "):\n" + new String(coapPayload));
+        }
         
-        // unmarshall PrivacyDataPackage
-        PrivacyDataPackage dataPackage;
-        try {
-        	dataPackage = PrivacyDataPackageUnmarshaller.unmarshal(inStream);
-        } catch (JAXBException | XMLStreamException e) {
+        if (!isValidPrivacyDataPackage(coapPayload)) {
             log.error("CoAP payload is not a PrivacyDataPackage");
             return;
         }
         
         // find the CoapForwardingWebservice for the web service
-        CoapForwardingWebservice coapForwardingWebservice = getForwardingWebserviceForWebservice(uriWebservice);
+        CoapForwardingWebservice coapForwardingWebservice = getForwardingWebserviceForWebservice(registryEntry, uriWebservice);
         if (coapForwardingWebservice == null) {
             log.error("No CoapForwardingWebservice for Smart Service Proxy '" + uriSSP.getHost() + "'");
             return;
         }
         
         // push status to CoapForwardingWebservice
-        coapForwardingWebservice.updateRdfSensorData(dataPackage, contentLifetime);
+        coapForwardingWebservice.updateRdfSensorData(coapPayload, contentLifetime);
         
         if (!coapForwardingWebservice.isRegisteredAtSSP()) {
         	// send registration of coapForwardingWebservice to Smart Service Proxy
@@ -212,21 +838,58 @@ public class Controller implements CoapRegistryWebserviceListener,
             }
             coapForwardingWebservice.setRegisteredAtSSP(true);
         }
+        else if (batchForwarder != null) {
+            batchForwarder.forward(registryEntry.getSSP().getHost(), coapForwardingWebservice, coapPayload, contentLifetime);
+        }
+        
+        if (forwardingHistogram != null) {
+            forwardingHistogram.recordSince(receiveTime);
+        }
+    }
+    
+    /**
+     * Returns the readable bytes of the buffer. If the buffer wraps exactly an array,
+     * the array is returned without a copy.
+     */
+    private static byte[] getBytes(ChannelBuffer content) {
+        if (content.hasArray() && content.arrayOffset() == 0 && content.readerIndex() == 0 &&
+            content.readableBytes() == content.array().length) {
+            return content.array();
+        }
+        
+        byte[] bytes = new byte[content.readableBytes()];
+        content.getBytes(content.readerIndex(), bytes);
+        return bytes;
+    }
+    
+    /**
+     * Validates the received payload according to the configured forwarding validation.
+     * @return true, if the payload is forwarded
+     */
+    private boolean isValidPrivacyDataPackage(byte[] coapPayload) {
+        switch (forwardingValidation) {
+        case "none":
+            return true;
+        case "full":
+            try {
+                PrivacyDataPackageUnmarshaller.unmarshal(new ByteArrayInputStream(coapPayload));
+                return true;
+            } catch (JAXBException | XMLStreamException e) {
+                return false;
+            }
+        default:
+            return PrivacyDataPackageUnmarshaller.hasPrivacyDataPackageHeader(new ByteArrayInputStream(coapPayload));
+        }
     }
     
     /**
      * Searches for the corresponding {@link CoapForwardingWebservice} for a given
      * original CoAP-Webservice.
+     * @param registryEntry  The entry of the CoAP-Webserver of the web service
      * @param uriWebservice
      * @return The {@link CoapForwardingWebservice} or null if CoAP-Webservice is not registered.
      */
-    private CoapForwardingWebservice getForwardingWebserviceForWebservice(URI uriWebservice) {
-    	RegistryEntry registryEntry = registry.getEntryByWebservice(uriWebservice);
-    	
-    	if (registryEntry == null) {
-    		return null;
-    	}
-    	
+    private CoapForwardingWebservice getForwardingWebserviceForWebservice(RegistryEntry registryEntry, URI uriWebservice) {
     	WebserviceEntry webserviceEntry = registryEntry.getWebservice(uriWebservice);
     	
     	if (webserviceEntry == null) {
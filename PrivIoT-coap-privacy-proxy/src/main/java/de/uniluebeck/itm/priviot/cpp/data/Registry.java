@@ -1,19 +1,24 @@
 package de.uniluebeck.itm.priviot.cpp.data;
 
 import java.net.URI;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Saves the registrations of CoAP-Webservers with all the needed information.
+ * 
+ * The entries are indexed by host and port of the CoAP-Webserver, so the entry of a received
+ * status is found in constant time. Reads are not blocked by registrations.
  */
 public class Registry {
     private Logger log = LoggerFactory.getLogger(this.getClass().getName());
     
-    private Set<RegistryEntry> entries = new HashSet<RegistryEntry>();
+    /** The entries by host and port of the CoAP-Webserver */
+    private Map<String, RegistryEntry> entries = new ConcurrentHashMap<String, RegistryEntry>();
     
     public Registry() {
         
@@ -23,9 +28,11 @@ public class Registry {
      * Adds an entry to the registry.
      * @param entry
      */
-    public synchronized void addEntry(RegistryEntry entry) {
+    public void addEntry(RegistryEntry entry) {
         if (entry != null) {
-            entries.add(entry);
+            if (entries.put(getAddress(entry.getWebserver()), entry) != null) {
+                log.info("Replaced registration of webserver: " + entry.getWebserver().getHost());
+            }
             
             log.info("Added webserver: " + entry.getWebserver().getHost());
         }
@@ -36,11 +43,10 @@ public class Registry {
      * @param urlWebserver
      * @return The entry or null if none matches.
      */
-    public synchronized RegistryEntry getEntry(URI uriWebserver) {
-        for (RegistryEntry entry : entries) {
-            if (entry.getWebserver().equals(uriWebserver)) {
-                return entry;
-            }
+    public RegistryEntry getEntry(URI uriWebserver) {
+        RegistryEntry entry = entries.get(getAddress(uriWebserver));
+        if (entry != null && entry.getWebserver().equals(uriWebserver)) {
+            return entry;
         }
         
         return null;
@@ -52,16 +58,40 @@ public class Registry {
      * @param urlWebservice 
      * @return The entry or null if none matches.
      */
-    public synchronized RegistryEntry getEntryByWebservice(URI uriWebservice) {
-        for (RegistryEntry entry : entries) {
-            if (entry.getWebserver().getHost().equals(uriWebservice.getHost()) &&
-                entry.getWebserver().getPort() == uriWebservice.getPort()) {
-                
-                return entry;
-            }
-            
+    public RegistryEntry getEntryByWebservice(URI uriWebservice) {
+        return entries.get(getAddress(uriWebservice));
+    }
+    
+    /**
+     * Removes the entry of a given CoAP-Webserver.
+     * @return The removed entry or null if none matches.
+     */
+    public RegistryEntry removeEntry(URI uriWebserver) {
+        RegistryEntry entry = entries.remove(getAddress(uriWebserver));
+        if (entry != null) {
+            log.info("Removed webserver: " + uriWebserver.getHost());
         }
-        
-        return null;
+        return entry;
+    }
+    
+    /**
+     * Returns all entries.
+     */
+    public Collection<RegistryEntry> getEntries() {
+        return entries.values();
+    }
+    
+    /**
+     * Returns the number of registered CoAP-Webservers.
+     */
+    public int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Returns the key of the index, i.e. host and port of the URI.
+     */
+    private static String getAddress(URI uri) {
+        return uri.getHost() + ":" + uri.getPort();
     }
 }
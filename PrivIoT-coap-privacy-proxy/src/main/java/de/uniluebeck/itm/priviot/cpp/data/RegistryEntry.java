@@ -1,13 +1,15 @@
 package de.uniluebeck.itm.priviot.cpp.data;
 
 import java.net.URI;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents an entry in the {@link Registry}.
  * 
  * Contains the information about one CoAP-Webserver.
+ * The webservices are indexed by their URI. Reads are not blocked by new webservices.
  */
 public class RegistryEntry {
     /** The URL of the Webserver */
@@ -22,9 +24,15 @@ public class RegistryEntry {
     
     /**
      * The information about every CoAP-Webservice, 
-     * that is located at the CoAP-Webserver.
+     * that is located at the CoAP-Webserver, by the URI of the webservice.
      */
-    private Set<WebserviceEntry> webservices = new HashSet<WebserviceEntry>();
+    private Map<URI, WebserviceEntry> webservices = new ConcurrentHashMap<URI, WebserviceEntry>();
+    
+    /** The relative paths of the webservices */
+    private Map<String, WebserviceEntry> webservicePaths = new ConcurrentHashMap<String, WebserviceEntry>();
+    
+    /** True, if the webservices are observed via the aggregate resource of the Webserver */
+    private volatile boolean multiplexed = false;
     
     
     public RegistryEntry(URI webserver, URI ssp) {
@@ -48,23 +56,27 @@ public class RegistryEntry {
         this.ssp = ssp;
     }
 
-    public Set<WebserviceEntry> getWebservices() {
-        return webservices;
+    public boolean isMultiplexed() {
+        return multiplexed;
+    }
+    
+    public void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+
+    public Collection<WebserviceEntry> getWebservices() {
+        return webservices.values();
     }
     
     public void addWebservice(WebserviceEntry webserviceEntry) {
         if (webserviceEntry != null) {
-            webservices.add(webserviceEntry);
+            webservices.put(webserviceEntry.getWebserviceUri(), webserviceEntry);
+            webservicePaths.put(webserviceEntry.getWebserviceUri().getPath(), webserviceEntry);
         }
     }
     
     public WebserviceEntry getWebservice(URI uriWebservice) {
-    	for (WebserviceEntry webserviceEntry : webservices) {
-            if (webserviceEntry.getWebserviceUri().equals(uriWebservice)) {
-                return webserviceEntry;
-            }
-    	}
-    	return null;
+    	return webservices.get(uriWebservice);
     }
     
     /**
@@ -75,11 +87,6 @@ public class RegistryEntry {
      * @return
      */
     public boolean containsWebservice(String webservicePath) {
-        for (WebserviceEntry webserviceEntry : webservices) {
-            if (webserviceEntry.getWebserviceUri().getPath().equals(webservicePath)) {
-                return true;
-            }
-        }
-        return false;
+        return webservicePaths.containsKey(webservicePath);
     }
 }
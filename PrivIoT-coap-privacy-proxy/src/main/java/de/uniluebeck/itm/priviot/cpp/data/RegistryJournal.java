@@ -0,0 +1,244 @@
+package de.uniluebeck.itm.priviot.cpp.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only journal of the {@link Registry} in a local file, so the registrations survive a restart.
+ *
+ * Every change of the registry is appended as one line:
+ *   webserver <uri of the webserver> <uri of the Smart Service Proxy>
+ *   webservice <uri of the webservice> <path of the forwarding webservice>
+ *   remove <uri of the webserver>
+ *
+ * A webserver, that registers again with the same Smart Service Proxy, keeps it's webservices.
+ * Lines, that can't be parsed (e.g. the last line after a crash), are skipped.
+ *
+ * The journal grows with every registration. It is compacted by writing the actual registry
+ * to a new file, that replaces the journal.
+ */
+public class RegistryJournal {
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final String RECORD_WEBSERVER = "webserver";
+    private static final String RECORD_WEBSERVICE = "webservice";
+    private static final String RECORD_REMOVE = "remove";
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private File file;
+
+    private Writer writer;
+
+    /** Number of records appended since the last compaction */
+    private int appendedRecords = 0;
+
+    /**
+     * Constructor
+     * @param path  Path of the journal file. It's created, if it doesn't exist.
+     */
+    public RegistryJournal(String path) {
+        this.file = new File(path);
+    }
+
+    public String getPath() {
+        return file.getPath();
+    }
+
+    /**
+     * Reads the journal and reports the resulting registrations to the listener,
+     * every webserver before it's webservices.
+     * @throws IOException if the journal can't be read
+     */
+    public synchronized void replay(RegistryJournalListener listener) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        // the webservers by host and port
+        Map<String, ReplayedWebserver> webservers = new LinkedHashMap<String, ReplayedWebserver>();
+        int skipped = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()), CHARSET))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (!replayRecord(line.split(" "), webservers)) {
+                    skipped++;
+                }
+            }
+        }
+
+        if (skipped > 0) {
+            log.warn("Skipped " + skipped + " invalid records of the registry journal " + file);
+        }
+
+        for (ReplayedWebserver webserver : webservers.values()) {
+            listener.replayedWebserver(webserver.uriWebserver, webserver.uriSSP);
+            for (Map.Entry<URI, String> webservice : webserver.webservices.entrySet()) {
+                listener.replayedWebservice(webservice.getKey(), webservice.getValue());
+            }
+        }
+    }
+
+    /**
+     * Appends the registration of a webserver.
+     */
+    public void appendWebserver(URI uriWebserver, URI uriSSP) {
+        append(RECORD_WEBSERVER + " " + uriWebserver + " " + uriSSP);
+    }
+
+    /**
+     * Appends the registration of a webservice together with the path of it's forwarding webservice.
+     */
+    public void appendWebservice(URI uriWebservice, String forwardingPath) {
+        append(RECORD_WEBSERVICE + " " + uriWebservice + " " + forwardingPath);
+    }
+
+    /**
+     * Appends the removal of a webserver with all it's webservices.
+     */
+    public void appendRemoval(URI uriWebserver) {
+        append(RECORD_REMOVE + " " + uriWebserver);
+    }
+
+    /**
+     * Returns true, if records were appended since the last compaction.
+     */
+    public synchronized boolean isCompactable() {
+        return appendedRecords > 0;
+    }
+
+    /**
+     * Replaces the journal by the registrations of the given entries.
+     * The new journal is written to a temporary file first, so a crash leaves the old journal intact.
+     * @throws IOException if the new journal can't be written
+     */
+    public synchronized void compact(Collection<RegistryEntry> entries) throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        int records = 0;
+
+        try (FileOutputStream out = new FileOutputStream(compacted);
+             Writer compactedWriter = new OutputStreamWriter(out, CHARSET)) {
+            for (RegistryEntry entry : entries) {
+                compactedWriter.write(RECORD_WEBSERVER + " " + entry.getWebserver() + " " + entry.getSSP() + "\n");
+                records++;
+                for (WebserviceEntry webserviceEntry : entry.getWebservices()) {
+                    compactedWriter.write(RECORD_WEBSERVICE + " " + webserviceEntry.getWebserviceUri() + " " +
+                                          webserviceEntry.getCoapForwardingWebservice().getPath() + "\n");
+                    records++;
+                }
+            }
+            compactedWriter.flush();
+            out.getFD().sync();
+        }
+
+        close();
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        appendedRecords = 0;
+
+        log.info("Compacted registry journal " + file + " to " + records + " records");
+    }
+
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            log.error("Closing the registry journal " + file + " failed", e);
+        }
+        writer = null;
+    }
+
+    /**
+     * Appends a record and flushes it to the file.
+     */
+    private synchronized void append(String record) {
+        try {
+            if (writer == null) {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), CHARSET);
+            }
+            writer.write(record + "\n");
+            writer.flush();
+            appendedRecords++;
+        } catch (IOException e) {
+            log.error("Appending to the registry journal " + file + " failed", e);
+        }
+    }
+
+    /**
+     * Applies a record to the replayed registrations.
+     * @return false, if the record is invalid
+     */
+    private boolean replayRecord(String[] fields, Map<String, ReplayedWebserver> webservers) {
+        try {
+            if (RECORD_WEBSERVER.equals(fields[0]) && fields.length == 3) {
+                URI uriWebserver = new URI(fields[1]);
+                URI uriSSP = new URI(fields[2]);
+                ReplayedWebserver webserver = webservers.remove(getAddress(uriWebserver));
+                if (webserver == null || !webserver.uriWebserver.equals(uriWebserver) || !webserver.uriSSP.equals(uriSSP)) {
+                    webserver = new ReplayedWebserver(uriWebserver, uriSSP);
+                }
+                webservers.put(getAddress(uriWebserver), webserver);
+                return true;
+            }
+            if (RECORD_WEBSERVICE.equals(fields[0]) && fields.length == 3) {
+                URI uriWebservice = new URI(fields[1]);
+                ReplayedWebserver webserver = webservers.get(getAddress(uriWebservice));
+                if (webserver == null) {
+                    return false;
+                }
+                webserver.webservices.put(uriWebservice, fields[2]);
+                return true;
+            }
+            if (RECORD_REMOVE.equals(fields[0]) && fields.length == 2) {
+                webservers.remove(getAddress(new URI(fields[1])));
+                return true;
+            }
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Returns host and port of the URI, the key of the webservers like in the {@link Registry}.
+     */
+    private static String getAddress(URI uri) {
+        return uri.getHost() + ":" + uri.getPort();
+    }
+
+    /**
+     * A webserver read from the journal.
+     */
+    private static class ReplayedWebserver {
+        private URI uriWebserver;
+        private URI uriSSP;
+        private Map<URI, String> webservices = new LinkedHashMap<URI, String>();
+
+        private ReplayedWebserver(URI uriWebserver, URI uriSSP) {
+            this.uriWebserver = uriWebserver;
+            this.uriSSP = uriSSP;
+        }
+    }
+}
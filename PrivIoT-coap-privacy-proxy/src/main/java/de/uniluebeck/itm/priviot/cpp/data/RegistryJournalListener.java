@@ -0,0 +1,22 @@
+package de.uniluebeck.itm.priviot.cpp.data;
+
+import java.net.URI;
+
+/**
+ * A RegistryJournalListener receives the registrations replayed from the {@link RegistryJournal}
+ */
+public interface RegistryJournalListener {
+    /**
+     * Is called for every webserver in the journal.
+     * @param uriWebserver The URI of the webserver.
+     * @param uriSSP       The URI of the Smart Service Proxy to forward sensor data to.
+     */
+    public void replayedWebserver(URI uriWebserver, URI uriSSP);
+
+    /**
+     * Is called for every webservice in the journal, after it's webserver.
+     * @param uriWebservice   The URI of the webservice.
+     * @param forwardingPath  The path of the forwarding webservice of the webservice.
+     */
+    public void replayedWebservice(URI uriWebservice, String forwardingPath);
+}
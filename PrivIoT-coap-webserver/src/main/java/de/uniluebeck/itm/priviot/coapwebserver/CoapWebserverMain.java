@@ -13,6 +13,7 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.xml.DOMConfigurator;
 
 import de.uniluebeck.itm.priviot.coapwebserver.controller.CoapWebserverController;
+import de.uniluebeck.itm.priviot.coapwebserver.controller.StartupTimer;
 
 public class CoapWebserverMain {
 
@@ -25,6 +26,8 @@ public class CoapWebserverMain {
 	
 	private static Configuration config;
 	
+	private static StartupTimer startupTimer = new StartupTimer();
+	
 	public static void main(String[] args) {
 		System.out.println("PrivIoT - CoAP Webserver (version " + version + ")");
 		
@@ -35,6 +38,7 @@ public class CoapWebserverMain {
             e.printStackTrace();
         }
 		System.out.println("Configure logging: done");	
+		startupTimer.phaseDone("logging");
 		
 		log.info("read configuration");
 		try {
@@ -43,6 +47,7 @@ public class CoapWebserverMain {
 			log.error("error during configuration", e);
 		}
 		log.info("read configuration: done");
+		startupTimer.phaseDone("configuration");
 		
 		log.info("start controller");
 		startController();
@@ -63,12 +68,15 @@ public class CoapWebserverMain {
     }
 	
 	private static void startController() {
-	    CoapWebserverController controller = new CoapWebserverController(config);
+	    CoapWebserverController controller = new CoapWebserverController(config, startupTimer);
 	    
-	    try {
-			Thread.sleep(500);
-		} catch (InterruptedException e) {
-		}
+	    // in fast start mode the CoAP server is ready without delay
+	    if (!config.getBoolean("startup.fast", false)) {
+    	    try {
+    			Thread.sleep(500);
+    		} catch (InterruptedException e) {
+    		}
+	    }
 	    
 	    controller.start();
 	}
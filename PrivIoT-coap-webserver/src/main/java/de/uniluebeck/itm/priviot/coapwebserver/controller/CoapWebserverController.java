@@ -1,16 +1,29 @@
 package de.uniluebeck.itm.priviot.coapwebserver.controller;
 
+import java.io.IOException;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.configuration.Configuration;
 import org.slf4j.Logger;
@@ -30,22 +43,38 @@ import com.hp.hpl.jena.vocabulary.RDFS;
 
 import de.uniluebeck.itm.ncoap.application.client.CoapClientApplication;
 import de.uniluebeck.itm.ncoap.application.server.CoapServerApplication;
+import de.uniluebeck.itm.priviot.coapwebserver.data.GeographicDeltaEncoder;
 import de.uniluebeck.itm.priviot.coapwebserver.data.GeographicSensorData;
 import de.uniluebeck.itm.priviot.coapwebserver.data.KeyDatabase;
 import de.uniluebeck.itm.priviot.coapwebserver.data.KeyDatabaseEntry;
 import de.uniluebeck.itm.priviot.coapwebserver.data.ResourceStatus;
 import de.uniluebeck.itm.priviot.coapwebserver.data.SensorData;
 import de.uniluebeck.itm.priviot.coapwebserver.data.SimpleIntegerSensorData;
+import de.uniluebeck.itm.priviot.coapwebserver.data.WebserverState;
 import de.uniluebeck.itm.priviot.coapwebserver.data.WktLiteral;
+import de.uniluebeck.itm.priviot.coapwebserver.sensor.DeadbandFilter;
 import de.uniluebeck.itm.priviot.coapwebserver.sensor.GeographicSensor;
 import de.uniluebeck.itm.priviot.coapwebserver.sensor.Sensor;
 import de.uniluebeck.itm.priviot.coapwebserver.sensor.SensorObserver;
+import de.uniluebeck.itm.priviot.coapwebserver.sensor.SensorScheduler;
+import de.uniluebeck.itm.priviot.coapwebserver.sensor.TraceFile;
+import de.uniluebeck.itm.priviot.coapwebserver.sensor.TraceReplaySensor;
+import de.uniluebeck.itm.priviot.coapwebserver.service.CoapAggregateWebservice;
+import de.uniluebeck.itm.priviot.coapwebserver.service.CoapClient;
+import de.uniluebeck.itm.priviot.coapwebserver.service.CoapDiscoveryWebservice;
+import de.uniluebeck.itm.priviot.coapwebserver.service.CoapMetricsWebservice;
 import de.uniluebeck.itm.priviot.coapwebserver.service.CoapRegisterClient;
 import de.uniluebeck.itm.priviot.coapwebserver.service.CoapRegisterClientObserver;
+import de.uniluebeck.itm.priviot.coapwebserver.service.CoapSensorCollectionWebservice;
 import de.uniluebeck.itm.priviot.coapwebserver.service.CoapSensorWebservice;
 import de.uniluebeck.itm.priviot.utils.certificates.CertificateProcessor;
+import de.uniluebeck.itm.priviot.utils.communication.CoapDiscovery;
+import de.uniluebeck.itm.priviot.utils.communication.NotificationTypePolicy;
 import de.uniluebeck.itm.priviot.utils.data.EncryptionParameters;
+import de.uniluebeck.itm.priviot.utils.data.PrivacyDataPackageMarshaller;
 import de.uniluebeck.itm.priviot.utils.encryption.cipher.asymmetric.rsa.RSACipherer;
+import de.uniluebeck.itm.priviot.utils.metrics.Meter;
+import de.uniluebeck.itm.priviot.utils.metrics.Metrics;
 import de.uniluebeck.itm.priviot.utils.encryption.cipher.symmetric.aes.AESCipherer;
 import de.uniluebeck.itm.priviot.utils.pseudonymization.PseudonymizationProcessor;
 import de.uniluebeck.itm.priviot.utils.pseudonymization.Secret;
@@ -62,6 +91,13 @@ import de.uniluebeck.itm.priviot.utils.pseudonymization.PseudonymizationExceptio
  * CoAP Privacy Proxy.
  * The CoAP Privacy Proxy will ask for the sensor webservices and register itself as observer at the 
  * {@link CoapSensorWebservice}-instances.
+ * 
+ * The verified certificates, the generated secrets and the registration are stored in a {@link WebserverState}.
+ * After a restart the stored public key is used at once and the CoAP-Webserver registers at the
+ * CoAP Privacy Proxy without waiting for the certificate. The stored certificate is verified in background.
+ * 
+ * In fast start mode the sensors are created in parallel and Jena and JAXB are initialized in background
+ * after the start, so the first status is published as early as possible.
  */
 public class CoapWebserverController implements SensorObserver, CoapRegisterClientObserver {
     
@@ -87,6 +123,66 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
     
     private int numberOfSensors;
     
+    /** Duration of one tick of the sensor scheduler in milliseconds */
+    private long schedulerTickDuration;
+    
+    /** Number of slots of the timing wheel of the sensor scheduler */
+    private int schedulerWheelSize;
+    
+    /** 
+     * Window in milliseconds before an update time, in which the sensors precompute their next status.
+     * Every sensor gets a random lead within this window. 0 disables the precomputation.
+     */
+    private long precomputeWindow;
+    
+    /** Publishes precomputed resource status at their update time */
+    private ScheduledExecutorService publishExecutor;
+    
+    /** Number of sensors per collection webservice. 0 if every sensor has it's own webservice. */
+    private int collectionSize;
+    
+    /** Base path of the collection webservices. The collections will be for example <HOST_URI><collectionBasePath>1 */
+    private String collectionBasePath;
+    
+    /** Interval in seconds in which the collections publish the status of their sensors */
+    private int collectionInterval;
+    
+    /** The collection webservice of every sensor. Key is the path of the sensor. Empty if collections are disabled. */
+    private Map<String, CoapSensorCollectionWebservice> sensorCollections = new HashMap<String, CoapSensorCollectionWebservice>();
+    
+    /** Flushes the collection webservices */
+    private ScheduledExecutorService collectionExecutor;
+    
+    /** Encodes geographic readings as deltas to keyframes. null if delta encoding is disabled. */
+    private GeographicDeltaEncoder deltaEncoder;
+    
+    /** Decides for every update notification of the webservices, if it is sent CON or NON */
+    private NotificationTypePolicy notificationTypePolicy;
+    
+    /** Maximum size of a response in bytes. Larger resource status are sent block-wise. 0 disables block-wise transfers. */
+    private int maxBlockSize;
+    
+    /** Carries the new status of all webservices for the CoAP Privacy Proxy. null if the aggregate is disabled. */
+    private CoapAggregateWebservice coapAggregateWebservice;
+    
+    /** First stage of the publishing pipeline, creates the pseudonyms. null if the pipeline is disabled. */
+    private PipelineStage<Publication> pseudonymizeStage;
+    
+    /** Stage of the publishing pipeline, that creates the rdf models */
+    private PipelineStage<Publication> serializeStage;
+    
+    /** Stage of the publishing pipeline, that serializes and encrypts the resource status in batches */
+    private PipelineStage<Publication> encryptStage;
+    
+    /** Last stage of the publishing pipeline, that sends the update notifications */
+    private PipelineStage<Publication> notifyStage;
+    
+    /** Operational metrics, reported by the resource /metrics. null if metrics are disabled. */
+    private Metrics metrics;
+    
+    /** Counts the published sensor data. null if metrics are disabled. */
+    private Meter sensorDataMeter;
+    
     /** default frequency in which new values are published by the sensor in seconds */
     private int sensorDefaultUpdateFrequency;
     
@@ -96,6 +192,21 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
     /** Maximum changing in one random step of the sensor values langitude and latitude */
     private double maxChange;
     
+    /** Path of the default trace file, that is replayed by the sensors. If empty, the sensors produce random values. */
+    private String sensorDefaultTrace;
+    
+    /** Format of the trace files */
+    private TraceFile.Format traceFormat;
+    
+    /** Factor the replay of the trace files is accelerated by */
+    private double traceTimeScale;
+    
+    /** If true, the replay of a trace file starts again at it's end */
+    private boolean traceLoop;
+    
+    /** Opened trace files. Key is the path. A trace file is mapped once and shared by all sensors replaying it. */
+    private Map<String, TraceFile> traceFiles = new HashMap<String, TraceFile>();
+    
     /** Path to the CA certificates for the verification of received certificates with certificate-chain */
     private String certificatesPath;
     
@@ -111,8 +222,11 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
     /** Used to retreive the certificate of teh SSP and to register the application at the CPP */
     private CoapRegisterClient coapRegisterClient;
     
-    /** One observable webservice for each sensor */
-    private volatile List<CoapSensorWebservice> coapSensorWebservices;
+    /** Paged and filtered discovery of the sensor webservices */
+    private CoapDiscoveryWebservice coapDiscoveryWebservice;
+    
+    /** One observable webservice for each sensor. Key is the path of the webservice. */
+    private Map<String, CoapSensorWebservice> coapSensorWebservices;
     
     /** Sensors that are linked with a CoapSensorWebservice */
     private volatile List<Sensor> sensors;
@@ -120,11 +234,39 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
     /** Stores public keys of Smart Service Proxies. Methods are thread safe */
     private KeyDatabase keyDatabase;
     
+    /** Executes the periodic updates of all sensors */
+    private SensorScheduler sensorScheduler;
+    
     /** Parameters for encryption (used algorithms and keysizes) */
     private EncryptionParameters encryptionParameters;
     
     private Configuration config;
     
+    /** State, that survives a restart. null if it is disabled. */
+    private WebserverState state;
+    
+    /** Certificate of the SSP restored from the state file, null if there is none */
+    private X509Certificate restoredCertificate;
+    
+    /** True, if the CoAP-Webserver started with the stored certificate and registration */
+    private boolean warmStart = false;
+    
+    /** If true, the sensors are created in parallel and heavy subsystems are initialized after the start */
+    private boolean fastStart;
+    
+    /** Measures the startup phases */
+    private StartupTimer startupTimer;
+    
+    /** Set when the first status is published */
+    private AtomicBoolean firstStatusPublished = new AtomicBoolean(false);
+    
+    /** True, if the Jena datatypes are registered */
+    private volatile boolean jenaInitialized = false;
+    
+    /** Host and port of the CPP and the SSP, to check if the stored registration is still valid */
+    private String addressCPP;
+    private String addressSSP;
+    
     /**
      * Constructor.
      * 
@@ -134,7 +276,21 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
      * @param config   The programs configuration
      */
     public CoapWebserverController(Configuration config) {
+        this(config, new StartupTimer());
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * Starts Sensors and Webservices and connects them.
+     * Starts the coap components.
+     * 
+     * @param config        The programs configuration
+     * @param startupTimer  Measures the startup phases
+     */
+    public CoapWebserverController(Configuration config, StartupTimer startupTimer) {
     	this.config = config;
+    	this.startupTimer = startupTimer;
     	
     	numberOfThreads = config.getInt("threads");
     	sensorBasePath = config.getString("sensorbasepath");
@@ -144,6 +300,22 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
     	sensorDefaultUpdateFrequency = config.getInt("sensor.updatefrequency");
     	sensorAddRandomToUpdateFrequency = config.getBoolean("sensor.updatefrequencyrandom");
     	maxChange = config.getDouble("sensor.maxchange");
+    	sensorDefaultTrace = config.getString("sensor.trace", "");
+    	traceFormat = TraceFile.Format.valueOf(config.getString("sensor.trace.format", "csv").toUpperCase());
+    	traceTimeScale = config.getDouble("sensor.trace.timescale", 1.0);
+    	traceLoop = config.getBoolean("sensor.trace.loop", true);
+    	schedulerTickDuration = config.getLong("sensor.scheduler.tickduration", 10);
+    	schedulerWheelSize = config.getInt("sensor.scheduler.wheelsize", 512);
+    	precomputeWindow = config.getLong("sensor.precompute.window", 0);
+    	collectionSize = config.getInt("sensor.collection.size", 0);
+    	collectionBasePath = config.getString("sensor.collection.basepath", "/collections/");
+    	collectionInterval = config.getInt("sensor.collection.interval", sensorDefaultUpdateFrequency);
+    	int deltaKeyframeInterval = config.getInt("sensor.delta.keyframeinterval", 0);
+    	notificationTypePolicy = new NotificationTypePolicy(config.getInt("notification.con.interval", 10),
+    	                                                    config.getInt("notification.con.maxage", 60),
+    	                                                    config.getInt("notification.con.fallback", 5));
+    	int discoveryPageSize = config.getInt("discovery.pagesize", 20);
+    	maxBlockSize = config.getInt("blockwise.size", 1024);
     	int ownPort = config.getInt("port");
     	String urlSSP = config.getString("ssp.host");
     	int portSSP = config.getInt("ssp.port");
@@ -152,41 +324,238 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
     	int aesBitStrength = config.getInt("encryption.aesstrength");
     	certificatesPath = config.getString("encryption.certificatespath");
     	trustedCertficatesPath = config.getString("encryption.trustedcertificatespath");
+    	String stateFile = config.getString("state.file", "coapwebserver.state");
+    	fastStart = config.getBoolean("startup.fast", false);
+    	boolean pipelineEnabled = config.getBoolean("pipeline.enabled", false);
+    	addressCPP = urlCPP + ":" + portCPP;
+    	addressSSP = urlSSP + ":" + portSSP;
     	
     	if (!doEncrypt) {
     		log.info("Encryption is deactivated");
     	}    	
     	
     	coapServerApplication = new CoapServerApplication(ownPort);
+    	coapDiscoveryWebservice = new CoapDiscoveryWebservice(discoveryPageSize);
+    	coapServerApplication.registerService(coapDiscoveryWebservice);
+    	if (config.getBoolean("metrics.enabled", false)) {
+    	    metrics = new Metrics();
+    	    sensorDataMeter = metrics.meter("sensordata");
+    	    coapServerApplication.registerService(new CoapMetricsWebservice(metrics));
+    	}
         coapClientApplication = new CoapClientApplication();
+        startupTimer.phaseDone("coap server");
         
-        sensors = new ArrayList<Sensor>();
-        coapSensorWebservices = new ArrayList<CoapSensorWebservice>();
+        sensors = new ArrayList<Sensor>(numberOfSensors);
+        coapSensorWebservices = new ConcurrentHashMap<String, CoapSensorWebservice>(numberOfSensors * 2);
         
         keyDatabase = new KeyDatabase();
         
+        if (!stateFile.isEmpty()) {
+            state = new WebserverState(stateFile);
+            state.load();
+            if (doEncrypt) {
+                restoreKeyDatabase(urlSSP);
+            }
+            startupTimer.phaseDone("state");
+        }
+        
         if (doEncrypt) {
         	encryptionParameters = new EncryptionParameters(AESCipherer.getAlgorithm(), aesBitStrength,
                                                            RSACipherer.getAlgorithm(), 1024);
+        	
+        	if (deltaKeyframeInterval > 0) {
+        	    // deltas are only supported inside of encrypted data packages
+        	    deltaEncoder = new GeographicDeltaEncoder(deltaKeyframeInterval);
+        	    log.info("Geographic readings are delta encoded with a keyframe every " + deltaKeyframeInterval + " deltas");
+        	}
         }
         else {
         	encryptionParameters = new EncryptionParameters("", 0, "", 0);
         }
         
+        if (config.getBoolean("aggregate.enabled", false)) {
+            if (doEncrypt) {
+                createAggregate(config.getLong("aggregate.window", 100), config.getInt("aggregate.size", 16384));
+            }
+            else {
+                log.warn("The aggregate resource is only available with encryption");
+            }
+        }
+        
+        if (pipelineEnabled) {
+            createPipeline();
+        }
+        
         createSensorsAndWebservices();
+        startupTimer.phaseDone("sensors and webservices");
+        
+        if (metrics != null) {
+            addGauges();
+        }
+        
+        if (state != null) {
+            // generated secrets
+            state.save();
+        }
         
         coapRegisterClient = new CoapRegisterClient(this, coapClientApplication, urlSSP, portSSP, urlCPP, portCPP);
         
-        // register custom jena datatype
-        TypeMapper.getInstance().registerDatatype(WktLiteral.getInstance());
+        if (!fastStart) {
+            initializeJena();
+            startupTimer.phaseDone("jena");
+        }
+    }
+    
+    /**
+     * Adds the gauges of the sensors, observers, messages and queues to the metrics.
+     */
+    private void addGauges() {
+        metrics.gauge("sensors", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return sensors.size();
+            }
+        });
+        metrics.gauge("sensors.skipped", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return sensorScheduler.getSkippedUpdates();
+            }
+        });
+        metrics.gauge("observers", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return notificationTypePolicy.getObservers();
+            }
+        });
+        metrics.gauge("notifications.con", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return notificationTypePolicy.getConfirmableNotifications();
+            }
+        });
+        metrics.gauge("notifications.non", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return notificationTypePolicy.getNonConfirmableNotifications();
+            }
+        });
+        metrics.gauge("notifications.losses", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return notificationTypePolicy.getLosses();
+            }
+        });
+        metrics.gauge("requests.retransmissions", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return CoapClient.getRetransmissions();
+            }
+        });
+        metrics.gauge("requests.timeouts", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return CoapClient.getTimeouts();
+            }
+        });
+        
+        if (coapAggregateWebservice != null) {
+            coapAggregateWebservice.setMetrics(metrics);
+            metrics.gauge("aggregate.pending", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return coapAggregateWebservice.getPendingStatus();
+                }
+            });
+        }
+        
+        for (final PipelineStage<Publication> stage : getPipelineStages()) {
+            String name = "pipeline." + stage.getName().toLowerCase();
+            metrics.gauge(name + ".queue", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return stage.getQueueDepth();
+                }
+            });
+            metrics.gauge(name + ".latency.mean", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return stage.getAverageLatencyMicros();
+                }
+            });
+            metrics.gauge(name + ".latency.max", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return stage.getMaxLatencyMicros();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Returns the operational metrics. null if metrics are disabled.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Registers the custom jena datatype. Is called before the first use of Jena.
+     */
+    private void initializeJena() {
+        if (jenaInitialized) {
+            return;
+        }
+        synchronized (this) {
+            if (!jenaInitialized) {
+                TypeMapper.getInstance().registerDatatype(WktLiteral.getInstance());
+                jenaInitialized = true;
+            }
+        }
+    }
+    
+    /**
+     * Initializes Jena and JAXB in background, so the first publication doesn't have to wait for them.
+     */
+    private void initializeInBackground() {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Initialization Thread#%d").build();
+        ExecutorService initializationExecutor = Executors.newSingleThreadExecutor(threadFactory);
+        initializationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    initializeJena();
+                    ModelFactory.createDefaultModel();
+                    // the JAXB context is created on the first use of the marshaller
+                    Class.forName(PrivacyDataPackageMarshaller.class.getName());
+                    log.info("Initialized Jena and JAXB in background in " + (System.currentTimeMillis() - startTime) + " ms");
+                }
+                catch (Exception e) {
+                    log.error("Exception during initialization in background", e);
+                }
+            }
+        });
+        initializationExecutor.shutdown();
     }
     
     /**
      * Starts the processing of the application by sending the certificate request to SSP.
      */
     public void start() {
+        if (fastStart) {
+            initializeInBackground();
+        }
+        
     	if (doEncrypt) {
-	        // send the certificate request to the SSP
+    	    if (restoredCertificate != null && state.isRegistered(addressCPP, addressSSP)) {
+    	        log.info("Warm start with stored certificate of the SSP");
+    	        warmStart = true;
+    	        verifyStoredCertificate(restoredCertificate);
+    	        registerAtCPP();
+    	    }
+    	    
+	        // send the certificate request to the SSP. After a warm start only a changed certificate is processed.
 	        try {
 	            coapRegisterClient.sendCertificateRequest();
 	        } catch (UnknownHostException | URISyntaxException e) {
@@ -201,47 +570,410 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
                 log.error("Exception during sendRegisterRequest: " + e.getMessage());
             }
     	}
+    	
+    	startupTimer.phaseDone("registration");
+    	startupTimer.logBreakdown("started");
+    }
+    
+    /**
+     * Returns the stages of the publishing pipeline in their order. Empty if the pipeline is disabled.
+     */
+    public List<PipelineStage<Publication>> getPipelineStages() {
+        if (pseudonymizeStage == null) {
+            return new ArrayList<PipelineStage<Publication>>();
+        }
+        return Arrays.asList(pseudonymizeStage, serializeStage, encryptStage, notifyStage);
+    }
+    
+    /**
+     * Returns the policy for the message type of update notifications together with it's counters.
+     */
+    public NotificationTypePolicy getNotificationTypePolicy() {
+        return notificationTypePolicy;
+    }
+    
+    /**
+     * Adds the public keys of the stored certificates to the key database.
+     * Expired certificates are removed. The certificate chain is verified later.
+     * @param hostSSP Host of the configured SSP
+     */
+    private void restoreKeyDatabase(String hostSSP) {
+        for (String host : state.getCertificateHosts()) {
+            X509Certificate certificate = state.getCertificate(host);
+            URI uri = state.getCertificateUri(host);
+            if (certificate == null || uri == null) {
+                state.removeCertificate(host);
+                continue;
+            }
+            
+            try {
+                certificate.checkValidity();
+            }
+            catch (CertificateExpiredException | CertificateNotYetValidException e) {
+                log.info("Stored certificate of " + host + " is not valid: " + e.getMessage());
+                state.removeCertificate(host);
+                continue;
+            }
+            
+            keyDatabase.addEntry(new KeyDatabaseEntry(uri, certificate.getPublicKey()));
+            log.info("Restored public key of " + host + " from state file");
+            
+            if (host.equals(hostSSP)) {
+                restoredCertificate = certificate;
+            }
+        }
+    }
+    
+    /**
+     * Verifies the certificate chain of the stored certificate in background.
+     * If it isn't valid anymore, the public key is removed.
+     */
+    private void verifyStoredCertificate(final X509Certificate certificate) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Verification Thread#%d").build();
+        ExecutorService verificationExecutor = Executors.newSingleThreadExecutor(threadFactory);
+        verificationExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String host = CertificateProcessor.getCommonName(certificate.getSubjectX500Principal());
+                if (CertificateProcessor.verifyCertificate(certificate, certificatesPath, trustedCertficatesPath)) {
+                    log.info("Stored certificate of " + host + " is valid");
+                    return;
+                }
+                
+                log.error("Stored certificate of " + host + " is not valid. Remove it.");
+                for (String storedHost : state.getCertificateHosts()) {
+                    if (isStoredCertificate(storedHost, certificate)) {
+                        keyDatabase.removeEntry(state.getCertificateUri(storedHost));
+                        state.removeCertificate(storedHost);
+                    }
+                }
+                state.save();
+            }
+        });
+        verificationExecutor.shutdown();
+    }
+    
+    /**
+     * Returns true, if the certificate is the stored certificate of the host.
+     */
+    private boolean isStoredCertificate(String host, X509Certificate certificate) {
+        X509Certificate storedCertificate = state.getCertificate(host);
+        if (storedCertificate == null) {
+            return false;
+        }
+        
+        try {
+            return Arrays.equals(storedCertificate.getEncoded(), certificate.getEncoded());
+        }
+        catch (CertificateEncodingException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * Sends the register request to the CPP and stores the registration.
+     */
+    private void registerAtCPP() {
+        try {
+            coapRegisterClient.sendRegisterRequestToCPP();
+        } catch (UnknownHostException | URISyntaxException e) {
+            log.error("Exception during sendRegisterRequest: " + e.getMessage());
+            return;
+        }
+        
+        if (state != null) {
+            state.setRegistered(addressCPP, addressSSP);
+            state.save();
+        }
+    }
+    
+    /**
+     * Creates the stages of the publishing pipeline. The sensor threads only hand over their data to the pipeline:
+     * pseudonymize -> serialize (rdf model) -> encrypt (in batches) -> notify.
+     * Every stage has it's own threads and bounded queues. The data of a sensor is always processed by the same
+     * thread of a stage, so the resource status of a sensor are published in order.
+     */
+    private void createPipeline() {
+        int queueSize = config.getInt("pipeline.queuesize", 1024);
+        int metricsInterval = config.getInt("pipeline.metrics.interval", 60);
+        
+        notifyStage = new PipelineStage<Publication>("Notify", config.getInt("pipeline.notify.threads", 1), queueSize, 1,
+                new PipelineStage.Processor<Publication>() {
+            @Override
+            public void process(List<Publication> batch) {
+                for (Publication publication : batch) {
+                    publish(publication);
+                }
+            }
+        });
+        
+        encryptStage = new PipelineStage<Publication>("Encrypt", config.getInt("pipeline.encrypt.threads", 2), queueSize,
+                config.getInt("pipeline.encrypt.batchsize", 16), new PipelineStage.Processor<Publication>() {
+            @Override
+            public void process(List<Publication> batch) throws InterruptedException {
+                for (Publication publication : batch) {
+                    try {
+                        publication.webservice.prepareResourceStatus(publication.resourceStatus);
+                    }
+                    catch (Exception e) {
+                        log.error("Exception while preparing status of " + publication.webservice.getPath(), e);
+                        continue;
+                    }
+                    notifyStage.submit(publication.key(), publication);
+                }
+            }
+        });
+        
+        serializeStage = new PipelineStage<Publication>("Serialize", config.getInt("pipeline.serialize.threads", 1), queueSize, 1,
+                new PipelineStage.Processor<Publication>() {
+            @Override
+            public void process(List<Publication> batch) throws InterruptedException {
+                for (Publication publication : batch) {
+                    publication.resourceStatus = createResourceStatus(publication.sensor, publication.data, publication.pseudonym);
+                    if (publication.resourceStatus == null) {
+                        continue;
+                    }
+                    
+                    String sensorPath = publication.key();
+                    if (sensorCollections.containsKey(sensorPath)) {
+                        // the collection serializes the status of all it's sensors at once
+                        notifyStage.submit(sensorPath, publication);
+                        continue;
+                    }
+                    
+                    publication.webservice = coapSensorWebservices.get(sensorPath);
+                    if (publication.webservice == null) {
+                        log.error("No webservice available for data of sensor '" + sensorPath + "'");
+                        continue;
+                    }
+                    encryptStage.submit(sensorPath, publication);
+                }
+            }
+        });
+        
+        pseudonymizeStage = new PipelineStage<Publication>("Pseudonymize", config.getInt("pipeline.pseudonymize.threads", 1), queueSize, 1,
+                new PipelineStage.Processor<Publication>() {
+            @Override
+            public void process(List<Publication> batch) throws InterruptedException {
+                for (Publication publication : batch) {
+                    if (doEncrypt) {
+                        publication.pseudonym = createPseudonym(publication.sensor, publication.data);
+                        if (publication.pseudonym == null) {
+                            continue;
+                        }
+                    }
+                    serializeStage.submit(publication.key(), publication);
+                }
+            }
+        });
+        
+        for (PipelineStage<Publication> stage : getPipelineStages()) {
+            stage.start();
+        }
+        log.info("Sensor data is published by a pipeline with " + pseudonymizeStage.getThreads() + " pseudonymize, "
+                 + serializeStage.getThreads() + " serialize, " + encryptStage.getThreads() + " encrypt and "
+                 + notifyStage.getThreads() + " notify threads");
+        
+        if (metricsInterval > 0) {
+            ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Pipeline Metrics Thread#%d")
+                                                                    .setDaemon(true).build();
+            Executors.newSingleThreadScheduledExecutor(threadFactory).scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    for (PipelineStage<Publication> stage : getPipelineStages()) {
+                        log.info("Pipeline stage " + stage);
+                    }
+                }
+            }, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * Creates the aggregate resource, so the CoAP Privacy Proxy can observe all webservices with one observation.
+     * @param window   Time in milliseconds, in which new status are collected
+     * @param maxSize  Maximum size of the status in bytes
+     */
+    private void createAggregate(long window, int maxSize) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Aggregate Thread#%d").build();
+        coapAggregateWebservice = new CoapAggregateWebservice(CoapSensorWebservice.DEFAULT_CONTENT_FORMAT_ENCRYPT, window,
+                                                              maxSize, maxBlockSize, Executors.newSingleThreadScheduledExecutor(threadFactory));
+        coapAggregateWebservice.setNotificationTypePolicy(notificationTypePolicy);
+        coapServerApplication.registerService(coapAggregateWebservice);
+        log.info("Aggregate resource " + coapAggregateWebservice.getPath() + " notifies every " + window + " milliseconds");
     }
     
     private void createSensorsAndWebservices() {
-        // Create a thread pool that executes the sensor processing
-        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Sensor Thread#%d").build();
-        ScheduledThreadPoolExecutor executorService = new ScheduledThreadPoolExecutor(numberOfThreads, threadFactory);
+        // Create the scheduler that executes the sensor processing
+        sensorScheduler = new SensorScheduler(numberOfThreads, schedulerTickDuration, schedulerWheelSize);
+        
+        if (precomputeWindow > 0) {
+            ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Publisher Thread#%d").build();
+            publishExecutor = Executors.newScheduledThreadPool(numberOfThreads, threadFactory);
+            log.info("Sensors precompute their status within " + precomputeWindow + " milliseconds before the update time");
+        }
+        
+        List<CoapSensorCollectionWebservice> collections = new ArrayList<CoapSensorCollectionWebservice>();
+        
+        Sensor[] createdSensors = createSensors(sensorScheduler);
+        startupTimer.phaseDone("sensors");
         
         for (int i = 1; i <= numberOfSensors; i++) {
-        	Sensor sensor = createGeographicalSensor(i, executorService);
+        	Sensor sensor = createdSensors[i - 1];
+        	if (sensor == null) {
+        	    continue;
+        	}
+        	configurePseudonymPeriodAndDeadband(sensor, i);
         	
 	        sensor.addObserver(this);
-	        
-	        // create a webservice for the sensor
-	        CoapSensorWebservice coapWebservice = new CoapSensorWebservice(sensor.getSensorUriPath(), sensor.getUpdateFrequency(),
-	                                                                        encryptionParameters, keyDatabase);
-	        
 	        sensors.add(sensor);
-	        coapSensorWebservices.add(coapWebservice);
 	        
-	        coapServerApplication.registerService(coapWebservice);
+	        if (collectionSize > 0) {
+	            // the sensor publishes it's status via the collection webservice
+	            int collectionIndex = (i - 1) / collectionSize + 1;
+	            if (collections.size() < collectionIndex) {
+	                String collectionPath = collectionBasePath + collectionIndex;
+	                CoapSensorCollectionWebservice collection = new CoapSensorCollectionWebservice(collectionPath, HOST_URI + collectionPath,
+	                                                                                               collectionInterval, encryptionParameters, keyDatabase);
+	                collection.setDeltaEncoder(deltaEncoder);
+	                collection.setNotificationTypePolicy(notificationTypePolicy);
+	                collection.setMetrics(metrics);
+	                collection.setMaxBlockSize(maxBlockSize);
+	                collection.setAggregate(coapAggregateWebservice);
+	                collections.add(collection);
+	                coapServerApplication.registerService(collection);
+	                coapDiscoveryWebservice.registerWebservice(collectionPath, CoapDiscovery.RESOURCE_TYPE_COLLECTION,
+	                                                           CoapDiscovery.INTERFACE_BATCH, collection.getContentFormats());
+	            }
+	            CoapSensorCollectionWebservice collection = collections.get(collectionIndex - 1);
+	            // the collection keeps the status of a sensor until it's next publication
+	            collection.setMaxAge(Math.max(collection.getMaxAge(), sensor.getMaxPublicationInterval()));
+	            sensorCollections.put(sensor.getSensorUriPath(), collection);
+	        }
+	        else {
+    	        // create a webservice for the sensor
+    	        CoapSensorWebservice coapWebservice = new CoapSensorWebservice(sensor.getSensorUriPath(), sensor.getUpdateFrequency(),
+    	                                                                        encryptionParameters, keyDatabase);
+    	        coapWebservice.setDeltaEncoder(deltaEncoder);
+    	        coapWebservice.setNotificationTypePolicy(notificationTypePolicy);
+    	        coapWebservice.setMetrics(metrics);
+    	        coapWebservice.setMaxBlockSize(maxBlockSize);
+    	        coapWebservice.setAggregate(coapAggregateWebservice);
+    	        coapWebservice.setMaxAge(sensor.getMaxPublicationInterval());
+    	        
+    	        coapSensorWebservices.put(coapWebservice.getPath(), coapWebservice);
+    	        
+    	        coapServerApplication.registerService(coapWebservice);
+    	        coapDiscoveryWebservice.registerWebservice(coapWebservice.getPath(), CoapDiscovery.RESOURCE_TYPE_SENSOR,
+    	                                                   CoapDiscovery.INTERFACE_SENSOR, coapWebservice.getContentFormats());
+	        }
+	        
+	        if (precomputeWindow > 0) {
+	            // spread the precomputation of all sensors over the window, but stay within the first half of the period
+	            long window = Math.min(precomputeWindow, sensor.getUpdateFrequency() * 1000L / 2);
+	            sensor.setPrecomputeLead(1 + ThreadLocalRandom.current().nextLong(Math.max(window, 1)));
+	        }
 	        
 	        sensor.start(5);
         }
+        
+        if (!collections.isEmpty()) {
+            startCollections(collections);
+        }
+    }
+    
+    /**
+     * Creates the sensors. In fast start mode they are created in parallel, because the generation
+     * of the secrets and the opening of the trace files take most of the startup time.
+     * @return The sensors, the sensor with index i at i - 1. null if a sensor couldn't be created.
+     */
+    private Sensor[] createSensors(final SensorScheduler sensorScheduler) {
+        final Sensor[] createdSensors = new Sensor[numberOfSensors];
+        
+        if (!fastStart || numberOfSensors < 2) {
+            for (int i = 1; i <= numberOfSensors; i++) {
+                createdSensors[i - 1] = createGeographicalSensor(i, sensorScheduler);
+            }
+            return createdSensors;
+        }
+        
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), numberOfSensors);
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Startup Thread#%d").build();
+        ExecutorService startupExecutor = Executors.newFixedThreadPool(threads, threadFactory);
+        
+        List<Future<?>> futures = new ArrayList<Future<?>>(numberOfSensors);
+        for (int i = 1; i <= numberOfSensors; i++) {
+            final int index = i;
+            futures.add(startupExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    createdSensors[index - 1] = createGeographicalSensor(index, sensorScheduler);
+                }
+            }));
+        }
+        
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    log.error("Exception while creating sensor", e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            log.error("Interrupted while creating sensors", e);
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            startupExecutor.shutdown();
+        }
+        
+        log.info("Created " + numberOfSensors + " sensors with " + threads + " threads");
+        return createdSensors;
+    }
+    
+    /**
+     * Flushes the collection webservices every collectionInterval seconds.
+     */
+    private void startCollections(final List<CoapSensorCollectionWebservice> collections) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Collection Thread#%d").build();
+        collectionExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        collectionExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (CoapSensorCollectionWebservice collection : collections) {
+                    try {
+                        collection.flush();
+                        statusPublished();
+                    }
+                    catch (Exception e) {
+                        log.error("Exception while flushing collection " + collection.getPath(), e);
+                    }
+                }
+            }
+        }, collectionInterval, collectionInterval, TimeUnit.SECONDS);
+        
+        log.info(collections.size() + " collections with up to " + collectionSize + " sensors publish every " +
+                 collectionInterval + " seconds");
     }
     
-    private Sensor createGeographicalSensor(int index, ScheduledThreadPoolExecutor executorService) {
+    private Sensor createGeographicalSensor(int index, SensorScheduler sensorScheduler) {
     	String sensorPath = sensorBasePath + String.valueOf(index);
     	
-    	log.info("initialize sensor: " + sensorPath);
+    	log.debug("initialize sensor: " + sensorPath);
     	
     	// if there is a special updateFrequency given in config take that one
     	int updateFrequency;
-    	try {
+    	if (config.containsKey("sensor" + index + ".updateFrequency")) {
     		updateFrequency = config.getInt("sensor" + index + ".updateFrequency");
     		log.debug("initialize sensor " + sensorPath + " with special updateFrequency " + updateFrequency);
     	}
-    	catch (Exception e) {
+    	else {
     		updateFrequency = sensorDefaultUpdateFrequency;
     		if (sensorAddRandomToUpdateFrequency) {
     		    // add random number, maximum 10 percent of updateFrequency
-    		    updateFrequency += (int)Math.round((Math.random() * 0.1 * updateFrequency));
+    		    updateFrequency += (int)Math.round((ThreadLocalRandom.current().nextDouble() * 0.1 * updateFrequency));
     		}
     		log.debug("no updatefrequency given for " + sensorPath + ". Use default value" + 
     		          (sensorAddRandomToUpdateFrequency ? " + random: " : ": ") + 
@@ -250,14 +982,22 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
     	
     	// if there is a special secret given in config take that one
     	byte[] secret = null;
-    	try {
-    		String secretBase64 = config.getString("sensor" + index + ".secret");
-    		if (!secretBase64.isEmpty()) {
+    	String secretBase64 = config.getString("sensor" + index + ".secret", "");
+    	if (!secretBase64.isEmpty()) {
+    		try {
     			secret = Secret.decodeBase64Secret(secretBase64);
-        		log.debug("initialize sensor " + sensorPath + " with special secret");
+    			log.debug("initialize sensor " + sensorPath + " with special secret");
+    		}
+    		catch (Exception e) {
+    			log.error("Invalid secret given for " + sensorPath + ". Generate new random secret.", e);
     		}
     	}
-    	catch (Exception e) {
+    	if (secret == null && state != null) {
+    	    // keep the pseudonyms of the last run
+    	    secret = state.getSecret(sensorPath);
+    	    if (secret != null) {
+    	        log.debug("initialize sensor " + sensorPath + " with secret from state file");
+    	    }
     	}
     	if (secret == null) {
     		log.debug("no special secret given for " + sensorPath + ". Generate new random secret.");
@@ -268,29 +1008,21 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
 				log.error("Error while generating secret for " + sensorPath, e1);
 				return null;
 			}
+    		if (state != null) {
+    		    state.putSecret(sensorPath, secret);
+    		}
     	}
     	
-    	double startLatitude;
-    	try {
-    		startLatitude = config.getDouble("sensor" + index + ".latitude");
-    		log.debug("initialize " + sensorPath + " at latitude " + startLatitude);
-    	}
-    	catch (Exception e) {
-    		log.debug("no latitude value given for " + sensorPath + ". Use default value.");
-    		startLatitude = 10.6802434;
+    	// if there is a trace given, the sensor replays it
+    	String tracePath = config.getString("sensor" + index + ".trace", sensorDefaultTrace);
+    	if (!tracePath.isEmpty()) {
+    		return createTraceReplaySensor(sensorPath, updateFrequency, secret, tracePath, sensorScheduler);
     	}
     	
-    	double startLongitude;
-    	try {
-    		startLongitude = config.getDouble("sensor" + index + ".longitude");
-    		log.info("initialize " + sensorPath + " at longitude " + startLongitude);
-    	}
-    	catch (Exception e) {
-    		log.debug("no longitude value given for " + sensorPath + ". use default value.");
-    		startLongitude = 53.8686906;
-    	}
+    	double startLatitude = config.getDouble("sensor" + index + ".latitude", 10.6802434);
+    	double startLongitude = config.getDouble("sensor" + index + ".longitude", 53.8686906);
     	
-    	log.info("initialize sensor " + sensorPath + "." + 
+    	log.debug("initialize sensor " + sensorPath + "." + 
     	         " updateFrequency: " + updateFrequency + 
     	         " startLongitude: " + startLongitude +
     	         " startLatitude: " + startLatitude +
@@ -299,61 +1031,202 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
         // create and initialize a GeographicSensor and it's Webservice
         GeographicSensor sensor = new GeographicSensor(sensorPath, updateFrequency, 
         		                                       startLongitude, startLatitude, 
-        		                                       maxChange, executorService);
+        		                                       maxChange, sensorScheduler);
         sensor.setSecret(secret);
         
         return sensor;
     }
+    
+    /**
+     * Sets the pseudonym period and the deadband filter of the sensor.
+     * The default values sensor.* can be overridden by sensor<index>.*
+     */
+    private void configurePseudonymPeriodAndDeadband(Sensor sensor, int index) {
+        String prefix = "sensor" + index + ".";
+        
+        sensor.setPseudonymPeriod(config.getInt(prefix + "pseudonymperiod", config.getInt("sensor.pseudonymperiod", 0)));
+        
+        double absoluteThreshold = config.getDouble(prefix + "deadband.absolute", config.getDouble("sensor.deadband.absolute", 0));
+        double relativeThreshold = config.getDouble(prefix + "deadband.relative", config.getDouble("sensor.deadband.relative", 0));
+        int maxSilence = config.getInt(prefix + "deadband.maxsilence", config.getInt("sensor.deadband.maxsilence", 0));
+        
+        if (absoluteThreshold > 0 || relativeThreshold > 0) {
+            sensor.setDeadbandFilter(new DeadbandFilter(absoluteThreshold, relativeThreshold, maxSilence));
+            log.debug("initialize " + sensor.getSensorUriPath() + " with deadband. absolute: " + absoluteThreshold +
+                      " relative: " + relativeThreshold + " maxSilence: " + maxSilence);
+        }
+    }
+    
+    private Sensor createTraceReplaySensor(String sensorPath, int updateFrequency, byte[] secret,
+                                           String tracePath, SensorScheduler sensorScheduler) {
+    	TraceFile traceFile;
+    	// sensors may be created in parallel
+    	synchronized (traceFiles) {
+        	traceFile = traceFiles.get(tracePath);
+        	if (traceFile == null) {
+        		try {
+        			traceFile = new TraceFile(tracePath, traceFormat);
+        		} catch (IOException e) {
+        			log.error("Error while opening trace file " + tracePath + " for " + sensorPath, e);
+        			return null;
+        		}
+        		traceFiles.put(tracePath, traceFile);
+        		log.info("Opened trace file " + tracePath + " (" + traceFile.getLength() + " bytes)");
+        	}
+    	}
+    	
+    	log.debug("initialize sensor " + sensorPath + "." + 
+    	          " updateFrequency: " + updateFrequency + 
+    	          " trace: " + tracePath +
+    	          " timeScale: " + traceTimeScale);
+    	
+    	TraceReplaySensor sensor = new TraceReplaySensor(sensorPath, updateFrequency, traceFile, 
+    	                                                 traceTimeScale, traceLoop, sensorScheduler);
+    	sensor.setSecret(secret);
+    	
+    	return sensor;
+    }
 
     /**
      * Whenever a sensor has new data available, this method is called.
      * The data is transformed to a jena rdf model and passed to the
      * {@link CoapSensorWebservice} that responsible for the sensor.
+     * If the publishing pipeline is enabled, the data is only handed over to it's first stage.
      * @param data
      */
     @Override
     public void publishData(Sensor sensor, SensorData data) {
-    	log.info("New sensor data from sensor " + sensor.getSensorUriPath());
+    	log.debug("New sensor data from sensor " + sensor.getSensorUriPath());
+    	if (sensorDataMeter != null) {
+    	    sensorDataMeter.mark();
+    	}
+    	
+    	initializeJena();
+    	
+    	if (pseudonymizeStage != null) {
+    	    try {
+    	        pseudonymizeStage.submit(sensor.getSensorUriPath(), new Publication(sensor, data));
+    	    }
+    	    catch (InterruptedException e) {
+    	        log.error("Interrupted while publishing data of sensor " + sensor.getSensorUriPath());
+    	        Thread.currentThread().interrupt();
+    	    }
+    	    return;
+    	}
+    	
+    	String sensorPseudonym = null;
+    	if (doEncrypt) {
+    	    sensorPseudonym = createPseudonym(sensor, data);
+    	    if (sensorPseudonym == null) {
+    	        return;
+    	    }
+    	}
+    	
+    	ResourceStatus resourceStatus = createResourceStatus(sensor, data, sensorPseudonym);
+    	if (resourceStatus == null) {
+    	    return;
+    	}
+        
+        // sensors of a collection are published with the next flush of the collection
+        CoapSensorCollectionWebservice collection = sensorCollections.get(data.getSensorUriPath());
+        if (collection != null) {
+            collect(collection, data, resourceStatus);
+            return;
+        }
+        
+        // finds the corresponding web service for the sensor URI
+        CoapSensorWebservice webservice = coapSensorWebservices.get(data.getSensorUriPath());
+        
+        if (webservice == null) {
+            log.error("No webservice available for data of sensor '" + data.getSensorUriPath() + "'");
+            return;
+        }
+        
+        long delay = data.getPublishTime() - System.currentTimeMillis();
+        if (publishExecutor != null && delay > 0) {
+            // serialize and encrypt now, publish the ready status at the update time
+            webservice.prepareResourceStatus(resourceStatus);
+            schedulePublication(webservice, resourceStatus, delay);
+        }
+        else {
+            webservice.updateResourceStatus(resourceStatus);
+            statusPublished();
+        }
+    }
+    
+    /**
+     * Creates the pseudonym of the sensor for the time the data is published.
+     * @return The pseudonym or null, if it couldn't be created
+     */
+    private String createPseudonym(Sensor sensor, SensorData data) {
+    	String sensorURI = HOST_URI + sensor.getSensorUriPath();
     	
+    	// create the pseudonym for the actual time slot
+    	String sensorPseudonym;
+    	try {
+			// a precomputed status needs the pseudonym of the time it is published
+			long pseudonymTime = data.getPublishTime() > 0 ? data.getPublishTime() : System.currentTimeMillis();
+			sensorPseudonym = PseudonymizationProcessor.generateHmac256Pseudonym(sensorURI, data.getLifetime(), sensor.getSecret(), pseudonymTime);
+		} catch (PseudonymizationException e) {
+			log.error("Error during Pseudonymization of new sensor data", e);
+			return null;
+		}
+    	return pseudonymUriHost + sensorPseudonym;
+    }
+    
+    /**
+     * Returns the time in milliseconds, when the pseudonym of the sensor data changes.
+     * The pseudonym epochs are the same as in {@link PseudonymizationProcessor}.
+     */
+    private static long getPseudonymExpiry(SensorData data) {
+        long pseudonymTime = data.getPublishTime() > 0 ? data.getPublishTime() : System.currentTimeMillis();
+        long periodMilli = data.getLifetime() * 1000L;
+        if (periodMilli <= 0) {
+            return 0;
+        }
+        return pseudonymTime - (pseudonymTime % periodMilli) + periodMilli;
+    }
+    
+    /**
+     * Creates the resource status with the rdf model of the sensor data.
+     * @param sensorPseudonym  Pseudonym of the sensor, null if encryption is disabled
+     * @return The resource status or null, if the sensor data isn't supported
+     */
+    private ResourceStatus createResourceStatus(Sensor sensor, SensorData data, String sensorPseudonym) {
     	String sensorURI = HOST_URI + sensor.getSensorUriPath();
     	
     	ResourceStatus resourceStatus;
     	
     	if (doEncrypt) {
-	    	// create the pseudonym for the actual time slot
-	    	String sensorPseudonym;
-	    	try {
-				sensorPseudonym = PseudonymizationProcessor.generateHmac256Pseudonym(sensorURI, data.getLifetime(), sensor.getSecret());
-			} catch (PseudonymizationException e) {
-				log.error("Error during Pseudonymization of new sensor data", e);
-				return;
-			}
-	    	sensorPseudonym = pseudonymUriHost + sensorPseudonym;
-	    	
 	    	// initialize Apache Jena RDF model
 	    	Model model = ModelFactory.createDefaultModel();
 	    	model.setNsPrefix("pseudonym", pseudonymUriHost);
 	    	Resource resSensor = model.createResource(sensorPseudonym);
 	    	
 	    	// format and insert the sensor data into the model
+	    	String wktValue = null;
 	        if (data instanceof SimpleIntegerSensorData) {
 	        	putIntegerSensorDataIntoModel((SimpleIntegerSensorData)data, model, resSensor);
 	        }
 	        else if (data instanceof GeographicSensorData) {
-	        	putGeographicalSensorDataIntoModel((GeographicSensorData)data, model, resSensor);
+	        	wktValue = putGeographicalSensorDataIntoModel((GeographicSensorData)data, model, resSensor);
 	        }
 	        else {
 	        	log.error("Given SensorData not supported: "  + data.getSensorUriPath() + " (" + data.getClass() + ")");
-	        	return;
+	        	return null;
 	        }
 	        
 	        // for debug output
-	        StringWriter stringWriter = new StringWriter();
-	        model.write(stringWriter, "N3");
-	        String rdfModelStr = stringWriter.getBuffer().toString();
-	        log.debug("New sensor data available:\n" + rdfModelStr);
+	        if (log.isDebugEnabled()) {
+	            StringWriter stringWriter = new StringWriter();
+	            model.write(stringWriter, "N3");
+	            String rdfModelStr = stringWriter.getBuffer().toString();
+	            log.debug("New sensor data available:\n" + rdfModelStr);
+	        }
 	        
 	        resourceStatus = new ResourceStatus(sensorPseudonym, model, data.getLifetime());
+	        resourceStatus.setWktValue(wktValue);
+	        resourceStatus.setExpiry(getPseudonymExpiry(data));
     	}
     	else {
     		Model model = ModelFactory.createDefaultModel();
@@ -369,21 +1242,88 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
 	        }
 	        else {
 	        	log.error("Given SensorData not supported: "  + data.getSensorUriPath() + " (" + data.getClass() + ")");
-	        	return;
+	        	return null;
 	        }
 	        
 	        resourceStatus = new ResourceStatus(sensorURI, model, data.getLifetime());
     	}
+    	
+    	return resourceStatus;
+    }
+    
+    /**
+     * Publishes the resource status created by the pipeline.
+     * The status of a single sensor webservice is already prepared by the encrypt stage.
+     */
+    private void publish(Publication publication) {
+        SensorData data = publication.data;
         
-        // finds the corresponding web service for the sensor URI
-        CoapSensorWebservice webservice = findWebservice(data.getSensorUriPath());
-        
-        if (webservice == null) {
-            log.error("No webservice available for data of sensor '" + data.getSensorUriPath() + "'");
+        CoapSensorCollectionWebservice collection = sensorCollections.get(data.getSensorUriPath());
+        if (collection != null) {
+            collect(collection, data, publication.resourceStatus);
             return;
         }
         
-        webservice.updateResourceStatus(resourceStatus);
+        long delay = data.getPublishTime() - System.currentTimeMillis();
+        if (publishExecutor != null && delay > 0) {
+            schedulePublication(publication.webservice, publication.resourceStatus, delay);
+        }
+        else {
+            publication.webservice.updateResourceStatus(publication.resourceStatus);
+            statusPublished();
+        }
+    }
+    
+    /**
+     * Adds the resource status to the collection. A precomputed status is added at it's publish time.
+     */
+    private void collect(CoapSensorCollectionWebservice collection, SensorData data, ResourceStatus resourceStatus) {
+        long delay = data.getPublishTime() - System.currentTimeMillis();
+        if (publishExecutor != null && delay > 0) {
+            scheduleCollection(collection, data.getSensorUriPath(), resourceStatus, delay);
+        }
+        else {
+            collection.collectResourceStatus(data.getSensorUriPath(), resourceStatus);
+        }
+    }
+    
+    /**
+     * Logs the startup time, when the first status is published.
+     */
+    private void statusPublished() {
+        if (!firstStatusPublished.get() && !firstStatusPublished.getAndSet(true)) {
+            startupTimer.logBreakdown("first status published");
+        }
+    }
+    
+    private void schedulePublication(final CoapSensorWebservice webservice, final ResourceStatus resourceStatus, long delay) {
+        publishExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    webservice.updateResourceStatus(resourceStatus);
+                    statusPublished();
+                }
+                catch (Exception e) {
+                    log.error("Exception while publishing precomputed status of " + webservice.getPath(), e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    private void scheduleCollection(final CoapSensorCollectionWebservice collection, final String sensorPath,
+                                    final ResourceStatus resourceStatus, long delay) {
+        publishExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    collection.collectResourceStatus(sensorPath, resourceStatus);
+                }
+                catch (Exception e) {
+                    log.error("Exception while collecting precomputed status of " + sensorPath, e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
     
     private void putIntegerSensorDataIntoModel(SimpleIntegerSensorData sensorData, Model model, Resource resSensor) {        
@@ -394,7 +1334,11 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
         model.add(s);
     }
     
-    private void putGeographicalSensorDataIntoModel(GeographicSensorData sensorData, Model model, Resource resSensor) {
+    /**
+     * Inserts the geographic point into the model.
+     * @return The WKT value of the point
+     */
+    private String putGeographicalSensorDataIntoModel(GeographicSensorData sensorData, Model model, Resource resSensor) {
     	log.debug("New geographical sensor data available for " + sensorData.getSensorUriPath() + ": (" + 
                   sensorData.getLongitude() + ", " + sensorData.getLatitude());
     	
@@ -426,17 +1370,10 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
     	// add literal
     	String wktLiteralValue = WktLiteral.toValueString(sensorData.getLatitude(), sensorData.getLongitude());
     	resSensorPosition.addLiteral(propWKT, ResourceFactory.createTypedLiteral(wktLiteralValue, WktLiteral.getInstance()));
+    	
+    	return wktLiteralValue;
     }
     
-    private CoapSensorWebservice findWebservice(String sensorURI) {
-        for (CoapSensorWebservice webservice : coapSensorWebservices) {
-            if (webservice.getPath().equals(sensorURI)) {
-                return webservice;
-            }
-        }
-        return null;
-    }
-
     /**
      * Is called by coapRegisterClient when it receives the X509Certificate from the CoAP Privacy Proxy.
      * The public key of the certificate is saved in the key database and
@@ -453,6 +1390,11 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
             //return;
         }
         
+        if (warmStart && isStoredCertificate(fromUri.getHost(), certificate)) {
+            log.info("Received certificate is unchanged");
+            return;
+        }
+        
         // check certificate
         if (CertificateProcessor.verifyCertificate(certificate, certificatesPath, trustedCertficatesPath)) {
             log.info("Received certificate is valid");
@@ -464,14 +1406,33 @@ public class CoapWebserverController implements SensorObserver, CoapRegisterClie
         
         // save public key. Method is thread safe.
         keyDatabase.addEntry(new KeyDatabaseEntry(fromUri, certificate.getPublicKey()));
+        if (state != null) {
+            state.putCertificate(fromUri, certificate);
+        }
         
         // send register request to CoAP Privacy Proxy
-        try {
-            coapRegisterClient.sendRegisterRequestToCPP();
-        } catch (UnknownHostException | URISyntaxException e) {
-            log.error("Exception during sendRegisterRequest: " + e.getMessage());
-        }
+        registerAtCPP();
     }
     
-    
+    /**
+     * New sensor data on it's way through the publishing pipeline.
+     * Every stage adds it's result.
+     */
+    public static class Publication {
+        private Sensor sensor;
+        private SensorData data;
+        private String pseudonym;
+        private ResourceStatus resourceStatus;
+        private CoapSensorWebservice webservice;
+        
+        private Publication(Sensor sensor, SensorData data) {
+            this.sensor = sensor;
+            this.data = data;
+        }
+        
+        /** The data of a sensor is processed in order */
+        private String key() {
+            return data.getSensorUriPath();
+        }
+    }
 }
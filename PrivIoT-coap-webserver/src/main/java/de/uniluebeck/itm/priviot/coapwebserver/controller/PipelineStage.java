@@ -0,0 +1,221 @@
+package de.uniluebeck.itm.priviot.coapwebserver.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A stage of the publishing pipeline of the CoAP-Webserver.
+ *
+ * The stage has a number of worker threads with a bounded queue each. An item is assigned to a worker
+ * by it's key, so the items of one key (i.e. one sensor) are processed in the order they were submitted.
+ * If the queue of a worker is full, submit blocks, so a slow stage slows down the stages before it.
+ * A worker takes up to batchSize items from it's queue at once and processes them as batch.
+ *
+ * The stage counts the processed items and measures the latency of an item from it's submission
+ * to the end of it's processing.
+ *
+ * @param <T> Type of the items
+ */
+public class PipelineStage<T> {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    /**
+     * Processes the items of the stage.
+     */
+    public interface Processor<T> {
+        /**
+         * Processes a batch of items. The items of one key are in the order they were submitted.
+         */
+        void process(List<T> batch) throws Exception;
+    }
+
+    private String name;
+
+    private int batchSize;
+
+    private Processor<T> processor;
+
+    private List<Worker> workers;
+
+    private AtomicLong processedItems = new AtomicLong();
+
+    private AtomicLong processedBatches = new AtomicLong();
+
+    private AtomicLong totalLatency = new AtomicLong();
+
+    private AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param name       Name of the stage, used for the threads and the metrics
+     * @param threads    Number of worker threads
+     * @param queueSize  Capacity of the queue of every worker
+     * @param batchSize  Maximum number of items processed at once
+     * @param processor  Processes the items
+     */
+    public PipelineStage(String name, int threads, int queueSize, int batchSize, Processor<T> processor) {
+        this.name = name;
+        this.batchSize = Math.max(batchSize, 1);
+        this.processor = processor;
+
+        workers = new ArrayList<Worker>(Math.max(threads, 1));
+        for (int i = 0; i < Math.max(threads, 1); i++) {
+            Worker worker = new Worker(new ArrayBlockingQueue<Entry<T>>(Math.max(queueSize, 1)));
+            worker.setName("CoAP Webserver " + name + " Thread#" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+    }
+
+    public void start() {
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    public void shutdown() {
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Submits an item to the stage. Blocks, if the queue of the responsible worker is full.
+     * @param key   Key of the item. Items with the same key are processed in order.
+     * @param item  The item
+     * @throws InterruptedException if the thread was interrupted while waiting for the queue
+     */
+    public void submit(Object key, T item) throws InterruptedException {
+        Worker worker = workers.get((key.hashCode() & 0x7FFFFFFF) % workers.size());
+        worker.queue.put(new Entry<T>(item));
+    }
+
+    /** Returns the name of the stage */
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the number of worker threads */
+    public int getThreads() {
+        return workers.size();
+    }
+
+    /** Returns the number of items waiting in the queues */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) {
+            depth += worker.queue.size();
+        }
+        return depth;
+    }
+
+    /** Returns the number of processed items */
+    public long getProcessedItems() {
+        return processedItems.get();
+    }
+
+    /** Returns the number of processed batches */
+    public long getProcessedBatches() {
+        return processedBatches.get();
+    }
+
+    /** Returns the average latency of an item from it's submission to the end of it's processing in microseconds */
+    public long getAverageLatencyMicros() {
+        long items = processedItems.get();
+        return items > 0 ? TimeUnit.NANOSECONDS.toMicros(totalLatency.get() / items) : 0;
+    }
+
+    /** Returns the maximum latency of an item in microseconds */
+    public long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatency.get());
+    }
+
+    @Override
+    public String toString() {
+        return name + ": threads " + getThreads() + ", queue " + getQueueDepth() + ", items " + getProcessedItems()
+               + ", batches " + getProcessedBatches() + ", latency avg " + getAverageLatencyMicros()
+               + " us, max " + getMaxLatencyMicros() + " us";
+    }
+
+    private void processed(List<Entry<T>> entries) {
+        long now = System.nanoTime();
+        for (Entry<T> entry : entries) {
+            long latency = now - entry.submitTime;
+            totalLatency.addAndGet(latency);
+
+            long max = maxLatency.get();
+            while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+                max = maxLatency.get();
+            }
+        }
+        processedItems.addAndGet(entries.size());
+        processedBatches.incrementAndGet();
+    }
+
+    /**
+     * An item together with it's submission time.
+     */
+    private static class Entry<T> {
+        private T item;
+        private long submitTime = System.nanoTime();
+
+        private Entry(T item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Takes the items from it's queue and processes them.
+     */
+    private class Worker extends Thread {
+        private BlockingQueue<Entry<T>> queue;
+
+        private Worker(BlockingQueue<Entry<T>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            List<Entry<T>> entries = new ArrayList<Entry<T>>(batchSize);
+            List<T> batch = new ArrayList<T>(batchSize);
+
+            while (!isInterrupted()) {
+                try {
+                    entries.add(queue.take());
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+                queue.drainTo(entries, batchSize - 1);
+
+                for (Entry<T> entry : entries) {
+                    batch.add(entry.item);
+                }
+
+                try {
+                    processor.process(batch);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+                catch (Exception e) {
+                    log.error("Exception in pipeline stage " + name, e);
+                }
+
+                processed(entries);
+                entries.clear();
+                batch.clear();
+            }
+
+            log.debug("Worker of pipeline stage {} stopped", name);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package de.uniluebeck.itm.priviot.coapwebserver.controller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the duration of the startup phases of the CoAP-Webserver and logs them as breakdown.
+ * Methods of the class are thread safe.
+ */
+public class StartupTimer {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private final long startTime = System.nanoTime();
+
+    /** End of the last phase */
+    private long lastTime = startTime;
+
+    /** Duration of every finished phase */
+    private StringBuilder breakdown = new StringBuilder();
+
+    /**
+     * Ends the actual phase. The next phase starts now.
+     * @param phase Name of the phase
+     */
+    public synchronized void phaseDone(String phase) {
+        long now = System.nanoTime();
+        long duration = (now - lastTime) / 1000000;
+        lastTime = now;
+
+        if (breakdown.length() > 0) {
+            breakdown.append(", ");
+        }
+        breakdown.append(phase).append(": ").append(duration).append(" ms");
+
+        log.debug("Startup phase '" + phase + "' took " + duration + " ms");
+    }
+
+    /**
+     * Returns the time in milliseconds since the start
+     */
+    public synchronized long getElapsedMillis() {
+        return (System.nanoTime() - startTime) / 1000000;
+    }
+
+    /**
+     * Logs the time since the start together with the breakdown of the finished phases.
+     * @param milestone Reached milestone, for example "first status published"
+     */
+    public synchronized void logBreakdown(String milestone) {
+        log.info("Startup: " + milestone + " after " + getElapsedMillis() + " ms (" + breakdown + ")");
+    }
+}
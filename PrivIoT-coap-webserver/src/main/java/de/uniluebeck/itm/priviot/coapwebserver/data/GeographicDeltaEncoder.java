@@ -0,0 +1,79 @@
+package de.uniluebeck.itm.priviot.coapwebserver.data;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniluebeck.itm.priviot.utils.data.DataPackageParsingException;
+import de.uniluebeck.itm.priviot.utils.data.GeographicDelta;
+
+/**
+ * Decides for every geographic reading, if it is published as keyframe or as delta (see {@link GeographicDelta}).
+ *
+ * The first reading of a sensor with a new pseudonym is a keyframe, because the recipient stores the keyframes
+ * per pseudonym. After keyframeInterval deltas the next reading is a keyframe again,
+ * so a recipient, that missed a keyframe, can restart the decoding.
+ */
+public class GeographicDeltaEncoder {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    /** Number of deltas between two keyframes */
+    private int keyframeInterval;
+
+    /** The last keyframe of every sensor. Key is the path of the sensor. */
+    private Map<String, Keyframe> keyframes = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     * @param keyframeInterval  Number of deltas between two keyframes
+     */
+    public GeographicDeltaEncoder(int keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Returns the serialized delta of the reading to the last keyframe of the sensor,
+     * or null if the reading has to be published as keyframe.
+     * The readings of a sensor have to be encoded in the order they are published.
+     *
+     * @param sensorPath  Path of the sensor
+     * @param pseudonym   The pseudonym the reading is published with
+     * @param wktValue    The WKT value of the reading
+     */
+    public String encode(String sensorPath, String pseudonym, String wktValue) {
+        Keyframe keyframe = keyframes.get(sensorPath);
+
+        if (keyframe != null && keyframe.pseudonym.equals(pseudonym) && keyframe.deltas < keyframeInterval) {
+            try {
+                String delta = GeographicDelta.create(keyframe.wktValue, wktValue).serialize();
+                keyframe.deltas++;
+                return delta;
+            } catch (DataPackageParsingException e) {
+                log.error("Can't encode reading of " + sensorPath + " as delta. Publish keyframe.", e);
+            }
+        }
+
+        keyframes.put(sensorPath, new Keyframe(pseudonym, wktValue));
+        return null;
+    }
+
+    /**
+     * The last keyframe of a sensor.
+     */
+    private static class Keyframe {
+        private String pseudonym;
+
+        private String wktValue;
+
+        /** Number of deltas published since the keyframe */
+        private int deltas = 0;
+
+        private Keyframe(String pseudonym, String wktValue) {
+            this.pseudonym = pseudonym;
+            this.wktValue = wktValue;
+        }
+    }
+}
@@ -27,4 +27,28 @@ public class GeographicSensorData extends SensorData {
 	public void setLatitude(double latitude) {
 		this.latitude = latitude;
 	}
+
+	/** The change is the larger change of longitude and latitude */
+	@Override
+	public double getChange(SensorData previous) {
+		if (!(previous instanceof GeographicSensorData)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		GeographicSensorData previousPoint = (GeographicSensorData)previous;
+		return Math.max(Math.abs(longitude - previousPoint.getLongitude()), 
+		                Math.abs(latitude - previousPoint.getLatitude()));
+	}
+
+	@Override
+	public double getMagnitude() {
+		return Math.max(Math.abs(longitude), Math.abs(latitude));
+	}
+
+	@Override
+	public SensorData copy() {
+		GeographicSensorData copy = new GeographicSensorData(sensorUriPath, longitude, latitude);
+		copy.setLifetime(lifetime);
+		copy.setPublishTime(publishTime);
+		return copy;
+	}
 }
@@ -2,6 +2,7 @@ package de.uniluebeck.itm.priviot.coapwebserver.data;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -17,7 +18,7 @@ public class KeyDatabase {
     }
     
     /**
-     * Adds a new Entry.
+     * Adds a new Entry. An existing entry of the same host is replaced.
      * Entry must not be null.
      * Attribute url of entry must not be null.
      * @param entry
@@ -27,9 +28,23 @@ public class KeyDatabase {
             return;
         }
         
+        removeEntry(entry.getURI());
         entries.add(entry);
     }
     
+    /**
+     * Removes the entry with the host of the given url, if it exists.
+     * @param url
+     */
+    public synchronized void removeEntry(URI url) {
+        Iterator<KeyDatabaseEntry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getURI().getHost().equals(url.getHost())) {
+                iterator.remove();
+            }
+        }
+    }
+    
     /**
      * Returns the entry with the url equal to given argument, if it exist.
      * @param url
@@ -1,15 +1,36 @@
 package de.uniluebeck.itm.priviot.coapwebserver.data;
 
+import java.util.List;
+
 import com.hp.hpl.jena.rdf.model.Model;
 
 /**
  * Represents the status of a sensor.
  * Encapsulates a sensor's URI or URI pseudonym, a Jena RDF model and it's lifetime
+ * 
+ * The status of a sensor collection additionally contains the status of every sensor of the collection as entries.
+ * In that case the sensorUri is the URI of the collection and the rdf model is the union of the models of all entries.
  */
 public class ResourceStatus {
 	private String sensorUri;
     private Model rdfModel;
     private int lifetime;
+    /** Hash of the content of the rdf model. Equal content leads to an equal hash. */
+    private long contentHash;
+    /** The status of every sensor of a collection. Null if this is the status of a single sensor. */
+    private List<ResourceStatus> entries;
+    /** WKT value of a geographic reading. Null if the status contains no geographic reading. */
+    private String wktValue;
+    /** 
+     * The status as delta to the last keyframe of the sensor (see {@link GeographicDeltaEncoder}).
+     * Null if the status has to be published as full rdf model.
+     */
+    private String deltaContent;
+    /** 
+     * Time in milliseconds, when the pseudonym of the status changes and the status must not be used any more.
+     * 0 if the status has no pseudonym.
+     */
+    private long expiry;
     
     /**
      * Constructor
@@ -45,4 +66,59 @@ public class ResourceStatus {
 	public void setLifetime(int lifetime) {
 		this.lifetime = lifetime;
 	}
+
+	public long getContentHash() {
+		return contentHash;
+	}
+
+	public void setContentHash(long contentHash) {
+		this.contentHash = contentHash;
+	}
+
+	public List<ResourceStatus> getEntries() {
+		return entries;
+	}
+
+	public void setEntries(List<ResourceStatus> entries) {
+		this.entries = entries;
+	}
+
+	public String getWktValue() {
+		return wktValue;
+	}
+
+	public void setWktValue(String wktValue) {
+		this.wktValue = wktValue;
+	}
+
+	public String getDeltaContent() {
+		return deltaContent;
+	}
+
+	public void setDeltaContent(String deltaContent) {
+		this.deltaContent = deltaContent;
+	}
+	
+	public long getExpiry() {
+		return expiry;
+	}
+
+	public void setExpiry(long expiry) {
+		this.expiry = expiry;
+	}
+	
+	/** Returns true, if the status or one of it's entries can be published as delta */
+	public boolean isDeltaEncoded() {
+		if (deltaContent != null) {
+			return true;
+		}
+		if (entries != null) {
+			for (ResourceStatus entry : entries) {
+				if (entry.getDeltaContent() != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
 }
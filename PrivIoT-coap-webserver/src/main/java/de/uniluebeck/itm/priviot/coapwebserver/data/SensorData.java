@@ -10,6 +10,12 @@ public abstract class SensorData {
 	/** Lifetime of the data in seconds */
 	protected int lifetime;
 	
+	/** 
+	 * Time in milliseconds the data becomes the actual data of the sensor.
+	 * 0 if the data is published immediately.
+	 */
+	protected long publishTime;
+	
 	/** Returns the URI of the sensor */
 	public String getSensorUriPath() {
 		return sensorUriPath;
@@ -29,4 +35,26 @@ public abstract class SensorData {
 	public void setLifetime(int lifetime) {
 		this.lifetime = lifetime;
 	}
+	
+	/** Returns the time the data becomes the actual data of the sensor, 0 if immediately */
+	public long getPublishTime() {
+		return publishTime;
+	}
+	
+	/** Sets the time the data becomes the actual data of the sensor, 0 if immediately */
+	public void setPublishTime(long publishTime) {
+		this.publishTime = publishTime;
+	}
+	
+	/**
+	 * Returns the absolute change of this data compared to a previous data set of the same sensor.
+	 * Returns Double.POSITIVE_INFINITY if the data sets can't be compared.
+	 */
+	public abstract double getChange(SensorData previous);
+	
+	/** Returns the absolute value of the data, used for relative changes */
+	public abstract double getMagnitude();
+	
+	/** Returns a copy of the data set, that can be changed independently */
+	public abstract SensorData copy();
 }
@@ -25,4 +25,26 @@ public class SimpleIntegerSensorData extends SensorData {
 	public void setData(int data) {
 		this.data = data;
 	}
+
+	@Override
+	public double getChange(SensorData previous) {
+		if (!(previous instanceof SimpleIntegerSensorData)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return Math.abs(data - ((SimpleIntegerSensorData)previous).getData());
+	}
+
+	@Override
+	public double getMagnitude() {
+		return Math.abs(data);
+	}
+
+	@Override
+	public SensorData copy() {
+		SimpleIntegerSensorData copy = new SimpleIntegerSensorData(sensorUriPath);
+		copy.setData(data);
+		copy.setLifetime(lifetime);
+		copy.setPublishTime(publishTime);
+		return copy;
+	}
 }
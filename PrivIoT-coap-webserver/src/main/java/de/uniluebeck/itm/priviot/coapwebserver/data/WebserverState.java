@@ -0,0 +1,249 @@
+package de.uniluebeck.itm.priviot.coapwebserver.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniluebeck.itm.priviot.utils.pseudonymization.Secret;
+
+/**
+ * Local state of the CoAP-Webserver, that survives a restart:
+ * - the verified certificates of the Smart Service Proxies per host, i.e. the content of the {@link KeyDatabase},
+ * - the generated secrets of the sensors without a configured secret, so their pseudonyms stay the same,
+ * - the registration at the CoAP Privacy Proxy.
+ *
+ * The state is stored in a properties file. It is written to a temporary file first, that replaces the
+ * state file, so an interrupted write doesn't destroy the last state.
+ * The file contains secrets and has to be readable by the owner only.
+ *
+ * Methods of the class are thread safe.
+ */
+public class WebserverState {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private static final String CERTIFICATE_PREFIX = "certificate.";
+    private static final String URI_PREFIX = "uri.";
+    private static final String SECRET_PREFIX = "secret.";
+    private static final String REGISTRATION = "registration";
+    private static final String REGISTRATION_TIME = "registration.time";
+
+    private Path path;
+
+    private Properties properties = new Properties();
+
+    /** True, if the state changed since it was loaded or saved */
+    private boolean modified = false;
+
+    /**
+     * Constructor
+     * @param path Path of the state file
+     */
+    public WebserverState(String path) {
+        this.path = Paths.get(path);
+    }
+
+    /**
+     * Loads the state file. If it doesn't exist or can't be read, the state is empty.
+     */
+    public synchronized void load() {
+        properties.clear();
+        modified = false;
+
+        if (!Files.exists(path)) {
+            log.info("No state file " + path + " found. Cold start.");
+            return;
+        }
+
+        try (InputStream inStream = Files.newInputStream(path)) {
+            properties.load(inStream);
+            log.info("Loaded state file " + path);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            log.error("Could not read state file " + path + ". Cold start.", e);
+            properties.clear();
+        }
+    }
+
+    /**
+     * Writes the state file, if the state changed.
+     */
+    public synchronized void save() {
+        if (!modified) {
+            return;
+        }
+
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            createOwnerOnlyFile(tempPath);
+            try (OutputStream outStream = Files.newOutputStream(tempPath, StandardOpenOption.WRITE,
+                                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+                properties.store(outStream, "PrivIoT CoAP-Webserver state. Contains secrets, do not share.");
+            }
+
+            try {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            modified = false;
+            log.debug("Saved state file " + path);
+        }
+        catch (IOException e) {
+            log.error("Could not write state file " + path, e);
+        }
+    }
+
+    /**
+     * Creates an empty file, that is readable and writable by the owner only,
+     * before the secrets are written to it. An existing file is replaced, because it may have other permissions.
+     */
+    private void createOwnerOnlyFile(Path filePath) throws IOException {
+        Files.deleteIfExists(filePath);
+        try {
+            Files.createFile(filePath, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException e) {
+            // no POSIX file system
+            Files.createFile(filePath);
+            filePath.toFile().setReadable(false, false);
+            filePath.toFile().setReadable(true, true);
+            filePath.toFile().setWritable(false, false);
+            filePath.toFile().setWritable(true, true);
+        }
+    }
+
+    /**
+     * Returns the hosts of all stored certificates.
+     */
+    public synchronized Set<String> getCertificateHosts() {
+        Set<String> hosts = new HashSet<String>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(CERTIFICATE_PREFIX)) {
+                hosts.add(key.substring(CERTIFICATE_PREFIX.length()));
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Returns the stored certificate of the Smart Service Proxy or null.
+     */
+    public synchronized X509Certificate getCertificate(String host) {
+        String encodedCertificate = properties.getProperty(CERTIFICATE_PREFIX + host);
+        if (encodedCertificate == null) {
+            return null;
+        }
+
+        try {
+            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+            return (X509Certificate)certificateFactory.generateCertificate(
+                    new ByteArrayInputStream(Base64.decodeBase64(encodedCertificate)));
+        }
+        catch (CertificateException | ClassCastException e) {
+            log.error("Stored certificate of " + host + " is malformed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the URI the certificate of the Smart Service Proxy was received from or null.
+     */
+    public synchronized URI getCertificateUri(String host) {
+        String uri = properties.getProperty(URI_PREFIX + host);
+        if (uri == null) {
+            return null;
+        }
+
+        try {
+            return new URI(uri);
+        }
+        catch (URISyntaxException e) {
+            log.error("Stored URI of " + host + " is malformed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the verified certificate of a Smart Service Proxy.
+     * @param uri          URI the certificate was received from
+     * @param certificate  The verified certificate
+     */
+    public synchronized void putCertificate(URI uri, X509Certificate certificate) {
+        try {
+            properties.setProperty(CERTIFICATE_PREFIX + uri.getHost(), Base64.encodeBase64String(certificate.getEncoded()));
+            properties.setProperty(URI_PREFIX + uri.getHost(), uri.toString());
+            modified = true;
+        }
+        catch (CertificateEncodingException e) {
+            log.error("Could not encode certificate of " + uri.getHost(), e);
+        }
+    }
+
+    /**
+     * Removes the certificate of a Smart Service Proxy.
+     */
+    public synchronized void removeCertificate(String host) {
+        properties.remove(CERTIFICATE_PREFIX + host);
+        properties.remove(URI_PREFIX + host);
+        modified = true;
+    }
+
+    /**
+     * Returns the stored secret of the sensor or null.
+     */
+    public synchronized byte[] getSecret(String sensorPath) {
+        String secret = properties.getProperty(SECRET_PREFIX + sensorPath);
+        return secret != null ? Secret.decodeBase64Secret(secret) : null;
+    }
+
+    /**
+     * Stores the generated secret of the sensor.
+     */
+    public synchronized void putSecret(String sensorPath, byte[] secret) {
+        properties.setProperty(SECRET_PREFIX + sensorPath, Secret.encodeBase64Secret(secret));
+        modified = true;
+    }
+
+    /**
+     * Returns true, if the CoAP-Webserver was registered at the CoAP Privacy Proxy for the Smart Service Proxy.
+     * @param cpp  Host and port of the CoAP Privacy Proxy
+     * @param ssp  Host and port of the Smart Service Proxy
+     */
+    public synchronized boolean isRegistered(String cpp, String ssp) {
+        return (cpp + " " + ssp).equals(properties.getProperty(REGISTRATION));
+    }
+
+    /**
+     * Stores the registration at the CoAP Privacy Proxy for the Smart Service Proxy.
+     * @param cpp  Host and port of the CoAP Privacy Proxy
+     * @param ssp  Host and port of the Smart Service Proxy
+     */
+    public synchronized void setRegistered(String cpp, String ssp) {
+        properties.setProperty(REGISTRATION, cpp + " " + ssp);
+        properties.setProperty(REGISTRATION_TIME, Long.toString(System.currentTimeMillis()));
+        modified = true;
+    }
+}
@@ -0,0 +1,75 @@
+package de.uniluebeck.itm.priviot.coapwebserver.sensor;
+
+import de.uniluebeck.itm.priviot.coapwebserver.data.SensorData;
+
+/**
+ * Decides whether a new reading of a {@link Sensor} differs enough from the last published one to be published.
+ *
+ * A reading is inside the deadband, if it's change doesn't exceed the absolute threshold
+ * and doesn't exceed the relative threshold (fraction of the last published value).
+ * A threshold of 0 is ignored.
+ * If nothing was published for maxSilence seconds, the next reading is published in any case.
+ */
+public class DeadbandFilter {
+
+	/** Maximum absolute change of a reading inside the deadband */
+	private double absoluteThreshold;
+
+	/** Maximum change of a reading inside the deadband as fraction of the last published value */
+	private double relativeThreshold;
+
+	/** Maximum time in seconds without publication. 0 if unlimited. */
+	private int maxSilence;
+
+	/**
+	 * Constructor
+	 * @param absoluteThreshold  Maximum absolute change of a reading inside the deadband. 0 to ignore.
+	 * @param relativeThreshold  Maximum relative change of a reading inside the deadband. 0 to ignore.
+	 * @param maxSilence         Maximum time in seconds without publication. 0 if unlimited.
+	 */
+	public DeadbandFilter(double absoluteThreshold, double relativeThreshold, int maxSilence) {
+		this.absoluteThreshold = absoluteThreshold;
+		this.relativeThreshold = relativeThreshold;
+		this.maxSilence = maxSilence;
+	}
+
+	/**
+	 * Returns true, if the reading has to be published.
+	 *
+	 * @param lastPublished      The last published reading, null if there is none
+	 * @param reading            The new reading
+	 * @param lastPublishedTime  Time the last reading was published in milliseconds
+	 * @param time               Actual time in milliseconds
+	 */
+	public boolean isSignificant(SensorData lastPublished, SensorData reading, long lastPublishedTime, long time) {
+		if (lastPublished == null) {
+			return true;
+		}
+		if (maxSilence > 0 && time - lastPublishedTime >= maxSilence * 1000L) {
+			return true;
+		}
+
+		double change = reading.getChange(lastPublished);
+		if (absoluteThreshold > 0 && change > absoluteThreshold) {
+			return true;
+		}
+		if (relativeThreshold > 0 && change > relativeThreshold * lastPublished.getMagnitude()) {
+			return true;
+		}
+
+		// no threshold configured: every change is significant
+		return absoluteThreshold <= 0 && relativeThreshold <= 0 && change > 0;
+	}
+
+	public double getAbsoluteThreshold() {
+		return absoluteThreshold;
+	}
+
+	public double getRelativeThreshold() {
+		return relativeThreshold;
+	}
+
+	public int getMaxSilence() {
+		return maxSilence;
+	}
+}
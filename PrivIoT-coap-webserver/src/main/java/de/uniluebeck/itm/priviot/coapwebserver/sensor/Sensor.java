@@ -3,8 +3,6 @@ package de.uniluebeck.itm.priviot.coapwebserver.sensor;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,9 +19,9 @@ import de.uniluebeck.itm.priviot.coapwebserver.data.SensorData;
  */
 public abstract class Sensor {
 	/** List of Observers for the Sensor */
-	private List<SensorObserver> observers = new ArrayList<SensorObserver>();
+	private List<SensorObserver> observers = new ArrayList<SensorObserver>(1);
 	
-	private ScheduledExecutorService scheduledExecutorService;
+	private SensorScheduler sensorScheduler;
 	
 	private Logger log = LoggerFactory.getLogger(this.getClass().getName());
 	
@@ -38,9 +36,33 @@ public abstract class Sensor {
 	/** The secret of the sensor, used to create the pseudonyms */
 	private byte[] secret;
 	
+	/** Time period in seconds the pseudonym of the sensor doesn't change. 0 if equal to updateFrequency. */
+	private int pseudonymPeriod = 0;
 	
-	protected void setScheduledExecutorService(ScheduledExecutorService scheduledExecutorService) {
-	    this.scheduledExecutorService = scheduledExecutorService;
+	/** Suppresses readings, that don't differ enough from the last published one. null if disabled. */
+	private DeadbandFilter deadbandFilter;
+	
+	/** The last published reading */
+	private SensorData lastPublishedData;
+	
+	/** Time the last reading was published in milliseconds */
+	private long lastPublishedTime;
+	
+	/** Time of the next scheduled update in milliseconds. Managed by the SensorScheduler. */
+	private long nextUpdateTime;
+	
+	/** 
+	 * Time in milliseconds the sensor value is created before the update time.
+	 * Within this time the observers can prepare the publication. 0 if disabled.
+	 */
+	private long precomputeLead = 0;
+	
+	/** True while an update of this sensor is executed */
+	private boolean updateRunning = false;
+	
+	
+	protected void setSensorScheduler(SensorScheduler sensorScheduler) {
+	    this.sensorScheduler = sensorScheduler;
 	}
 	
 	/**
@@ -98,6 +120,65 @@ public abstract class Sensor {
 		this.secret = secret;
 	}
 	
+	/**
+	 * Returns the time period in seconds the pseudonym of the sensor doesn't change.
+	 * This is the lifetime of the published sensor data.
+	 */
+	public int getPseudonymPeriod() {
+		return pseudonymPeriod > 0 ? pseudonymPeriod : updateFrequency;
+	}
+	
+	/**
+	 * Sets the time period in seconds the pseudonym of the sensor doesn't change.
+	 * Should be a multiple of the updateFrequency. 0 to use the updateFrequency.
+	 */
+	public void setPseudonymPeriod(int pseudonymPeriod) {
+		this.pseudonymPeriod = pseudonymPeriod;
+	}
+	
+	/** Returns the deadband filter of the sensor, null if disabled */
+	public DeadbandFilter getDeadbandFilter() {
+		return deadbandFilter;
+	}
+	
+	/**
+	 * Sets a deadband filter. Readings inside the deadband are not published,
+	 * as long as the pseudonym doesn't change. null disables the filter.
+	 */
+	public void setDeadbandFilter(DeadbandFilter deadbandFilter) {
+		this.deadbandFilter = deadbandFilter;
+	}
+	
+	/**
+	 * Returns the maximum time in seconds between two publications of the sensor.
+	 * Without deadband every reading is published. With deadband a reading is published at least
+	 * with every new pseudonym or after maxSilence seconds, i.e. with the first reading after that time.
+	 */
+	public int getMaxPublicationInterval() {
+		if (deadbandFilter == null) {
+			return updateFrequency;
+		}
+		int interval = getPseudonymPeriod();
+		if (deadbandFilter.getMaxSilence() > 0) {
+			interval = Math.min(interval, deadbandFilter.getMaxSilence());
+		}
+		return interval + updateFrequency;
+	}
+	
+	/** Returns the time in milliseconds the sensor value is created before the update time */
+	public long getPrecomputeLead() {
+		return precomputeLead;
+	}
+	
+	/**
+	 * Sets the time in milliseconds the sensor value is created before the update time.
+	 * The published {@link SensorData} then carries the update time as publish time.
+	 * Has to be set before the sensor is started. 0 disables the precomputation.
+	 */
+	public void setPrecomputeLead(long precomputeLead) {
+		this.precomputeLead = precomputeLead;
+	}
+	
 	/**
 	 * Starts the sensor.
 	 * From this moment on it will publish sensor values all updateFrequency seconds.
@@ -117,28 +198,32 @@ public abstract class Sensor {
 	 *                           If not needed set to updateFrequency.
 	 */
 	public void start(long maxTimeDifference) {
-	    if (scheduledExecutorService == null) {
-	        log.error("scheduledExecutorService not initialized. Can't start Sensor");
+	    if (sensorScheduler == null) {
+	        log.error("sensorScheduler not initialized. Can't start Sensor");
+	        return;
 	    }
 	    
 	    // publish the initial value
-	    try{
-            getAndPublishSensorData();
-        }
-        catch(Exception e){
-            log.error("Exception while updating sensor value", e);
-        }
+	    sensorScheduler.execute(this);
 	    
 	    // find a good start point for next publish
 	    long sleepTime = 0;
-	    long updateFrequencyMilli = updateFrequency * 1000;
+	    long updateFrequencyMilli = updateFrequency * 1000L;
 	    long maxTimeDifferenceMilli = maxTimeDifference * 1000;
 	    long modulo = (new Date()).getTime() % (updateFrequencyMilli);
 	    
 	    Date lastUpdate = new Date((new Date()).getTime() - modulo);
 		Date nextUpdate = new Date((new Date()).getTime() - modulo + updateFrequencyMilli);
 	    
-	    if (modulo > maxTimeDifferenceMilli) {
+	    if (precomputeLead > 0) {
+	    	// create the value precomputeLead milliseconds before the next update time
+	    	sleepTime = (updateFrequencyMilli - modulo) - precomputeLead;
+	    	if (sleepTime < 0) {
+	    		sleepTime += updateFrequencyMilli;
+	    	}
+	    	log.debug("Sensor precomputes " + precomputeLead + " milliseconds before update time. Sensor starts after " + sleepTime + " milliseconds.");
+	    }
+	    else if (modulo > maxTimeDifferenceMilli) {
 			sleepTime = (updateFrequencyMilli - modulo) + 100; // 100 for tolerance of sleep
 			log.debug(modulo + " seconds after last update time. Sensor starts after " + sleepTime + " milliseconds. Next update time is " + nextUpdate);
 		}
@@ -146,32 +231,103 @@ public abstract class Sensor {
 	    	log.debug(modulo + " seconds after last update time (" + lastUpdate + ").");
 	    }
 	    
-	    scheduledExecutorService.scheduleAtFixedRate(new Runnable(){
-
-            @Override
-            public void run() {
-                try{
-                    getAndPublishSensorData();
-                }
-                catch(Exception e){
-                    log.error("Exception while updating sensor value", e);
-                }
-            }
-        },sleepTime, updateFrequencyMilli, TimeUnit.MILLISECONDS);
+	    sensorScheduler.schedule(this, sleepTime);
     }
 	
+	long getNextUpdateTime() {
+	    return nextUpdateTime;
+	}
+	
+	void setNextUpdateTime(long nextUpdateTime) {
+	    this.nextUpdateTime = nextUpdateTime;
+	}
+	
+	/**
+	 * Marks the sensor as updating.
+	 * @return false, if an update of the sensor is already running
+	 */
+	synchronized boolean tryStartUpdate() {
+	    if (updateRunning) {
+	        return false;
+	    }
+	    updateRunning = true;
+	    return true;
+	}
+	
+	/** Marks the update of the sensor as finished */
+	synchronized void finishUpdate() {
+	    updateRunning = false;
+	}
+	
 	/**
 	 * Notifies the registered observers and publishes the new data to them.
 	 * @param newData New RDFData of the Sensor.
 	 */
 	protected void notifyObservers(SensorData newData) {
 		if (newData != null) {
+			newData.setPublishTime(getPublishTime());
+			
+			if (deadbandFilter != null) {
+				newData = applyDeadband(newData);
+				if (newData == null) {
+					return;
+				}
+			}
+			
 			for (SensorObserver observer : observers) {
 				observer.publishData(this, newData);
 			}
 		}
 	}
 	
+	/**
+	 * Returns the data to publish, or null if the reading is suppressed.
+	 * A reading inside the deadband is suppressed, if the pseudonym didn't change since the last publication.
+	 * Otherwise the last published value is published again, so the pseudonym is refreshed.
+	 * The refresh is a copy, because the last published data was already handed to the observers.
+	 */
+	private SensorData applyDeadband(SensorData newData) {
+		long time = newData.getPublishTime() > 0 ? newData.getPublishTime() : System.currentTimeMillis();
+		
+		if (!deadbandFilter.isSignificant(lastPublishedData, newData, lastPublishedTime, time)) {
+			long pseudonymPeriodMilli = newData.getLifetime() * 1000L;
+			if (pseudonymPeriodMilli <= 0 || time / pseudonymPeriodMilli == lastPublishedTime / pseudonymPeriodMilli) {
+				log.trace("Reading of " + sensorUriPath + " inside deadband. Suppressed.");
+				return null;
+			}
+			
+			log.trace("Reading of " + sensorUriPath + " inside deadband. Refresh pseudonym of last published value.");
+			SensorData refresh = lastPublishedData.copy();
+			refresh.setPublishTime(newData.getPublishTime());
+			refresh.setLifetime(newData.getLifetime());
+			newData = refresh;
+		}
+		
+		lastPublishedData = newData;
+		lastPublishedTime = time;
+		return newData;
+	}
+	
+	/**
+	 * Returns the update time the actual value is created for,
+	 * if it is created within precomputeLead milliseconds before that time.
+	 * Otherwise (no precomputation) 0 is returned.
+	 */
+	private long getPublishTime() {
+		if (precomputeLead <= 0) {
+			return 0;
+		}
+		
+		long now = System.currentTimeMillis();
+		long updateFrequencyMilli = updateFrequency * 1000L;
+		long nextUpdateTime = now - (now % updateFrequencyMilli) + updateFrequencyMilli;
+		
+		if (nextUpdateTime - now <= precomputeLead) {
+			return nextUpdateTime;
+		}
+		return 0;
+	}
+	
 	/**
 	 * The sensor gets the data of the sensor device and publishes it.
 	 */
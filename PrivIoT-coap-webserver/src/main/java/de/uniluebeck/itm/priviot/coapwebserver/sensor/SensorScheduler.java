@@ -0,0 +1,256 @@
+package de.uniluebeck.itm.priviot.coapwebserver.sensor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Schedules the periodic updates of a large number of {@link Sensor}s.
+ *
+ * The SensorScheduler is a hashed timing wheel. The wheel consists of wheelSize slots,
+ * every slot covers tickDuration milliseconds. A sensor is put into the slot of it's next update time.
+ * A single timer thread advances the wheel once per tick and hands all sensors, that are due,
+ * to a pool of worker threads. Sensors with an update time beyond one rotation of the wheel
+ * stay in their slot until their round has come.
+ *
+ * Scheduling a sensor is O(1), independent of the number of sensors. In contrast to a
+ * ScheduledThreadPoolExecutor there is no shared priority queue with O(log n) operations.
+ *
+ * An update of a sensor is skipped, if the previous update of the same sensor is still running.
+ * So there is at most one pending update per sensor and the queue of the worker pool is bounded
+ * by the number of sensors. Skipped updates are counted and logged at most once per
+ * {@link #SKIP_LOG_INTERVAL} milliseconds, so an overloaded worker pool doesn't flood the log.
+ */
+public class SensorScheduler {
+
+    /** Minimum time in milliseconds between two log messages about skipped updates */
+    public static final long SKIP_LOG_INTERVAL = 10000;
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    /** Duration of one tick of the wheel in milliseconds */
+    private long tickDuration;
+
+    /** The slots of the wheel. Access is synchronized on the wheel. */
+    private List<List<Sensor>> wheel;
+
+    /** Time the wheel was started. Tick 0 begins at this time. */
+    private long startTime;
+
+    /** The last tick, that was processed by the timer thread. Guarded by wheel. */
+    private long processedTick;
+
+    /** Advances the wheel */
+    private ScheduledExecutorService timerExecutor;
+
+    /** Executes the sensor updates */
+    private ExecutorService workerExecutor;
+
+    /** Number of skipped updates since the start */
+    private AtomicLong skippedUpdates = new AtomicLong();
+
+    /** Number of skipped updates since the last log message */
+    private AtomicLong unloggedSkippedUpdates = new AtomicLong();
+
+    /** Time of the last log message about skipped updates */
+    private AtomicLong lastSkipLogTime = new AtomicLong();
+
+    /**
+     * Constructor.
+     * Starts the timer thread and the worker threads.
+     *
+     * @param numberOfThreads  Number of worker threads that execute the sensor updates
+     * @param tickDuration     Duration of one tick in milliseconds. This is the precision of the scheduler.
+     * @param wheelSize        Number of slots of the wheel
+     */
+    public SensorScheduler(int numberOfThreads, long tickDuration, int wheelSize) {
+        this.tickDuration = tickDuration;
+
+        wheel = new ArrayList<List<Sensor>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            wheel.add(new ArrayList<Sensor>());
+        }
+
+        startTime = System.currentTimeMillis();
+        processedTick = -1;
+
+        ThreadFactory workerThreadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Sensor Thread#%d").build();
+        workerExecutor = Executors.newFixedThreadPool(numberOfThreads, workerThreadFactory);
+
+        ThreadFactory timerThreadFactory = new ThreadFactoryBuilder().setNameFormat("CoAP Webserver Sensor Timer").build();
+        timerExecutor = Executors.newSingleThreadScheduledExecutor(timerThreadFactory);
+        timerExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    advance();
+                }
+                catch (Exception e) {
+                    log.error("Exception while advancing sensor scheduler", e);
+                }
+            }
+        }, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+
+        log.info("Sensor scheduler started with " + numberOfThreads + " threads, tick duration " + tickDuration +
+                 " ms and " + wheelSize + " slots");
+    }
+
+    /**
+     * Schedules the periodic update of a sensor.
+     * The first update is executed after initialDelay milliseconds,
+     * after that every updateFrequency seconds of the sensor.
+     *
+     * @param sensor        The sensor
+     * @param initialDelay  Delay of the first update in milliseconds
+     */
+    public void schedule(Sensor sensor, long initialDelay) {
+        sensor.setNextUpdateTime(System.currentTimeMillis() + initialDelay);
+
+        synchronized (wheel) {
+            addToWheel(sensor);
+        }
+    }
+
+    /**
+     * Executes one update of the sensor as soon as possible, independent of it's schedule.
+     * @param sensor The sensor
+     */
+    public void execute(Sensor sensor) {
+        dispatch(sensor);
+    }
+
+    /**
+     * Returns the number of updates, that were skipped, because the previous update
+     * of the same sensor was still running.
+     */
+    public long getSkippedUpdates() {
+        return skippedUpdates.get();
+    }
+
+    /**
+     * Stops the timer thread and the worker threads.
+     */
+    public void shutdown() {
+        timerExecutor.shutdown();
+        workerExecutor.shutdown();
+    }
+
+    /**
+     * Puts the sensor into the slot of it's next update time.
+     * A sensor, that is already due, is put into the next slot to be processed.
+     * Has to be called while holding the lock of the wheel.
+     */
+    private void addToWheel(Sensor sensor) {
+        long tick = (sensor.getNextUpdateTime() - startTime) / tickDuration;
+        if (tick <= processedTick) {
+            tick = processedTick + 1;
+        }
+
+        wheel.get((int)(tick % wheel.size())).add(sensor);
+    }
+
+    /**
+     * Processes all ticks up to the actual time.
+     * If the timer thread was delayed, the missed ticks are processed too.
+     */
+    private void advance() {
+        long actualTick = (System.currentTimeMillis() - startTime) / tickDuration;
+
+        while (true) {
+            List<Sensor> slot;
+            long tick;
+
+            synchronized (wheel) {
+                if (processedTick >= actualTick) {
+                    return;
+                }
+                tick = processedTick + 1;
+
+                // take the whole slot and replace it by an empty one
+                int index = (int)(tick % wheel.size());
+                slot = wheel.get(index);
+                if (!slot.isEmpty()) {
+                    wheel.set(index, new ArrayList<Sensor>(slot.size()));
+                }
+
+                processedTick = tick;
+            }
+
+            processSlot(slot, tick);
+        }
+    }
+
+    /**
+     * Dispatches the sensors of the slot, that are due in the given tick,
+     * and puts all sensors back into the wheel.
+     */
+    private void processSlot(List<Sensor> slot, long tick) {
+        if (slot.isEmpty()) {
+            return;
+        }
+
+        long tickEnd = startTime + (tick + 1) * tickDuration;
+
+        for (Sensor sensor : slot) {
+            if (sensor.getNextUpdateTime() < tickEnd) {
+                dispatch(sensor);
+
+                // fixed rate: the next update time doesn't depend on the execution time of the update
+                sensor.setNextUpdateTime(sensor.getNextUpdateTime() + sensor.getUpdateFrequency() * 1000L);
+            }
+        }
+
+        synchronized (wheel) {
+            for (Sensor sensor : slot) {
+                addToWheel(sensor);
+            }
+        }
+    }
+
+    private void dispatch(final Sensor sensor) {
+        if (!sensor.tryStartUpdate()) {
+            skipped(sensor);
+            return;
+        }
+
+        workerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sensor.getAndPublishSensorData();
+                }
+                catch (Exception e) {
+                    log.error("Exception while updating sensor value", e);
+                }
+                finally {
+                    sensor.finishUpdate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Counts a skipped update and logs the skipped updates, if the last log message is old enough.
+     */
+    private void skipped(Sensor sensor) {
+        skippedUpdates.incrementAndGet();
+        unloggedSkippedUpdates.incrementAndGet();
+
+        long now = System.currentTimeMillis();
+        long lastLogTime = lastSkipLogTime.get();
+        if (now - lastLogTime >= SKIP_LOG_INTERVAL && lastSkipLogTime.compareAndSet(lastLogTime, now)) {
+            log.warn("Skipped " + unloggedSkippedUpdates.getAndSet(0) + " updates of sensors, whose previous update " +
+                     "was still running (last: " + sensor.getSensorUriPath() + ")");
+        }
+    }
+}
@@ -1,6 +1,6 @@
 package de.uniluebeck.itm.priviot.coapwebserver.sensor;
 
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 
 import de.uniluebeck.itm.priviot.coapwebserver.data.SimpleIntegerSensorData;
 
@@ -18,24 +18,25 @@ public class SimpleIntegerSensor extends Sensor {
 	 * Constructor
 	 * @param sensorURI The URI of the Sensor
 	 * @param updateFrequency The frequency in seconds in which new values are created and published
+	 * @param sensorScheduler Used to execute the changing and publishing of the sensor value
 	 */
-	public SimpleIntegerSensor(String sensorURI, int updateFrequency, ScheduledExecutorService executorService) {
-	    setScheduledExecutorService(executorService);
+	public SimpleIntegerSensor(String sensorURI, int updateFrequency, SensorScheduler sensorScheduler) {
+	    setSensorScheduler(sensorScheduler);
 		setSensorUriPath(sensorURI);
 		setUpdateFrequency(updateFrequency);
 		
-		actualData = (int)(Math.round(Math.random() * 100));
+		actualData = ThreadLocalRandom.current().nextInt(101);
 	}
 	
 	@Override
 	protected void getAndPublishSensorData() {
 		// add +- 5
-		actualData += 5 - (int)(Math.round(Math.random() * 10));
+		actualData += 5 - ThreadLocalRandom.current().nextInt(11);
 		
 		// generate SensorData object
 		SimpleIntegerSensorData sensorData = new SimpleIntegerSensorData(getSensorUriPath());
 		sensorData.setData(actualData);
-		sensorData.setLifetime(getUpdateFrequency());
+		sensorData.setLifetime(getPseudonymPeriod());
 		
 		// publish SensorData
 		notifyObservers(sensorData);
@@ -0,0 +1,182 @@
+package de.uniluebeck.itm.priviot.coapwebserver.sensor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file with recorded geographic sensor readings, that is replayed by a {@link TraceReplaySensor}.
+ *
+ * The file is memory-mapped and read only. It can be shared by any number of sensors,
+ * every sensor holds it's own read position.
+ *
+ * Two formats are supported:
+ *
+ * CSV: One reading per line: timestamp,longitude,latitude
+ *      The timestamp is given in milliseconds. Empty lines and lines starting with # are ignored.
+ *
+ * BINARY: One reading per 24 byte record: timestamp (long), longitude (double), latitude (double).
+ *         All values are big-endian as written by DataOutputStream.
+ *
+ * The readings have to be sorted by timestamp.
+ */
+public class TraceFile {
+
+    public enum Format { CSV, BINARY }
+
+    /** Length of a record in the binary format in bytes */
+    public static final int BINARY_RECORD_LENGTH = 24;
+
+    /** A single mapping is limited to 2 GB, so larger files are mapped in segments of this size */
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private String path;
+
+    private Format format;
+
+    private long length;
+
+    private MappedByteBuffer[] segments;
+
+    /**
+     * Constructor.
+     * Maps the file into memory.
+     *
+     * @param path    Path of the trace file
+     * @param format  Format of the trace file
+     * @throws IOException if the file can't be mapped
+     */
+    public TraceFile(String path, Format format) throws IOException {
+        this.path = path;
+        this.format = format;
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+             FileChannel channel = file.getChannel()) {
+            length = channel.size();
+
+            if (format == Format.BINARY && length % BINARY_RECORD_LENGTH != 0) {
+                throw new IOException("Length of binary trace file " + path + " is not a multiple of " + BINARY_RECORD_LENGTH);
+            }
+
+            // the mappings stay valid after the channel is closed
+            int numberOfSegments = (int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            segments = new MappedByteBuffer[numberOfSegments];
+            for (int i = 0; i < numberOfSegments; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /** Returns the length of the file in bytes */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Reads the reading at the given position.
+     *
+     * @param position  Position in the file in bytes. Has to be the start of a record or line.
+     * @param reading   Is filled with the values of the reading
+     * @return Position of the next reading or -1 if there is no reading at the given position
+     * @throws IOException if the reading is malformed
+     */
+    public long read(long position, Reading reading) throws IOException {
+        if (format == Format.BINARY) {
+            return readBinary(position, reading);
+        }
+        else {
+            return readCsv(position, reading);
+        }
+    }
+
+    private long readBinary(long position, Reading reading) {
+        if (position + BINARY_RECORD_LENGTH > length) {
+            return -1;
+        }
+
+        reading.timestamp = getLong(position);
+        reading.longitude = Double.longBitsToDouble(getLong(position + 8));
+        reading.latitude = Double.longBitsToDouble(getLong(position + 16));
+
+        return position + BINARY_RECORD_LENGTH;
+    }
+
+    private long readCsv(long position, Reading reading) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+
+        while (position < length) {
+            // read one line
+            line.setLength(0);
+            while (position < length) {
+                byte b = getByte(position++);
+                if (b == '\n') {
+                    break;
+                }
+                if (b != '\r') {
+                    line.append((char)b);
+                }
+            }
+
+            String lineStr = line.toString().trim();
+            if (lineStr.isEmpty() || lineStr.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = lineStr.split(",");
+            if (fields.length < 3) {
+                throw new IOException("Malformed line in trace file " + path + ": " + lineStr);
+            }
+            try {
+                reading.timestamp = Long.parseLong(fields[0].trim());
+                reading.longitude = Double.parseDouble(fields[1].trim());
+                reading.latitude = Double.parseDouble(fields[2].trim());
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Malformed line in trace file " + path + ": " + lineStr, e);
+            }
+
+            return position;
+        }
+
+        return -1;
+    }
+
+    private byte getByte(long position) {
+        // absolute get, so the buffers can be shared by all threads
+        return segments[(int)(position >>> SEGMENT_BITS)].get((int)(position & SEGMENT_MASK));
+    }
+
+    private long getLong(long position) {
+        // a long may cross a segment boundary
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (getByte(position + i) & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * A single recorded reading.
+     */
+    public static class Reading {
+        /** Time of the reading in milliseconds */
+        public long timestamp;
+
+        public double longitude;
+
+        public double latitude;
+    }
+}
@@ -0,0 +1,126 @@
+package de.uniluebeck.itm.priviot.coapwebserver.sensor;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.uniluebeck.itm.priviot.coapwebserver.data.GeographicSensorData;
+
+/**
+ * A position sensor, that replays recorded geographic points from a {@link TraceFile}.
+ *
+ * The readings are published at the recorded rate, scaled by timeScale.
+ * With a timeScale of 2 for example the trace is replayed twice as fast as recorded.
+ *
+ * The sensor checks for due readings every updateFrequency seconds and publishes all readings,
+ * whose scaled timestamp has been reached. So bursts in the trace lead to bursts of published values.
+ * If the end of the trace is reached, the replay starts again from the beginning if loop is true.
+ */
+public class TraceReplaySensor extends Sensor {
+
+    private Logger log = LoggerFactory.getLogger(this.getClass().getName());
+
+    private TraceFile traceFile;
+
+    /** Factor the replay is accelerated by */
+    private double timeScale;
+
+    /** If true, the replay starts again at the end of the trace */
+    private boolean loop;
+
+    /** Position of the next reading in the trace file, -1 if the trace has ended */
+    private long position = 0;
+
+    /** The next reading to publish */
+    private TraceFile.Reading nextReading = new TraceFile.Reading();
+
+    /** Timestamp of the first reading of the trace */
+    private long traceStartTime;
+
+    /** Time the actual replay of the trace was started. 0 if not started. */
+    private long replayStartTime = 0;
+
+    /**
+     * Constructor.
+     * @param sensorURI        The URI of the Sensor
+     * @param updateFrequency  The frequency in seconds in which due readings are published
+     * @param traceFile        The trace to replay. Can be shared by several sensors.
+     * @param timeScale        Factor the replay is accelerated by. 1 replays the trace at the recorded rate.
+     * @param loop             If true, the replay starts again at the end of the trace
+     * @param sensorScheduler  Used to execute the publishing of the sensor value
+     */
+    public TraceReplaySensor(String sensorURI, int updateFrequency, TraceFile traceFile,
+                             double timeScale, boolean loop, SensorScheduler sensorScheduler) {
+        setSensorScheduler(sensorScheduler);
+        setSensorUriPath(sensorURI);
+        setUpdateFrequency(updateFrequency);
+
+        this.traceFile = traceFile;
+        this.timeScale = timeScale > 0 ? timeScale : 1.0;
+        this.loop = loop;
+    }
+
+    @Override
+    protected void getAndPublishSensorData() {
+        if (position < 0) {
+            // the trace has ended
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        try {
+            if (replayStartTime == 0) {
+                if (!readFirstReading(now)) {
+                    return;
+                }
+            }
+
+            // timestamp in the trace, that corresponds to the actual time
+            long traceTime = traceStartTime + (long)((now - replayStartTime) * timeScale);
+
+            while (position >= 0 && nextReading.timestamp <= traceTime) {
+                publishReading(nextReading);
+
+                position = traceFile.read(position, nextReading);
+
+                if (position < 0 && loop) {
+                    log.debug("End of trace " + traceFile.getPath() + " reached. Restart replay for " + getSensorUriPath());
+                    // the first reading is published with the next update
+                    readFirstReading(now);
+                    return;
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error("Error while reading trace " + traceFile.getPath() + " for " + getSensorUriPath() + ". Stop replay.", e);
+            position = -1;
+        }
+    }
+
+    /**
+     * Reads the first reading of the trace and starts the replay at the given time.
+     * @return false, if the trace is empty
+     */
+    private boolean readFirstReading(long now) throws IOException {
+        position = traceFile.read(0, nextReading);
+        if (position < 0) {
+            log.error("Trace " + traceFile.getPath() + " contains no readings");
+            return false;
+        }
+
+        traceStartTime = nextReading.timestamp;
+        replayStartTime = now;
+        return true;
+    }
+
+    private void publishReading(TraceFile.Reading reading) {
+        GeographicSensorData sensorData = new GeographicSensorData(getSensorUriPath(), reading.longitude, reading.latitude);
+        sensorData.setLifetime(getPseudonymPeriod());
+
+        // publish SensorData
+        notifyObservers(sensorData);
+    }
+
+}
@@ -0,0 +1,348 @@
+package de.uniluebeck.itm.priviot.coapwebserver.service;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.uniluebeck.itm.ncoap.application.client.Token;
+import de.uniluebeck.itm.ncoap.application.server.webservice.ObservableWebservice;
+import de.uniluebeck.itm.ncoap.application.server.webservice.linkformat.LinkAttribute;
+import de.uniluebeck.itm.ncoap.application.server.webservice.linkformat.LongLinkAttribute;
+import de.uniluebeck.itm.ncoap.message.CoapMessage;
+import de.uniluebeck.itm.ncoap.message.CoapRequest;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.ncoap.message.MessageType;
+import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
+import de.uniluebeck.itm.priviot.utils.communication.NotificationTypePolicy;
+import de.uniluebeck.itm.priviot.utils.communication.PackageBatch;
+import de.uniluebeck.itm.priviot.utils.metrics.Meter;
+import de.uniluebeck.itm.priviot.utils.metrics.Metrics;
+
+/**
+ * Observable resource, that carries the new status of all sensor webservices of the CoAP-Webserver.
+ *
+ * The CoAP Privacy Proxy observes this resource instead of every sensor webservice,
+ * so the CoAP-Webserver holds only one observation for it.
+ * The new status of the webservices are collected for a short window. After the window the status is
+ * a {@link PackageBatch} of the serialized status (the same content as the update notification of the webservice)
+ * tagged with the path of the webservice, and the observers are notified.
+ *
+ * A status is never larger than the maximum aggregate size. If there are more new status, they are sent with
+ * the next notifications. A single status, that is larger, is sent alone. Every status is carried whole,
+ * also an encrypted status larger than one block: a status larger than one block is sent block-wise with the
+ * option Block2. nCoAP can't send notifications block-wise, so the notification is empty and the observer
+ * fetches the status with GET requests. The next status is held back until the last block was fetched or
+ * the fetch timed out, so the observer doesn't lose the status of the webservices in between.
+ */
+public class CoapAggregateWebservice extends ObservableWebservice<byte[]> {
+
+    private Logger log = Logger.getLogger(this.getClass().getName());
+
+    /** Maximum size of the status, if block-wise transfers are disabled */
+    private static final int DEFAULT_MAX_SIZE = 1024;
+
+    /** Time in milliseconds the next status waits for the block-wise fetch of the actual status */
+    private static final long FETCH_TIMEOUT = 5000;
+
+    /** Content format of the aggregated status of the webservices */
+    private long contentFormat;
+
+    /** Time in milliseconds in which new status are collected */
+    private long window;
+
+    /** Maximum size of the status in bytes */
+    private int maxSize;
+
+    /** Size exponent of the largest block of a response. -1 if larger responses are not sent block-wise. */
+    private int maxBlockSizeExponent;
+
+    private NotificationTypePolicy notificationTypePolicy;
+
+    /** Flushes the new status */
+    private ScheduledExecutorService executorService;
+
+    /** New status since the last notification by the path of their webservice. Access is synchronized on the map. */
+    private Map<String, Update> updates = new LinkedHashMap<String, Update>();
+
+    /** True, if a flush is scheduled. Access is synchronized on updates. */
+    private boolean flushScheduled = false;
+
+    /** Counts the status, the ETag is derived from it */
+    private AtomicLong version = new AtomicLong();
+
+    /** Max age of the actual status in seconds */
+    private volatile long maxAge = 0;
+
+    /** Time in milliseconds, when the actual status was notified with an empty notification. 0 if it was fetched. */
+    private volatile long blockwiseNotified = 0;
+
+    /** Counts the update notifications. null if metrics are disabled. */
+    private Meter notificationMeter;
+
+    private Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            }
+            catch (Exception e) {
+                log.error("Exception while flushing the aggregate", e);
+                synchronized (updates) {
+                    // the next new status schedules a flush again
+                    flushScheduled = false;
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructor
+     * @param contentFormat    Content format of the status of the webservices
+     * @param window           Time in milliseconds, in which new status are collected before the observers are notified
+     * @param maxSize          Maximum size of the status in bytes, if block-wise transfers are enabled
+     * @param maxBlockSize     Maximum size of a response in bytes, 0 if block-wise transfers are disabled
+     * @param executorService  Executes the notifications
+     */
+    public CoapAggregateWebservice(long contentFormat, long window, int maxSize, int maxBlockSize,
+                                   ScheduledExecutorService executorService) {
+        super(PackageBatch.AGGREGATE_PATH, new byte[0]);
+
+        this.contentFormat = contentFormat;
+        this.window = Math.max(window, 0);
+        this.maxBlockSizeExponent = BlockOption.getSizeExponent(maxBlockSize);
+        this.maxSize = maxBlockSizeExponent >= 0 ? Math.max(maxSize, maxBlockSize) : DEFAULT_MAX_SIZE;
+        this.executorService = executorService;
+
+        setLinkAttribute(new LongLinkAttribute(LinkAttribute.CONTENT_TYPE, PackageBatch.CONTENT_FORMAT));
+    }
+
+    /**
+     * Sets the policy for the message type of update notifications.
+     * @param notificationTypePolicy The policy, null to send every notification CON
+     */
+    public void setNotificationTypePolicy(NotificationTypePolicy notificationTypePolicy) {
+        this.notificationTypePolicy = notificationTypePolicy;
+    }
+
+    /**
+     * Sets the metrics, that count the notifications of the aggregate.
+     * @param metrics The metrics, null to disable them
+     */
+    public void setMetrics(Metrics metrics) {
+        this.notificationMeter = metrics != null ? metrics.meter("notifications.aggregate") : null;
+    }
+
+    /**
+     * Is called by a webservice after it's status was updated.
+     * @param webservice  The webservice
+     * @param maxAge      Max age of the status in seconds
+     */
+    public void statusUpdated(CoapSensorWebservice webservice, long maxAge) {
+        synchronized (updates) {
+            updates.put(webservice.getPath(), new Update(webservice, maxAge));
+
+            if (!flushScheduled) {
+                flushScheduled = true;
+                executorService.schedule(flushTask, window, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sets the new status of as many updated webservices as fit into one status and notifies the observers.
+     * The remaining webservices are sent with the next flush.
+     */
+    private void flush() {
+        long notified = blockwiseNotified;
+        if (notified != 0 && System.currentTimeMillis() - notified < FETCH_TIMEOUT) {
+            // the observer still fetches the actual status block-wise
+            executorService.schedule(flushTask, window, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        List<Update> pending;
+        synchronized (updates) {
+            pending = new ArrayList<Update>(updates.values());
+        }
+
+        PackageBatch batch = new PackageBatch();
+        long minMaxAge = Long.MAX_VALUE;
+        List<Update> sent = new ArrayList<Update>(pending.size());
+
+        // the status are serialized outside of the lock, so new status don't wait for the encryption
+        for (Update update : pending) {
+            String path = update.webservice.getPath();
+            byte[] content = update.webservice.getSerializedNotification(contentFormat);
+            if (content == null) {
+                log.error("Status of " + path + " couldn't be serialized for the aggregate");
+                sent.add(update);
+                continue;
+            }
+
+            if (batch.getCount() > 0 && batch.getSize() + PackageBatch.getEncodedSize(path, content) > maxSize) {
+                continue;
+            }
+
+            batch.add(path, update.maxAge, content);
+            minMaxAge = Math.min(minMaxAge, update.maxAge);
+            sent.add(update);
+        }
+
+        boolean remaining;
+        synchronized (updates) {
+            for (Update update : sent) {
+                // a status updated during the flush is sent with the next notification
+                String path = update.webservice.getPath();
+                if (updates.get(path) == update) {
+                    updates.remove(path);
+                }
+            }
+            remaining = !updates.isEmpty();
+            flushScheduled = remaining;
+        }
+
+        if (batch.getCount() > 0) {
+            log.debug("Aggregate notifies " + batch.getCount() + " status with " + batch.getSize() + " bytes");
+            byte[] status = batch.encode();
+            maxAge = minMaxAge;
+            blockwiseNotified = isBlockwise(status) ? System.currentTimeMillis() : 0;
+            setResourceStatus(status, minMaxAge);
+        }
+
+        if (remaining) {
+            executorService.schedule(flushTask, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public MessageType.Name getMessageTypeForUpdateNotification(InetSocketAddress remoteEndpoint, Token token) {
+        if (notificationMeter != null) {
+            notificationMeter.mark();
+        }
+        if (notificationTypePolicy == null || notificationTypePolicy.isConfirmable(getPath(), remoteEndpoint)) {
+            return MessageType.Name.CON;
+        }
+        return MessageType.Name.NON;
+    }
+
+    @Override
+    public byte[] getEtag(long contentFormat) {
+        return Longs.toByteArray(version.get());
+    }
+
+    @Override
+    public void updateEtag(byte[] resourceStatus) {
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void processCoapRequest(SettableFuture<CoapResponse> responseFuture, CoapRequest coapRequest,
+                                   InetSocketAddress remoteAddress) {
+        try {
+            if (coapRequest.getMessageCodeName() != MessageCode.Name.GET) {
+                log.debug("Reply with METHOD NOT ALLOWED 405");
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.METHOD_NOT_ALLOWED_405, "Service does not allow " +
+                        coapRequest.getMessageCodeName() + " requests."));
+                return;
+            }
+
+            if (!coapRequest.getAcceptedContentFormats().isEmpty() &&
+                !coapRequest.getAcceptedContentFormats().contains(PackageBatch.CONTENT_FORMAT)) {
+                log.debug("Reply with NOT ACCEPTABLE 406");
+                CoapResponse coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.NOT_ACCEPTABLE_406);
+                coapResponse.setContent(("Only content format " + PackageBatch.CONTENT_FORMAT + " is available.")
+                        .getBytes(CoapMessage.CHARSET), ContentFormat.TEXT_PLAIN_UTF8);
+                responseFuture.set(coapResponse);
+                return;
+            }
+
+            BlockOption requestedBlock = BlockwiseTransfer.getBlock2(coapRequest);
+            if (notificationTypePolicy != null && requestedBlock == null) {
+                // an observer, that asks again, missed notifications
+                notificationTypePolicy.requestReceived(getPath(), remoteAddress);
+            }
+
+            CoapResponse coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.CONTENT_205);
+            if (!BlockwiseTransfer.setContent(coapResponse, getResourceStatus(), PackageBatch.CONTENT_FORMAT,
+                                              requestedBlock, maxBlockSizeExponent)) {
+                log.debug("Reply with BAD OPTION 402");
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.BAD_OPTION_402, "Requested block is out of range."));
+                return;
+            }
+
+            BlockOption block = BlockwiseTransfer.getBlock2(coapResponse);
+            if (requestedBlock != null && block != null && !block.isMore()) {
+                // the last block was fetched, the next status may be notified
+                blockwiseNotified = 0;
+            }
+
+            coapResponse.setEtag(getEtag(PackageBatch.CONTENT_FORMAT));
+            coapResponse.setMaxAge(maxAge);
+
+            if (coapRequest.isObserveSet()) {
+                coapResponse.setObserveOption(0);
+            }
+
+            responseFuture.set(coapResponse);
+        }
+        catch (Exception ex) {
+            responseFuture.setException(ex);
+        }
+    }
+
+    @Override
+    public byte[] getSerializedResourceStatus(long contentFormat) {
+        if (contentFormat != PackageBatch.CONTENT_FORMAT) {
+            return null;
+        }
+
+        // nCoAP can't send notifications block-wise. An empty notification tells the observer
+        // to fetch the status block-wise with GET requests.
+        byte[] status = getResourceStatus();
+        return isBlockwise(status) ? new byte[0] : status;
+    }
+
+    /** Returns true, if the status is sent block-wise */
+    private boolean isBlockwise(byte[] status) {
+        return maxBlockSizeExponent >= 0 && status.length > BlockOption.getSize(maxBlockSizeExponent);
+    }
+
+    /** Returns the number of webservices, whose new status wait for the next notification */
+    public int getPendingStatus() {
+        synchronized (updates) {
+            return updates.size();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        log.info("Shutdown service " + getPath() + ".");
+    }
+
+    /**
+     * A new status of a webservice.
+     */
+    private static class Update {
+        private CoapSensorWebservice webservice;
+        private long maxAge;
+
+        private Update(CoapSensorWebservice webservice, long maxAge) {
+            this.webservice = webservice;
+            this.maxAge = maxAge;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +48,10 @@ public class CoapClient implements CoapResponseProcessor, TransmissionInformatio
     private URI recipient; 
     
     private CoapClientListener listener;
+    
+    /** Number of retransmissions and timeouts of all clients */
+    private static final AtomicLong retransmissions = new AtomicLong();
+    private static final AtomicLong timeouts = new AtomicLong();
 
     /**
      * Constructor.
@@ -83,6 +88,7 @@ public class CoapClient implements CoapResponseProcessor, TransmissionInformatio
         int value = transmissionCounter.incrementAndGet();
     
         if(retransmission){
+            retransmissions.incrementAndGet();
             log.debug("Transmission #{} for message with ID {} to {} (Token: {})",
                       new Object[]{value, messageID, remoteEndpint, token});
         }
@@ -99,9 +105,20 @@ public class CoapClient implements CoapResponseProcessor, TransmissionInformatio
                   new Object[]{messageID, remoteEndpoint, token});
     
         timedOut.set(true);
+        timeouts.incrementAndGet();
     }
     
     
+    /** Returns the number of retransmissions of all clients */
+    public static long getRetransmissions() {
+        return retransmissions.get();
+    }
+    
+    /** Returns the number of messages of all clients, that timed out */
+    public static long getTimeouts() {
+        return timeouts.get();
+    }
+    
     public boolean isTimedOut(){
         return timedOut.get();
     }
@@ -0,0 +1,246 @@
+package de.uniluebeck.itm.priviot.coapwebserver.service;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.uniluebeck.itm.ncoap.application.server.webservice.NotObservableWebservice;
+import de.uniluebeck.itm.ncoap.message.CoapMessage;
+import de.uniluebeck.itm.ncoap.message.CoapRequest;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
+import de.uniluebeck.itm.ncoap.message.options.OptionValue;
+import de.uniluebeck.itm.priviot.utils.communication.CoapDiscovery;
+
+/**
+ * Paged and filtered discovery of the sensor webservices (see {@link CoapDiscovery}).
+ *
+ * With many sensors the resource /.well-known/core becomes too large for a single response.
+ * The discovery resource returns the webservices in pages of at most pageSize links,
+ * that can be filtered by href, rt and if. Every registered webservice gets a version,
+ * so clients can ask for the webservices registered since their last discovery.
+ */
+public class CoapDiscoveryWebservice extends NotObservableWebservice<Void> {
+
+    private Logger log = Logger.getLogger(this.getClass().getName());
+
+    /** Maximum number of webservices per page */
+    private int pageSize;
+
+    /** Start time of the webserver. The versions are only valid within an epoch. */
+    private long epoch = System.currentTimeMillis();
+
+    /** Registered webservices in the order of registration. The version of an entry is it's index + 1. Access is synchronized on the list. */
+    private List<DiscoveryEntry> entries = new ArrayList<DiscoveryEntry>();
+
+    /**
+     * Constructor
+     * @param pageSize  Maximum number of webservices per page
+     */
+    public CoapDiscoveryWebservice(int pageSize) {
+        super(CoapDiscovery.PATH, null, OptionValue.MAX_AGE_DEFAULT);
+
+        this.pageSize = Math.max(pageSize, 1);
+    }
+
+    /**
+     * Adds a webservice to the discovery.
+     * @param path                  Path of the webservice
+     * @param resourceType          Resource type (rt) of the webservice
+     * @param interfaceDescription  Interface description (if) of the webservice
+     * @param contentFormats        Content formats (ct) of the webservice
+     */
+    public void registerWebservice(String path, String resourceType, String interfaceDescription,
+                                   Collection<Long> contentFormats) {
+        StringBuilder link = new StringBuilder();
+        link.append('<').append(path).append(">;rt=\"").append(resourceType)
+            .append("\";if=\"").append(interfaceDescription).append('"');
+        if (!contentFormats.isEmpty()) {
+            link.append(";ct=");
+            if (contentFormats.size() > 1) {
+                link.append('"');
+            }
+            String separator = "";
+            for (Long contentFormat : contentFormats) {
+                link.append(separator).append(contentFormat);
+                separator = " ";
+            }
+            if (contentFormats.size() > 1) {
+                link.append('"');
+            }
+        }
+        link.append(";obs");
+
+        synchronized (entries) {
+            entries.add(new DiscoveryEntry(path, resourceType, interfaceDescription, link.toString()));
+        }
+    }
+
+    @Override
+    public void processCoapRequest(SettableFuture<CoapResponse> responseFuture, CoapRequest coapRequest,
+                                   InetSocketAddress remoteAddress) {
+        try {
+            if (coapRequest.getMessageCodeName() != MessageCode.Name.GET) {
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.METHOD_NOT_ALLOWED_405, "Service does not allow " + coapRequest.getMessageCodeName() + " requests."));
+                return;
+            }
+
+            Map<String, String> query = parseQuery(coapRequest.getUriQuery());
+
+            long since;
+            try {
+                since = query.containsKey(CoapDiscovery.QUERY_SINCE) ? Long.parseLong(query.get(CoapDiscovery.QUERY_SINCE)) : 0;
+            }
+            catch (NumberFormatException e) {
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.BAD_REQUEST_400, "Malformed query " + CoapDiscovery.QUERY_SINCE));
+                return;
+            }
+
+            CoapResponse coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.CONTENT_205);
+            coapResponse.setContent(createPage(since, query).getBytes(CoapMessage.CHARSET), ContentFormat.APP_LINK_FORMAT);
+            responseFuture.set(coapResponse);
+        }
+        catch (Exception ex) {
+            responseFuture.setException(ex);
+        }
+    }
+
+    /**
+     * Creates the page with the webservices registered after the version since, that match the filters of the query.
+     */
+    private String createPage(long since, Map<String, String> query) {
+        String hrefFilter = query.get("href");
+        String resourceTypeFilter = query.get("rt");
+        String interfaceFilter = query.get("if");
+
+        StringBuilder page = new StringBuilder();
+        int count = 0;
+        long lastVersion = -1;
+        long version;
+
+        synchronized (entries) {
+            version = entries.size();
+
+            for (int i = (int)Math.min(Math.max(since, 0), entries.size()); i < entries.size(); i++) {
+                DiscoveryEntry entry = entries.get(i);
+                if (!matches(hrefFilter, entry.path) || !matches(resourceTypeFilter, entry.resourceType)
+                        || !matches(interfaceFilter, entry.interfaceDescription)) {
+                    continue;
+                }
+                if (count == pageSize) {
+                    break;
+                }
+                page.append(',').append(entry.link);
+                count++;
+                lastVersion = i + 1;
+            }
+        }
+
+        // a full page may be followed by more matching webservices
+        boolean hasNextPage = count == pageSize && lastVersion < version;
+
+        StringBuilder result = new StringBuilder();
+        result.append('<').append(CoapDiscovery.PATH).append(">;").append(CoapDiscovery.ATTRIBUTE_REL).append("=\"")
+              .append(CoapDiscovery.REL_VERSION).append("\";").append(CoapDiscovery.ATTRIBUTE_VERSION).append('=')
+              .append(version).append(';').append(CoapDiscovery.ATTRIBUTE_EPOCH).append('=').append(epoch);
+        result.append(page);
+
+        if (hasNextPage) {
+            result.append(",<").append(CoapDiscovery.PATH).append('?').append(CoapDiscovery.QUERY_SINCE).append('=').append(lastVersion);
+            for (Map.Entry<String, String> filter : query.entrySet()) {
+                if (!filter.getKey().equals(CoapDiscovery.QUERY_SINCE)) {
+                    result.append('&').append(filter.getKey()).append('=').append(filter.getValue());
+                }
+            }
+            result.append(">;").append(CoapDiscovery.ATTRIBUTE_REL).append("=\"").append(CoapDiscovery.REL_NEXT).append('"');
+        }
+
+        log.debug("Discovery page after version " + since + " with " + count + " of " + version + " webservices");
+
+        return result.toString();
+    }
+
+    /**
+     * Returns true, if there is no filter, the value equals the filter or the filter ends with '*'
+     * and the value starts with the rest of the filter.
+     */
+    private boolean matches(String filter, String value) {
+        if (filter == null) {
+            return true;
+        }
+        if (filter.endsWith("*")) {
+            return value.startsWith(filter.substring(0, filter.length() - 1));
+        }
+        return value.equals(filter);
+    }
+
+    private Map<String, String> parseQuery(String uriQuery) {
+        if (uriQuery == null || uriQuery.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> query = new LinkedHashMap<String, String>();
+        for (String parameter : uriQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                query.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+            }
+        }
+        return query;
+    }
+
+    /** Returns the number of registered webservices */
+    public int getNumberOfWebservices() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public byte[] getSerializedResourceStatus(long contentFormat) {
+        return new byte[0];
+    }
+
+    @Override
+    public byte[] getEtag(long contentFormat) {
+        return new byte[0];
+    }
+
+    @Override
+    public void updateEtag(Void resourceStatus) {
+
+    }
+
+    @Override
+    public void shutdown() {
+        log.info("Shutdown service " + getPath() + ".");
+    }
+
+    /**
+     * A registered webservice with it's serialized link.
+     */
+    private static class DiscoveryEntry {
+        private String path;
+        private String resourceType;
+        private String interfaceDescription;
+        private String link;
+
+        private DiscoveryEntry(String path, String resourceType, String interfaceDescription, String link) {
+            this.path = path;
+            this.resourceType = resourceType;
+            this.interfaceDescription = interfaceDescription;
+            this.link = link;
+        }
+    }
+}
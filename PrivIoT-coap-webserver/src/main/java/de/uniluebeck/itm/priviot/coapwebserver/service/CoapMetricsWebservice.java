@@ -0,0 +1,71 @@
+package de.uniluebeck.itm.priviot.coapwebserver.service;
+
+import java.net.InetSocketAddress;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.uniluebeck.itm.ncoap.application.server.webservice.NotObservableWebservice;
+import de.uniluebeck.itm.ncoap.message.CoapMessage;
+import de.uniluebeck.itm.ncoap.message.CoapRequest;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
+import de.uniluebeck.itm.ncoap.message.options.OptionValue;
+import de.uniluebeck.itm.priviot.utils.metrics.Metrics;
+
+/**
+ * A CoAP-Webservice, that reports the operational metrics of the CoAP-Webserver as JSON,
+ * so they can be read by monitoring tools.
+ */
+public class CoapMetricsWebservice extends NotObservableWebservice<Void> {
+    /** Path of the metrics resource */
+    public static final String PATH = "/metrics";
+
+    private Metrics metrics;
+
+    public CoapMetricsWebservice(Metrics metrics) {
+        super(PATH, null, OptionValue.MAX_AGE_DEFAULT);
+
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void processCoapRequest(SettableFuture<CoapResponse> responseFuture, CoapRequest coapRequest,
+                                   InetSocketAddress remoteAddress) {
+        try {
+            //Only GET messages are allowed
+            if (coapRequest.getMessageCodeName() != MessageCode.Name.GET) {
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.METHOD_NOT_ALLOWED_405, "Only GET messages are allowed!"));
+                return;
+            }
+
+            CoapResponse coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.CONTENT_205);
+            coapResponse.setContent(getSerializedResourceStatus(ContentFormat.APP_JSON), ContentFormat.APP_JSON);
+            responseFuture.set(coapResponse);
+        }
+        catch (Exception ex) {
+            responseFuture.setException(ex);
+        }
+    }
+
+    @Override
+    public byte[] getSerializedResourceStatus(long contentFormat) {
+        return metrics.toJson().getBytes(CoapMessage.CHARSET);
+    }
+
+    @Override
+    public byte[] getEtag(long contentFormat) {
+        return new byte[0];
+    }
+
+    @Override
+    public void updateEtag(Void resourceStatus) {
+
+    }
+
+    @Override
+    public void shutdown() {
+
+    }
+}
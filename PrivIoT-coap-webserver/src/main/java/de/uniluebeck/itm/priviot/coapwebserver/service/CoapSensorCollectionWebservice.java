@@ -0,0 +1,146 @@
+package de.uniluebeck.itm.priviot.coapwebserver.service;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+import de.uniluebeck.itm.priviot.coapwebserver.data.KeyDatabase;
+import de.uniluebeck.itm.priviot.coapwebserver.data.ResourceStatus;
+import de.uniluebeck.itm.priviot.utils.data.EncryptionParameters;
+
+/**
+ * Observable webservice over the COAP protocol for a collection of sensors.
+ *
+ * Instead of one webservice per sensor, a single collection webservice publishes the status of many sensors.
+ * The sensors pass their new status to the collection, that keeps the latest status of every sensor.
+ * With every flush the collection publishes one resource status with all sensors, that have a valid status.
+ * So there is one observation, one notification and, if encryption is activated, one privacy data package
+ * with one asymmetrically encrypted key per flush instead of one per sensor.
+ * Every sensor keeps it's own pseudonym as entry of the package.
+ */
+public class CoapSensorCollectionWebservice extends CoapSensorWebservice {
+
+    private Logger log = Logger.getLogger(this.getClass().getName());
+
+    /** URI of the collection. Used as sensorUri of the published status. */
+    private String collectionUri;
+
+    /** Interval of the flushes in seconds */
+    private int flushInterval;
+
+    /** Latest status of every sensor of the collection. Key is the path of the sensor. */
+    private Map<String, CollectedStatus> collectedStatus = new ConcurrentHashMap<>();
+
+    /** True, if a status was collected since the last flush */
+    private volatile boolean changed = false;
+
+    /**
+     * Constructor
+     * @param path           Path where the Webservice is registered
+     * @param collectionUri  URI of the collection
+     * @param flushInterval  Interval of the flushes in seconds
+     */
+    public CoapSensorCollectionWebservice(String path, String collectionUri, int flushInterval,
+                                          EncryptionParameters encryptionParameters, KeyDatabase keyDatabase) {
+        super(path, flushInterval, encryptionParameters, keyDatabase);
+
+        this.collectionUri = collectionUri;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Sets the new status of a sensor of the collection.
+     * The status is published with the next flush.
+     *
+     * @param sensorPath      Path of the sensor
+     * @param resourceStatus  The new status of the sensor
+     */
+    public void collectResourceStatus(String sensorPath, ResourceStatus resourceStatus) {
+        long expiry = System.currentTimeMillis() + resourceStatus.getLifetime() * 1000L;
+        if (resourceStatus.getExpiry() > 0) {
+            // the status isn't published beyond it's pseudonym epoch
+            expiry = Math.min(expiry, resourceStatus.getExpiry());
+        }
+        collectedStatus.put(sensorPath, new CollectedStatus(resourceStatus, expiry));
+        changed = true;
+    }
+
+    /**
+     * Publishes the latest status of all sensors of the collection as one resource status.
+     * Status, whose lifetime has expired, are removed, because their pseudonym isn't valid any more.
+     * Nothing is published, if no sensor has a new status since the last flush.
+     */
+    public void flush() {
+        if (!changed) {
+            return;
+        }
+        changed = false;
+
+        long now = System.currentTimeMillis();
+        long expiry = 0;
+        List<ResourceStatus> entries = new ArrayList<>(collectedStatus.size());
+        Model model = ModelFactory.createDefaultModel();
+
+        Iterator<Map.Entry<String, CollectedStatus>> iterator = collectedStatus.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, CollectedStatus> status = iterator.next();
+            if (status.getValue().expiry <= now) {
+                iterator.remove();
+                continue;
+            }
+            ResourceStatus sensorStatus = status.getValue().resourceStatus;
+            
+            // the entry is encoded anew with every flush, because only the flushes are published
+            ResourceStatus entry = new ResourceStatus(sensorStatus.getSensorUri(), sensorStatus.getRdfModel(), sensorStatus.getLifetime());
+            entry.setWktValue(sensorStatus.getWktValue());
+            entry.setExpiry(sensorStatus.getExpiry());
+            encodeDelta(status.getKey(), entry);
+            if (sensorStatus.getExpiry() > 0) {
+                // the collection expires with the first pseudonym of it's entries
+                expiry = expiry > 0 ? Math.min(expiry, sensorStatus.getExpiry()) : sensorStatus.getExpiry();
+            }
+            
+            entries.add(entry);
+            model.setNsPrefixes(entry.getRdfModel());
+            model.add(entry.getRdfModel());
+        }
+
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        log.debug("flush collection " + getPath() + " with " + entries.size() + " sensors");
+
+        ResourceStatus resourceStatus = new ResourceStatus(collectionUri, model, flushInterval);
+        resourceStatus.setEntries(entries);
+        resourceStatus.setExpiry(expiry);
+        updateResourceStatus(resourceStatus);
+    }
+
+    /** Returns the number of sensors with a collected status */
+    public int getNumberOfSensors() {
+        return collectedStatus.size();
+    }
+
+    /**
+     * The status of a sensor together with the time it expires.
+     */
+    private static class CollectedStatus {
+        private ResourceStatus resourceStatus;
+
+        /** Time in milliseconds after that the status isn't published any more */
+        private long expiry;
+
+        private CollectedStatus(ResourceStatus resourceStatus, long expiry) {
+            this.resourceStatus = resourceStatus;
+            this.expiry = expiry;
+        }
+    }
+}
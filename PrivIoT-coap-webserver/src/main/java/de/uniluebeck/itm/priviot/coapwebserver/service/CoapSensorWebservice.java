@@ -4,19 +4,26 @@ import java.io.ByteArrayOutputStream;
 import java.io.StringWriter;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.security.GeneralSecurityException;
 import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ScheduledExecutorService;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.JAXBException;
 import javax.xml.stream.XMLStreamException;
 
 import org.apache.log4j.Logger;
 
+import com.google.common.base.Charsets;
 import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.SettableFuture;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -32,14 +39,21 @@ import de.uniluebeck.itm.ncoap.message.CoapResponse;
 import de.uniluebeck.itm.ncoap.message.MessageCode;
 import de.uniluebeck.itm.ncoap.message.MessageType;
 import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
+import de.uniluebeck.itm.priviot.coapwebserver.data.GeographicDeltaEncoder;
 import de.uniluebeck.itm.priviot.coapwebserver.data.KeyDatabase;
 import de.uniluebeck.itm.priviot.coapwebserver.data.KeyDatabaseEntry;
 import de.uniluebeck.itm.priviot.coapwebserver.data.ResourceStatus;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
+import de.uniluebeck.itm.priviot.utils.communication.NotificationTypePolicy;
 import de.uniluebeck.itm.priviot.utils.data.EncryptionParameters;
+import de.uniluebeck.itm.priviot.utils.data.PrivIoTContentFormat;
 import de.uniluebeck.itm.priviot.utils.data.PrivacyDataPackageMarshaller;
 import de.uniluebeck.itm.priviot.utils.data.generated.PrivacyDataPackage;
 import de.uniluebeck.itm.priviot.utils.encryption.EncryptionException;
 import de.uniluebeck.itm.priviot.utils.encryption.EncryptionProcessor;
+import de.uniluebeck.itm.priviot.utils.metrics.LatencyHistogram;
+import de.uniluebeck.itm.priviot.utils.metrics.Meter;
+import de.uniluebeck.itm.priviot.utils.metrics.Metrics;
 
 /**
  * Webservice over the COAP protocol.
@@ -63,12 +77,67 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
     
     private long updateIntervalSeconds;
     
+    /** Upper bound of the Max-Age of the resource status in seconds, the time until the next publication */
+    private long maxAgeSeconds;
+    
+    /** Time in milliseconds a status may outlive the end of it's pseudonym epoch, covers the delivery of the next status */
+    private static final long EXPIRY_TOLERANCE_MILLIS = 1000;
+    
     private EncryptionParameters encryptionParameters;
     
     private KeyDatabase keyDatabase;
     
     private boolean doEncrypt;
     
+    /** Encodes geographic readings as deltas. null if delta encoding is disabled. */
+    private GeographicDeltaEncoder deltaEncoder;
+    
+    /** Decides, if a notification is sent CON or NON. null sends every notification CON. */
+    private NotificationTypePolicy notificationTypePolicy;
+    
+    /** Size exponent of the largest block of a response. -1 if larger responses are not sent block-wise. */
+    private int maxBlockSizeExponent = -1;
+    
+    /** Aggregates the new status for the CoAP Privacy Proxy. null if the aggregate is disabled. */
+    private CoapAggregateWebservice aggregate;
+    
+    /** Counts the update notifications. null if metrics are disabled. */
+    private Meter notificationMeter;
+    
+    /** Measure the serialization (including encryption) and the encryption alone. null if metrics are disabled. */
+    private LatencyHistogram serializeHistogram;
+    private LatencyHistogram encryptHistogram;
+    
+    /** Algorithm of the content hash */
+    private static final String CONTENT_HASH_ALGORITHM = "HmacSHA256";
+    
+    private static final SecureRandom secureRandom = new SecureRandom();
+    
+    /** One Mac per thread, the creation of a Mac is expensive */
+    private static final ThreadLocal<Mac> contentHashMacs = new ThreadLocal<Mac>();
+    
+    /** 
+     * Key of the content hash. It's random and never leaves the webserver,
+     * so nobody can guess the plaintext of an encrypted status from it's ETag.
+     */
+    private SecretKeySpec contentHashKey;
+    
+    /** Marks the cache entries of delta representations. Content formats are 16 bit values. */
+    private static final long DELTA_CACHE_FLAG = 1L << 32;
+    
+    /** 
+     * Serialized resource status per content hash and content format.
+     * Holds the actual and the prepared resource status. Access is synchronized on the cache.
+     */
+    private Map<Long, Map<Long, byte[]>> serializationCache = new LinkedHashMap<Long, Map<Long, byte[]>>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Map<Long, byte[]>> eldest) {
+            return size() > 2;
+        }
+    };
+    
     /**
      * Constructor
      * @param path Path where the Webservice is registered
@@ -82,6 +151,11 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
     	this.keyDatabase = keyDatabase;
     	
     	updateIntervalSeconds = updateInterval;
+    	maxAgeSeconds = updateInterval;
+    	
+    	byte[] key = new byte[32];
+    	secureRandom.nextBytes(key);
+    	contentHashKey = new SecretKeySpec(key, CONTENT_HASH_ALGORITHM);
 
         this.templates = new HashMap<>();
         
@@ -104,9 +178,173 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
         }
     }
     
+    /**
+     * Sets the encoder for geographic readings. The readings are encoded in the order they are published.
+     * @param deltaEncoder The encoder, null to disable delta encoding
+     */
+    public void setDeltaEncoder(GeographicDeltaEncoder deltaEncoder) {
+        this.deltaEncoder = deltaEncoder;
+    }
+    
+    /**
+     * Returns the supported content formats
+     */
+    public Set<Long> getContentFormats() {
+        return templates.keySet();
+    }
+    
+    /**
+     * Sets the policy for the message type of update notifications.
+     * @param notificationTypePolicy The policy, null to send every notification CON
+     */
+    public void setNotificationTypePolicy(NotificationTypePolicy notificationTypePolicy) {
+        this.notificationTypePolicy = notificationTypePolicy;
+    }
+    
+    /**
+     * Sets the metrics, that count the notifications and measure serialization and encryption.
+     * @param metrics The metrics, null to disable them
+     */
+    public void setMetrics(Metrics metrics) {
+        if (metrics == null) {
+            notificationMeter = null;
+            serializeHistogram = null;
+            encryptHistogram = null;
+            return;
+        }
+        notificationMeter = metrics.meter("notifications.out");
+        serializeHistogram = metrics.histogram("serialize");
+        encryptHistogram = metrics.histogram("encrypt");
+    }
+    
+    /**
+     * Sets the maximum size of a response. Larger resource status are sent block-wise.
+     * @param maxBlockSize Maximum block size in bytes (16 to 1024), 0 to disable block-wise transfers
+     */
+    public void setMaxBlockSize(int maxBlockSize) {
+        this.maxBlockSizeExponent = BlockOption.getSizeExponent(maxBlockSize);
+    }
+    
+    /**
+     * Sets the upper bound of the Max-Age of the resource status. It defaults to the update interval.
+     * If the sensor doesn't publish every reading (deadband), the status has to live until the next
+     * publication. Otherwise the observers drop it in between.
+     * The Max-Age of every status is additionally capped at the end of it's pseudonym epoch (see {@link #getMaxAge(ResourceStatus)}).
+     * @param maxAgeSeconds Upper bound of the Max-Age in seconds
+     */
+    public void setMaxAge(long maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+    
+    /** Returns the upper bound of the Max-Age of the resource status in seconds */
+    public long getMaxAge() {
+        return maxAgeSeconds;
+    }
+    
+    /**
+     * Returns the remaining Max-Age of a resource status in seconds.
+     * A status never lives beyond the end of it's pseudonym epoch. Otherwise the observers would keep it
+     * under the old pseudonym next to the status under the new one, which links both pseudonyms.
+     * @param resourceStatus The resource status, may be null
+     */
+    protected long getMaxAge(ResourceStatus resourceStatus) {
+        if (resourceStatus == null || resourceStatus.getExpiry() <= 0) {
+            return maxAgeSeconds;
+        }
+        long remaining = resourceStatus.getExpiry() + EXPIRY_TOLERANCE_MILLIS - System.currentTimeMillis();
+        return Math.max(0, Math.min(maxAgeSeconds, remaining / 1000));
+    }
+    
+    /**
+     * Sets the aggregate resource, that gets every new status of this webservice.
+     * @param aggregate The aggregate, null to disable it
+     */
+    public void setAggregate(CoapAggregateWebservice aggregate) {
+        this.aggregate = aggregate;
+    }
+    
     public void updateResourceStatus(ResourceStatus newResourceStatus) {
     	log.debug("update sensor data for sensor " + getPath() + " with updateInterval " + updateIntervalSeconds);
-    	setResourceStatus(newResourceStatus, updateIntervalSeconds);
+    	// the ETag has to be available before the observers are notified
+    	if (newResourceStatus.getContentHash() == 0) {
+    	    // not prepared
+    	    encodeDelta(getPath(), newResourceStatus);
+    	    newResourceStatus.setContentHash(computeContentHash(newResourceStatus));
+    	}
+    	long maxAge = getMaxAge(newResourceStatus);
+    	setResourceStatus(newResourceStatus, maxAge);
+    	if (aggregate != null) {
+    	    aggregate.statusUpdated(this, maxAge);
+    	}
+    }
+    
+    /**
+     * Prepares a resource status, that will be set with updateResourceStatus later.
+     * The resource status is serialized (and encrypted) in the default content format in advance,
+     * so the update itself only has to send the already serialized status.
+     * 
+     * @param newResourceStatus The resource status to prepare
+     */
+    public void prepareResourceStatus(ResourceStatus newResourceStatus) {
+        log.debug("prepare sensor data for sensor " + getPath());
+        encodeDelta(getPath(), newResourceStatus);
+        newResourceStatus.setContentHash(computeContentHash(newResourceStatus));
+        serialize(newResourceStatus, doEncrypt ? DEFAULT_CONTENT_FORMAT_ENCRYPT : DEFAULT_CONTENT_FORMAT_NOENCRYPT, true);
+    }
+    
+    /**
+     * Encodes the geographic reading of the status as delta to the last keyframe of the sensor,
+     * if delta encoding is enabled. Has to be called once for every published status of a sensor.
+     */
+    protected void encodeDelta(String sensorPath, ResourceStatus resourceStatus) {
+        if (deltaEncoder != null && resourceStatus.getWktValue() != null) {
+            resourceStatus.setDeltaContent(deltaEncoder.encode(sensorPath, resourceStatus.getSensorUri(), resourceStatus.getWktValue()));
+        }
+    }
+    
+    /**
+     * Computes a hash of the content of the resource status.
+     * The statements of the rdf model are serialized as N-Triples and sorted,
+     * so the hash doesn't depend on the order of the statements.
+     * The hash is an HMAC with the random key of the webservice. The ETag is sent in clear,
+     * so an unkeyed hash would allow to find the plaintext by hashing candidate readings.
+     */
+    private long computeContentHash(ResourceStatus resourceStatus) {
+        StringWriter stringWriter = new StringWriter();
+        resourceStatus.getRdfModel().write(stringWriter, "N-TRIPLE");
+        
+        String[] statements = stringWriter.toString().split("\n");
+        Arrays.sort(statements);
+        
+        Mac mac = getContentHashMac();
+        if (mac == null) {
+            // the status can't be identified by it's content, so it's always new
+            return secureRandom.nextLong();
+        }
+        mac.update(resourceStatus.getSensorUri().getBytes(Charsets.UTF_8));
+        for (String statement : statements) {
+            mac.update(statement.getBytes(Charsets.UTF_8));
+        }
+        return Longs.fromByteArray(mac.doFinal());
+    }
+    
+    /**
+     * Returns the Mac of the actual thread initialized with the key of this webservice.
+     * null, if the Mac can't be created.
+     */
+    private Mac getContentHashMac() {
+        try {
+            Mac mac = contentHashMacs.get();
+            if (mac == null) {
+                mac = Mac.getInstance(CONTENT_HASH_ALGORITHM);
+                contentHashMacs.set(mac);
+            }
+            mac.init(contentHashKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            log.error("Content hash can't be computed", e);
+            return null;
+        }
     }
     
     private void addContentFormat(long contentFormat, String template){
@@ -121,23 +359,34 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
 
     @Override
     public MessageType.Name getMessageTypeForUpdateNotification(InetSocketAddress remoteEndpoint, Token token) {
-        return MessageType.Name.CON;
+        if (notificationMeter != null) {
+            notificationMeter.mark();
+        }
+        if (notificationTypePolicy == null || notificationTypePolicy.isConfirmable(getPath(), remoteEndpoint)) {
+            return MessageType.Name.CON;
+        }
+        return MessageType.Name.NON;
     }
 
 
     @Override
     public byte[] getEtag(long contentFormat) {
-        if (getResourceStatus() == null) {
+        return getEtag(getResourceStatus(), contentFormat);
+    }
+    
+    private byte[] getEtag(ResourceStatus resourceStatus, long contentFormat) {
+        if (resourceStatus == null) {
             return Longs.toByteArray(contentFormat << 56);
         }
         
-        return Longs.toByteArray(getResourceStatus().toString().hashCode() | (contentFormat << 56));
+        // the highest byte distinguishes the content formats
+        return Longs.toByteArray((resourceStatus.getContentHash() & 0x00FFFFFFFFFFFFFFL) | (contentFormat << 56));
     }
 
 
     @Override
     public void updateEtag(ResourceStatus resourceStatus) {
-        //nothing to do here...
+        //nothing to do here, the content hash is computed in updateResourceStatus
     }
 
 
@@ -146,6 +395,10 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
                                    InetSocketAddress remoteAddress) {
         try{
             if(coapRequest.getMessageCodeName() == MessageCode.Name.GET){
+                if (notificationTypePolicy != null && isRepeatedRequest(coapRequest)) {
+                    // an observer, that asks again, missed notifications
+                    notificationTypePolicy.requestReceived(getPath(), remoteAddress);
+                }
                 processGet(responseFuture, coapRequest);
             }
 
@@ -164,6 +417,16 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
     }
 
 
+    /**
+     * Returns true, if the request may be the repeated request of an observer, that missed notifications.
+     * The requests of the blocks of an empty notification and revalidations of a known status are no sign of loss.
+     */
+    private boolean isRepeatedRequest(CoapRequest coapRequest) {
+        Set<byte[]> etags = coapRequest.getEtags();
+        return BlockwiseTransfer.getBlock2(coapRequest) == null && (etags == null || etags.isEmpty());
+    }
+
+
     private void processGet(SettableFuture<CoapResponse> responseFuture, CoapRequest coapRequest)
             throws Exception {
 
@@ -190,13 +453,28 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
         }            
 
         
+        // If the client already has the actual status, answer with VALID without serializing the status again
+        Long validContentFormat = findValidContentFormat(coapRequest, contentFormats, defaultContentFormat);
+        if (validContentFormat != null) {
+            log.debug("Reply with VALID 203");
+            CoapResponse coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.VALID_203);
+            coapResponse.setEtag(getEtag(validContentFormat));
+            coapResponse.setMaxAge(getMaxAge(getResourceStatus()));
+            
+            if(coapRequest.isObserveSet())
+                coapResponse.setObserveOption(0);
+            
+            responseFuture.set(coapResponse);
+            return;
+        }
+        
         WrappedResourceStatus resourceStatus = null;
         long contentFormat = defaultContentFormat;
         
         // Generate the payload of the response (depends on the accepted content formats, resp. the default
         if (contentFormats.contains(defaultContentFormat)) {
             // use default if client accepts it
-            resourceStatus = getWrappedResourceStatus(contentFormat);
+            resourceStatus = getFullWrappedResourceStatus(contentFormat);
         }
         if (resourceStatus == null) {
             // use the first supported content format
@@ -204,7 +482,7 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
     
             while(resourceStatus == null && iterator.hasNext()){
                 contentFormat = iterator.next();
-                resourceStatus = getWrappedResourceStatus(contentFormat);
+                resourceStatus = getFullWrappedResourceStatus(contentFormat);
             }
         }
 
@@ -217,7 +495,13 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
         if(resourceStatus != null){
         	log.debug("Reply with CONTENT 205");
             coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.CONTENT_205);
-            coapResponse.setContent(resourceStatus.getContent(), contentFormat);
+            if (!BlockwiseTransfer.setContent(coapResponse, resourceStatus.getContent(), contentFormat,
+                                              BlockwiseTransfer.getBlock2(coapRequest), maxBlockSizeExponent)) {
+                log.debug("Reply with BAD OPTION 402");
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.BAD_OPTION_402, "Requested block is out of range."));
+                return;
+            }
             
             coapResponse.setEtag(resourceStatus.getEtag());
             coapResponse.setMaxAge(resourceStatus.getMaxAge());
@@ -247,6 +531,63 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
         responseFuture.set(coapResponse);
 
     }
+    
+    /**
+     * Returns the wrapped resource status for the response to a request.
+     * A request is always answered with the full status and never with a delta,
+     * because the client may not know the keyframe yet. Deltas are only sent as update notifications.
+     * The status is serialized directly, because the update notification of a large status is empty.
+     */
+    private WrappedResourceStatus getFullWrappedResourceStatus(long contentFormat) {
+        ResourceStatus resourceStatus = getResourceStatus();
+        if (resourceStatus == null) {
+            return getWrappedResourceStatus(contentFormat);
+        }
+        
+        byte[] content = serialize(resourceStatus, contentFormat, false);
+        if (content == null) {
+            return null;
+        }
+        return new WrappedResourceStatus(content, contentFormat, getEtag(resourceStatus, contentFormat), getMaxAge(resourceStatus));
+    }
+    
+    /**
+     * Returns the content format, the response would be generated with,
+     * if one of the ETags of the request matches the ETag of the actual resource status in that content format.
+     * Otherwise null is returned.
+     */
+    private Long findValidContentFormat(CoapRequest coapRequest, Set<Long> contentFormats, long defaultContentFormat) {
+        Set<byte[]> etags = coapRequest.getEtags();
+        if (etags == null || etags.isEmpty() || getResourceStatus() == null) {
+            return null;
+        }
+        
+        // same order as used for the content negotiation
+        long contentFormat;
+        if (contentFormats.contains(defaultContentFormat)) {
+            contentFormat = defaultContentFormat;
+        }
+        else {
+            contentFormat = -1;
+            for (Long acceptedContentFormat : contentFormats) {
+                if (templates.containsKey(acceptedContentFormat)) {
+                    contentFormat = acceptedContentFormat;
+                    break;
+                }
+            }
+            if (contentFormat == -1) {
+                return null;
+            }
+        }
+        
+        byte[] actualEtag = getEtag(contentFormat);
+        for (byte[] etag : etags) {
+            if (Arrays.equals(etag, actualEtag)) {
+                return contentFormat;
+            }
+        }
+        return null;
+    }
 
 
     @Override
@@ -259,18 +600,60 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
     public byte[] getSerializedResourceStatus(long contentFormat) {
         log.debug("Try to create payload (content format: " + contentFormat + ")");
 
-        if (getResourceStatus() == null) {
+        ResourceStatus resourceStatus = getResourceStatus();
+        if (resourceStatus == null) {
         	log.debug("getSerializedResourceStatus called while ressource status is null");
             return new byte[0];
         }
         
+        // update notifications may carry deltas
+        byte[] content = serialize(resourceStatus, contentFormat, true);
+        
+        // nCoAP can't send notifications block-wise. An empty notification tells the observer
+        // to fetch the status block-wise with GET requests.
+        if (content != null && maxBlockSizeExponent >= 0 && content.length > BlockOption.getSize(maxBlockSizeExponent)) {
+            log.debug("Status of " + getPath() + " has " + content.length + " bytes, send empty notification");
+            return new byte[0];
+        }
+        return content;
+    }
+    
+    /**
+     * Returns the content of the update notification of the actual resource status regardless of it's size.
+     * null, if there is no resource status or it can't be serialized.
+     */
+    public byte[] getSerializedNotification(long contentFormat) {
+        ResourceStatus resourceStatus = getResourceStatus();
+        if (resourceStatus == null) {
+            return null;
+        }
+        return serialize(resourceStatus, contentFormat, true);
+    }
+    
+    /**
+     * Serializes (and encrypts) the resource status.
+     * @param allowDelta  If false, the full status is serialized, even if there is a delta
+     */
+    private byte[] serialize(ResourceStatus resourceStatus, long contentFormat, boolean allowDelta) {
+        // deltas and full representations of the same content are cached separately
+        long cacheKey = (allowDelta && resourceStatus.isDeltaEncoded()) ? (contentFormat | DELTA_CACHE_FLAG) : contentFormat;
+        
+        // an unchanged or prepared status doesn't need to be serialized (and encrypted) again
+        synchronized (serializationCache) {
+            Map<Long, byte[]> serializations = serializationCache.get(resourceStatus.getContentHash());
+            if (serializations != null && serializations.containsKey(cacheKey)) {
+                return serializations.get(cacheKey);
+            }
+        }
+        
         String ressourceStatusString = "";
+        long start = System.nanoTime();
         
         if (doEncrypt) {
-        	ressourceStatusString = getSerializedResourceStatusEncrypt(contentFormat);
+        	ressourceStatusString = getSerializedResourceStatusEncrypt(resourceStatus, contentFormat, allowDelta);
         }
         else {
-        	ressourceStatusString = getSerializedResourceStatusNoEncrypt(contentFormat);
+        	ressourceStatusString = getSerializedResourceStatusNoEncrypt(resourceStatus, contentFormat);
         }
         
         if (ressourceStatusString == null || ressourceStatusString.isEmpty()) {
@@ -284,62 +667,90 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
         }
         else {
         	byte[] res = String.format(template, ressourceStatusString).getBytes(CoapMessage.CHARSET);
-        	log.debug("serialized ressource status: " + new String(res));
+        	if (log.isDebugEnabled()) {
+        	    log.debug("serialized ressource status: " + new String(res));
+        	}
+        	
+        	synchronized (serializationCache) {
+        	    Map<Long, byte[]> serializations = serializationCache.get(resourceStatus.getContentHash());
+        	    if (serializations == null) {
+        	        serializations = new HashMap<>();
+        	        serializationCache.put(resourceStatus.getContentHash(), serializations);
+        	    }
+        	    serializations.put(cacheKey, res);
+        	}
+        	if (serializeHistogram != null) {
+        	    serializeHistogram.recordSince(start);
+        	}
         	return res;
         }
             
     }
     
-    private String getSerializedResourceStatusEncrypt(long contentFormat) {
+    private String getSerializedResourceStatusEncrypt(ResourceStatus resourceStatus, long contentFormat, boolean allowDelta) {
     	
         if (contentFormat == ContentFormat.APP_XML) {
             
-        	String sensorPseudonymUri = getResourceStatus().getSensorUri();
-            Model rdfModel = getResourceStatus().getRdfModel();
+        	String sensorPseudonymUri = resourceStatus.getSensorUri();
             
             // content format of the encrypted content
-            String language = DEFAULT_CONTENT_FORMAT_ENCRYPT_INNER_LANGUAGE;
             long innerContentFormat = DEFAULT_CONTENT_FORMAT_ENCRYPT_INNER;
             
-            
-            StringWriter stringWriter = new StringWriter();
-            rdfModel.write(stringWriter, language);
-            String rdfModelStr = stringWriter.getBuffer().toString();
-            
-            //TODO: get url of the recipient to get the right public key, but how??
-            //      This will be a problem, if the CoAP-Webserver wants to communicate with more than one client
-            //      The superclass ObservableWebservice does not know it's observers
-            List<URI> uriList = keyDatabase.getAllEntryUrls();
-            if (uriList.size() == 0) {
-                log.error("No Entry in KeyDatabase. Without a public key of the recipient no encrypted data package can be created.");
+            PublicKey publicKeyRecipient = getPublicKeyRecipient();
+            if (publicKeyRecipient == null) {
                 return null;
             }
-            if (uriList.size() != 1) {
-                log.error("More than one Entry in KeyDatabase");
-                return null;
-            }
-            URI uriRecipient = uriList.get(0);
-            
-            KeyDatabaseEntry keyDatabaseEntry = keyDatabase.getEntry(uriRecipient);
-            if (keyDatabaseEntry == null) {
-                log.error("No public key knwon for recipient '" + uriRecipient.getHost() + "'");
-                return null;
-            }
-            PublicKey publicKeyRecipient = keyDatabaseEntry.getPublicKey();
             
             // encrypt content and build data package
             PrivacyDataPackage privacyDataPackage;
+            long start = System.nanoTime();
             try {
-                privacyDataPackage = 
-                        EncryptionProcessor.createPrivacyDataPackage(rdfModelStr,
-	                                                                 sensorPseudonymUri,
-	                                                                 innerContentFormat,
-	                                                                 encryptionParameters,
-	                                                                 publicKeyRecipient);
+                if (resourceStatus.getEntries() != null) {
+                    // one package for all sensors of the collection, every entry keeps it's pseudonym
+                    Map<String, String> contents = new LinkedHashMap<>();
+                    Map<String, Long> entryContentFormats = new HashMap<>();
+                    for (ResourceStatus entry : resourceStatus.getEntries()) {
+                        if (allowDelta && entry.getDeltaContent() != null) {
+                            contents.put(entry.getSensorUri(), entry.getDeltaContent());
+                            entryContentFormats.put(entry.getSensorUri(), PrivIoTContentFormat.APP_GEO_DELTA);
+                        }
+                        else {
+                            contents.put(entry.getSensorUri(), writeModel(entry.getRdfModel(), DEFAULT_CONTENT_FORMAT_ENCRYPT_INNER_LANGUAGE));
+                        }
+                    }
+                    privacyDataPackage = 
+                            EncryptionProcessor.createPrivacyDataBatchPackage(contents,
+                                                                              entryContentFormats,
+                                                                              sensorPseudonymUri,
+                                                                              innerContentFormat,
+                                                                              encryptionParameters,
+                                                                              publicKeyRecipient);
+                }
+                else if (allowDelta && resourceStatus.getDeltaContent() != null) {
+                    // only the change to the last keyframe
+                    privacyDataPackage = 
+                            EncryptionProcessor.createPrivacyDataPackage(resourceStatus.getDeltaContent(),
+                                                                         sensorPseudonymUri,
+                                                                         PrivIoTContentFormat.APP_GEO_DELTA,
+                                                                         encryptionParameters,
+                                                                         publicKeyRecipient);
+                }
+                else {
+                    String rdfModelStr = writeModel(resourceStatus.getRdfModel(), DEFAULT_CONTENT_FORMAT_ENCRYPT_INNER_LANGUAGE);
+                    privacyDataPackage = 
+                            EncryptionProcessor.createPrivacyDataPackage(rdfModelStr,
+    	                                                                 sensorPseudonymUri,
+    	                                                                 innerContentFormat,
+    	                                                                 encryptionParameters,
+    	                                                                 publicKeyRecipient);
+                }
             } catch (EncryptionException e) {
                 log.error(e.getMessage());
                 return null;
             }
+            if (encryptHistogram != null) {
+                encryptHistogram.recordSince(start);
+            }
             
             // serialize privacyDataPackage
             ByteArrayOutputStream outStream = new ByteArrayOutputStream();
@@ -359,7 +770,40 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
         }
     }
     
-    private String getSerializedResourceStatusNoEncrypt(long contentFormat) {
+    private String writeModel(Model rdfModel, String language) {
+        StringWriter stringWriter = new StringWriter();
+        rdfModel.write(stringWriter, language);
+        return stringWriter.getBuffer().toString();
+    }
+    
+    /**
+     * Returns the public key of the recipient of the encrypted data packages.
+     * Returns null, if the public key isn't known.
+     */
+    private PublicKey getPublicKeyRecipient() {
+        //TODO: get url of the recipient to get the right public key, but how??
+        //      This will be a problem, if the CoAP-Webserver wants to communicate with more than one client
+        //      The superclass ObservableWebservice does not know it's observers
+        List<URI> uriList = keyDatabase.getAllEntryUrls();
+        if (uriList.size() == 0) {
+            log.error("No Entry in KeyDatabase. Without a public key of the recipient no encrypted data package can be created.");
+            return null;
+        }
+        if (uriList.size() != 1) {
+            log.error("More than one Entry in KeyDatabase");
+            return null;
+        }
+        URI uriRecipient = uriList.get(0);
+        
+        KeyDatabaseEntry keyDatabaseEntry = keyDatabase.getEntry(uriRecipient);
+        if (keyDatabaseEntry == null) {
+            log.error("No public key knwon for recipient '" + uriRecipient.getHost() + "'");
+            return null;
+        }
+        return keyDatabaseEntry.getPublicKey();
+    }
+    
+    private String getSerializedResourceStatusNoEncrypt(ResourceStatus resourceStatus, long contentFormat) {
     	if (contentFormat == ContentFormat.APP_RDF_XML ||
     		contentFormat == ContentFormat.APP_N3 ||
     	    contentFormat == ContentFormat.APP_TURTLE) {
@@ -376,11 +820,8 @@ public class CoapSensorWebservice  extends ObservableWebservice<ResourceStatus>
             	language = "TURTLE";
             }
             
-            Model rdfModel = getResourceStatus().getRdfModel();
-            
-            StringWriter stringWriter = new StringWriter();
-            rdfModel.write(stringWriter, language);
-            return stringWriter.getBuffer().toString();
+            // the model of a collection is the union of the models of all entries
+            return writeModel(resourceStatus.getRdfModel(), language);
     	}
     	else {
     		return null;
@@ -0,0 +1,151 @@
+package de.uniluebeck.itm.priviot.utils.communication;
+
+import java.util.Arrays;
+
+/**
+ * The options Block1 and Block2 of block-wise transfers (RFC 7959).
+ *
+ * A representation, that is too large for a single CoAP message, is transferred in blocks.
+ * The client requests the blocks one after another with the option Block2, the server answers
+ * with the block and the option Block2, that tells if more blocks follow.
+ * The value of the option consists of the block number NUM, the flag M (more blocks follow)
+ * and the size exponent SZX. The size of a block is 2^(SZX + 4), i.e. 16 to 1024 bytes.
+ *
+ * The option Size2 carries the size of the whole representation and is sent with the first block.
+ *
+ * The option Block1 transfers the content of a large request in the same way from the client to the server.
+ * The server answers every block but the last one, before the client sends the next block.
+ * The option Size1 carries the size of the whole request content with the first block.
+ */
+public class BlockOption {
+
+    /** Option number of Block2 */
+    public static final int BLOCK_2 = 23;
+
+    /** Option number of Block1 */
+    public static final int BLOCK_1 = 27;
+
+    /** Option number of Size1 */
+    public static final int SIZE_1 = 60;
+
+    /** Option number of Size2 */
+    public static final int SIZE_2 = 28;
+
+    /** Largest size exponent, blocks of 1024 bytes */
+    public static final int MAX_SIZE_EXPONENT = 6;
+
+    /** Largest block number, that fits into the option */
+    private static final long MAX_NUMBER = (1 << 20) - 1;
+
+    private long number;
+
+    private boolean more;
+
+    private int sizeExponent;
+
+    /**
+     * Constructor
+     * @param number        Number of the block
+     * @param more          True, if more blocks follow
+     * @param sizeExponent  Size exponent, between 0 and 6
+     */
+    public BlockOption(long number, boolean more, int sizeExponent) {
+        if (number < 0 || number > MAX_NUMBER) {
+            throw new IllegalArgumentException("Block number " + number + " out of range");
+        }
+        if (sizeExponent < 0 || sizeExponent > MAX_SIZE_EXPONENT) {
+            throw new IllegalArgumentException("Block size exponent " + sizeExponent + " out of range");
+        }
+        this.number = number;
+        this.more = more;
+        this.sizeExponent = sizeExponent;
+    }
+
+    /**
+     * Decodes the value of the option.
+     * @return The option or null, if the value is malformed
+     */
+    public static BlockOption decode(long value) {
+        int sizeExponent = (int)(value & 0x07);
+        long number = value >>> 4;
+        if (sizeExponent > MAX_SIZE_EXPONENT || number > MAX_NUMBER) {
+            return null;
+        }
+        return new BlockOption(number, (value & 0x08) != 0, sizeExponent);
+    }
+
+    /** Returns the value of the option */
+    public long encode() {
+        return (number << 4) | (more ? 0x08 : 0) | sizeExponent;
+    }
+
+    /**
+     * Returns the largest size exponent, whose blocks are not larger than maxBlockSize.
+     * @return The size exponent or -1, if maxBlockSize is smaller than the smallest block
+     */
+    public static int getSizeExponent(int maxBlockSize) {
+        int sizeExponent = -1;
+        while (sizeExponent < MAX_SIZE_EXPONENT && getSize(sizeExponent + 1) <= maxBlockSize) {
+            sizeExponent++;
+        }
+        return sizeExponent;
+    }
+
+    /** Returns the block size of the size exponent */
+    public static int getSize(int sizeExponent) {
+        return 1 << (sizeExponent + 4);
+    }
+
+    /**
+     * Returns the block of the content, that starts at the offset of this block
+     * and has the size of this block or less, if it is the last block.
+     * @return The block or null, if the content ends before the block
+     */
+    public byte[] getBlock(byte[] content) {
+        long offset = getOffset();
+        if (offset > content.length || (offset == content.length && offset > 0)) {
+            return null;
+        }
+        int end = (int)Math.min(offset + getSize(), content.length);
+        return Arrays.copyOfRange(content, (int)offset, end);
+    }
+
+    /**
+     * Returns the option of the block of the content with the given size exponent,
+     * that contains the offset. M is set, if the content continues after the block.
+     */
+    public static BlockOption forOffset(long offset, int sizeExponent, int contentLength) {
+        long number = offset / getSize(sizeExponent);
+        return new BlockOption(number, (number + 1) * getSize(sizeExponent) < contentLength, sizeExponent);
+    }
+
+    /** Returns the number of the block */
+    public long getNumber() {
+        return number;
+    }
+
+    /** Returns true, if more blocks follow */
+    public boolean isMore() {
+        return more;
+    }
+
+    /** Returns the size exponent */
+    public int getSizeExponent() {
+        return sizeExponent;
+    }
+
+    /** Returns the size of the block in bytes */
+    public int getSize() {
+        return getSize(sizeExponent);
+    }
+
+    /** Returns the position of the first byte of the block in the whole representation */
+    public long getOffset() {
+        return number * getSize();
+    }
+
+    @Override
+    public String toString() {
+        return number + (more ? "/1/" : "/0/") + getSize();
+    }
+}
@@ -0,0 +1,49 @@
+package de.uniluebeck.itm.priviot.utils.communication;
+
+/**
+ * Constants of the paged discovery resource of the CoAP-Webserver.
+ *
+ * The resource lists the webservices in the CoRE link format like /.well-known/core, but
+ * - can be filtered with the queries href, rt and if (a value ending with '*' matches as prefix),
+ * - returns at most one page of webservices. If there are more, the last link of the page is the link
+ *   to the next page with the attribute rel="next",
+ * - returns only the webservices registered after the version given with the query since.
+ *
+ * Every page contains a link to the discovery resource with rel="version", whose attributes v and epoch
+ * are the actual version and the start time of the webserver. A client can ask for new webservices
+ * with since=v later, as long as the epoch doesn't change.
+ */
+public abstract class CoapDiscovery {
+    /** Path of the discovery resource */
+    public static final String PATH = "/discovery";
+
+    /** Query for the version, after which the webservices were registered */
+    public static final String QUERY_SINCE = "since";
+
+    /** Attribute of the links to the next page and to the version */
+    public static final String ATTRIBUTE_REL = "rel";
+
+    /** Value of rel for the link to the next page */
+    public static final String REL_NEXT = "next";
+
+    /** Value of rel for the link with the version */
+    public static final String REL_VERSION = "version";
+
+    /** Attribute of the version link with the actual version */
+    public static final String ATTRIBUTE_VERSION = "v";
+
+    /** Attribute of the version link with the start time of the webserver */
+    public static final String ATTRIBUTE_EPOCH = "epoch";
+
+    /** Resource type of a sensor webservice */
+    public static final String RESOURCE_TYPE_SENSOR = "priviot.sensor";
+
+    /** Resource type of a sensor collection webservice */
+    public static final String RESOURCE_TYPE_COLLECTION = "priviot.collection";
+
+    /** Interface description of an observable sensor */
+    public static final String INTERFACE_SENSOR = "core.s";
+
+    /** Interface description of a batch of sensors */
+    public static final String INTERFACE_BATCH = "core.b";
+}
@@ -0,0 +1,237 @@
+package de.uniluebeck.itm.priviot.utils.communication;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stream parser for documents in the CoRE link format (RFC 6690), for example the resource /.well-known/core.
+ *
+ * The links are read one after another from a reader, so the document never has to be held as a whole.
+ * A link looks like &lt;/sensors/1&gt;;rt="priviot.sensor";ct=41;obs
+ * Quoted values may contain ',' and ';'. Values with several space separated entries are split.
+ * Malformed links are skipped.
+ */
+public class LinkFormatParser {
+
+    private Logger log = LoggerFactory.getLogger(LinkFormatParser.class.getName());
+
+    private Reader reader;
+
+    /** The next character, -2 if it wasn't read yet */
+    private int next = -2;
+
+    /**
+     * Constructor
+     * @param reader  The link format document. Should be buffered.
+     */
+    public LinkFormatParser(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Returns the next well-formed link of the document or null at the end of the document.
+     * @throws IOException if the document can't be read
+     */
+    public Link next() throws IOException {
+        while (true) {
+            skipWhitespace();
+            int c = peek();
+            if (c == -1) {
+                return null;
+            }
+            if (c == ',') {
+                read();
+                continue;
+            }
+
+            Link link = readLink();
+            if (link != null) {
+                return link;
+            }
+            skipToNextLink();
+        }
+    }
+
+    /**
+     * Reads one link. Returns null if the link is malformed.
+     */
+    private Link readLink() throws IOException {
+        if (read() != '<') {
+            log.warn("Malformed link in link format document: missing '<'");
+            return null;
+        }
+
+        StringBuilder target = new StringBuilder();
+        int c;
+        while ((c = peek()) != '>') {
+            if (c == -1 || c == ',') {
+                log.warn("Malformed link target in link format document: {}", target);
+                return null;
+            }
+            target.append((char)read());
+        }
+        read();
+
+        Link link = new Link(target.toString());
+
+        while (true) {
+            skipWhitespace();
+            c = peek();
+            if (c == -1 || c == ',') {
+                return link;
+            }
+            if (c != ';') {
+                log.warn("Malformed attributes of link {} in link format document", link.getTarget());
+                return null;
+            }
+            read();
+            if (!readAttribute(link)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads one attribute and adds it to the link. Returns false if the attribute is malformed.
+     */
+    private boolean readAttribute(Link link) throws IOException {
+        skipWhitespace();
+
+        StringBuilder key = new StringBuilder();
+        int c;
+        while ((c = peek()) != -1 && c != '=' && c != ';' && c != ',' && !Character.isWhitespace(c)) {
+            key.append((char)read());
+        }
+        if (key.length() == 0) {
+            log.warn("Malformed attribute of link {} in link format document", link.getTarget());
+            return false;
+        }
+
+        skipWhitespace();
+        if (peek() != '=') {
+            // empty attribute like obs
+            link.addAttribute(key.toString(), null);
+            return true;
+        }
+        read();
+        skipWhitespace();
+
+        StringBuilder value = new StringBuilder();
+        if (peek() == '"') {
+            read();
+            while ((c = read()) != '"') {
+                if (c == -1) {
+                    log.warn("Unterminated value of attribute {} of link {}", key, link.getTarget());
+                    return false;
+                }
+                if (c == '\\') {
+                    c = read();
+                    if (c == -1) {
+                        return false;
+                    }
+                }
+                value.append((char)c);
+            }
+        }
+        else {
+            while ((c = peek()) != -1 && c != ';' && c != ',' && !Character.isWhitespace(c)) {
+                value.append((char)read());
+            }
+        }
+
+        for (String singleValue : value.toString().trim().split("\\s+")) {
+            link.addAttribute(key.toString(), singleValue);
+        }
+        return true;
+    }
+
+    /**
+     * Skips the rest of a malformed link up to the next comma.
+     * If the comma was quoted, the rest is skipped as malformed link, too.
+     */
+    private void skipToNextLink() throws IOException {
+        int c;
+        while ((c = peek()) != -1 && c != ',') {
+            read();
+        }
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (peek() != -1 && Character.isWhitespace(peek())) {
+            read();
+        }
+    }
+
+    private int peek() throws IOException {
+        if (next == -2) {
+            next = reader.read();
+        }
+        return next;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        next = -2;
+        return c;
+    }
+
+    /**
+     * A link with it's target and attributes.
+     */
+    public static class Link {
+        private String target;
+
+        /** Values of every attribute. Empty attributes have an empty list. */
+        private Map<String, List<String>> attributes = new LinkedHashMap<>();
+
+        public Link(String target) {
+            this.target = target;
+        }
+
+        private void addAttribute(String key, String value) {
+            List<String> values = attributes.get(key);
+            if (values == null) {
+                values = new ArrayList<>(1);
+                attributes.put(key, values);
+            }
+            if (value != null && !value.isEmpty()) {
+                values.add(value);
+            }
+        }
+
+        /** Returns the target of the link, for example /sensors/1 */
+        public String getTarget() {
+            return target;
+        }
+
+        /** Returns the values of every attribute. Empty attributes have an empty list. */
+        public Map<String, List<String>> getAttributes() {
+            return attributes;
+        }
+
+        /** Returns the values of the attribute. Empty list, if the link doesn't have the attribute. */
+        public List<String> getAttribute(String key) {
+            List<String> values = attributes.get(key);
+            return values != null ? values : Collections.<String>emptyList();
+        }
+
+        /** Returns the first value of the attribute or null */
+        public String getFirstValue(String key) {
+            List<String> values = attributes.get(key);
+            return values != null && !values.isEmpty() ? values.get(0) : null;
+        }
+
+        /** Returns true, if the link has the attribute */
+        public boolean hasAttribute(String key) {
+            return attributes.containsKey(key);
+        }
+    }
+}
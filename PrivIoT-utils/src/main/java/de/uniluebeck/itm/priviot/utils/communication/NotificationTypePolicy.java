@@ -0,0 +1,230 @@
+package de.uniluebeck.itm.priviot.utils.communication;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides for every update notification of an observed resource, if it is sent confirmable (CON)
+ * or non-confirmable (NON).
+ *
+ * Notifications are sent NON by default, because a CON costs an acknowledgement and retransmissions.
+ * Every confirmableInterval-th notification of an observer and the first notification after
+ * confirmableMaxAge seconds are sent CON, so an observer, that is gone, doesn't acknowledge the notification
+ * and is removed. The first notification to an observer is always CON.
+ *
+ * A request of an observer for a resource it already gets notifications for is taken as sign of loss,
+ * because the observer only asks again, if it missed notifications or the observation itself.
+ * In this case the next fallbackNotifications notifications to this observer are sent CON,
+ * so they are retransmitted until they arrive.
+ *
+ * Can be shared by all observable webservices of an application. The methods are thread safe.
+ */
+public class NotificationTypePolicy {
+
+    private Logger log = LoggerFactory.getLogger(NotificationTypePolicy.class.getName());
+
+    /** Time in milliseconds after that the state of an observer without notifications is removed */
+    private static final long MAX_IDLE_TIME = 10 * 60 * 1000;
+
+    /** Number of notifications between two removals of idle observers */
+    private static final int CLEANUP_INTERVAL = 1024;
+
+    /** Every confirmableInterval-th notification is sent CON. 1 sends every notification CON, 0 disables it. */
+    private int confirmableInterval;
+
+    /** Maximum time in milliseconds between two CON notifications. 0 for unlimited. */
+    private long confirmableMaxAge;
+
+    /** Number of CON notifications after a loss */
+    private int fallbackNotifications;
+
+    /** State of every observer. Key is the path of the resource and the address of the observer. */
+    private ConcurrentMap<String, ObserverState> observers = new ConcurrentHashMap<>();
+
+    private AtomicInteger notificationsSinceCleanup = new AtomicInteger();
+
+    private AtomicLong confirmableNotifications = new AtomicLong();
+
+    private AtomicLong nonConfirmableNotifications = new AtomicLong();
+
+    private AtomicLong fallbackConfirmableNotifications = new AtomicLong();
+
+    private AtomicLong losses = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param confirmableInterval    Every confirmableInterval-th notification is sent CON.
+     *                               1 sends every notification CON, 0 disables it.
+     * @param confirmableMaxAge      Maximum time in seconds between two CON notifications. 0 for unlimited.
+     * @param fallbackNotifications  Number of CON notifications after a loss
+     */
+    public NotificationTypePolicy(int confirmableInterval, int confirmableMaxAge, int fallbackNotifications) {
+        this.confirmableInterval = confirmableInterval;
+        this.confirmableMaxAge = confirmableMaxAge * 1000L;
+        this.fallbackNotifications = fallbackNotifications;
+    }
+
+    /**
+     * Returns true, if the next notification of the resource to the observer has to be sent CON.
+     * Has to be called once for every notification.
+     *
+     * @param path            Path of the observed resource
+     * @param remoteEndpoint  Address of the observer
+     */
+    public boolean isConfirmable(String path, InetSocketAddress remoteEndpoint) {
+        String key = getKey(path, remoteEndpoint);
+
+        ObserverState state = observers.get(key);
+        if (state == null) {
+            state = new ObserverState();
+            ObserverState existingState = observers.putIfAbsent(key, state);
+            if (existingState != null) {
+                state = existingState;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        boolean confirmable;
+        boolean fallback = false;
+
+        synchronized (state) {
+            state.lastUse = now;
+
+            if (state.fallbackNotifications > 0) {
+                state.fallbackNotifications--;
+                confirmable = true;
+                fallback = true;
+            }
+            else {
+                confirmable = state.lastConfirmable == 0
+                        || (confirmableInterval > 0 && state.notificationsSinceConfirmable + 1 >= confirmableInterval)
+                        || (confirmableMaxAge > 0 && now - state.lastConfirmable >= confirmableMaxAge);
+            }
+
+            if (confirmable) {
+                state.notificationsSinceConfirmable = 0;
+                state.lastConfirmable = now;
+            }
+            else {
+                state.notificationsSinceConfirmable++;
+            }
+        }
+
+        if (confirmable) {
+            confirmableNotifications.incrementAndGet();
+            if (fallback) {
+                fallbackConfirmableNotifications.incrementAndGet();
+            }
+        }
+        else {
+            nonConfirmableNotifications.incrementAndGet();
+        }
+
+        if (notificationsSinceCleanup.incrementAndGet() >= CLEANUP_INTERVAL) {
+            notificationsSinceCleanup.set(0);
+            removeIdleObservers(now);
+        }
+
+        return confirmable;
+    }
+
+    /**
+     * Has to be called for every request of a resource.
+     * If the client already gets notifications of the resource, the following notifications are sent CON.
+     *
+     * @param path            Path of the requested resource
+     * @param remoteEndpoint  Address of the client
+     */
+    public void requestReceived(String path, InetSocketAddress remoteEndpoint) {
+        if (fallbackNotifications <= 0) {
+            return;
+        }
+
+        ObserverState state = observers.get(getKey(path, remoteEndpoint));
+        if (state == null) {
+            // a new observer
+            return;
+        }
+
+        synchronized (state) {
+            state.fallbackNotifications = fallbackNotifications;
+        }
+        losses.incrementAndGet();
+
+        log.debug("Observer " + remoteEndpoint + " requested " + path + " again. Send the next "
+                  + fallbackNotifications + " notifications CON.");
+    }
+
+    private void removeIdleObservers(long now) {
+        int removed = 0;
+
+        Iterator<ObserverState> iterator = observers.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastUse > MAX_IDLE_TIME) {
+                iterator.remove();
+                removed++;
+            }
+        }
+
+        log.debug("Removed {} idle observers. {} observers left.", removed, observers.size());
+    }
+
+    private String getKey(String path, InetSocketAddress remoteEndpoint) {
+        return path + " " + remoteEndpoint;
+    }
+
+    /** Returns the number of notifications sent CON */
+    public long getConfirmableNotifications() {
+        return confirmableNotifications.get();
+    }
+
+    /** Returns the number of notifications sent NON */
+    public long getNonConfirmableNotifications() {
+        return nonConfirmableNotifications.get();
+    }
+
+    /** Returns the number of notifications sent CON because of a loss */
+    public long getFallbackConfirmableNotifications() {
+        return fallbackConfirmableNotifications.get();
+    }
+
+    /** Returns the number of detected losses */
+    public long getLosses() {
+        return losses.get();
+    }
+
+    /** Returns the number of observers, that got a notification within the last minutes */
+    public int getObservers() {
+        return observers.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CON: " + getConfirmableNotifications() + ", NON: " + getNonConfirmableNotifications()
+               + ", CON after loss: " + getFallbackConfirmableNotifications() + ", losses: " + getLosses();
+    }
+
+    /**
+     * The notifications sent to an observer of a resource.
+     */
+    private static class ObserverState {
+        /** Number of NON notifications since the last CON notification */
+        private int notificationsSinceConfirmable = 0;
+
+        /** Time in milliseconds of the last CON notification. 0 if none was sent. */
+        private long lastConfirmable = 0;
+
+        /** Number of following notifications, that are sent CON because of a loss */
+        private int fallbackNotifications = 0;
+
+        /** Time in milliseconds of the last notification */
+        private volatile long lastUse = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,165 @@
+package de.uniluebeck.itm.priviot.utils.communication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several PrivacyDataPackages in one CoAP message.
+ *
+ * The CoAP Privacy Proxy collects the packages for the same Smart Service Proxy and posts them at once
+ * to the batch resource of the Smart Service Proxy, that unpacks them into individual cache updates.
+ *
+ * The CoAP-Webserver uses the same format for the status of it's aggregate resource. The CoAP Privacy Proxy
+ * observes only the aggregate resource instead of every webservice and gets the new status of all webservices
+ * in the update notifications of the aggregate resource. There the path is the path of the webservice
+ * of the CoAP-Webserver. An entry without content tells, that the status is too large and has to be
+ * requested from the webservice itself.
+ *
+ * Every entry consists of
+ * - the length of the path (2 bytes) and the path of the webservice (UTF-8),
+ * - the max age of the package in seconds (4 bytes),
+ * - the length of the package (4 bytes) and the serialized package.
+ * All numbers are unsigned and in network byte order.
+ */
+public class PackageBatch {
+
+    /** Path of the batch resource of the Smart Service Proxy */
+    public static final String PATH = "/batch";
+
+    /** Path of the aggregate resource of the CoAP-Webserver */
+    public static final String AGGREGATE_PATH = "/aggregate";
+
+    //TODO: change code. 65002 is for experimental use only.
+    /** CoAP Content-Format code of a batch */
+    public static final long CONTENT_FORMAT = 65002;
+
+    /** Number of bytes of an entry in addition to the path and the package */
+    private static final int ENTRY_OVERHEAD = 10;
+
+    private List<Entry> entries = new ArrayList<Entry>();
+
+    private int size = 0;
+
+    /**
+     * Adds a package to the batch.
+     * @param path     Path of the webservice of the package
+     * @param maxAge   Max age of the package in seconds
+     * @param content  The serialized package
+     */
+    public void add(String path, long maxAge, byte[] content) {
+        Entry entry = new Entry(path, maxAge, content);
+        entries.add(entry);
+        size += entry.getEncodedSize();
+    }
+
+    /** Returns the entries of the batch */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /** Returns the number of packages */
+    public int getCount() {
+        return entries.size();
+    }
+
+    /** Returns the size of the encoded batch in bytes */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the number of bytes a package adds to the encoded batch */
+    public static int getEncodedSize(String path, byte[] content) {
+        return ENTRY_OVERHEAD + path.getBytes(StandardCharsets.UTF_8).length + content.length;
+    }
+
+    /**
+     * Encodes the batch.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream(size);
+        DataOutputStream dataStream = new DataOutputStream(outStream);
+        try {
+            for (Entry entry : entries) {
+                byte[] path = entry.path.getBytes(StandardCharsets.UTF_8);
+                dataStream.writeShort(path.length);
+                dataStream.write(path);
+                dataStream.writeInt((int)entry.maxAge);
+                dataStream.writeInt(entry.content.length);
+                dataStream.write(entry.content);
+            }
+            dataStream.flush();
+        }
+        catch (IOException e) {
+            // not possible with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return outStream.toByteArray();
+    }
+
+    /**
+     * Decodes a batch.
+     * @return The batch or null, if the content is malformed
+     */
+    public static PackageBatch decode(byte[] content) {
+        PackageBatch batch = new PackageBatch();
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        try {
+            while (buffer.hasRemaining()) {
+                byte[] path = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(path);
+                long maxAge = buffer.getInt() & 0xFFFFFFFFL;
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    return null;
+                }
+                byte[] entryContent = new byte[length];
+                buffer.get(entryContent);
+                batch.add(new String(path, StandardCharsets.UTF_8), maxAge, entryContent);
+            }
+        }
+        catch (BufferUnderflowException e) {
+            return null;
+        }
+        return batch;
+    }
+
+    /**
+     * A package of the batch.
+     */
+    public static class Entry {
+        private String path;
+        private long maxAge;
+        private byte[] content;
+
+        private Entry(String path, long maxAge, byte[] content) {
+            this.path = path;
+            this.maxAge = maxAge;
+            this.content = content;
+        }
+
+        /** Returns the path of the webservice of the package */
+        public String getPath() {
+            return path;
+        }
+
+        /** Returns the max age of the package in seconds */
+        public long getMaxAge() {
+            return maxAge;
+        }
+
+        /** Returns the serialized package */
+        public byte[] getContent() {
+            return content;
+        }
+
+        private int getEncodedSize() {
+            return PackageBatch.getEncodedSize(path, content);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package de.uniluebeck.itm.priviot.utils.data;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Delta encoding of a geographic point relative to a keyframe.
+ *
+ * A keyframe is a full rdf graph with a WKT point literal like "POINT(10.680243 53.868690)".
+ * Following readings of the same sensor can be sent as delta, that contains only the difference
+ * of both coordinates to the point of the keyframe in units of 10^-6 degrees, the precision of the WKT literals.
+ * A delta always refers to the keyframe and not to the previous delta, so a lost delta doesn't affect the following ones.
+ *
+ * The serialized delta is "checksum deltaX deltaY", where checksum is the hex encoded CRC32 of the WKT value of the keyframe.
+ * The recipient only applies a delta, if the checksum matches the keyframe it knows.
+ */
+public class GeographicDelta {
+
+    /** Number of decimal places of the coordinates */
+    private static final int SCALE = 6;
+
+    private static final Pattern POINT_PATTERN = Pattern.compile("POINT\\(\\s*(\\S+)\\s+(\\S+)\\s*\\)");
+
+    /** CRC32 of the WKT value of the keyframe */
+    private int keyframeChecksum;
+
+    /** Difference of the first coordinate in 10^-6 degrees */
+    private long deltaX;
+
+    /** Difference of the second coordinate in 10^-6 degrees */
+    private long deltaY;
+
+    public GeographicDelta(int keyframeChecksum, long deltaX, long deltaY) {
+        this.keyframeChecksum = keyframeChecksum;
+        this.deltaX = deltaX;
+        this.deltaY = deltaY;
+    }
+
+    /**
+     * Creates the delta of a point to the point of a keyframe.
+     * @param keyframeWktValue  WKT value of the keyframe, for example "POINT(10.680243 53.868690)"
+     * @param wktValue          WKT value of the new point
+     * @throws DataPackageParsingException if one of the values is no WKT point
+     */
+    public static GeographicDelta create(String keyframeWktValue, String wktValue) throws DataPackageParsingException {
+        long[] keyframePoint = parsePoint(keyframeWktValue);
+        long[] point = parsePoint(wktValue);
+
+        return new GeographicDelta(checksum(keyframeWktValue), point[0] - keyframePoint[0], point[1] - keyframePoint[1]);
+    }
+
+    /**
+     * Parses a serialized delta.
+     * @param serializedDelta  The delta in the form "checksum deltaX deltaY"
+     * @throws DataPackageParsingException if the delta is malformed
+     */
+    public static GeographicDelta parse(String serializedDelta) throws DataPackageParsingException {
+        String[] fields = serializedDelta.trim().split("\\s+");
+        if (fields.length != 3) {
+            throw new DataPackageParsingException("Malformed geographic delta: " + serializedDelta);
+        }
+        try {
+            return new GeographicDelta((int)Long.parseLong(fields[0], 16), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+        }
+        catch (NumberFormatException e) {
+            throw new DataPackageParsingException("Malformed geographic delta: " + serializedDelta);
+        }
+    }
+
+    /**
+     * Returns the serialized delta in the form "checksum deltaX deltaY"
+     */
+    public String serialize() {
+        return Integer.toHexString(keyframeChecksum) + " " + deltaX + " " + deltaY;
+    }
+
+    /**
+     * Applies the delta to the point of a keyframe.
+     * @param keyframeWktValue  WKT value of the keyframe
+     * @return WKT value of the point described by the delta
+     * @throws DataPackageParsingException if the delta doesn't refer to the given keyframe
+     */
+    public String apply(String keyframeWktValue) throws DataPackageParsingException {
+        if (checksum(keyframeWktValue) != keyframeChecksum) {
+            throw new DataPackageParsingException("Geographic delta doesn't refer to keyframe " + keyframeWktValue);
+        }
+        long[] keyframePoint = parsePoint(keyframeWktValue);
+
+        return "POINT(" + BigDecimal.valueOf(keyframePoint[0] + deltaX, SCALE).toPlainString() + " " +
+                          BigDecimal.valueOf(keyframePoint[1] + deltaY, SCALE).toPlainString() + ")";
+    }
+
+    /**
+     * Returns true, if the value is a WKT point
+     */
+    public static boolean isPoint(String wktValue) {
+        return POINT_PATTERN.matcher(wktValue).matches();
+    }
+
+    /**
+     * Returns the CRC32 of a WKT value
+     */
+    public static int checksum(String wktValue) {
+        CRC32 crc = new CRC32();
+        crc.update(wktValue.getBytes(StandardCharsets.UTF_8));
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Returns both coordinates of a WKT point in 10^-6 degrees
+     */
+    private static long[] parsePoint(String wktValue) throws DataPackageParsingException {
+        Matcher matcher = POINT_PATTERN.matcher(wktValue);
+        if (!matcher.matches()) {
+            throw new DataPackageParsingException("No WKT point: " + wktValue);
+        }
+        try {
+            return new long[] { toFixedPoint(matcher.group(1)), toFixedPoint(matcher.group(2)) };
+        }
+        catch (NumberFormatException e) {
+            throw new DataPackageParsingException("No WKT point: " + wktValue);
+        }
+    }
+
+    private static long toFixedPoint(String coordinate) {
+        return new BigDecimal(coordinate).setScale(SCALE, BigDecimal.ROUND_HALF_UP).unscaledValue().longValue();
+    }
+
+    public int getKeyframeChecksum() {
+        return keyframeChecksum;
+    }
+
+    public long getDeltaX() {
+        return deltaX;
+    }
+
+    public long getDeltaY() {
+        return deltaY;
+    }
+}
@@ -4,4 +4,8 @@ public abstract class PrivIoTContentFormat {
 	//TODO: change code. 65000 is for experimental use only.
 	/** CoAP Content-Format code for X.509 Certificates */
 	public static final long APP_X509CERTIFICATE = 65000;
+	
+	//TODO: change code. 65001 is for experimental use only.
+	/** CoAP Content-Format code for a geographic reading, delta encoded relative to a keyframe (see {@link GeographicDelta}) */
+	public static final long APP_GEO_DELTA = 65001;
 }
@@ -7,7 +7,9 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +25,16 @@ public class PrivacyDataPackageUnmarshaller {
 
     private static Logger log = LoggerFactory.getLogger(PrivacyDataPackageUnmarshaller.class.getName());
     private static Unmarshaller unmarshaller;
+    
+    /** 
+     * Creates the readers of the received packages. The lookup of the implementation is expensive, so it's done once.
+     * The packages are untrusted, so DTDs and external entities are disabled.
+     */
+    private static final XMLInputFactory xmlInputFactory = createXMLInputFactory();
+    
+    /** Name and namespace of the root element of a PrivacyDataPackage, see privacyData.xsd */
+    private static final String ROOT_ELEMENT = "privacyData";
+    private static final String NAMESPACE = "http://itm.uniluebeck.de/xsd";
 
     static{
         try{
@@ -34,12 +46,50 @@ public class PrivacyDataPackageUnmarshaller {
         }
     }
 
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
     public static synchronized PrivacyDataPackage unmarshal(final InputStream xmlStream) throws JAXBException, XMLStreamException {
         
         //create xml event reader for input stream
-        XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
         XMLEventReader xmlEventReader = xmlInputFactory.createXMLEventReader(xmlStream);
 
         return unmarshaller.unmarshal(xmlEventReader, PrivacyDataPackage.class).getValue();
     }
+    
+    /**
+     * Checks only the header of the XML document, i.e. if the root element is a {@link PrivacyDataPackage}.
+     * The rest of the document is not read. Much cheaper than unmarshal, but doesn't validate the content.
+     * @return true, if the root element is a PrivacyDataPackage
+     */
+    public static boolean hasPrivacyDataPackageHeader(final InputStream xmlStream) {
+        XMLStreamReader xmlStreamReader = null;
+        try {
+            xmlStreamReader = xmlInputFactory.createXMLStreamReader(xmlStream);
+            while (xmlStreamReader.hasNext()) {
+                if (xmlStreamReader.next() == XMLStreamConstants.START_ELEMENT) {
+                    return ROOT_ELEMENT.equals(xmlStreamReader.getLocalName()) &&
+                           NAMESPACE.equals(xmlStreamReader.getNamespaceURI());
+                }
+            }
+            return false;
+        }
+        catch (XMLStreamException e) {
+            return false;
+        }
+        finally {
+            if (xmlStreamReader != null) {
+                try {
+                    xmlStreamReader.close();
+                }
+                catch (XMLStreamException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
 }
@@ -1,8 +1,8 @@
 //
-// This file was generated by the JavaTM Architecture for XML Binding(JAXB) Reference Implementation, v2.2.4-2 
+// This file was generated by the JavaTM Architecture for XML Binding(JAXB) Reference Implementation, v2.2.8-b130911.1802 
 // See <a href="http://java.sun.com/xml/jaxb">http://java.sun.com/xml/jaxb</a> 
 // Any modifications to this file will be lost upon recompilation of the source schema. 
-// Generated on: 2014.08.31 at 12:51:41 PM CEST 
+// Generated on: 2026.10.19 at 06:19:27 AM UTC 
 //
 
 
@@ -44,4 +44,12 @@ public class ObjectFactory {
         return new PrivacyDataPackage();
     }
 
+    /**
+     * Create an instance of {@link PrivacyDataEntry }
+     * 
+     */
+    public PrivacyDataEntry createPrivacyDataEntry() {
+        return new PrivacyDataEntry();
+    }
+
 }
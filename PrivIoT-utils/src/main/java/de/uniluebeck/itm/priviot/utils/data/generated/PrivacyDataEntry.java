@@ -0,0 +1,142 @@
+//
+// This file was generated by the JavaTM Architecture for XML Binding(JAXB) Reference Implementation, v2.2.8-b130911.1802 
+// See <a href="http://java.sun.com/xml/jaxb">http://java.sun.com/xml/jaxb</a> 
+// Any modifications to this file will be lost upon recompilation of the source schema. 
+// Generated on: 2026.10.19 at 06:24:34 AM UTC 
+//
+
+
+package de.uniluebeck.itm.priviot.utils.data.generated;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlSchemaType;
+import javax.xml.bind.annotation.XmlType;
+
+
+/**
+ * 
+ * The data of a single sensor in a batch privacy data package.
+ * The content is encrypted with the symmetric key of the package and the initialization vector of the entry.
+ *           
+ * 
+ * 
+ * 
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(name = "privacyDataEntry", propOrder = {
+    "sensorUri",
+    "contentFormat",
+    "initializationVector",
+    "encryptedContent"
+})
+public class PrivacyDataEntry {
+
+    @XmlElement(name = "uri", required = true)
+    @XmlSchemaType(name = "anyURI")
+    protected String sensorUri;
+    @XmlElement(name = "format")
+    protected Integer contentFormat;
+    @XmlElement(name = "iv", required = true)
+    protected String initializationVector;
+    @XmlElement(name = "content", required = true)
+    protected String encryptedContent;
+
+    /**
+     * URI of the sensor. Can be used as graph name by the recipient.
+     * 
+     * @return
+     *     possible object is
+     *     {@link String }
+     *     
+     */
+    public String getSensorUri() {
+        return sensorUri;
+    }
+
+    /**
+     * Sets the value of the sensorUri property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link String }
+     *     
+     */
+    public void setSensorUri(String value) {
+        this.sensorUri = value;
+    }
+
+    /**
+     * CoAP content format of the decrypted content of the entry. If omitted, the content format of the package is used.
+     * 
+     * @return
+     *     possible object is
+     *     {@link Integer }
+     *     
+     */
+    public Integer getContentFormat() {
+        return contentFormat;
+    }
+
+    /**
+     * Sets the value of the contentFormat property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link Integer }
+     *     
+     */
+    public void setContentFormat(Integer value) {
+        this.contentFormat = value;
+    }
+
+    /**
+     * The initialization vector used for symmetric encryption of the content. Base64 encoded.
+     * 
+     * @return
+     *     possible object is
+     *     {@link String }
+     *     
+     */
+    public String getInitializationVector() {
+        return initializationVector;
+    }
+
+    /**
+     * Sets the value of the initializationVector property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link String }
+     *     
+     */
+    public void setInitializationVector(String value) {
+        this.initializationVector = value;
+    }
+
+    /**
+     * The content of the entry, symmetrically encrypted with the key of the package and the initialization vector of the entry. Base64 encoded.
+     * 
+     * @return
+     *     possible object is
+     *     {@link String }
+     *     
+     */
+    public String getEncryptedContent() {
+        return encryptedContent;
+    }
+
+    /**
+     * Sets the value of the encryptedContent property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link String }
+     *     
+     */
+    public void setEncryptedContent(String value) {
+        this.encryptedContent = value;
+    }
+
+}
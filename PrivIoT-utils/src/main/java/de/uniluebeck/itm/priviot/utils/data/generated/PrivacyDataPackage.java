@@ -1,13 +1,15 @@
 //
-// This file was generated by the JavaTM Architecture for XML Binding(JAXB) Reference Implementation, v2.2.4-2 
+// This file was generated by the JavaTM Architecture for XML Binding(JAXB) Reference Implementation, v2.2.8-b130911.1802 
 // See <a href="http://java.sun.com/xml/jaxb">http://java.sun.com/xml/jaxb</a> 
 // Any modifications to this file will be lost upon recompilation of the source schema. 
-// Generated on: 2014.08.31 at 12:51:41 PM CEST 
+// Generated on: 2026.10.19 at 06:19:27 AM UTC 
 //
 
 
 package de.uniluebeck.itm.priviot.utils.data.generated;
 
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
@@ -20,6 +22,9 @@ import javax.xml.bind.annotation.XmlType;
  * 
  * Represents a privacy data package which can be sent to a smart service proxy.
  * The package contains rdf sensor data about a sensor, specified by sensorUri.
+ * A batch package contains the data of many sensors as entries instead. Every entry has it's own sensorUri, 
+ * initialization vector and content, while all entries share the symmetric key of the package.
+ * In a batch package sensorUri is the URI of the collection and the content and initialization vector of the package are omitted.
  * The content is encrypted symmetrically while the key used for encryption is encrypted asymmetrically with the public key of the recipient.
  * The package also contains the metadata of the symmetric encryption.
  * All metadata of the asymmetric encrpytion is set by the certificate of the recipient. 
@@ -31,7 +36,13 @@ import javax.xml.bind.annotation.XmlType;
  */
 @XmlAccessorType(XmlAccessType.FIELD)
 @XmlType(name = "", propOrder = {
-
+    "sensorUri",
+    "contentFormat",
+    "symmetricEncryptionAlgorithmCode",
+    "encryptedSymmetricKey",
+    "initializationVector",
+    "encryptedContent",
+    "entries"
 })
 @XmlRootElement(name = "privacyData")
 public class PrivacyDataPackage {
@@ -45,10 +56,12 @@ public class PrivacyDataPackage {
     protected String symmetricEncryptionAlgorithmCode;
     @XmlElement(name = "key", required = true)
     protected String encryptedSymmetricKey;
-    @XmlElement(name = "iv", required = true)
+    @XmlElement(name = "iv")
     protected String initializationVector;
-    @XmlElement(name = "content", required = true)
+    @XmlElement(name = "content")
     protected String encryptedContent;
+    @XmlElement(name = "entry")
+    protected List<PrivacyDataEntry> entries;
 
     /**
      * URI of the sensor. Can be used as graph name by the recipient.
@@ -186,4 +199,33 @@ public class PrivacyDataPackage {
         this.encryptedContent = value;
     }
 
+    /**
+     * The entries of a batch package. Empty if the package contains the data of a single sensor.Gets the value of the entries property.
+     * 
+     * <p>
+     * This accessor method returns a reference to the live list,
+     * not a snapshot. Therefore any modification you make to the
+     * returned list will be present inside the JAXB object.
+     * This is why there is not a <CODE>set</CODE> method for the entries property.
+     * 
+     * <p>
+     * For example, to add a new item, do as follows:
+     * <pre>
+     *    getEntries().add(newItem);
+     * </pre>
+     * 
+     * 
+     * <p>
+     * Objects of the following type(s) are allowed in the list
+     * {@link PrivacyDataEntry }
+     * 
+     * 
+     */
+    public List<PrivacyDataEntry> getEntries() {
+        if (entries == null) {
+            entries = new ArrayList<PrivacyDataEntry>();
+        }
+        return this.entries;
+    }
+
 }
@@ -6,7 +6,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -16,6 +20,7 @@ import javax.crypto.ShortBufferException;
 import org.apache.commons.codec.binary.Base64;
 
 import de.uniluebeck.itm.priviot.utils.data.EncryptionParameters;
+import de.uniluebeck.itm.priviot.utils.data.generated.PrivacyDataEntry;
 import de.uniluebeck.itm.priviot.utils.data.generated.PrivacyDataPackage;
 import de.uniluebeck.itm.priviot.utils.encryption.cipher.AsymmetricCipherer;
 import de.uniluebeck.itm.priviot.utils.encryption.cipher.CiphererFactory;
@@ -26,6 +31,9 @@ import de.uniluebeck.itm.priviot.utils.encryption.cipher.SymmetricCipherer;
  */
 public abstract class EncryptionProcessor {
     
+    /** Generates the initialization vectors of the entries of batch packages */
+    private static final SecureRandom secureRandom = new SecureRandom();
+    
     /**
      * Creates an EncryptedSensorDataPackage out of a given content.
      * The content is symmetrically encrypted with the given algorithm and key size.
@@ -57,34 +65,8 @@ public abstract class EncryptionProcessor {
         
         // initialize symmetric and asymmetric cipherers
         
-        try {
-            symmetricCipherer = CiphererFactory.createSymmetricCipherer(encryptionParameters.getSymmetricEncryptionAlgorithm());
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new EncryptionException("Symmetric algorithm not supported: " + encryptionParameters.getSymmetricEncryptionAlgorithm(), e);
-        }
-        if (symmetricCipherer == null) {
-            throw new EncryptionException("Symmetric algorithm not supported: " + encryptionParameters.getSymmetricEncryptionAlgorithm());
-        }
-        try {
-            symmetricCipherer.initialize(encryptionParameters.getSymmetricEncryptionBitStrength());
-        } catch (InvalidAlgorithmParameterException e) {
-            throw new EncryptionException("BitStrength for symmetric encryption not supported: " + encryptionParameters.getSymmetricEncryptionBitStrength(), e);
-        }
-        
-        try {
-            asymmetricCipherer = CiphererFactory.createAsymmetricCipherer(encryptionParameters.getAsymmetricEncryptionAlgorithm());
-        }
-        catch (NoSuchAlgorithmException | NoSuchPaddingException | NoSuchProviderException e) {
-            throw new EncryptionException("Asymmetric algorithm not supported: " + encryptionParameters.getAsymmetricEncryptionAlgorithm(), e);
-        }
-        if (asymmetricCipherer == null) {
-            throw new EncryptionException("Asymmetric algorithm not supported: " + encryptionParameters.getAsymmetricEncryptionAlgorithm());
-        }
-        try {
-            asymmetricCipherer.initialize(encryptionParameters.getAsymmetricEncryptionBitStrength());
-        } catch (InvalidAlgorithmParameterException e) {
-            throw new EncryptionException("BitStrength for asymmetric encryption not supported: " + encryptionParameters.getAsymmetricEncryptionBitStrength(), e);
-        }
+        symmetricCipherer = createSymmetricCipherer(encryptionParameters);
+        asymmetricCipherer = createAsymmetricCipherer(encryptionParameters);
         try {
             asymmetricCipherer.setPublicKeyFromByteArray(publicKeyRecipient.getEncoded());
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
@@ -165,28 +147,8 @@ public abstract class EncryptionProcessor {
         
         // initialize symmetric and asymmetric cipherers
         
-        try {
-            symmetricCipherer = CiphererFactory.createSymmetricCipherer(encryptionParameters.getSymmetricEncryptionAlgorithm());
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new EncryptionException("Symmetric algorithm not supported: " + encryptionParameters.getSymmetricEncryptionAlgorithm(), e);
-        }
-        try {
-            symmetricCipherer.initialize(encryptionParameters.getSymmetricEncryptionBitStrength());
-        } catch (InvalidAlgorithmParameterException e) {
-            throw new EncryptionException("BitStrength for symmetric encryption not supported: " + encryptionParameters.getSymmetricEncryptionBitStrength(), e);
-        }
-        
-        try {
-            asymmetricCipherer = CiphererFactory.createAsymmetricCipherer(encryptionParameters.getAsymmetricEncryptionAlgorithm());
-        }
-        catch (NoSuchAlgorithmException | NoSuchPaddingException | NoSuchProviderException e) {
-            throw new EncryptionException("Asymmetric algorithm not supported: " + encryptionParameters.getAsymmetricEncryptionAlgorithm(), e);
-        }
-        try {
-            asymmetricCipherer.initialize(encryptionParameters.getAsymmetricEncryptionBitStrength());
-        } catch (InvalidAlgorithmParameterException e) {
-            throw new EncryptionException("BitStrength for asymmetric encryption not supported: " + encryptionParameters.getAsymmetricEncryptionBitStrength(), e);
-        }
+        symmetricCipherer = createSymmetricCipherer(encryptionParameters);
+        asymmetricCipherer = createAsymmetricCipherer(encryptionParameters);
         asymmetricCipherer.setPrivateKey(privateKey);
         
         // Base64 decode encrypted symmetric key, initialization vector and 
@@ -240,4 +202,230 @@ public abstract class EncryptionProcessor {
         return decryptedContent;
     }
 
+    /**
+     * Creates a batch PrivacyDataPackage out of the contents of many sensors.
+     * All contents are symmetrically encrypted with the same key, but every content gets it's own initialization vector.
+     * So the symmetric key has to be generated and asymmetrically encrypted only once per batch.
+     * @param contents                        Contents of the entries, mapped by the URI with the pseudonym of the sensor.
+     * @param collectionUri                   URI of the collection the package is published by.
+     * @param contentFormat                   Content format of the contents.
+     * @param encryptionParameters            parameters for asymmetric and symmetric encryption.
+     * @param publicKeyRecipient              public key of the recipient
+     * @return
+     * @throws EncryptionException
+     */
+    public static PrivacyDataPackage createPrivacyDataBatchPackage(Map<String, String> contents,
+            String collectionUri,
+            long contentFormat,
+            EncryptionParameters encryptionParameters,
+            PublicKey publicKeyRecipient) throws EncryptionException {
+        return createPrivacyDataBatchPackage(contents, new HashMap<String, Long>(), collectionUri, contentFormat,
+                                             encryptionParameters, publicKeyRecipient);
+    }
+    
+    /**
+     * Creates a batch PrivacyDataPackage out of the contents of many sensors.
+     * Entries with a content format differing from the one of the package carry their own content format.
+     * @param contents                        Contents of the entries, mapped by the URI with the pseudonym of the sensor.
+     * @param entryContentFormats             Content formats of single entries, mapped by the URI with the pseudonym of the sensor.
+     *                                        Entries without a content format in this map use the content format of the package.
+     * @param collectionUri                   URI of the collection the package is published by.
+     * @param contentFormat                   Content format of the package.
+     * @param encryptionParameters            parameters for asymmetric and symmetric encryption.
+     * @param publicKeyRecipient              public key of the recipient
+     * @return
+     * @throws EncryptionException
+     */
+    public static PrivacyDataPackage createPrivacyDataBatchPackage(Map<String, String> contents,
+            Map<String, Long> entryContentFormats,
+            String collectionUri,
+            long contentFormat,
+            EncryptionParameters encryptionParameters,
+            PublicKey publicKeyRecipient) throws EncryptionException {
+        
+        PrivacyDataPackage dataPackage = new PrivacyDataPackage();
+        SymmetricCipherer symmetricCipherer;
+        AsymmetricCipherer asymmetricCipherer;
+        byte[] encryptedKey;
+        
+        // get name of symmetric algorithm. Throws EncryptionException if algorithm is unknown
+        String symmetricAlgorithmCode = encryptionParameters.getSymmetricAlgorithmCode();
+        
+        // initialize symmetric and asymmetric cipherers
+        
+        symmetricCipherer = createSymmetricCipherer(encryptionParameters);
+        asymmetricCipherer = createAsymmetricCipherer(encryptionParameters);
+        try {
+            asymmetricCipherer.setPublicKeyFromByteArray(publicKeyRecipient.getEncoded());
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new EncryptionException("Invalid public key of recipient", e);
+        }
+        
+        // generate one key for all entries and encrypt it with asymmetric cipherer
+        
+        symmetricCipherer.generateKey();
+        
+        try {
+            encryptedKey = asymmetricCipherer.encrypt(symmetricCipherer.getKeyAsByteArray());
+        } catch (InvalidKeyException | IllegalBlockSizeException
+                | BadPaddingException | ShortBufferException
+                | InvalidAlgorithmParameterException e) {
+            throw new EncryptionException("Error during asymmetric encryption of symmetric key", e);
+        }
+        
+        // encrypt every content with a fresh initialization vector
+        
+        byte[] initializationVector = new byte[symmetricCipherer.getIvAsByteArray().length];
+        
+        for (Map.Entry<String, String> content : contents.entrySet()) {
+            secureRandom.nextBytes(initializationVector);
+            try {
+                symmetricCipherer.setIvFromByteArray(initializationVector);
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                throw new EncryptionException("Bad initialization vector", e);
+            }
+            
+            byte[] ciphertext;
+            try {
+                ciphertext = symmetricCipherer.encrypt(content.getValue().getBytes());
+            } catch (InvalidKeyException | IllegalBlockSizeException
+                    | BadPaddingException | ShortBufferException
+                    | InvalidAlgorithmParameterException e) {
+                throw new EncryptionException("Error during symmetric encryption of content", e);
+            }
+            
+            PrivacyDataEntry entry = new PrivacyDataEntry();
+            entry.setSensorUri(content.getKey());
+            Long entryContentFormat = entryContentFormats.get(content.getKey());
+            if (entryContentFormat != null && entryContentFormat != contentFormat) {
+                entry.setContentFormat(entryContentFormat.intValue());
+            }
+            entry.setInitializationVector(Base64.encodeBase64String(initializationVector));
+            entry.setEncryptedContent(Base64.encodeBase64String(ciphertext));
+            dataPackage.getEntries().add(entry);
+        }
+        
+        // build data package
+        
+        dataPackage.setSensorUri(collectionUri);
+        dataPackage.setContentFormat((int)contentFormat);
+        dataPackage.setSymmetricEncryptionAlgorithmCode(symmetricAlgorithmCode);
+        dataPackage.setEncryptedSymmetricKey(Base64.encodeBase64String(encryptedKey));
+        
+        return dataPackage;
+    }
+    
+    /**
+     * Decrypts the contents of all entries of a batch PrivacyDataPackage.
+     * The symmetric key is decrypted only once for all entries.
+     * @param dataPackage
+     * @param privateKey
+     * @return The decrypted contents, mapped by the sensor URI of the entry. In the order of the entries.
+     * @throws EncryptionException
+     */
+    public static Map<String, byte[]> getContentsOfPrivacyDataBatchPackage(PrivacyDataPackage dataPackage,
+                                                                          PrivateKey privateKey) throws EncryptionException {
+        SymmetricCipherer symmetricCipherer;
+        AsymmetricCipherer asymmetricCipherer;
+        byte[] decryptedsymmetricKey;
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        
+        String asymmetricEncryptionAlgorithm = EncryptionParameters.getAsymmetricEncryptionAlgorithmByPrivateKey(privateKey);
+        int asymmetricEncryptionBitStrength = EncryptionParameters.getAsymmetricEncryptionBitStrengthByPrivateKey(privateKey);
+        
+        EncryptionParameters encryptionParameters = new EncryptionParameters(dataPackage.getSymmetricEncryptionAlgorithmCode(), 
+                                                                             asymmetricEncryptionAlgorithm, 
+                                                                             asymmetricEncryptionBitStrength);
+        
+        symmetricCipherer = createSymmetricCipherer(encryptionParameters);
+        asymmetricCipherer = createAsymmetricCipherer(encryptionParameters);
+        asymmetricCipherer.setPrivateKey(privateKey);
+        
+        // decrypt symmetric key once
+        
+        if (!Base64.isBase64(dataPackage.getEncryptedSymmetricKey())) {
+            throw new EncryptionException("encrpyted symmetric key in data package is not base64 encoded");
+        }
+        try {
+            decryptedsymmetricKey = asymmetricCipherer.decrypt(Base64.decodeBase64(dataPackage.getEncryptedSymmetricKey()));
+        } catch (InvalidKeyException | IllegalBlockSizeException
+                | BadPaddingException | InvalidAlgorithmParameterException e) {
+            throw new EncryptionException("Error during asymmetric decryption of symmetric key", e);
+        }
+        try {
+            symmetricCipherer.setKeyFromByteArray(decryptedsymmetricKey);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new EncryptionException("Bad symmetric key", e);
+        }
+        
+        // decrypt entries
+        
+        for (PrivacyDataEntry entry : dataPackage.getEntries()) {
+            if (!Base64.isBase64(entry.getInitializationVector())) {
+                throw new EncryptionException("initialization vector of entry " + entry.getSensorUri() + " is not base64 encoded");
+            }
+            if (!Base64.isBase64(entry.getEncryptedContent())) {
+                throw new EncryptionException("encrpyted content of entry " + entry.getSensorUri() + " is not base64 encoded");
+            }
+            
+            try {
+                symmetricCipherer.setIvFromByteArray(Base64.decodeBase64(entry.getInitializationVector()));
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                throw new EncryptionException("Bad initialization vector", e);
+            }
+            
+            try {
+                contents.put(entry.getSensorUri(), symmetricCipherer.decrypt(Base64.decodeBase64(entry.getEncryptedContent())));
+            } catch (InvalidKeyException | IllegalBlockSizeException
+                    | BadPaddingException | InvalidAlgorithmParameterException e) {
+                throw new EncryptionException("Error during decryption of content of entry " + entry.getSensorUri(), e);
+            }
+        }
+        
+        return contents;
+    }
+    
+    /**
+     * Creates and initializes the symmetric cipherer given by the encryption parameters.
+     */
+    private static SymmetricCipherer createSymmetricCipherer(EncryptionParameters encryptionParameters) throws EncryptionException {
+        SymmetricCipherer symmetricCipherer;
+        try {
+            symmetricCipherer = CiphererFactory.createSymmetricCipherer(encryptionParameters.getSymmetricEncryptionAlgorithm());
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new EncryptionException("Symmetric algorithm not supported: " + encryptionParameters.getSymmetricEncryptionAlgorithm(), e);
+        }
+        if (symmetricCipherer == null) {
+            throw new EncryptionException("Symmetric algorithm not supported: " + encryptionParameters.getSymmetricEncryptionAlgorithm());
+        }
+        try {
+            symmetricCipherer.initialize(encryptionParameters.getSymmetricEncryptionBitStrength());
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new EncryptionException("BitStrength for symmetric encryption not supported: " + encryptionParameters.getSymmetricEncryptionBitStrength(), e);
+        }
+        return symmetricCipherer;
+    }
+    
+    /**
+     * Creates and initializes the asymmetric cipherer given by the encryption parameters.
+     */
+    private static AsymmetricCipherer createAsymmetricCipherer(EncryptionParameters encryptionParameters) throws EncryptionException {
+        AsymmetricCipherer asymmetricCipherer;
+        try {
+            asymmetricCipherer = CiphererFactory.createAsymmetricCipherer(encryptionParameters.getAsymmetricEncryptionAlgorithm());
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException | NoSuchProviderException e) {
+            throw new EncryptionException("Asymmetric algorithm not supported: " + encryptionParameters.getAsymmetricEncryptionAlgorithm(), e);
+        }
+        if (asymmetricCipherer == null) {
+            throw new EncryptionException("Asymmetric algorithm not supported: " + encryptionParameters.getAsymmetricEncryptionAlgorithm());
+        }
+        try {
+            asymmetricCipherer.initialize(encryptionParameters.getAsymmetricEncryptionBitStrength());
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new EncryptionException("BitStrength for asymmetric encryption not supported: " + encryptionParameters.getAsymmetricEncryptionBitStrength(), e);
+        }
+        return asymmetricCipherer;
+    }
+
 }
@@ -0,0 +1,99 @@
+package de.uniluebeck.itm.priviot.utils.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with exponential buckets.
+ *
+ * Bucket i counts the latencies below 2^i microseconds, the last bucket all larger latencies.
+ * A percentile is given as the upper bound of it's bucket, so it's at most twice the real value.
+ * Recording a latency is lock-free.
+ */
+public class LatencyHistogram {
+
+    /** The last bucket starts at 2^30 microseconds, about 18 minutes */
+    private static final int BUCKETS = 32;
+
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private AtomicLong count = new AtomicLong();
+
+    /** Sum of the latencies in nanoseconds */
+    private AtomicLong total = new AtomicLong();
+
+    /** Maximum latency in nanoseconds */
+    private AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     * @param nanos  The latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+
+        long actualMax = max.get();
+        while (nanos > actualMax && !max.compareAndSet(actualMax, nanos)) {
+            actualMax = max.get();
+        }
+    }
+
+    /**
+     * Records the latency since the given start.
+     * @param startNanos  Start as returned by System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /** Returns the number of recorded latencies */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Returns the average latency in microseconds */
+    public long getMeanMicros() {
+        long n = count.get();
+        return n > 0 ? TimeUnit.NANOSECONDS.toMicros(total.get() / n) : 0;
+    }
+
+    /** Returns the maximum latency in microseconds */
+    public long getMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(max.get());
+    }
+
+    /**
+     * Returns the latency in microseconds, that the given fraction of the latencies is below.
+     * @param quantile  The fraction, e.g. 0.99
+     */
+    public long getPercentileMicros(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+}
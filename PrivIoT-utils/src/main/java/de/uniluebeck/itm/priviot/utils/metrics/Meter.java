@@ -0,0 +1,77 @@
+package de.uniluebeck.itm.priviot.utils.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events and measures their rate per second over the last minute.
+ *
+ * The events are counted in one slot per second of a ring of 60 slots. A slot is reset,
+ * when it's second comes around again. Marking an event is lock-free.
+ */
+public class Meter {
+
+    /** Number of seconds the rate is measured over */
+    private static final int WINDOW = 60;
+
+    private AtomicLong count = new AtomicLong();
+
+    /** Number of events of every slot */
+    private AtomicLongArray slotCounts = new AtomicLongArray(WINDOW);
+
+    /** Second of every slot */
+    private AtomicLongArray slotSeconds = new AtomicLongArray(WINDOW);
+
+    private long startSecond = currentSecond();
+
+    /**
+     * Counts one event.
+     */
+    public void mark() {
+        mark(1);
+    }
+
+    /**
+     * Counts n events.
+     */
+    public void mark(long n) {
+        count.addAndGet(n);
+
+        long second = currentSecond();
+        // System.nanoTime() may be negative
+        int slot = (int)(((second % WINDOW) + WINDOW) % WINDOW);
+        long slotSecond = slotSeconds.get(slot);
+        if (slotSecond != second && slotSeconds.compareAndSet(slot, slotSecond, second)) {
+            // the events of a concurrent mark between both calls may be lost, the rate is approximate anyway
+            slotCounts.set(slot, 0);
+        }
+        slotCounts.addAndGet(slot, n);
+    }
+
+    /** Returns the number of events since the start */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the number of events per second over the last minute (or since the start, if it's younger).
+     * The actual second isn't complete and is left out.
+     */
+    public double getRate() {
+        long second = currentSecond();
+        long events = 0;
+        for (int slot = 0; slot < WINDOW; slot++) {
+            long age = second - slotSeconds.get(slot);
+            if (age > 0 && age <= WINDOW) {
+                events += slotCounts.get(slot);
+            }
+        }
+
+        long seconds = Math.min(second - startSecond, WINDOW);
+        return seconds > 0 ? (double)events / seconds : 0;
+    }
+
+    private static long currentSecond() {
+        return System.nanoTime() / 1000000000L;
+    }
+}
@@ -0,0 +1,129 @@
+package de.uniluebeck.itm.priviot.utils.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The operational metrics of an application: meters of events, histograms of latencies
+ * and gauges, that read an actual value (e.g. a queue depth) when the metrics are reported.
+ *
+ * The metrics are created on first use by their name and can be shared by all components.
+ * The report is a JSON object, so it can be read by monitoring tools:
+ * {"uptime":s, "meters":{name:{"count":n,"rate":r}}, "histograms":{name:{"count":n,"mean":us,...}}, "gauges":{name:v}}
+ * Rates are given per second, latencies in microseconds.
+ */
+public class Metrics {
+
+    /**
+     * Reads the actual value of a gauge.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    private long startTime = System.currentTimeMillis();
+
+    private ConcurrentMap<String, Meter> meters = new ConcurrentSkipListMap<String, Meter>();
+
+    private ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<String, LatencyHistogram>();
+
+    private ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+    /**
+     * Returns the meter with the given name. It's created, if it doesn't exist.
+     */
+    public Meter meter(String name) {
+        Meter meter = meters.get(name);
+        if (meter == null) {
+            meter = new Meter();
+            Meter existingMeter = meters.putIfAbsent(name, meter);
+            if (existingMeter != null) {
+                meter = existingMeter;
+            }
+        }
+        return meter;
+    }
+
+    /**
+     * Returns the histogram with the given name. It's created, if it doesn't exist.
+     */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existingHistogram = histograms.putIfAbsent(name, histogram);
+            if (existingHistogram != null) {
+                histogram = existingHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Adds a gauge. A gauge with the same name is replaced.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Returns the actual values of all metrics as JSON object.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"uptime\":").append((System.currentTimeMillis() - startTime) / 1000);
+
+        json.append(",\"meters\":{");
+        boolean first = true;
+        for (Map.Entry<String, Meter> meter : meters.entrySet()) {
+            first = appendName(json, meter.getKey(), first);
+            json.append("{\"count\":").append(meter.getValue().getCount())
+                .append(",\"rate\":").append(String.format(Locale.ROOT, "%.2f", meter.getValue().getRate()))
+                .append('}');
+        }
+
+        json.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            first = appendName(json, entry.getKey(), first);
+            json.append("{\"count\":").append(histogram.getCount())
+                .append(",\"mean\":").append(histogram.getMeanMicros())
+                .append(",\"p50\":").append(histogram.getPercentileMicros(0.5))
+                .append(",\"p99\":").append(histogram.getPercentileMicros(0.99))
+                .append(",\"max\":").append(histogram.getMaxMicros())
+                .append('}');
+        }
+
+        json.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            first = appendName(json, gauge.getKey(), first);
+            json.append(gauge.getValue().getValue());
+        }
+
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Appends the name of a member of a JSON object.
+     * @return false, the next member isn't the first one
+     */
+    private static boolean appendName(StringBuilder json, String name, boolean first) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append('"');
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\');
+            }
+            json.append(c);
+        }
+        json.append("\":");
+        return false;
+    }
+}
@@ -9,6 +9,12 @@ import java.util.Date;
  */
 public class PseudonymizationProcessor {
 	
+	/** 
+	 * One generator per thread. The initialization of a generator (Mac and SecureRandom) is expensive,
+	 * so it is not repeated for every pseudonym.
+	 */
+	private static final ThreadLocal<HMacSha256PseudonymGenerator> hmac256Generators = new ThreadLocal<HMacSha256PseudonymGenerator>();
+	
 	/**
 	 * Generates a secret that can be used in the HMAC-256 algorithm.
 	 * @return secret
@@ -46,27 +52,45 @@ public class PseudonymizationProcessor {
 	 * @return
 	 */
 	public static String generateHmac256Pseudonym(String original, int timePeriod, byte[] secret) throws PseudonymizationException {
+		return generateHmac256Pseudonym(original, timePeriod, secret, new Date().getTime());
+	}
+	
+	/**
+	 * Generates the pseudonym, that generateHmac256Pseudonym(original, timePeriod, secret) 
+	 * produces at the given time.
+	 * Can be used to compute the pseudonym of the next time period in advance.
+	 * 
+	 * @param original    An arbitrary String.
+	 * @param timePeriod  timePeriod (in seconds) in which the generated pseudonym will not change.
+	 * @param secret      A pseudorandom secret with length 256.
+	 * @param time        The time in milliseconds since January 1, 1970 the pseudonym is generated for.
+	 * @return
+	 */
+	public static String generateHmac256Pseudonym(String original, int timePeriod, byte[] secret, long time) throws PseudonymizationException {
 		if (original.isEmpty() || timePeriod == 0 || secret.length == 0) {
 			throw new PseudonymizationException("Bad input. original length " + original.length() + ", timePeriod " + timePeriod + ", secret length " + secret.length);
 		}
 		
-		Date actDate = new Date();
 		// milliseconds since January 1, 1970.
-		long milliseconds = actDate.getTime();
+		long milliseconds = time;
 		// milliseconds since last update time
-		long modulo = milliseconds % (timePeriod*1000);
+		long modulo = milliseconds % (timePeriod*1000L);
 		// seconds since January 1, 1970 at the last update time
 		long roundedSeconds = milliseconds - modulo;
 		
 		// concatenate
 		String plaintext = original + roundedSeconds;
 		
-		// initialize generator
-		HMacSha256PseudonymGenerator generator = new HMacSha256PseudonymGenerator();
-		try {
-			generator.inititialize();
-		} catch (NoSuchAlgorithmException e) {
-			throw new PseudonymizationException("Exception during initialization of HMac256PseudonymGenerator", e);
+		// get the generator of this thread or initialize it
+		HMacSha256PseudonymGenerator generator = hmac256Generators.get();
+		if (generator == null) {
+			generator = new HMacSha256PseudonymGenerator();
+			try {
+				generator.inititialize();
+			} catch (NoSuchAlgorithmException e) {
+				throw new PseudonymizationException("Exception during initialization of HMac256PseudonymGenerator", e);
+			}
+			hmac256Generators.set(generator);
 		}
 		
 		// generate pseudonym
@@ -0,0 +1,260 @@
+package eu.spitfire.ssp.backends.external.coap;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.uniluebeck.itm.ncoap.application.client.CoapClientApplication;
+import de.uniluebeck.itm.ncoap.application.client.CoapResponseProcessor;
+import de.uniluebeck.itm.ncoap.application.client.Token;
+import de.uniluebeck.itm.ncoap.communication.reliability.outgoing.RetransmissionTimeoutProcessor;
+import de.uniluebeck.itm.ncoap.message.CoapMessage;
+import de.uniluebeck.itm.ncoap.message.CoapRequest;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.ncoap.message.MessageType;
+import de.uniluebeck.itm.ncoap.message.options.OptionValue;
+import de.uniluebeck.itm.ncoap.message.options.UintOptionValue;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Client side of block-wise transfers (RFC 7959) with the option Block2.
+ *
+ * nCoAP doesn't support block-wise transfers. A large status of a {@link CoapWebservice} is sent in blocks,
+ * that are fetched one after another with GET requests and reassembled by the {@link BlockwiseClient}.
+ * If the ETag changes during the transfer, the status was updated in between and the transfer starts again
+ * with the first block.
+ *
+ * @author Sebastian Fischer
+ */
+public class BlockwiseClient {
+
+    private Logger log = LoggerFactory.getLogger(BlockwiseClient.class.getName());
+
+    /** Maximum number of restarts of a transfer because of a changed status */
+    private static final int MAX_RESTARTS = 3;
+
+    /** Size exponent of the requested blocks, i.e. blocks of 1024 bytes. The server may choose smaller blocks. */
+    private static final int SIZE_EXPONENT = BlockOption.MAX_SIZE_EXPONENT;
+
+    private CoapClientApplication coapClient;
+
+    /**
+     * Creates a new instance of {@link BlockwiseClient}
+     *
+     * @param coapClient the {@link de.uniluebeck.itm.ncoap.application.client.CoapClientApplication} to send the
+     *                   requests for the blocks
+     */
+    public BlockwiseClient(CoapClientApplication coapClient) {
+        this.coapClient = coapClient;
+    }
+
+    /**
+     * Returns true, if the status in the response is incomplete and has to be fetched block-wise, i.e. the
+     * response contains a block with more blocks following or the response is the empty update notification
+     * of a large status.
+     */
+    public static boolean isIncomplete(CoapResponse coapResponse) {
+        if (coapResponse.getMessageCodeName() != MessageCode.Name.CONTENT_205) {
+            return false;
+        }
+        BlockOption block2 = getBlock2(coapResponse);
+        return (block2 != null && block2.isMore()) || coapResponse.getContent().readableBytes() == 0;
+    }
+
+    /**
+     * Fetches the status of a webservice block-wise.
+     *
+     * @param webserviceUri  the {@link java.net.URI} of the webservice
+     * @param firstResponse  an already received response with the first block, e.g. the response to an
+     *                       observation, or null to start with the first block
+     * @param contentFormats the accepted content formats
+     *
+     * @return a future of a response with the whole status
+     */
+    public ListenableFuture<CoapResponse> fetch(URI webserviceUri, CoapResponse firstResponse, long... contentFormats) {
+        Transfer transfer = new Transfer(webserviceUri, contentFormats);
+
+        try {
+            if (firstResponse != null && getBlock2(firstResponse) != null) {
+                transfer.receivedBlock(firstResponse);
+            }
+            else {
+                transfer.requestBlock(0, SIZE_EXPONENT);
+            }
+        }
+        catch (Exception ex) {
+            transfer.future.setException(ex);
+        }
+
+        return transfer.future;
+    }
+
+    /**
+     * Returns the option Block2 of the message or null, if the option is not set or malformed.
+     */
+    public static BlockOption getBlock2(CoapMessage coapMessage) {
+        return getBlock(coapMessage, BlockOption.BLOCK_2);
+    }
+
+    /**
+     * Returns the option Block1 of the message or null, if the option is not set or malformed.
+     */
+    public static BlockOption getBlock1(CoapMessage coapMessage) {
+        return getBlock(coapMessage, BlockOption.BLOCK_1);
+    }
+
+    private static BlockOption getBlock(CoapMessage coapMessage, int optionNumber) {
+        Set<OptionValue> options = coapMessage.getOptions(optionNumber);
+        if (options == null || options.isEmpty()) {
+            return null;
+        }
+
+        Object value = options.iterator().next().getDecodedValue();
+        if (!(value instanceof Long)) {
+            return null;
+        }
+        return BlockOption.decode((Long) value);
+    }
+
+
+    /**
+     * A running block-wise transfer.
+     */
+    private class Transfer {
+
+        private URI webserviceUri;
+        private long[] contentFormats;
+
+        private SettableFuture<CoapResponse> future = SettableFuture.create();
+
+        /** The received blocks */
+        private ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        /** ETag of the first block, null if the webservice doesn't send ETags */
+        private byte[] etag;
+
+        private int restarts = 0;
+
+        private Transfer(URI webserviceUri, long[] contentFormats) {
+            this.webserviceUri = webserviceUri;
+            this.contentFormats = contentFormats;
+        }
+
+
+        private void requestBlock(long number, int sizeExponent) throws UnknownHostException {
+            CoapRequest coapRequest = new CoapRequest(MessageType.Name.CON, MessageCode.Name.GET, webserviceUri);
+            coapRequest.setAccept(contentFormats);
+            coapRequest.addOption(BlockOption.BLOCK_2,
+                    new UintOptionValue(BlockOption.BLOCK_2, new BlockOption(number, false, sizeExponent).encode()));
+
+            InetAddress remoteAddress = InetAddress.getByName(webserviceUri.getHost());
+            int port = webserviceUri.getPort() == -1 ? 5683 : webserviceUri.getPort();
+
+            coapClient.sendCoapRequest(coapRequest, new BlockProcessor(this), new InetSocketAddress(remoteAddress, port));
+        }
+
+
+        private void receivedBlock(CoapResponse coapResponse) throws UnknownHostException {
+            if (coapResponse.getMessageCodeName() != MessageCode.Name.CONTENT_205) {
+                future.setException(new Exception("Block-wise transfer of " + webserviceUri + " failed with code "
+                        + coapResponse.getMessageCodeName()));
+                return;
+            }
+
+            BlockOption block = getBlock2(coapResponse);
+            if (block == null) {
+                // the webservice sent the whole status at once
+                future.set(coapResponse);
+                return;
+            }
+
+            if (etag != null && coapResponse.getEtag() != null && !Arrays.equals(etag, coapResponse.getEtag())) {
+                if (++restarts > MAX_RESTARTS) {
+                    future.setException(new Exception("Status of " + webserviceUri
+                            + " changed during every block-wise transfer"));
+                    return;
+                }
+                log.debug("Status of {} changed during block-wise transfer. Restart.", webserviceUri);
+                content.reset();
+                etag = null;
+                requestBlock(0, SIZE_EXPONENT);
+                return;
+            }
+
+            if (block.getOffset() != content.size()) {
+                future.setException(new Exception("Received block " + block + " of " + webserviceUri
+                        + " doesn't follow the received " + content.size() + " bytes"));
+                return;
+            }
+
+            if (block.getNumber() == 0) {
+                etag = coapResponse.getEtag();
+                // the following blocks have to be in the same content format
+                contentFormats = new long[]{coapResponse.getContentFormat()};
+            }
+
+            ChannelBuffer buffer = coapResponse.getContent();
+            byte[] blockContent = new byte[buffer.readableBytes()];
+            buffer.getBytes(buffer.readerIndex(), blockContent);
+            content.write(blockContent, 0, blockContent.length);
+
+            if (block.isMore()) {
+                requestBlock(block.getNumber() + 1, block.getSizeExponent());
+                return;
+            }
+
+            log.debug("Received status of {} with {} bytes block-wise.", webserviceUri, content.size());
+
+            CoapResponse completeResponse = new CoapResponse(coapResponse.getMessageTypeName(), MessageCode.Name.CONTENT_205);
+            completeResponse.setContent(content.toByteArray(), coapResponse.getContentFormat());
+            if (etag != null) {
+                completeResponse.setEtag(etag);
+            }
+            completeResponse.setMaxAge(coapResponse.getMaxAge());
+            future.set(completeResponse);
+        }
+    }
+
+
+    /**
+     * Processes the response to the request of a single block.
+     */
+    private class BlockProcessor implements CoapResponseProcessor, RetransmissionTimeoutProcessor {
+
+        private Transfer transfer;
+
+        private BlockProcessor(Transfer transfer) {
+            this.transfer = transfer;
+        }
+
+
+        @Override
+        public void processCoapResponse(CoapResponse coapResponse) {
+            try {
+                transfer.receivedBlock(coapResponse);
+            }
+            catch (Exception ex) {
+                transfer.future.setException(ex);
+            }
+        }
+
+
+        @Override
+        public void processRetransmissionTimeout(InetSocketAddress remoteEndpoint, int messageID, Token token) {
+            transfer.future.setException(new Exception("Block-wise transfer of " + transfer.webserviceUri
+                    + " timed out."));
+        }
+    }
+}
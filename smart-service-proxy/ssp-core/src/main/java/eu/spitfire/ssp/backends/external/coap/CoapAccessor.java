@@ -1,5 +1,7 @@
 package eu.spitfire.ssp.backends.external.coap;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -13,6 +15,7 @@ import de.uniluebeck.itm.ncoap.message.CoapResponse;
 import de.uniluebeck.itm.ncoap.message.MessageCode;
 import de.uniluebeck.itm.ncoap.message.MessageType;
 import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
 import eu.spitfire.ssp.backends.generic.Accessor;
 import eu.spitfire.ssp.server.internal.messages.responses.AccessResult;
 import eu.spitfire.ssp.server.internal.messages.responses.DataOriginAccessError;
@@ -23,6 +26,8 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A {@link CoapAccessor} is the component to access external
@@ -38,6 +43,15 @@ public class CoapAccessor extends Accessor<URI, CoapWebservice> {
     /** Stores the private key */
     private KeyStore keyStore;
 
+    /**
+     * The last received status of every webservice together with it's ETag. If the webservice answers a request
+     * with 2.03 Valid, the status is still up-to-date and doesn't have to be decrypted and parsed again.
+     */
+    private Map<URI, ValidatedStatus> validatedStatuses;
+
+    /** Fetches large status block-wise */
+    private BlockwiseClient blockwiseClient;
+
     /**
      * Creates a new instance of {@link CoapAccessor}
      *
@@ -47,8 +61,10 @@ public class CoapAccessor extends Accessor<URI, CoapWebservice> {
     public CoapAccessor(CoapBackendComponentFactory componentFactory) {
         super(componentFactory);
         this.coapClient = componentFactory.getCoapClient();
+        this.blockwiseClient = new BlockwiseClient(coapClient);
         
         this.keyStore = componentFactory.getKeyStore();
+        this.validatedStatuses = new ConcurrentHashMap<>();
     }
 
 
@@ -65,6 +81,12 @@ public class CoapAccessor extends Accessor<URI, CoapWebservice> {
             		              ContentFormat.APP_TURTLE,
             		              ContentFormat.APP_XML);
 
+            // let the webservice validate the last received status
+            ValidatedStatus validatedStatus = validatedStatuses.get(webserviceUri);
+            if(validatedStatus != null){
+                coapRequest.setEtags(validatedStatus.etag);
+            }
+
             InetAddress remoteAddress = InetAddress.getByName(webserviceUri.getHost());
             int port = webserviceUri.getPort() == -1 ? 5683 : webserviceUri.getPort();
 
@@ -93,10 +115,60 @@ public class CoapAccessor extends Accessor<URI, CoapWebservice> {
 
         @Override
         public void processCoapResponse(CoapResponse coapResponse) {
+            BlockOption block2 = BlockwiseClient.getBlock2(coapResponse);
+            if(block2 != null && block2.isMore()){
+                // the first block of a large status
+                fetchBlockwise(coapResponse);
+                return;
+            }
+            processStatus(coapResponse);
+        }
+
+
+        private void fetchBlockwise(CoapResponse coapResponse) {
+            ListenableFuture<CoapResponse> completeResponse = blockwiseClient.fetch(webserviceUri, coapResponse,
+                    ContentFormat.APP_RDF_XML, ContentFormat.APP_N3, ContentFormat.APP_TURTLE, ContentFormat.APP_XML);
+
+            Futures.addCallback(completeResponse, new FutureCallback<CoapResponse>() {
+                @Override
+                public void onSuccess(CoapResponse result) {
+                    processStatus(result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    resultFuture.set(new DataOriginAccessError(
+                            AccessResult.Code.INTERNAL_ERROR, t.getMessage()
+                    ));
+                }
+            });
+        }
+
+
+        private void processStatus(CoapResponse coapResponse) {
             try{
-                Model model = CoapTools.getModelFromCoapResponse(coapResponse, keyStore);
                 Date expiry = new Date(System.currentTimeMillis() + coapResponse.getMaxAge() * 1000);
 
+                if(coapResponse.getMessageCodeName() == MessageCode.Name.VALID_203){
+                    ValidatedStatus validatedStatus = validatedStatuses.get(webserviceUri);
+                    if(validatedStatus != null){
+                        // the last received status is still valid
+                        resultFuture.set(new ExpiringNamedGraph(webserviceUri, validatedStatus.model, expiry));
+                        return;
+                    }
+                    throw new IllegalStateException("Received 2.03 Valid from " + webserviceUri + " without known status.");
+                }
+
+                Model model = CoapTools.getModelFromCoapResponse(coapResponse, keyStore);
+
+                byte[] etag = coapResponse.getEtag();
+                if(etag != null && etag.length > 0){
+                    validatedStatuses.put(webserviceUri, new ValidatedStatus(etag, model));
+                }
+                else{
+                    validatedStatuses.remove(webserviceUri);
+                }
+
                 resultFuture.set(new ExpiringNamedGraph(webserviceUri, model, expiry));
             }
             catch(Exception ex){
@@ -114,4 +186,19 @@ public class CoapAccessor extends Accessor<URI, CoapWebservice> {
             ));
         }
     }
+
+
+    /**
+     * A received status of a webservice and it's ETag
+     */
+    private static class ValidatedStatus {
+
+        private byte[] etag;
+        private Model model;
+
+        private ValidatedStatus(byte[] etag, Model model) {
+            this.etag = etag;
+            this.model = model;
+        }
+    }
 }
@@ -58,6 +58,8 @@ public class CoapBackendComponentFactory extends BackendComponentFactory<URI, Co
     public void initialize() throws Exception {
     	// fischer: added certificateWebservice. Is this the right place?
     	coapServer.registerService(certificateWebservice);
+    	// status forwarded in batches by CoAP Privacy Proxies
+    	coapServer.registerService(new CoapBatchWebservice(this));
     }
 
     /**
@@ -0,0 +1,216 @@
+package eu.spitfire.ssp.backends.external.coap;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.uniluebeck.itm.ncoap.application.server.webservice.NotObservableWebservice;
+import de.uniluebeck.itm.ncoap.message.CoapRequest;
+import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
+import de.uniluebeck.itm.ncoap.message.options.OptionValue;
+import de.uniluebeck.itm.ncoap.message.options.UintOptionValue;
+import de.uniluebeck.itm.priviot.utils.communication.BlockOption;
+import de.uniluebeck.itm.priviot.utils.communication.PackageBatch;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link eu.spitfire.ssp.backends.external.coap.CoapBatchWebservice} processes incoming POST requests to the
+ * "/batch" URI. A CoAP Privacy Proxy posts several status of it's observed Web Services at once as
+ * {@link de.uniluebeck.itm.priviot.utils.communication.PackageBatch} instead of sending one update notification per
+ * status. Every status of the batch is processed like an update notification of the Web Service.
+ *
+ * A large batch is posted block-wise with the option Block1 (RFC 7959). The blocks are reassembled per sender
+ * and every block but the last one is answered with 2.04 Changed and the option Block1, because nCoAP knows
+ * no 2.31 Continue. The batch is processed, when the last block arrived.
+ *
+ * @author Sebastian Fischer
+ */
+public class CoapBatchWebservice extends NotObservableWebservice<Void> {
+
+    private Logger log = LoggerFactory.getLogger(CoapBatchWebservice.class.getName());
+
+    private CoapObserver observer;
+
+    /** Maximum size of a reassembled batch in bytes */
+    private static final int MAX_SIZE = 1 << 20;
+
+    /** Time in milliseconds after that an incomplete block-wise batch is discarded */
+    private static final long TRANSFER_TIMEOUT_MILLIS = 60000;
+
+    /** The incomplete block-wise batches by their sender */
+    private Map<InetSocketAddress, Transfer> transfers = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new instance of {@link eu.spitfire.ssp.backends.external.coap.CoapBatchWebservice}.
+     *
+     * @param componentFactory the {@link eu.spitfire.ssp.backends.external.coap.CoapBackendComponentFactory} to
+     *                         get the {@link eu.spitfire.ssp.backends.external.coap.CoapObserver} from.
+     */
+    public CoapBatchWebservice(CoapBackendComponentFactory componentFactory){
+        super(PackageBatch.PATH, null, OptionValue.MAX_AGE_DEFAULT);
+        this.observer = componentFactory.getObserver(null);
+    }
+
+
+    @Override
+    public void processCoapRequest(final SettableFuture<CoapResponse> responseFuture,
+                                   final CoapRequest coapRequest, InetSocketAddress remoteAddress) {
+
+        try{
+            //Only POST messages are allowed
+            if(coapRequest.getMessageCodeName() != MessageCode.Name.POST){
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.METHOD_NOT_ALLOWED_405, "Only POST messages are allowed!"));
+                return;
+            }
+
+            if(coapRequest.getContentFormat() != PackageBatch.CONTENT_FORMAT){
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.UNSUPPORTED_CONTENT_FORMAT_415, "Only batches are supported!"));
+                return;
+            }
+
+            ChannelBuffer content = coapRequest.getContent();
+            byte[] payload = new byte[content.readableBytes()];
+            content.getBytes(content.readerIndex(), payload);
+
+            BlockOption block1 = BlockwiseClient.getBlock1(coapRequest);
+            if(block1 != null){
+                payload = receivedBlock(responseFuture, coapRequest, remoteAddress, block1, payload);
+                if(payload == null){
+                    //the response is already set
+                    return;
+                }
+            }
+
+            PackageBatch batch = PackageBatch.decode(payload);
+            if(batch == null){
+                responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                        MessageCode.Name.BAD_REQUEST_400, "Malformed batch!"));
+                return;
+            }
+
+            log.debug("Received batch of {} status from {}.", batch.getCount(), remoteAddress.getAddress());
+
+            //the sender doesn't wait for the cache updates
+            responseFuture.set(new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.CHANGED_204));
+
+            String remoteHostName = remoteAddress.getHostName();
+            for(PackageBatch.Entry entry : batch.getEntries()){
+                //the same URI as registered by the CoapRegistryWebservice
+                URI webserviceUri = new URI("coap", null, remoteHostName, 5683, entry.getPath(), null, null);
+
+                CoapResponse status = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.CONTENT_205);
+                status.setContent(entry.getContent(), ContentFormat.APP_XML);
+                status.setMaxAge(entry.getMaxAge());
+
+                observer.processStatus(webserviceUri, status);
+            }
+        }
+        catch(Exception ex){
+            responseFuture.setException(ex);
+        }
+    }
+
+    /**
+     * Adds a block of a block-wise batch to the transfer of the sender.
+     *
+     * @return the whole batch, if this was the last block, or <code>null</code> if the response was set already
+     */
+    private byte[] receivedBlock(SettableFuture<CoapResponse> responseFuture, CoapRequest coapRequest,
+                                 InetSocketAddress remoteAddress, BlockOption block1, byte[] payload){
+
+        removeStaleTransfers();
+
+        Transfer transfer = block1.getNumber() == 0 ? new Transfer() : transfers.get(remoteAddress);
+        if(transfer == null || transfer.content.size() != block1.getOffset()){
+            transfers.remove(remoteAddress);
+            responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                    MessageCode.Name.BAD_REQUEST_400, "Block " + block1.getNumber() + " out of order!"));
+            return null;
+        }
+
+        if(transfer.content.size() + payload.length > MAX_SIZE){
+            transfers.remove(remoteAddress);
+            responseFuture.set(CoapResponse.createErrorResponse(coapRequest.getMessageTypeName(),
+                    MessageCode.Name.REQUEST_ENTITY_TOO_LARGE_413, "Batch larger than " + MAX_SIZE + " bytes!"));
+            return null;
+        }
+
+        transfer.content.write(payload, 0, payload.length);
+        transfer.lastBlockTime = System.currentTimeMillis();
+
+        if(block1.isMore()){
+            transfers.put(remoteAddress, transfer);
+
+            CoapResponse coapResponse = new CoapResponse(coapRequest.getMessageTypeName(), MessageCode.Name.CHANGED_204);
+            coapResponse.addOption(BlockOption.BLOCK_1, new UintOptionValue(BlockOption.BLOCK_1, block1.encode()));
+            responseFuture.set(coapResponse);
+            return null;
+        }
+
+        transfers.remove(remoteAddress);
+        return transfer.content.toByteArray();
+    }
+
+
+    private void removeStaleTransfers(){
+        long now = System.currentTimeMillis();
+        Iterator<Transfer> iterator = transfers.values().iterator();
+        while(iterator.hasNext()){
+            if(now - iterator.next().lastBlockTime > TRANSFER_TIMEOUT_MILLIS){
+                iterator.remove();
+            }
+        }
+    }
+
+
+    /**
+     * Returns an empty byte array as there is only POST allowed and no content provided. However, this method is only
+     * implemented for the sake of completeness and is not used at all by the framework.
+     *
+     * @param contentFormat the number representing the desired content format
+     *
+     * @return an empty byte array
+     */
+    @Override
+    public byte[] getSerializedResourceStatus(long contentFormat) {
+        return new byte[0];
+    }
+
+    @Override
+    public byte[] getEtag(long contentFormat) {
+        return new byte[0];
+    }
+
+    @Override
+    public void updateEtag(Void resourceStatus) {
+
+    }
+
+    @Override
+    public void shutdown() {
+
+    }
+
+
+    /**
+     * The received blocks of a block-wise batch.
+     */
+    private static class Transfer {
+
+        private ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        private long lastBlockTime;
+    }
+}
@@ -24,6 +24,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.Date;
+import java.util.Map;
 
 /**
  * The {@link CoapObserver} is the component to observe registered
@@ -39,6 +40,12 @@ public class CoapObserver extends Observer<URI, CoapWebservice> {
     
     /** Stores the private key */
     private KeyStore keyStore;
+    
+    /** Reconstructs delta encoded graphs of the update notifications */
+    private GeographicDeltaDecoder deltaDecoder = new GeographicDeltaDecoder();
+
+    /** Fetches large status block-wise */
+    private BlockwiseClient blockwiseClient;
 
     /**
      * Creates a new instance of {@link eu.spitfire.ssp.backends.generic.Observer}.
@@ -50,6 +57,7 @@ public class CoapObserver extends Observer<URI, CoapWebservice> {
     protected CoapObserver(CoapBackendComponentFactory componentFactory) {
         super(componentFactory);
         this.coapClient = componentFactory.getCoapClient();
+        this.blockwiseClient = new BlockwiseClient(coapClient);
         
         this.keyStore = componentFactory.getKeyStore();
     }
@@ -112,15 +120,61 @@ public class CoapObserver extends Observer<URI, CoapWebservice> {
 
         @Override
         public void processCoapResponse(CoapResponse coapResponse) {
-            try{
-                Model model = CoapTools.getModelFromCoapResponse(coapResponse, keyStore);
-                Date expiry = new Date(System.currentTimeMillis() + coapResponse.getMaxAge() * 1000);
+            if(BlockwiseClient.isIncomplete(coapResponse)){
+                // the first block or the empty update notification of a large status
+                fetchBlockwise(coapResponse);
+                return;
+            }
+            processStatus(graphName, coapResponse);
+        }
+
+
+        private void fetchBlockwise(CoapResponse coapResponse) {
+            ListenableFuture<CoapResponse> completeResponse = blockwiseClient.fetch(graphName, coapResponse,
+                    ContentFormat.APP_RDF_XML, ContentFormat.APP_N3, ContentFormat.APP_TURTLE, ContentFormat.APP_XML);
+
+            Futures.addCallback(completeResponse, new FutureCallback<CoapResponse>() {
+                @Override
+                public void onSuccess(CoapResponse result) {
+                    if(result.getContent().readableBytes() == 0){
+                        log.debug("Status of {} is empty.", graphName);
+                        return;
+                    }
+                    processStatus(graphName, result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    log.error("Could not fetch status of {} block-wise.", graphName, t);
+                }
+            });
+        }
+    }
+
 
-                // fischer: in encrypted sensor data packages there may be an alternative name for the graph
-                URI alternativeLocationUri = CoapTools.getAlternativeLocationUri(coapResponse);
-                final URI actualGraphName = (alternativeLocationUri == null) ? graphName : alternativeLocationUri;
+    /**
+     * Updates the cache with the graphs of a status.
+     *
+     * @param graphName the name of the graph, if the status doesn't name it's graphs, i.e. the
+     *                  {@link java.net.URI} of the observed webservice
+     * @param coapResponse the {@link de.uniluebeck.itm.ncoap.message.CoapResponse} with the complete status
+     */
+    void processStatus(URI graphName, CoapResponse coapResponse) {
+        try{
+            Date expiry = new Date(System.currentTimeMillis() + coapResponse.getMaxAge() * 1000);
+
+            // fischer: in encrypted sensor data packages there may be an alternative name for the graph.
+            // A batch package from a sensor collection contains one graph per sensor pseudonym.
+            Map<URI, Model> models = CoapTools.getNamedModelsFromCoapResponse(coapResponse, keyStore, graphName, deltaDecoder);
+            if (models == null) {
+                log.error("Could not read Update Notification from {}.", graphName);
+                return;
+            }
+            
+            for (Map.Entry<URI, Model> model : models.entrySet()) {
+                final URI actualGraphName = model.getKey();
                 
-                ExpiringNamedGraph expiringNamedGraph = new ExpiringNamedGraph(actualGraphName, model, expiry);
+                ExpiringNamedGraph expiringNamedGraph = new ExpiringNamedGraph(actualGraphName, model.getValue(), expiry);
                 ListenableFuture<Void> cacheUpdateResult = updateCache(expiringNamedGraph);
 
                 Futures.addCallback(cacheUpdateResult, new FutureCallback<Void>() {
@@ -134,11 +188,11 @@ public class CoapObserver extends Observer<URI, CoapWebservice> {
                         log.error("Error while updating graph {}", actualGraphName);
                     }
                 });
-
-            }
-            catch(Exception ex){
-                log.error("Error while processing Update Notification from {}.", graphName, ex);
             }
+
+        }
+        catch(Exception ex){
+            log.error("Error while processing Update Notification from {}.", graphName, ex);
         }
     }
 }
@@ -2,7 +2,11 @@ package eu.spitfire.ssp.backends.external.coap;
 
 import java.io.ByteArrayInputStream;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.xml.bind.JAXBException;
 import javax.xml.stream.XMLStreamException;
@@ -12,8 +16,11 @@ import com.hp.hpl.jena.rdf.model.ModelFactory;
 
 import de.uniluebeck.itm.ncoap.message.CoapResponse;
 import de.uniluebeck.itm.ncoap.message.options.ContentFormat;
+import de.uniluebeck.itm.priviot.utils.data.DataPackageParsingException;
 import de.uniluebeck.itm.priviot.utils.data.EncryptionParameters;
+import de.uniluebeck.itm.priviot.utils.data.PrivIoTContentFormat;
 import de.uniluebeck.itm.priviot.utils.data.PrivacyDataPackageUnmarshaller;
+import de.uniluebeck.itm.priviot.utils.data.generated.PrivacyDataEntry;
 import de.uniluebeck.itm.priviot.utils.data.generated.PrivacyDataPackage;
 import de.uniluebeck.itm.priviot.utils.encryption.EncryptionException;
 import de.uniluebeck.itm.priviot.utils.encryption.EncryptionProcessor;
@@ -75,6 +82,68 @@ public abstract class CoapTools {
         }
     }
     
+    /**
+     * Reads the content of the given {@link de.uniluebeck.itm.ncoap.message.CoapResponse} and deserializes that content
+     * into one {@link com.hp.hpl.jena.rdf.model.Model} per named graph.
+     * 
+     * A batch privacy data package contains one graph per entry, named by the pseudonym URI of the entry.
+     * A single privacy data package contains one graph named by the URI of the package.
+     * Any other content is one graph named by defaultGraphName.
+     * 
+     * @param coapResponse the {@link de.uniluebeck.itm.ncoap.message.CoapResponse} to read the content from.
+     * @param keyStore The {@link eu.spitfire.ssp.backends.external.coap.KeyStore} that saves the private key.
+     * @param defaultGraphName the name of the graph, if the content doesn't name it's graph.
+     * @param deltaDecoder the {@link eu.spitfire.ssp.backends.external.coap.GeographicDeltaDecoder} to reconstruct
+     *                     delta encoded graphs and to store the keyframes. null, if deltas are not supported.
+     *
+     * @return the models mapped by the graph names or null, if the content couldn't be read.
+     */
+    public static Map<URI, Model> getNamedModelsFromCoapResponse(CoapResponse coapResponse, KeyStore keyStore,
+                                                                URI defaultGraphName, GeographicDeltaDecoder deltaDecoder) {
+        try{
+            //read payload from CoAP response
+            byte[] coapPayload = new byte[coapResponse.getContent().readableBytes()];
+            coapResponse.getContent().getBytes(0, coapPayload);
+            
+            Map<URI, Model> models = new LinkedHashMap<>();
+            
+            if (coapResponse.getContentFormat() == ContentFormat.APP_XML) {
+                if (coapPayload.length == 0) {
+                    log.error("CoAP payload is empty");
+                    return null;
+                }
+                
+                PrivacyDataPackage privacyDataPackage = unmarshalPrivacyDataPackage(coapPayload);
+                if (privacyDataPackage == null) {
+                    return null;
+                }
+                
+                if (!privacyDataPackage.getEntries().isEmpty()) {
+                    return getModelsFromPrivacyDataBatchPackage(privacyDataPackage, keyStore, deltaDecoder);
+                }
+                
+                URI graphName = new URI(privacyDataPackage.getSensorUri());
+                Model model = getModelFromPrivacyDataPackage(privacyDataPackage, keyStore, graphName, deltaDecoder);
+                if (model == null) {
+                    return null;
+                }
+                models.put(graphName, model);
+            }
+            else {
+                Model model = getModelFromCoapResponse(coapResponse, keyStore);
+                if (model == null) {
+                    return null;
+                }
+                models.put(defaultGraphName, model);
+            }
+            return models;
+        }
+        catch(Exception ex){
+            log.error("Could not read content from CoAP response!", ex);
+            return null;
+        }
+    }
+    
     /**
      * Returns the alternative locationUri if there exist one in the CoapResponse
      * @return Alternative locationUri or null, if none exist
@@ -135,6 +204,7 @@ public abstract class CoapTools {
     /**
      * If xmlCoapPayload is the xml representation of a PrivacyDataPackage,
      * this method unmarshalls the xml and decrypts the content of the package.
+     * The content of a batch package is the union of the contents of all entries.
      * 
      * @author Sebastian Fischer
      * 
@@ -143,18 +213,43 @@ public abstract class CoapTools {
      * @return  The content of the PrivacyDataPackage
      */
     private static Model getModelFromPrivacyDataPackage(byte[] xmlCoapPayload, KeyStore keyStore) {
+    	PrivacyDataPackage privacyDataPackage = unmarshalPrivacyDataPackage(xmlCoapPayload);
+    	if (privacyDataPackage == null) {
+    		return null;
+    	}
+    	
+    	if (!privacyDataPackage.getEntries().isEmpty()) {
+    		Map<URI, Model> models = getModelsFromPrivacyDataBatchPackage(privacyDataPackage, keyStore, null);
+    		if (models == null) {
+    			return null;
+    		}
+    		Model resourceStatus = ModelFactory.createDefaultModel();
+    		for (Model model : models.values()) {
+    			resourceStatus.add(model);
+    		}
+    		return resourceStatus;
+    	}
+    	
+    	return getModelFromPrivacyDataPackage(privacyDataPackage, keyStore, null, null);
+    }
+    
+    private static PrivacyDataPackage unmarshalPrivacyDataPackage(byte[] xmlCoapPayload) {
     	ByteArrayInputStream inStream = new ByteArrayInputStream(xmlCoapPayload);
-    	PrivacyDataPackage privacyDataPackage;
-    	Model resourceStatus = ModelFactory.createDefaultModel();
     	
     	// unmarshall PrivacyDataPackage
         try {
-        	privacyDataPackage = PrivacyDataPackageUnmarshaller.unmarshal(inStream);
+        	return PrivacyDataPackageUnmarshaller.unmarshal(inStream);
         } catch (JAXBException | XMLStreamException e) {
             log.error("XML CoAP payload is not a PrivacyDataPackage");
             return null;
         }
-        
+    }
+    
+    /**
+     * Decrypts the content of a single PrivacyDataPackage.
+     */
+    private static Model getModelFromPrivacyDataPackage(PrivacyDataPackage privacyDataPackage, KeyStore keyStore,
+                                                        URI graphName, GeographicDeltaDecoder deltaDecoder) {
         // get the SSP's private key
         PrivateKey privateKey = keyStore.getPrivateKey();
         
@@ -177,18 +272,99 @@ public abstract class CoapTools {
 			return null;
 		}
     	
-    	
-    	Language language = Language.getByCoapContentFormat(privacyDataPackage.getContentFormat());
+        log.debug("fischer: decrypted content:\n" + new String(decryptedContent));
+        
+        return readDecryptedContent(decryptedContent, privacyDataPackage.getContentFormat(), graphName, deltaDecoder);
+    }
+    
+    /**
+     * Decrypts the entries of a batch PrivacyDataPackage.
+     * The symmetric key of the package is decrypted only once for all entries.
+     * 
+     * @return  The content of every entry, mapped by the URI of the entry
+     */
+    private static Map<URI, Model> getModelsFromPrivacyDataBatchPackage(PrivacyDataPackage privacyDataPackage, KeyStore keyStore,
+                                                                        GeographicDeltaDecoder deltaDecoder) {
+        // decrypt
+        Map<String, byte[]> decryptedContents;
+        try {
+            decryptedContents = EncryptionProcessor.getContentsOfPrivacyDataBatchPackage(privacyDataPackage, 
+                                                                                         keyStore.getPrivateKey());
+        } catch (EncryptionException e) {
+            log.error("Error during decryption of batch PrivacyDataPackage", e);
+            return null;
+        }
+        
+        // entries may have their own content format
+        Map<String, Long> contentFormats = new LinkedHashMap<>();
+        for (PrivacyDataEntry entry : privacyDataPackage.getEntries()) {
+            if (entry.getContentFormat() != null) {
+                contentFormats.put(entry.getSensorUri(), entry.getContentFormat().longValue());
+            }
+        }
+        
+        // create one model per entry
+        Map<URI, Model> models = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> decryptedContent : decryptedContents.entrySet()) {
+            URI graphName;
+            try {
+                graphName = new URI(decryptedContent.getKey());
+            } catch (URISyntaxException e) {
+                log.error("Invalid URI of entry in batch PrivacyDataPackage: " + decryptedContent.getKey());
+                continue;
+            }
+            
+            Long contentFormat = contentFormats.get(decryptedContent.getKey());
+            if (contentFormat == null) {
+                contentFormat = (long)privacyDataPackage.getContentFormat();
+            }
+            
+            Model model = readDecryptedContent(decryptedContent.getValue(), contentFormat, graphName, deltaDecoder);
+            if (model != null) {
+                models.put(graphName, model);
+            }
+        }
+        
+        log.debug("decrypted batch PrivacyDataPackage with {} entries", models.size());
+        
+        return models;
+    }
+    
+    /**
+     * Creates the model of the decrypted content of a package or entry.
+     * A delta is applied to the keyframe of the graph, any other content is stored as new keyframe.
+     * 
+     * @return The model or null, if the content couldn't be read
+     */
+    private static Model readDecryptedContent(byte[] decryptedContent, long contentFormat, 
+                                              URI graphName, GeographicDeltaDecoder deltaDecoder) {
+        if (contentFormat == PrivIoTContentFormat.APP_GEO_DELTA) {
+            if (deltaDecoder == null) {
+                log.error("Received delta for graph {}, but deltas are not supported here", graphName);
+                return null;
+            }
+            try {
+                return deltaDecoder.decode(graphName, new String(decryptedContent, StandardCharsets.UTF_8));
+            } catch (DataPackageParsingException e) {
+                log.warn("Could not reconstruct graph {} from delta: {}", graphName, e.getMessage());
+                return null;
+            }
+        }
+        
+        Language language = Language.getByCoapContentFormat(contentFormat);
 
         if(language == null) {
             return null;
         }
         
-        log.debug("fischer: decrypted content:\n" + new String(decryptedContent));
-
         // create model
-        resourceStatus.read(new ByteArrayInputStream(decryptedContent), null, language.lang);
-        return resourceStatus;
-    }   
+        Model model = ModelFactory.createDefaultModel();
+        model.read(new ByteArrayInputStream(decryptedContent), null, language.lang);
+        
+        if (deltaDecoder != null) {
+            deltaDecoder.putKeyframe(graphName, model);
+        }
+        return model;
+    }
     
 }
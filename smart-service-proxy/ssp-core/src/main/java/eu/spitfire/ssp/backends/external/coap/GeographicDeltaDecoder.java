@@ -0,0 +1,143 @@
+package eu.spitfire.ssp.backends.external.coap;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+import de.uniluebeck.itm.priviot.utils.data.DataPackageParsingException;
+import de.uniluebeck.itm.priviot.utils.data.GeographicDelta;
+
+/**
+ * Reconstructs the full graphs of delta encoded geographic readings
+ * (see {@link de.uniluebeck.itm.priviot.utils.data.GeographicDelta}).
+ *
+ * The last keyframe of every graph, i.e. the last full graph with a WKT point, is stored.
+ * A delta is applied to a copy of the keyframe of it's graph.
+ * Keyframes, that were not used for some time, are removed, because the graph names are pseudonyms
+ * that change periodically.
+ *
+ * @author Sebastian Fischer
+ */
+public class GeographicDeltaDecoder {
+
+    private Logger log = LoggerFactory.getLogger(GeographicDeltaDecoder.class.getName());
+
+    /** Time in milliseconds after that an unused keyframe is removed */
+    private static final long MAX_IDLE_TIME = 10 * 60 * 1000;
+
+    /** Number of stored keyframes between two removals of unused keyframes */
+    private static final int CLEANUP_INTERVAL = 1024;
+
+    /** The last keyframe of every graph */
+    private Map<URI, Keyframe> keyframes = new ConcurrentHashMap<>();
+
+    private AtomicInteger keyframesSinceCleanup = new AtomicInteger();
+
+    /**
+     * Stores the model as keyframe of the graph, if it contains a WKT point.
+     * @param graphName  Name of the graph
+     * @param model      The full model of the graph
+     */
+    public void putKeyframe(URI graphName, Model model) {
+        Statement pointStatement = findPointStatement(model);
+        if (pointStatement == null) {
+            return;
+        }
+
+        keyframes.put(graphName, new Keyframe(model, pointStatement));
+
+        if (keyframesSinceCleanup.incrementAndGet() >= CLEANUP_INTERVAL) {
+            keyframesSinceCleanup.set(0);
+            removeUnusedKeyframes();
+        }
+    }
+
+    /**
+     * Reconstructs the full model of a graph from a delta.
+     * @param graphName        Name of the graph
+     * @param serializedDelta  The serialized delta
+     * @return The full model
+     * @throws DataPackageParsingException if the delta is malformed or the keyframe is unknown
+     */
+    public Model decode(URI graphName, String serializedDelta) throws DataPackageParsingException {
+        Keyframe keyframe = keyframes.get(graphName);
+        if (keyframe == null) {
+            throw new DataPackageParsingException("No keyframe known for delta of graph " + graphName);
+        }
+        keyframe.lastUse = System.currentTimeMillis();
+
+        Literal keyframeLiteral = keyframe.pointStatement.getLiteral();
+        String wktValue = GeographicDelta.parse(serializedDelta).apply(keyframeLiteral.getLexicalForm());
+
+        Model model = ModelFactory.createDefaultModel();
+        model.setNsPrefixes(keyframe.model);
+        model.add(keyframe.model);
+        model.remove(keyframe.pointStatement);
+        model.add(keyframe.pointStatement.getSubject(), keyframe.pointStatement.getPredicate(),
+                  model.createTypedLiteral(wktValue, keyframeLiteral.getDatatype()));
+
+        return model;
+    }
+
+    private Statement findPointStatement(Model model) {
+        StmtIterator iterator = model.listStatements();
+        try {
+            while (iterator.hasNext()) {
+                Statement statement = iterator.next();
+                RDFNode object = statement.getObject();
+                if (object.isLiteral() && GeographicDelta.isPoint(object.asLiteral().getLexicalForm())) {
+                    return statement;
+                }
+            }
+            return null;
+        }
+        finally {
+            iterator.close();
+        }
+    }
+
+    private void removeUnusedKeyframes() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+
+        Iterator<Keyframe> iterator = keyframes.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastUse > MAX_IDLE_TIME) {
+                iterator.remove();
+                removed++;
+            }
+        }
+
+        log.debug("Removed {} unused keyframes. {} keyframes left.", removed, keyframes.size());
+    }
+
+    /**
+     * The last full model of a graph and it's statement with the WKT point.
+     */
+    private static class Keyframe {
+        private Model model;
+
+        private Statement pointStatement;
+
+        /** Time in milliseconds the keyframe was stored or used by a delta */
+        private volatile long lastUse;
+
+        private Keyframe(Model model, Statement pointStatement) {
+            this.model = model;
+            this.pointStatement = pointStatement;
+            this.lastUse = System.currentTimeMillis();
+        }
+    }
+}
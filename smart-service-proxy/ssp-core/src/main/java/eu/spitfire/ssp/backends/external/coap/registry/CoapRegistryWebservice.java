@@ -3,7 +3,6 @@ package eu.spitfire.ssp.backends.external.coap.registry;
 import com.google.common.collect.Multimap;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import de.uniluebeck.itm.ncoap.application.client.CoapClientApplication;
 import de.uniluebeck.itm.ncoap.application.server.webservice.NotObservableWebservice;
@@ -13,6 +12,7 @@ import de.uniluebeck.itm.ncoap.message.CoapResponse;
 import de.uniluebeck.itm.ncoap.message.MessageCode;
 import de.uniluebeck.itm.ncoap.message.MessageType;
 import de.uniluebeck.itm.ncoap.message.options.OptionValue;
+import de.uniluebeck.itm.priviot.utils.communication.CoapDiscovery;
 import eu.spitfire.ssp.backends.external.coap.CoapBackendComponentFactory;
 import eu.spitfire.ssp.backends.external.coap.CoapWebservice;
 import org.slf4j.Logger;
@@ -21,8 +21,8 @@ import org.slf4j.LoggerFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 
 /**
@@ -31,6 +31,9 @@ import java.util.concurrent.ScheduledExecutorService;
  * the sender of the POST request by sending a GET request to the senders ".well-known/core" resource and
  * starts to observe all the discovered Web Services.
  *
+ * Senders with a paged discovery resource (see {@link de.uniluebeck.itm.priviot.utils.communication.CoapDiscovery})
+ * are asked page by page and only for the Web Services added since their last registration.
+ *
  * @author Oliver Kleine
  */
 public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
@@ -44,6 +47,9 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
     private ScheduledExecutorService internalTasksExecutor;
     private CoapRegistry registry;
 
+    /** Version of the last complete discovery of every sender */
+    private Map<InetAddress, DiscoveryVersion> discoveryVersions = new ConcurrentHashMap<>();
+
     /**
      * Creates a new instance of {@link eu.spitfire.ssp.backends.external.coap.registry.CoapRegistryWebservice}.
      *
@@ -76,20 +82,12 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
             }
             
             if (coapRequest.getUriQuery().isEmpty()) {
-	            //Get the set of available Services on the newly registered Server
-	            ListenableFuture<Set<URI>> servicesFuture = getAvailableWebservices(remoteAddress.getAddress());
-	
-	            Futures.addCallback(servicesFuture, new FutureCallback<Set<URI>>() {
-	                @Override
-	                public void onSuccess(Set<URI> result) {
-	
-	                }
-	
-	                @Override
-	                public void onFailure(Throwable t) {
-	                    registrationResponseFuture.setException(t);
-	                }
-	            });
+	            //Register the available Services on the newly registered Server page by page
+	            InetAddress serverAddress = remoteAddress.getAddress();
+	            DiscoveryVersion discoveryVersion = discoveryVersions.get(serverAddress);
+	            long since = discoveryVersion != null ? discoveryVersion.version : 0;
+
+	            discoverWebservices(serverAddress, CoapDiscovery.PATH, CoapDiscovery.QUERY_SINCE + "=" + since);
             }
             else {
             	String query = coapRequest.getUriQuery();
@@ -135,18 +133,26 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
     }
 
 
-    private ListenableFuture<Set<URI>> getAvailableWebservices(final InetAddress remoteAddress) throws Exception {
+    /**
+     * Requests one page of the discovery resource (or ".well-known/core") of a server and registers the Web Services
+     * of the page. After that the next page is requested.
+     *
+     * @param remoteAddress the address of the server
+     * @param path the path of the requested resource
+     * @param query the query of the requested page or null
+     */
+    private void discoverWebservices(final InetAddress remoteAddress, final String path, final String query)
+            throws Exception {
 
-        final SettableFuture<Set<URI>> servicesFuture = SettableFuture.create();
         final String remoteHostName = remoteAddress.getHostName();
 
-        URI uri = new URI("coap", null, remoteHostName, 5683, "/.well-known/core", null, null);
+        URI uri = new URI("coap", null, remoteHostName, 5683, path, query, null);
         CoapRequest coapRequest = new CoapRequest(MessageType.Name.CON, MessageCode.Name.GET, uri);
-        WellKnownCoreProcessor responseProcessor = new WellKnownCoreProcessor(internalTasksExecutor);
+        final WellKnownCoreProcessor responseProcessor = new WellKnownCoreProcessor(internalTasksExecutor);
 
         this.coapClient.sendCoapRequest(coapRequest, responseProcessor, new InetSocketAddress(remoteAddress, 5683));
         
-        log.debug("Sent request to /.well-known/core");
+        log.debug("Sent request to {}", uri);
 
         Futures.addCallback(responseProcessor.getWellKnownCoreFuture(),
                 new FutureCallback<Multimap<String, LinkAttribute>>() {
@@ -154,38 +160,58 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
                     @Override
                     public void onSuccess(Multimap<String, LinkAttribute> result) {
                         try{
-                            if(result == null){
-                                servicesFuture.set(new HashSet<URI>());
+                            if(!responseProcessor.isResourceFound() && path.equals(CoapDiscovery.PATH)){
+                                log.debug("No paged discovery at {}. Request /.well-known/core", remoteHostName);
+                                discoverWebservices(remoteAddress, "/.well-known/core", null);
                                 return;
                             }
 
-                            Set<URI> serviceUris = new HashSet<>(result.keySet().size());
-                            for(String servicePath : result.keySet()){
-                            	log.debug("found service: " + servicePath);
-//                        String path = "/" + servicePath.substring(1, servicePath.length() - 1);
-                                URI serviceUri = new URI("coap", null, remoteHostName, 5683, "/" + servicePath, null, null);
-                                serviceUris.add(serviceUri);
+                            DiscoveryVersion lastVersion = discoveryVersions.get(remoteAddress);
+                            if(lastVersion != null && responseProcessor.getEpoch() != lastVersion.epoch
+                                    && path.equals(CoapDiscovery.PATH)){
+                                //the server was restarted, the old version is meaningless
+                                log.info("Server {} was restarted. Discover all services.", remoteHostName);
+                                discoveryVersions.remove(remoteAddress);
+                                discoverWebservices(remoteAddress, CoapDiscovery.PATH, CoapDiscovery.QUERY_SINCE + "=0");
+                                return;
+                            }
 
-                                CoapWebservice coapWebservice = new CoapWebservice(serviceUri);
-                                registry.registerDataOrigin(coapWebservice);
+                            if(result != null){
+                                for(String servicePath : result.keySet()){
+                                    log.debug("found service: " + servicePath);
+                                    URI serviceUri = new URI("coap", null, remoteHostName, 5683, "/" + servicePath, null, null);
+
+                                    CoapWebservice coapWebservice = new CoapWebservice(serviceUri);
+                                    registry.registerDataOrigin(coapWebservice);
+                                }
                             }
 
-                            servicesFuture.set(serviceUris);
+                            String nextPage = responseProcessor.getNextPage();
+                            if(nextPage != null){
+                                int queryStart = nextPage.indexOf('?');
+                                if(queryStart < 0){
+                                    discoverWebservices(remoteAddress, nextPage, null);
+                                }
+                                else{
+                                    discoverWebservices(remoteAddress, nextPage.substring(0, queryStart),
+                                            nextPage.substring(queryStart + 1));
+                                }
+                            }
+                            else if(responseProcessor.getVersion() >= 0){
+                                discoveryVersions.put(remoteAddress,
+                                        new DiscoveryVersion(responseProcessor.getEpoch(), responseProcessor.getVersion()));
+                            }
                         }
                         catch(Exception ex){
-                            log.error("This should never happen!", ex);
-                            servicesFuture.setException(ex);
+                            log.error("Error during discovery of the services of " + remoteHostName, ex);
                         }
                     }
 
                     @Override
                     public void onFailure(Throwable t) {
-                        log.error("This should never happen!", t);
-                        servicesFuture.setException(t);
+                        log.error("Discovery of the services of " + remoteHostName + " failed", t);
                     }
                 });
-
-        return servicesFuture;
     }
 
     @Override
@@ -202,4 +228,17 @@ public class CoapRegistryWebservice extends NotObservableWebservice<Void> {
     public void shutdown() {
 
     }
+
+    /**
+     * The version of the discovery resource of a server within the epoch of the server.
+     */
+    private static class DiscoveryVersion {
+        private long epoch;
+        private long version;
+
+        private DiscoveryVersion(long epoch, long version) {
+            this.epoch = epoch;
+            this.version = version;
+        }
+    }
 }
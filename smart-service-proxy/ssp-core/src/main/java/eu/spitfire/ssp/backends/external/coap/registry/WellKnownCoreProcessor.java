@@ -12,11 +12,18 @@ import de.uniluebeck.itm.ncoap.application.server.webservice.linkformat.StringLi
 import de.uniluebeck.itm.ncoap.communication.reliability.outgoing.RetransmissionTimeoutProcessor;
 import de.uniluebeck.itm.ncoap.communication.reliability.outgoing.TransmissionInformationProcessor;
 import de.uniluebeck.itm.ncoap.message.CoapResponse;
+import de.uniluebeck.itm.ncoap.message.MessageCode;
+import de.uniluebeck.itm.priviot.utils.communication.CoapDiscovery;
+import de.uniluebeck.itm.priviot.utils.communication.LinkFormatParser;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.handler.timeout.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.util.*;
@@ -27,6 +34,10 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Instance of {@link CoapResponseProcessor} to process incoming responses from <code>.well-known/core</code> CoAP
  * resources.
  *
+ * The content is stream-parsed link by link. Also processes the pages of the discovery resource
+ * of the PrivIoT CoAP-Webserver (see {@link CoapDiscovery}): The links to the next page and with the version
+ * are not part of the result, but available with {@link #getNextPage()}, {@link #getVersion()} and {@link #getEpoch()}.
+ *
  * @author Oliver Kleine
  */
 public class WellKnownCoreProcessor implements CoapResponseProcessor, RetransmissionTimeoutProcessor,
@@ -37,6 +48,16 @@ public class WellKnownCoreProcessor implements CoapResponseProcessor, Retransmis
     private SettableFuture<Multimap<String, LinkAttribute>> wellKnownCoreFuture;
     private AtomicInteger transmissionCounter;
 
+    /** False, if the requested resource doesn't exist */
+    private volatile boolean resourceFound = true;
+
+    /** Path and query of the next page. null if there is none. */
+    private volatile String nextPage;
+
+    /** Version and epoch of the discovery resource. -1 if unknown. */
+    private volatile long version = -1;
+    private volatile long epoch = -1;
+
     public WellKnownCoreProcessor(ExecutorService internalTasksExecutor){
         this.transmissionCounter = new AtomicInteger(0);
         this.wellKnownCoreFuture = SettableFuture.create();
@@ -55,6 +76,38 @@ public class WellKnownCoreProcessor implements CoapResponseProcessor, Retransmis
         return this.wellKnownCoreFuture;
     }
 
+    /**
+     * Returns false, if the server answered that the requested resource doesn't exist.
+     * Valid after the future returned by {@link #getWellKnownCoreFuture()} was set.
+     */
+    public boolean isResourceFound(){
+        return this.resourceFound;
+    }
+
+    /**
+     * Returns the path and query of the next page of the discovery resource, or null if there is none.
+     * Valid after the future returned by {@link #getWellKnownCoreFuture()} was set.
+     */
+    public String getNextPage(){
+        return this.nextPage;
+    }
+
+    /**
+     * Returns the version of the discovery resource, or -1 if the response contained no version.
+     * Valid after the future returned by {@link #getWellKnownCoreFuture()} was set.
+     */
+    public long getVersion(){
+        return this.version;
+    }
+
+    /**
+     * Returns the epoch of the version of the discovery resource, or -1 if the response contained no version.
+     * Valid after the future returned by {@link #getWellKnownCoreFuture()} was set.
+     */
+    public long getEpoch(){
+        return this.epoch;
+    }
+
     /**
      * Sets the {@link com.google.common.util.concurrent.SettableFuture} returned by {@link #getWellKnownCoreFuture()}
      * according to the content of the given {@link de.uniluebeck.itm.ncoap.message.CoapResponse} which is supposed
@@ -76,52 +129,63 @@ public class WellKnownCoreProcessor implements CoapResponseProcessor, Retransmis
     }
 
 
-    private Multimap<String, LinkAttribute> processWellKnownCoreResponse(CoapResponse coapResponse){
-
-        ChannelBuffer payload = coapResponse.getContent();
-        log.debug("Process ./well-known/core resource {}", payload.toString(Charset.forName("UTF-8")));
+    private Multimap<String, LinkAttribute> processWellKnownCoreResponse(CoapResponse coapResponse) throws IOException{
 
         Multimap<String, LinkAttribute> result = HashMultimap.create();
 
+        if(coapResponse.getMessageCodeName() == MessageCode.Name.NOT_FOUND_404){
+            log.debug("Requested link format resource not found");
+            resourceFound = false;
+            return result;
+        }
+
+        ChannelBuffer payload = coapResponse.getContent();
+        log.debug("Process ./well-known/core resource with {} bytes", payload.readableBytes());
+
         //Check if there is content at all
         if(payload.readableBytes() == 0)
             return result;
 
         //add links to the result set
-        String[] webservices = payload.toString(Charset.forName("UTF-8")).split(",");
-
-        for (String webservice : webservices){
-            if(webservice.contains(".well-known/core")){
+        LinkFormatParser parser = new LinkFormatParser(new BufferedReader(
+                new InputStreamReader(new ChannelBufferInputStream(payload), Charset.forName("UTF-8"))));
+
+        LinkFormatParser.Link link;
+        while ((link = parser.next()) != null){
+            String rel = link.getFirstValue(CoapDiscovery.ATTRIBUTE_REL);
+            if(CoapDiscovery.REL_NEXT.equals(rel)){
+                nextPage = link.getTarget();
                 continue;
             }
-
-            String[] attributes = webservice.split(";");
-
-            if(attributes[0].startsWith("\n")){
-                attributes[0] = attributes[0].substring(1);
+            if(CoapDiscovery.REL_VERSION.equals(rel)){
+                version = parseLong(link.getFirstValue(CoapDiscovery.ATTRIBUTE_VERSION));
+                epoch = parseLong(link.getFirstValue(CoapDiscovery.ATTRIBUTE_EPOCH));
+                continue;
+            }
+            if(link.getTarget().contains(".well-known/core")){
+                continue;
             }
 
-
-            if(!(attributes[0].startsWith("</") && attributes[0].endsWith(">"))){
-                log.error("Malformed webservice path in .well-known/core: {}", attributes[0]);
+            if(!link.getTarget().startsWith("/")){
+                log.error("Malformed webservice path in .well-known/core: {}", link.getTarget());
                 continue;
             }
 
-            String webservicePath = attributes[0].substring(2, attributes[0].length() - 1);
+            String webservicePath = link.getTarget().substring(1);
             log.info("Found webservice path in .well-known/core: {}", webservicePath);
 
-            if(attributes.length == 1){
+            if(link.getAttributes().isEmpty()){
                 result.put(webservicePath, null);
             }
 
             else{
-                for(int i = 1; i < attributes.length; i++){
+                for(Map.Entry<String, List<String>> attribute : link.getAttributes().entrySet()){
                     try{
-                        result.putAll(webservicePath, deserializeLinkAttributes(attributes[i]));
+                        result.putAll(webservicePath, deserializeLinkAttributes(attribute.getKey(), attribute.getValue()));
                     }
                     catch(IllegalArgumentException ex){
                         log.warn("Could not de-serialize link attribute for webservice {}: {}!", webservicePath,
-                                attributes[i]);
+                                attribute.getKey());
                     }
                 }
             }
@@ -131,10 +195,18 @@ public class WellKnownCoreProcessor implements CoapResponseProcessor, Retransmis
     }
 
 
-    private Collection<LinkAttribute> deserializeLinkAttributes(String attribute) throws IllegalArgumentException{
+    private long parseLong(String value){
+        try{
+            return value == null ? -1 : Long.parseLong(value);
+        }
+        catch(NumberFormatException ex){
+            return -1;
+        }
+    }
 
-        String[] keyAndValues = attribute.split("=");
-        String key = keyAndValues[0];
+
+    private Collection<LinkAttribute> deserializeLinkAttributes(String key, List<String> values)
+            throws IllegalArgumentException{
 
         int attributeType = LinkAttribute.getAttributeType(key);
         Collection<LinkAttribute> result = new ArrayList<>();
@@ -144,10 +216,8 @@ public class WellKnownCoreProcessor implements CoapResponseProcessor, Retransmis
             return result;
         }
 
-        if(keyAndValues.length != 2)
-            throw new IllegalArgumentException("No value for non-empty link attribute found: " + attribute);
-
-        String[] values = keyAndValues[1].split(" ");
+        if(values.isEmpty())
+            throw new IllegalArgumentException("No value for non-empty link attribute found: " + key);
 
         if(attributeType == LinkAttribute.LONG_ATTRIBUTE){
             for(String value : values)
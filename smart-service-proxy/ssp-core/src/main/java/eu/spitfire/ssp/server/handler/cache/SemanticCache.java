@@ -41,7 +41,6 @@ import eu.spitfire.ssp.server.internal.messages.requests.*;
 import eu.spitfire.ssp.server.internal.messages.responses.ExpiringGraph;
 import eu.spitfire.ssp.server.internal.messages.responses.ExpiringNamedGraph;
 import eu.spitfire.ssp.server.internal.messages.responses.QueryResult;
-import eu.spitfire.ssp.utils.exceptions.GraphNameAlreadyExistsException;
 
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
@@ -306,32 +305,28 @@ public abstract class SemanticCache extends SimpleChannelHandler {
             @Override
             public void onSuccess(Boolean alreadyContained) {
                 if(alreadyContained){
-                    log.warn("Graph \"{}\" was already contained in cache!", graphName);
-                    registration.getRegistrationFuture().setException(new GraphNameAlreadyExistsException(graphName));
-                }
-                else{
-                    log.debug("Graph \"{}\" not yet contained in cache!", graphName);
-
-                    //Add new graph with initial status to cache
-                    final Model status = registration.getInitialStatus();
-                    ListenableFuture<Void> insertionFuture = putNamedGraphToCache(graphName, status);
-                    Futures.addCallback(insertionFuture, new FutureCallback<Void>() {
+                    //A registered data origin registers again (e.g. after a restart of its observation), so its
+                    //initial status replaces the contained graph instead of being added to it.
+                    log.debug("Graph \"{}\" was already contained in cache and is replaced!", graphName);
+                    Futures.addCallback(deleteNamedGraph(graphName), new FutureCallback<Void>() {
 
                         @Override
                         public void onSuccess(Void result) {
-                            log.debug("Initial graph \"{}\" added to cache!", graphName);
-                            SettableFuture<?> registrationFuture = registration.getRegistrationFuture();
-                            registrationFuture.set(null);
+                            putInitialStatus(registration);
                         }
 
                         @Override
                         public void onFailure(Throwable t) {
-                            log.error("Could not add graph \"{}\" to cache!", graphName, t);
+                            log.error("Could not replace graph \"{}\" in cache!", graphName, t);
                             registration.getRegistrationFuture().setException(t);
                         }
 
                     }, SemanticCache.this.internalTasksExecutorService);
                 }
+                else{
+                    log.debug("Graph \"{}\" not yet contained in cache!", graphName);
+                    putInitialStatus(registration);
+                }
             }
 
             @Override
@@ -343,6 +338,30 @@ public abstract class SemanticCache extends SimpleChannelHandler {
         }, this.internalTasksExecutorService);
     }
 
+    private void putInitialStatus(final DataOriginRegistration registration){
+        final URI graphName = registration.getDataOrigin().getGraphName();
+
+        //Add new graph with initial status to cache
+        final Model status = registration.getInitialStatus();
+        ListenableFuture<Void> insertionFuture = putNamedGraphToCache(graphName, status);
+        Futures.addCallback(insertionFuture, new FutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void result) {
+                log.debug("Initial graph \"{}\" added to cache!", graphName);
+                SettableFuture<?> registrationFuture = registration.getRegistrationFuture();
+                registrationFuture.set(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.error("Could not add graph \"{}\" to cache!", graphName, t);
+                registration.getRegistrationFuture().setException(t);
+            }
+
+        }, this.internalTasksExecutorService);
+    }
+
     private void handleDataOriginDeregistration(final DataOriginDeregistration deregistration){
         final URI graphName = deregistration.getDataOrigin().getGraphName();
 
@@ -469,13 +488,29 @@ public abstract class SemanticCache extends SimpleChannelHandler {
         }
     }
 
+    /**
+     * Returns the expiry of a cached graph.
+     *
+     * @param graphName the name of the graph
+     *
+     * @return the expiry of the graph or <code>null</code> if no expiry is scheduled for the graph
+     */
+    protected Date getExpiry(URI graphName) {
+        ScheduledFuture expiryFuture = expiryFutures.get(graphName);
+        if (expiryFuture == null)
+            return null;
+
+        return new Date(System.currentTimeMillis() + expiryFuture.getDelay(TimeUnit.MILLISECONDS)
+                - DELAY_AFTER_EXPIRY_MILLIS);
+    }
+
     /**
      * Method to check whether a graph with a given name is contained in the cache. The returned future MUST be
      * set with <code>true</code> if the cache contains a graph with given name or <code>false</code> otherwise.
      *
-     * If some error occurred it may alternatively set with an {@link java.lang.Exception}. This method is used to avoid
-     * overwriting already contained graphs with the same name (the graph name is a unique identifier). In case of an
-     * exception the framework behaves like the future was set with <code>true</code>.
+     * If some error occurred it may alternatively set with an {@link java.lang.Exception}. This method is used to replace
+     * an already contained graph with the same name (the graph name is a unique identifier), when its data origin
+     * registers again.
      *
      * @param graphName the name of the graph to be looked up
      *
@@ -1,16 +1,25 @@
 package eu.spitfire.ssp.server.handler.cache;
 
 import com.google.common.util.concurrent.*;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.ResultSet;
-import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.rdf.model.*;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.util.NodeFactoryExtra;
 
 import eu.spitfire.ssp.server.internal.messages.responses.ExpiringGraph;
 import eu.spitfire.ssp.server.internal.messages.responses.QueryResult;
+import lupos.datastructures.bindings.Bindings;
+import lupos.datastructures.items.Variable;
+import lupos.datastructures.items.literal.Literal;
 import lupos.datastructures.items.literal.LiteralFactory;
 import lupos.datastructures.items.literal.URILiteral;
-import lupos.endpoint.server.format.XMLFormatter;
 import lupos.engine.evaluators.BasicIndexQueryEvaluator;
 import lupos.engine.evaluators.CommonCoreQueryEvaluator;
 import lupos.engine.evaluators.MemoryIndexQueryEvaluator;
@@ -20,15 +29,15 @@ import lupos.geo.geosparql.GeoFunctionRegisterer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.Nullable;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -47,6 +56,12 @@ public class LuposdateSemanticCache extends SemanticCache {
 
     private ExecutorService cacheExecutor;
 
+    //fischer: index of the cached named graphs to answer graph lookups without the evaluator.
+    //The indexed models are never changed after they were put to the index (copy on write),
+    //so they can be read without locking. The index is changed while holding the evaluator lock,
+    //in the same order as the evaluator.
+    private Map<URI, Model> graphIndex = new ConcurrentHashMap<>();
+
     public LuposdateSemanticCache(ExecutorService ioExecutorService,
                                   ScheduledExecutorService internalTasksExecutorService) {
 
@@ -87,7 +102,7 @@ public class LuposdateSemanticCache extends SemanticCache {
     @Override
     public ListenableFuture<Boolean> containsNamedGraph(final URI graphName) {
         final SettableFuture<Boolean> containsFuture = SettableFuture.create();
-        containsFuture.set(false);
+        containsFuture.set(graphIndex.containsKey(graphName));
         return containsFuture;
     }
 
@@ -95,7 +110,19 @@ public class LuposdateSemanticCache extends SemanticCache {
     @Override
     public ListenableFuture<ExpiringGraph> getNamedGraph(final URI graphName) {
         final SettableFuture<ExpiringGraph> result = SettableFuture.create();
-        result.set(null);
+
+        Model indexedGraph = graphIndex.get(graphName);
+        if(indexedGraph == null){
+            result.set(null);
+        }
+        else{
+            //the caller gets a copy, the indexed model must not be changed
+            Model graph = ModelFactory.createDefaultModel();
+            graph.add(indexedGraph);
+            Date expiry = getExpiry(graphName);
+            result.set(expiry != null ? new ExpiringGraph(graph, expiry) : new ExpiringGraph(graph));
+        }
+
         return result;
     }
 
@@ -198,6 +225,8 @@ public class LuposdateSemanticCache extends SemanticCache {
                 if (luposQueryResult == null) {
                     deletionResultFuture.setException(new Exception("Execution of sparql query returned null"));
                 }
+
+                graphIndex.remove(graphName);
         	}
             
             deletionResultFuture.set(null);
@@ -217,6 +246,19 @@ public class LuposdateSemanticCache extends SemanticCache {
 
         synchronized (evaluator) {
             this.evaluator.getResult(updateQuery);
+
+            Model indexedGraph = graphIndex.get(graphName);
+            if(indexedGraph != null){
+                Model graph = ModelFactory.createDefaultModel();
+                graph.add(indexedGraph);
+
+                Resource sensorOutput = graph.createResource(graphName + "-SensorOutput");
+                Property hasValue = graph.createProperty("http://purl.oclc.org/NET/ssnx/ssn#hasValue");
+                graph.removeAll(sensorOutput, hasValue, null);
+                graph.add(sensorOutput, hasValue, sensorValue);
+
+                graphIndex.put(graphName, graph);
+            }
         }
     }
 
@@ -230,6 +272,15 @@ public class LuposdateSemanticCache extends SemanticCache {
         
         synchronized (evaluator) {
             this.evaluator.getResult(query);
+
+            //the evaluator adds the triples to an existing graph with the same name, so does the index
+            Model graph = ModelFactory.createDefaultModel();
+            Model indexedGraph = graphIndex.get(graphName);
+            if(indexedGraph != null){
+                graph.add(indexedGraph);
+            }
+            graph.add(namedGraph);
+            graphIndex.put(graphName, graph);
         }
 
         log.debug("Finished insertion of graph {} (duration: {} millis.",
@@ -299,35 +350,13 @@ public class LuposdateSemanticCache extends SemanticCache {
 
 
     private QueryResult processSparqlQuery2(Query sparqlQuery) throws Exception{
-        final SettableFuture<QueryResult> queryResultFuture = SettableFuture.create();
-
-        ListenableFuture<ResultSet> resultSetFuture;
+        ResultSet resultSet;
         synchronized (evaluator) {
             //Execute Query and make the result a JENA result set
-            resultSetFuture = toResultSet(this.evaluator.getResult(sparqlQuery.toString()));
+            resultSet = toResultSet(sparqlQuery, this.evaluator.getResult(sparqlQuery.toString()));
         }
-        Futures.addCallback(resultSetFuture, new FutureCallback<ResultSet>() {
-            @Override
-            public void onSuccess(@Nullable ResultSet resultSet) {
-                try{
-                    QueryResult queryResult = new QueryResult(resultSet);
-                    queryResultFuture.set(queryResult);
-                }
-                catch(Exception ex){
-                    log.error("Exception while creating internal SPARQL query result message.", ex);
-                    queryResultFuture.setException(ex);
-                }
-
-            }
-
-            @Override
-            public void onFailure(Throwable t) {
-                log.error("Unexpected Exception!", t);
-                queryResultFuture.setException(t);
-            }
-        });
 
-        return queryResultFuture.get();
+        return new QueryResult(resultSet);
     }
 
 
@@ -364,23 +393,49 @@ public class LuposdateSemanticCache extends SemanticCache {
 //    }
 
 
-    private ListenableFuture<ResultSet> toResultSet(final lupos.datastructures.queryresult.QueryResult queryResult) throws IOException {
+    //fischer: convert the bindings directly instead of writing them to a temporary XML file and parsing it again
+    private ResultSet toResultSet(Query sparqlQuery, lupos.datastructures.queryresult.QueryResult queryResult){
         long start = System.currentTimeMillis();
-        final SettableFuture<ResultSet> resultSetFuture = SettableFuture.create();
-        final File tmpFile = File.createTempFile("queryResult", ".xml");
-
-        XMLFormatter formatter = new XMLFormatter();
-        formatter.writeResult(new FileOutputStream(tmpFile), queryResult.getVariableSet(), queryResult);
-
-        ResultSet result = ResultSetFactory.fromXML(new FileInputStream(tmpFile));
-        resultSetFuture.set(result);
+        List<Binding> bindings = new ArrayList<>();
+
+        if(queryResult != null){
+            Iterator<Bindings> luposBindings = queryResult.oneTimeIterator();
+            while(luposBindings.hasNext()){
+                Bindings luposBinding = luposBindings.next();
+                BindingMap binding = BindingFactory.create();
+
+                for(Variable variable : luposBinding.getVariableSet()){
+                    Literal literal = luposBinding.get(variable);
+                    if(literal != null){
+                        binding.add(Var.alloc(variable.getName()), toNode(literal));
+                    }
+                }
 
-        if(!tmpFile.delete()){
-            log.error("Temporary file {} could not deleted...", tmpFile.getAbsolutePath());
+                bindings.add(binding);
+            }
         }
 
+        ResultSet result = new ResultSetStream(sparqlQuery.getResultVars(), ModelFactory.createDefaultModel(),
+                bindings.iterator());
+
         log.debug("Time to re-format result-set: {} millis", System.currentTimeMillis() - start);
-        return resultSetFuture;
+        return result;
+    }
+
+
+    private Node toNode(Literal literal){
+        String value = literal.toString();
+
+        //URIs and blank nodes are the most frequent values and need no parsing
+        if(value.startsWith("<") && value.endsWith(">")){
+            return NodeFactory.createURI(value.substring(1, value.length() - 1));
+        }
+        else if(value.startsWith("_:")){
+            return NodeFactory.createAnon(new AnonId(value.substring(2)));
+        }
+        else{
+            return NodeFactoryExtra.parseNode(value);
+        }
     }
 
     